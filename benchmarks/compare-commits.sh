@@ -0,0 +1,56 @@
+#!/bin/bash
+# Runs the JMH benchmarks on two commits and prints a comparison of the results.
+#
+# usage: benchmarks/compare-commits.sh <baseline commit> <contender commit> [benchmark regex] [maximal slowdown in percent]
+#
+# Both commits are checked out into temporary worktrees. Commits without the benchmarks module get the one of the
+# current working tree, which then has to compile against the older sources. The result files are kept in
+# benchmarks/build/reports/jmh/compare.
+# Set GRADLE to use another gradle executable.
+set -e
+
+if [ $# -lt 2 ]; then
+    echo "usage: $0 <baseline commit> <contender commit> [benchmark regex] [maximal slowdown in percent]" >&2
+    exit 2
+fi
+
+BASELINE=$1
+CONTENDER=$2
+INCLUDE=${3:-.*}
+MAX_SLOWDOWN=$4
+GRADLE=${GRADLE:-gradle}
+
+ROOT=$(git rev-parse --show-toplevel)
+WORK=$(mktemp -d "${TMPDIR:-/tmp}/sirius-benchmarks.XXXXXX")
+REPORTS="$ROOT/benchmarks/build/reports/jmh/compare"
+mkdir -p "$REPORTS"
+
+cleanup() {
+    rm -rf "$WORK"
+    git -C "$ROOT" worktree prune
+}
+trap cleanup EXIT
+
+run_benchmarks() {
+    local commit=$1
+    local name=$2
+    local dir="$WORK/$name"
+    git -C "$ROOT" worktree add --detach "$dir" "$commit" > /dev/null
+    if [ ! -d "$dir/benchmarks" ]; then
+        cp -r "$ROOT/benchmarks" "$dir/benchmarks"
+        rm -rf "$dir/benchmarks/build"
+        printf "\ninclude ':benchmarks'\n" >> "$dir/settings.gradle"
+    fi
+    echo "running benchmarks on $commit ($(git -C "$ROOT" rev-parse --short "$commit"))"
+    (cd "$dir" && "$GRADLE" -q :benchmarks:jmh "-PjmhInclude=$INCLUDE")
+    cp "$dir/benchmarks/build/reports/jmh/results.json" "$REPORTS/$name.json"
+}
+
+run_benchmarks "$BASELINE" baseline
+run_benchmarks "$CONTENDER" contender
+
+ARGS=("-Pbaseline=$REPORTS/baseline.json" "-Pcontender=$REPORTS/contender.json")
+if [ -n "$MAX_SLOWDOWN" ]; then
+    ARGS+=("-PmaxSlowdown=$MAX_SLOWDOWN")
+fi
+(cd "$ROOT" && "$GRADLE" -q :benchmarks:compareBenchmarks "${ARGS[@]}")
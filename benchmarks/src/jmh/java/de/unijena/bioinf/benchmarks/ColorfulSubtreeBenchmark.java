@@ -0,0 +1,48 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.maximumColorfulSubtree.MaximumColorfulSubtreeAlgorithm;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solves the fragmentation graphs of the reference spectra with the dynamic programming of
+ * {@link MaximumColorfulSubtreeAlgorithm}. Only the maxColors most intense peaks are part of the dynamic programming,
+ * the remaining ones are attached greedily.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ColorfulSubtreeBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    @Param({"8", "12"})
+    public int maxColors;
+
+    private MaximumColorfulSubtreeAlgorithm algorithm;
+    private FGraph[] graphs;
+
+    @Setup
+    public void setup() throws IOException {
+        // the dynamic programming recolors the graphs, so they are not shared with other benchmarks
+        final List<FGraph> list = ReferenceSpectra.graphs(ReferenceSpectra.analyzer(), massClass);
+        graphs = list.toArray(new FGraph[list.size()]);
+        algorithm = new MaximumColorfulSubtreeAlgorithm();
+    }
+
+    @Benchmark
+    public void compute(Blackhole blackhole) {
+        for (FGraph graph : graphs) {
+            blackhole.consume(algorithm.compute(graph, maxColors));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package de.unijena.bioinf.benchmarks;
+
+import com.google.gson.JsonParser;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
+import de.unijena.bioinf.babelms.json.FTJsonReader;
+import de.unijena.bioinf.babelms.json.FTJsonWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the JSON documents of the trees written in {@link FTJsonWriterBenchmark}, once with the streaming reader and
+ * once via a Gson document.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class FTJsonReaderBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    private FTJsonReader reader;
+    private String[] documents;
+
+    @Setup
+    public void setup() throws IOException {
+        final FragmentationPatternAnalysis analyzer = ReferenceSpectra.analyzer();
+        analyzer.setTreeBuilder(new ExtendedCriticalPathHeuristicTreeBuilder());
+        final List<FGraph> graphs = ReferenceSpectra.graphs(analyzer, massClass);
+        final FTJsonWriter writer = new FTJsonWriter();
+        documents = new String[graphs.size()];
+        for (int i = 0; i < documents.length; ++i) {
+            documents[i] = writer.treeToJsonString(analyzer.computeTree(graphs.get(i)));
+        }
+        reader = new FTJsonReader();
+    }
+
+    @Benchmark
+    public long readTreeStreaming() throws IOException {
+        long vertices = 0;
+        for (String json : documents)
+            vertices += reader.parse(new BufferedReader(new StringReader(json)), null).numberOfVertices();
+        return vertices;
+    }
+
+    @Benchmark
+    public long readTreeGson() {
+        long vertices = 0;
+        for (String json : documents)
+            vertices += reader.treeFromJson(new JsonParser().parse(json).getAsJsonObject(), null).numberOfVertices();
+        return vertices;
+    }
+}
@@ -0,0 +1,55 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
+import de.unijena.bioinf.babelms.json.FTJsonWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the annotated fragmentation trees of the reference spectra as JSON. The trees are computed with the
+ * critical path heuristic, so no ILP solver is required.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class FTJsonWriterBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    private FTJsonWriter writer;
+    private FTree[] trees;
+
+    @Setup
+    public void setup() throws IOException {
+        final FragmentationPatternAnalysis analyzer = ReferenceSpectra.analyzer();
+        analyzer.setTreeBuilder(new ExtendedCriticalPathHeuristicTreeBuilder());
+        final List<FGraph> graphs = ReferenceSpectra.graphs(analyzer, massClass);
+        trees = new FTree[graphs.size()];
+        for (int i = 0; i < trees.length; ++i) {
+            trees[i] = analyzer.computeTree(graphs.get(i));
+        }
+        writer = new FTJsonWriter();
+    }
+
+    @Benchmark
+    public long writeTree() throws IOException {
+        long length = 0;
+        for (FTree tree : trees) {
+            final StringWriter out = new StringWriter(8192);
+            writer.writeTree(out, tree);
+            length += out.getBuffer().length();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,121 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.GibbsSampling.model.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs sweeps of a single {@link GibbsMFCorrectionNetwork} chain. The runtime of a sweep only depends on the structure
+ * of the ZODIAC graph, so the graph is generated: each compound has a fixed number of candidates with random prior
+ * probabilities, and each pair of candidates is connected with a small probability.
+ * The score is the time per sweep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GibbsSamplingBenchmark {
+
+    private static final int SWEEPS = 50;
+    private static final int CANDIDATES_PER_COMPOUND = 10;
+    private static final double EDGE_PROBABILITY = 0.02;
+
+    @Param({"100", "1000"})
+    public int numberOfCompounds;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Graph<GeneratedCandidate> graph;
+
+    @Setup
+    public void setup() throws ExecutionException {
+        final Random random = new Random(42);
+        final String[] ids = new String[numberOfCompounds];
+        final GeneratedCandidate[][] candidates = new GeneratedCandidate[numberOfCompounds][CANDIDATES_PER_COMPOUND];
+        int id = 0;
+        for (int i = 0; i < numberOfCompounds; ++i) {
+            ids[i] = "compound_" + i;
+            for (int j = 0; j < CANDIDATES_PER_COMPOUND; ++j) {
+                candidates[i][j] = new GeneratedCandidate(id++, 0.01 + 0.99 * random.nextDouble());
+            }
+        }
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final NodeScorer<GeneratedCandidate>[] nodeScorers = new NodeScorer[0];
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final EdgeScorer<GeneratedCandidate>[] edgeScorers = new EdgeScorer[]{new GeneratedEdgeScorer()};
+        final GraphBuilder<GeneratedCandidate> builder = GraphBuilder.createGraphBuilder(ids, candidates, nodeScorers, edgeScorers, new NoEdgeFilter());
+        SiriusJobs.getGlobalJobManager().submitJob(builder);
+        graph = builder.awaitResult();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SWEEPS)
+    public Object sweep() throws ExecutionException {
+        final GibbsMFCorrectionNetwork<GeneratedCandidate> network = new GibbsMFCorrectionNetwork<>(graph);
+        network.setIterationSteps(SWEEPS, 0);
+        network.setNumberOfThreads(threads);
+        SiriusJobs.getGlobalJobManager().submitJob(network);
+        return network.awaitResult();
+    }
+
+    public static class GeneratedCandidate extends Candidate<Integer> {
+        public GeneratedCandidate(int id, double probability) {
+            super(id, probability);
+            addNodeProbabilityScore(probability);
+        }
+    }
+
+    /**
+     * connects candidates of different compounds with probability {@link #EDGE_PROBABILITY}. Scores are derived from a
+     * hash of both candidate ids, so they are symmetric and the same for all runs.
+     */
+    private static class GeneratedEdgeScorer implements EdgeScorer<GeneratedCandidate> {
+        private double threshold;
+
+        @Override
+        public void setThreshold(double threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public double getThreshold() {
+            return threshold;
+        }
+
+        @Override
+        public void prepare(GeneratedCandidate[][] candidates) {
+        }
+
+        @Override
+        public double score(GeneratedCandidate a, GeneratedCandidate b) {
+            final double value = scoreWithoutThreshold(a, b);
+            return value >= 1d - EDGE_PROBABILITY ? value : 0d;
+        }
+
+        @Override
+        public double scoreWithoutThreshold(GeneratedCandidate a, GeneratedCandidate b) {
+            final int x = Math.min(a.getCandidate(), b.getCandidate()), y = Math.max(a.getCandidate(), b.getCandidate());
+            long h = x * 0x9E3779B97F4A7C15L + y;
+            h ^= h >>> 31;
+            h *= 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 29;
+            return (h >>> 11) / (double) (1L << 53);
+        }
+
+        @Override
+        public void clean() {
+        }
+
+        @Override
+        public double[] normalization(GeneratedCandidate[][] candidates) {
+            return new double[0];
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.GraphBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.SubFormulaGraphBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds and scores the fragmentation graphs of the correct molecular formulas of the reference spectra.
+ * Scoring reuses the loss scores memoized for the input, as it is the case for all but the first candidate of an input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class GraphBuilderBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    private FragmentationPatternAnalysis analyzer;
+    private GraphBuilder graphBuilder;
+    private ProcessedInput[] inputs;
+    private Decomposition[] roots;
+    private FGraph[] graphs;
+
+    @Setup
+    public void setup() throws IOException {
+        analyzer = ReferenceSpectra.analyzer();
+        graphBuilder = new SubFormulaGraphBuilder();
+        final List<ProcessedInput> preprocessed = ReferenceSpectra.preprocess(analyzer, massClass);
+        inputs = preprocessed.toArray(new ProcessedInput[preprocessed.size()]);
+        roots = new Decomposition[inputs.length];
+        graphs = new FGraph[inputs.length];
+        for (int i = 0; i < inputs.length; ++i) {
+            roots[i] = ReferenceSpectra.correctDecomposition(inputs[i]);
+            graphs[i] = fillGraph(i);
+            graphs[i].addAliasForFragmentAnnotation(ProcessedPeak.class, Peak.class);
+            analyzer.performGraphScoring(graphs[i]);
+        }
+    }
+
+    private FGraph fillGraph(int i) {
+        return graphBuilder.fillGraph(graphBuilder.addRoot(graphBuilder.initializeEmptyGraph(inputs[i]), inputs[i].getParentPeak(), Collections.singletonList(roots[i])));
+    }
+
+    @Benchmark
+    public void fillGraph(Blackhole blackhole) {
+        for (int i = 0; i < inputs.length; ++i) {
+            blackhole.consume(fillGraph(i));
+        }
+    }
+
+    @Benchmark
+    public void performGraphScoring(Blackhole blackhole) {
+        for (FGraph graph : graphs) {
+            blackhole.consume(analyzer.performGraphScoring(graph));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates the isotope patterns of all precursor candidates of the reference spectra, as done for the MS1 scoring
+ * of each candidate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class IsotopePatternBenchmark {
+
+    // the number of candidates grows exponentially with the mass
+    private static final int MAX_CANDIDATES_PER_SPECTRUM = 500;
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    private FastIsotopePatternGenerator generator;
+    private Ionization ionization;
+    private MolecularFormula[] candidates;
+
+    @Setup
+    public void setup() throws IOException {
+        final FragmentationPatternAnalysis analyzer = ReferenceSpectra.analyzer();
+        final FormulaConstraints constraints = analyzer.getDefaultProfile().getFormulaConstraints();
+        final Deviation deviation = analyzer.getDefaultProfile().getAllowedMassDeviation();
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(constraints.getChemicalAlphabet());
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (Ms2Experiment experiment : ReferenceSpectra.experiments(massClass)) {
+            final List<MolecularFormula> decompositions = decomposer.decomposeToFormulas(ReferenceSpectra.ION_TYPE.precursorMassToNeutralMass(experiment.getIonMass()), deviation, constraints);
+            formulas.addAll(decompositions.subList(0, Math.min(MAX_CANDIDATES_PER_SPECTRUM, decompositions.size())));
+        }
+        candidates = formulas.toArray(new MolecularFormula[formulas.size()]);
+        ionization = ReferenceSpectra.ION_TYPE.getIonization();
+        generator = new FastIsotopePatternGenerator();
+    }
+
+    @Benchmark
+    public void simulatePattern(Blackhole blackhole) {
+        for (MolecularFormula formula : candidates) {
+            blackhole.consume(generator.simulatePattern(formula, ionization));
+        }
+    }
+}
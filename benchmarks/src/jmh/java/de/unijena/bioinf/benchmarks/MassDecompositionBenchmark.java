@@ -0,0 +1,86 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
+import de.unijena.bioinf.MassDecomposer.CompomerBuffer;
+import gnu.trove.list.array.TDoubleArrayList;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decomposes the precursor and all fragment peak masses of the reference spectra with the
+ * {@link de.unijena.bioinf.MassDecomposer.RangeMassDecomposer} used by the analyzer. The extended residue table is
+ * computed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class MassDecompositionBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    private MassToFormulaDecomposer decomposer;
+    private FormulaConstraints constraints;
+    private Deviation deviation;
+    private double[] precursorMasses;
+    private double[] fragmentMasses;
+    private double[] fragmentTolerances;
+    private CompomerBuffer buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        final FragmentationPatternAnalysis analyzer = ReferenceSpectra.analyzer();
+        constraints = analyzer.getDefaultProfile().getFormulaConstraints();
+        deviation = analyzer.getDefaultProfile().getAllowedMassDeviation();
+        decomposer = new MassToFormulaDecomposer(constraints.getChemicalAlphabet());
+        final TDoubleArrayList precursors = new TDoubleArrayList(), fragments = new TDoubleArrayList();
+        for (Ms2Experiment experiment : ReferenceSpectra.experiments(massClass)) {
+            precursors.add(ReferenceSpectra.ION_TYPE.precursorMassToNeutralMass(experiment.getIonMass()));
+            for (Ms2Spectrum<Peak> spectrum : experiment.<Ms2Spectrum<Peak>>getMs2Spectra()) {
+                for (Peak peak : spectrum) {
+                    if (peak.getMass() < experiment.getIonMass())
+                        fragments.add(ReferenceSpectra.ION_TYPE.getIonization().subtractFromMass(peak.getMass()));
+                }
+            }
+        }
+        precursorMasses = precursors.toArray();
+        fragmentMasses = fragments.toArray();
+        fragmentTolerances = new double[fragmentMasses.length];
+        for (int i = 0; i < fragmentMasses.length; ++i)
+            fragmentTolerances[i] = deviation.absoluteFor(fragmentMasses[i]);
+        buffer = new CompomerBuffer();
+        decomposer.decomposeToFormulas(precursorMasses[0], deviation, constraints);
+    }
+
+    @Benchmark
+    public void decomposePrecursors(Blackhole blackhole) {
+        for (double mass : precursorMasses) {
+            blackhole.consume(decomposer.decomposeToFormulas(mass, deviation, constraints));
+        }
+    }
+
+    @Benchmark
+    public void decomposeFragments(Blackhole blackhole) {
+        for (double mass : fragmentMasses) {
+            blackhole.consume(decomposer.decomposeToFormulas(mass, deviation, constraints));
+        }
+    }
+
+    @Benchmark
+    public int decomposeFragmentsBatched() {
+        buffer.clear();
+        return decomposer.decomposeToCompomers(fragmentMasses, fragmentTolerances, constraints, buffer).size();
+    }
+}
@@ -0,0 +1,54 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.mgf.MgfParser;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the reference spectra from memory, such that only parsing and not the file system is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ParserBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    private String ms;
+    private String mgf;
+
+    @Setup
+    public void setup() throws IOException {
+        ms = ReferenceSpectra.read(massClass, "ms");
+        mgf = ReferenceSpectra.read(massClass, "mgf");
+    }
+
+    @Benchmark
+    public void parseMs(Blackhole blackhole) throws IOException {
+        parse(new GenericParser<>(new JenaMsParser()), ms, blackhole);
+    }
+
+    @Benchmark
+    public void parseMgf(Blackhole blackhole) throws IOException {
+        parse(new GenericParser<>(new MgfParser()), mgf, blackhole);
+    }
+
+    private static void parse(GenericParser<Ms2Experiment> parser, String content, Blackhole blackhole) throws IOException {
+        try (final CloseableIterator<Ms2Experiment> iterator = parser.parseIterator(new BufferedReader(new StringReader(content)), null)) {
+            while (iterator.hasNext()) blackhole.consume(iterator.next());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import de.unijena.bioinf.sirius.Profile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reference spectra all benchmarks are run on. The spectra are bundled as resources in .ms and .mgf format and are
+ * grouped into mass classes, as the runtime of most steps grows with the precursor mass.
+ * <p>
+ * The small class contains the measured Adenosine spectrum which is also used by the io tests, with the precursor mass
+ * set to its monoisotopic MS1 peak. All other spectra are
+ * simulated: the fragments are derived from the precursor formula by chains of common neutral losses, their masses
+ * deviate by a few ppm and some noise peaks are added. All spectra are [M+H]+ and are annotated with their correct
+ * molecular formula.
+ */
+public final class ReferenceSpectra {
+
+    public enum MassClass {
+        /**
+         * precursor mass below 300 Da
+         */
+        SMALL,
+        /**
+         * precursor mass between 300 and 500 Da
+         */
+        MEDIUM,
+        /**
+         * precursor mass above 500 Da
+         */
+        LARGE;
+
+        private String resource(String extension) {
+            return "/spectra/" + name().toLowerCase() + "." + extension;
+        }
+    }
+
+    public static final PrecursorIonType ION_TYPE = PrecursorIonType.getPrecursorIonType("[M+H]+");
+
+    private ReferenceSpectra() {
+    }
+
+    /**
+     * @param extension "ms" or "mgf"
+     * @return content of the spectrum file of the mass class
+     */
+    public static String read(MassClass massClass, String extension) throws IOException {
+        final InputStream stream = ReferenceSpectra.class.getResourceAsStream(massClass.resource(extension));
+        if (stream == null) throw new FileNotFoundException("Cannot find reference spectra " + massClass.resource(extension));
+        try (final Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+            final StringBuilder buffer = new StringBuilder();
+            final char[] chars = new char[8192];
+            int n;
+            while ((n = reader.read(chars)) >= 0) buffer.append(chars, 0, n);
+            return buffer.toString();
+        }
+    }
+
+    public static List<Ms2Experiment> experiments(MassClass massClass) throws IOException {
+        final List<Ms2Experiment> experiments = new ArrayList<>();
+        final GenericParser<Ms2Experiment> parser = new GenericParser<>(new JenaMsParser());
+        try (final CloseableIterator<Ms2Experiment> iterator = parser.parseIterator(new BufferedReader(new StringReader(read(massClass, "ms"))), null)) {
+            while (iterator.hasNext()) {
+                final MutableMs2Experiment experiment = new MutableMs2Experiment(iterator.next());
+                experiment.setPrecursorIonType(ION_TYPE);
+                experiments.add(experiment);
+            }
+        }
+        return experiments;
+    }
+
+    /**
+     * @return a new analyzer with the qtof profile. Each benchmark should use its own analyzer, as the analyzer caches
+     * decomposers and loss scores.
+     */
+    public static FragmentationPatternAnalysis analyzer() throws IOException {
+        return new Profile("qtof").fragmentationPatternAnalysis;
+    }
+
+    public static List<ProcessedInput> preprocess(FragmentationPatternAnalysis analyzer, MassClass massClass) throws IOException {
+        final List<ProcessedInput> inputs = new ArrayList<>();
+        for (Ms2Experiment experiment : experiments(massClass)) {
+            inputs.add(analyzer.preprocessing(experiment));
+        }
+        return inputs;
+    }
+
+    /**
+     * @return the precursor decomposition of the correct molecular formula of the input
+     */
+    public static Decomposition correctDecomposition(ProcessedInput input) {
+        final MolecularFormula formula = input.getExperimentInformation().getMolecularFormula();
+        final Decomposition decomposition = input.getAnnotationOrThrow(DecompositionList.class).find(formula);
+        if (decomposition == null)
+            throw new IllegalStateException("Correct formula " + formula + " of " + input.getExperimentInformation().getName() + " is not a precursor candidate");
+        return decomposition;
+    }
+
+    /**
+     * @return scored and reduced fragmentation graphs of the correct molecular formulas, as they are given to the tree builder
+     */
+    public static List<FGraph> graphs(FragmentationPatternAnalysis analyzer, MassClass massClass) throws IOException {
+        final List<FGraph> graphs = new ArrayList<>();
+        for (ProcessedInput input : preprocess(analyzer, massClass)) {
+            graphs.add(analyzer.buildGraph(input, correctDecomposition(input)));
+        }
+        return graphs;
+    }
+}
@@ -0,0 +1,95 @@
+package de.unijena.bioinf.benchmarks;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.*;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.solver.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solves the fragmentation graphs of the reference spectra with each heuristic of the ftheuristics package.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class TreeHeuristicsBenchmark {
+
+    @Param({"SMALL", "MEDIUM", "LARGE"})
+    public ReferenceSpectra.MassClass massClass;
+
+    @Param({"Greedy", "TopDown", "PrimStar", "DeepSearch", "LegacyInsertion", "FastInsertion",
+            "CriticalPathInsertion", "CriticalPathInsertion2", "ExtendedCriticalPath",
+            "GreedySolver", "GreedyRDESolver", "GreedyRDSSolver", "PrimStyleSolver", "PrimStyleRDESolver",
+            "PrimStyleRDSSolver", "PrimStyleStarSolver", "TopDownSolver", "InsertionSolver", "CriticalPathSolver"})
+    public String heuristic;
+
+    private FGraph[] graphs;
+
+    @Setup
+    public void setup() throws IOException {
+        final List<FGraph> list = ReferenceSpectra.graphs(ReferenceSpectra.analyzer(), massClass);
+        graphs = list.toArray(new FGraph[list.size()]);
+        // fail early on unknown names
+        solve(graphs[0]);
+    }
+
+    @Benchmark
+    public void solve(Blackhole blackhole) {
+        for (FGraph graph : graphs) {
+            blackhole.consume(solve(graph));
+        }
+    }
+
+    private FTree solve(FGraph graph) {
+        switch (heuristic) {
+            case "Greedy":
+                return new GreedyHeuristic(graph).solve();
+            case "TopDown":
+                return new TopDownHeuristic(graph).solve();
+            case "PrimStar":
+                return new PrimStarHeuristic(graph).solve();
+            case "DeepSearch":
+                return new DeepSearchHeuristic(graph).solve();
+            case "LegacyInsertion":
+                return new LegacyInsertionHeuristic(graph).solve();
+            case "FastInsertion":
+                return new FastInsertionHeuristic(graph).solve();
+            case "CriticalPathInsertion":
+                return new CriticalPathInsertionHeuristic(graph).solve();
+            case "CriticalPathInsertion2":
+                return new CriticalPathInsertionHeuristic2(graph).solve();
+            case "ExtendedCriticalPath":
+                return new ExtendedCriticalPathHeuristic(graph).solve();
+            case "GreedySolver":
+                return new GreedySolver(graph).solve();
+            case "GreedyRDESolver":
+                return new GreedyRDESolver(graph).solve();
+            case "GreedyRDSSolver":
+                return new GreedyRDSSolver(graph).solve();
+            case "PrimStyleSolver":
+                return new PrimStyleSolver(graph).solve();
+            case "PrimStyleRDESolver":
+                return new PrimStyleRDESolver(graph).solve();
+            case "PrimStyleRDSSolver":
+                return new PrimStyleRDSSolver(graph).solve();
+            case "PrimStyleStarSolver":
+                return new PrimStyleStarSolver(graph).solve();
+            case "TopDownSolver":
+                return new TopDownSolver(graph).solve();
+            case "InsertionSolver":
+                return new InsertionSolver(graph).solve();
+            case "CriticalPathSolver":
+                return new CriticalPathSolver(graph).solve();
+            default:
+                throw new IllegalArgumentException("Unknown heuristic: " + heuristic);
+        }
+    }
+}
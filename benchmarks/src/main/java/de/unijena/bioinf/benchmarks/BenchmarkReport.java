@@ -0,0 +1,129 @@
+package de.unijena.bioinf.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compares two JMH result files in JSON format, usually the results of the same benchmarks on two commits.
+ * For each benchmark and parameter combination it prints both scores with their 99.9% confidence intervals and the
+ * relative change. A change is marked as significant if the confidence intervals do not overlap. Without confidence
+ * intervals (a single measurement iteration) no change is significant.
+ * <p>
+ * Usage: BenchmarkReport baseline.json contender.json [maximal slowdown in percent]
+ * <p>
+ * If a maximal slowdown is given, the exit code is 1 if any benchmark became significantly slower by more than this.
+ */
+public class BenchmarkReport {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchmarkReport baseline.json contender.json [maximal slowdown in percent]");
+            System.exit(2);
+        }
+        final Map<String, Result> baseline = read(new File(args[0]));
+        final Map<String, Result> contender = read(new File(args[1]));
+        final double maxSlowdown = args.length > 2 ? Double.parseDouble(args[2]) : Double.POSITIVE_INFINITY;
+
+        final Set<String> keys = new TreeSet<>(baseline.keySet());
+        keys.addAll(contender.keySet());
+        int width = 9;
+        for (String key : keys) width = Math.max(width, key.length());
+
+        final PrintStream out = System.out;
+        out.printf(Locale.US, "%-" + width + "s  %22s  %22s  %9s  %s%n", "benchmark", "baseline", "contender", "change", "unit");
+        int regressions = 0;
+        for (String key : keys) {
+            final Result a = baseline.get(key), b = contender.get(key);
+            if (a == null || b == null) {
+                out.printf(Locale.US, "%-" + width + "s  %22s  %22s  %9s  %s%n", key, format(a), format(b), "", a != null ? a.unit : b.unit);
+                continue;
+            }
+            if (!a.unit.equals(b.unit)) {
+                out.printf(Locale.US, "%-" + width + "s  %22s  %22s  %9s  %s%n", key, format(a), format(b), "", "units differ: " + a.unit + " vs. " + b.unit);
+                continue;
+            }
+            // for throughput higher scores are better, for all other modes lower scores are better
+            final double change = (b.score - a.score) / a.score * 100d;
+            final double slowdown = a.higherIsBetter() ? -change : change;
+            final boolean significant = a.hasError() && b.hasError() && (a.score - a.error > b.score + b.error || b.score - b.error > a.score + a.error);
+            final String marker = significant ? (slowdown > 0 ? " slower" : " faster") : "";
+            out.printf(Locale.US, "%-" + width + "s  %22s  %22s  %+8.1f%%  %s%s%n", key, format(a), format(b), change, a.unit, marker);
+            if (significant && slowdown > maxSlowdown) ++regressions;
+        }
+        if (regressions > 0) {
+            System.err.println(regressions + " benchmark(s) are more than " + maxSlowdown + "% slower.");
+            System.exit(1);
+        }
+    }
+
+    private static String format(Result r) {
+        if (r == null) return "-";
+        if (!r.hasError()) return String.format(Locale.US, "%.3f", r.score);
+        return String.format(Locale.US, "%.3f ± %.3f", r.score, r.error);
+    }
+
+    private static Map<String, Result> read(File file) throws IOException {
+        final Map<String, Result> results = new LinkedHashMap<>();
+        try (final Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            final JsonArray array = new JsonParser().parse(reader).getAsJsonArray();
+            for (JsonElement element : array) {
+                final JsonObject benchmark = element.getAsJsonObject();
+                final StringBuilder key = new StringBuilder(shortName(benchmark.get("benchmark").getAsString()));
+                if (benchmark.has("params")) {
+                    final TreeMap<String, String> params = new TreeMap<>();
+                    for (Map.Entry<String, JsonElement> param : benchmark.getAsJsonObject("params").entrySet())
+                        params.put(param.getKey(), param.getValue().getAsString());
+                    for (Map.Entry<String, String> param : params.entrySet())
+                        key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+                }
+                final JsonObject metric = benchmark.getAsJsonObject("primaryMetric");
+                results.put(key.toString(), new Result(benchmark.get("mode").getAsString(), metric.get("score").getAsDouble(), parseDouble(metric.get("scoreError")), metric.get("scoreUnit").getAsString()));
+            }
+        }
+        return results;
+    }
+
+    // JMH writes "NaN" as string if the error cannot be estimated
+    private static double parseDouble(JsonElement element) {
+        if (element == null || element.isJsonNull()) return Double.NaN;
+        try {
+            return element.getAsDouble();
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static String shortName(String benchmark) {
+        final String[] parts = benchmark.split("\\.");
+        if (parts.length < 2) return benchmark;
+        return parts[parts.length - 2] + "." + parts[parts.length - 1];
+    }
+
+    private static class Result {
+        private final String mode;
+        private final double score;
+        private final double error;
+        private final String unit;
+
+        private Result(String mode, double score, double error, String unit) {
+            this.mode = mode;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+        private boolean higherIsBetter() {
+            return mode.equals("thrpt");
+        }
+
+        private boolean hasError() {
+            return !Double.isNaN(error);
+        }
+    }
+}
@@ -11,6 +11,10 @@ public abstract class Fingerprint extends AbstractFingerprint {
     public abstract ArrayFingerprint asArray();
     public abstract BooleanFingerprint asBooleans();
 
+    public PackedFingerprint asPacked() {
+        return PackedFingerprint.of(this);
+    }
+
     public abstract String toOneZeroString();
 
     public abstract boolean[] toBooleanArray();
@@ -0,0 +1,423 @@
+package de.unijena.bioinf.ChemistryBase.fp;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JobManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Stores the fingerprints of a whole structure database as packed bits in contiguous memory. Each fingerprint
+ * occupies {@link PackedFingerprint#numberOfWords(int)} consecutive long words, so a similarity search streams
+ * linearly through memory and no fingerprint objects have to be created.
+ * <p>
+ * A matrix is either built in memory (see {@link Builder}) or memory-mapped from a file written with
+ * {@link #write(File)}, in which case the operating system decides which parts of the database stay in memory.
+ * Matrices are immutable and can be searched by several threads at once.
+ */
+public class FingerprintMatrix {
+
+    private static final int MAGIC = 0x46504d58; // FPMX
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * minimal number of fingerprints a search job gets. Smaller databases are searched in the calling thread.
+     */
+    private static final int MIN_ROWS_PER_JOB = 16384;
+
+    private final FingerprintVersion fingerprintVersion;
+    private final int words, size, rowsPerBlock;
+    private final LongBuffer[] blocks;
+
+    private FingerprintMatrix(FingerprintVersion fingerprintVersion, int size, int rowsPerBlock, LongBuffer[] blocks) {
+        this.fingerprintVersion = fingerprintVersion;
+        this.words = PackedFingerprint.numberOfWords(fingerprintVersion.size());
+        this.size = size;
+        this.rowsPerBlock = rowsPerBlock;
+        this.blocks = blocks;
+    }
+
+    public static Builder buildFor(FingerprintVersion version) {
+        return new Builder(version);
+    }
+
+    public static FingerprintMatrix of(FingerprintVersion version, Iterable<? extends Fingerprint> fingerprints) {
+        final Builder builder = buildFor(version);
+        for (Fingerprint fp : fingerprints) builder.add(fp);
+        return builder.build();
+    }
+
+    /**
+     * memory-maps a matrix that was written with {@link #write(File)}. The file is opened read only and has to
+     * be written with the given fingerprint version.
+     */
+    public static FingerprintMatrix map(FingerprintVersion version, File file) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r"); final FileChannel channel = raf.getChannel()) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) throw new IOException(file + " is not a fingerprint matrix: file is too short");
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) throw new IOException(file + " is not a fingerprint matrix");
+            final int formatVersion = header.getInt();
+            if (formatVersion != FORMAT_VERSION)
+                throw new IOException("Unsupported fingerprint matrix format " + formatVersion + " in " + file);
+            final int bits = header.getInt(), words = header.getInt();
+            final long size = header.getLong();
+            if (bits != version.size() || words != PackedFingerprint.numberOfWords(bits))
+                throw new IOException("Fingerprint version does not match fingerprint matrix: " + version.size() + " bits vs. " + bits + " bits in " + file);
+            if (size > Integer.MAX_VALUE || channel.size() < HEADER_SIZE + size * words * 8L)
+                throw new IOException("Fingerprint matrix " + file + " is corrupted: " + size + " fingerprints do not fit into " + channel.size() + " bytes");
+            final int rowsPerBlock = rowsPerBlock(words);
+            final LongBuffer[] blocks = new LongBuffer[numberOfBlocks((int) size, rowsPerBlock)];
+            for (int b = 0; b < blocks.length; ++b) {
+                final long from = (long) b * rowsPerBlock;
+                final long rows = Math.min(rowsPerBlock, size - from);
+                blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + from * words * 8L, rows * words * 8L)
+                        .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            }
+            // mappings stay valid after the channel is closed
+            return new FingerprintMatrix(version, (int) size, rowsPerBlock, blocks);
+        }
+    }
+
+    /**
+     * writes this matrix into a file that can be memory-mapped with {@link #map(FingerprintVersion, File)}
+     */
+    public void write(File file) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw"); final FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            final ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_SIZE, 8 * words * 1024)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(fingerprintVersion.size()).putInt(words).putLong(size);
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+            for (LongBuffer block : blocks) {
+                for (int i = 0, n = block.limit(); i < n; ++i) {
+                    if (buffer.remaining() < 8) flush(channel, buffer);
+                    buffer.putLong(block.get(i));
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static int rowsPerBlock(int words) {
+        // a single buffer can address at most Integer.MAX_VALUE bytes
+        return Math.max(1, Integer.MAX_VALUE / (8 * Math.max(1, words)));
+    }
+
+    private static int numberOfBlocks(int size, int rowsPerBlock) {
+        return (int) ((size + (long) rowsPerBlock - 1) / rowsPerBlock);
+    }
+
+    public FingerprintVersion getFingerprintVersion() {
+        return fingerprintVersion;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public PackedFingerprint get(int index) {
+        final long[] bits = new long[words];
+        copyRow(index, bits);
+        return new PackedFingerprint(fingerprintVersion, bits);
+    }
+
+    /**
+     * copies the packed bits of the given fingerprint into target
+     * @return cardinality of the fingerprint
+     */
+    int copyRow(int index, long[] target) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index + " is out of fingerprint matrix bound: " + size);
+        final LongBuffer block = blocks[index / rowsPerBlock];
+        final int offset = (index % rowsPerBlock) * words;
+        int cardinality = 0;
+        for (int w = 0; w < words; ++w) {
+            final long word = block.get(offset + w);
+            target[w] = word;
+            cardinality += Long.bitCount(word);
+        }
+        return cardinality;
+    }
+
+    public double tanimoto(PackedFingerprint query, int index) {
+        enforceCompatibility(query);
+        final long[] row = new long[words];
+        final int cardinality = copyRow(index, row);
+        return tanimoto(query.bits, query.cardinality, row, cardinality);
+    }
+
+    /**
+     * @return the tanimoto of the query to each fingerprint in this matrix
+     */
+    public double[] tanimoto(PackedFingerprint query) {
+        enforceCompatibility(query);
+        final double[] scores = new double[size];
+        final long[] row = new long[words];
+        for (int i = 0; i < size; ++i) {
+            final int cardinality = copyRow(i, row);
+            scores[i] = tanimoto(query.bits, query.cardinality, row, cardinality);
+        }
+        return scores;
+    }
+
+    /**
+     * tanimoto of two fingerprints. Two empty fingerprints have a tanimoto of 0, such that search results are
+     * always comparable.
+     */
+    private static double tanimoto(long[] query, int queryCardinality, long[] row, int rowCardinality) {
+        int intersection = 0;
+        for (int w = 0; w < query.length; ++w) intersection += Long.bitCount(query[w] & row[w]);
+        final int union = queryCardinality + rowCardinality - intersection;
+        return union == 0 ? 0d : ((double) intersection) / union;
+    }
+
+    /**
+     * @return the k fingerprints with highest tanimoto to the query, ordered by descending tanimoto
+     */
+    public Hit[] search(PackedFingerprint query, int k) {
+        return search(new PackedFingerprint[]{query}, k)[0];
+    }
+
+    /**
+     * Searches the k most similar fingerprints for each query. The database is read only once for all queries, so
+     * it is much faster to search a batch of queries than each query on its own. Large databases are split into
+     * chunks which are searched in parallel with the global job manager.
+     *
+     * @return for each query the k fingerprints with highest tanimoto, ordered by descending tanimoto. Fingerprints
+     * with same tanimoto are ordered by index.
+     */
+    public Hit[][] search(PackedFingerprint[] queries, int k) {
+        return search(queries, k, size >= 2 * MIN_ROWS_PER_JOB ? SiriusJobs.getGlobalJobManager() : null);
+    }
+
+    /**
+     * Same as {@link #search(PackedFingerprint[], int)}, but searches the chunks with the given job manager. If
+     * the job manager is null the whole database is searched in the calling thread.
+     */
+    public Hit[][] search(PackedFingerprint[] queries, int k, JobManager jobManager) {
+        return search(queries, k, jobManager, MIN_ROWS_PER_JOB);
+    }
+
+    /**
+     * @param minRowsPerJob minimal number of fingerprints a search job gets
+     */
+    Hit[][] search(final PackedFingerprint[] queries, final int k, JobManager jobManager, int minRowsPerJob) {
+        if (k <= 0) throw new IllegalArgumentException("k has to be positive, but is " + k);
+        for (PackedFingerprint query : queries) enforceCompatibility(query);
+        final int numberOfJobs = jobManager == null ? 1 : Math.max(1, Math.min(4 * jobManager.getCPUThreads(), size / minRowsPerJob));
+        if (numberOfJobs == 1) return toHits(searchRows(queries, k, 0, size));
+
+        final List<BasicJJob<TopHits[]>> jobs = new ArrayList<>(numberOfJobs);
+        for (int j = 0; j < numberOfJobs; ++j) {
+            final int from = (int) ((long) size * j / numberOfJobs), to = (int) ((long) size * (j + 1) / numberOfJobs);
+            jobs.add(jobManager.submitJob(new BasicJJob<TopHits[]>() {
+                @Override
+                protected TopHits[] compute() throws Exception {
+                    return searchRows(queries, k, from, to);
+                }
+            }));
+        }
+        final TopHits[] merged = new TopHits[queries.length];
+        for (int q = 0; q < queries.length; ++q) merged[q] = new TopHits(k);
+        for (BasicJJob<TopHits[]> job : jobs) {
+            final TopHits[] result;
+            try {
+                result = job.awaitResult();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            for (int q = 0; q < queries.length; ++q) merged[q].addAll(result[q]);
+        }
+        return toHits(merged);
+    }
+
+    private TopHits[] searchRows(PackedFingerprint[] queries, int k, int from, int to) {
+        final TopHits[] hits = new TopHits[queries.length];
+        for (int q = 0; q < queries.length; ++q) hits[q] = new TopHits(k);
+        final long[] row = new long[words];
+        for (int i = from; i < to; ++i) {
+            final int cardinality = copyRow(i, row);
+            for (int q = 0; q < queries.length; ++q) {
+                hits[q].add(i, tanimoto(queries[q].bits, queries[q].cardinality, row, cardinality));
+            }
+        }
+        return hits;
+    }
+
+    private static Hit[][] toHits(TopHits[] topHits) {
+        final Hit[][] hits = new Hit[topHits.length][];
+        for (int q = 0; q < topHits.length; ++q) hits[q] = topHits[q].toSortedHits();
+        return hits;
+    }
+
+    private void enforceCompatibility(PackedFingerprint fp) {
+        if (!fingerprintVersion.compatible(fp.getFingerprintVersion()))
+            throw new IllegalArgumentException("fingerprint versions differ: " + fingerprintVersion.toString() + " vs. " + fp.getFingerprintVersion().toString());
+    }
+
+    public static final class Hit implements Comparable<Hit> {
+        private final int index;
+        private final double tanimoto;
+
+        public Hit(int index, double tanimoto) {
+            this.index = index;
+            this.tanimoto = tanimoto;
+        }
+
+        /**
+         * @return index of the fingerprint in the matrix
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public double getTanimoto() {
+            return tanimoto;
+        }
+
+        /**
+         * orders hits by descending tanimoto and ascending index
+         */
+        @Override
+        public int compareTo(Hit o) {
+            final int c = Double.compare(o.tanimoto, tanimoto);
+            return c != 0 ? c : Integer.compare(index, o.index);
+        }
+
+        @Override
+        public String toString() {
+            return index + ": " + tanimoto;
+        }
+    }
+
+    /**
+     * bounded min-heap of the k best hits, stored in primitive arrays. The root is the worst hit, that is the hit
+     * with lowest tanimoto and (on ties) highest index.
+     */
+    private static final class TopHits {
+        private final int[] indizes;
+        private final double[] scores;
+        private int size;
+
+        private TopHits(int k) {
+            this.indizes = new int[k];
+            this.scores = new double[k];
+        }
+
+        private void add(int index, double score) {
+            if (size < scores.length) {
+                int i = size++;
+                while (i > 0) {
+                    final int parent = (i - 1) >>> 1;
+                    if (!worse(index, score, indizes[parent], scores[parent])) break;
+                    indizes[i] = indizes[parent];
+                    scores[i] = scores[parent];
+                    i = parent;
+                }
+                indizes[i] = index;
+                scores[i] = score;
+            } else if (worse(indizes[0], scores[0], index, score)) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) break;
+                    if (child + 1 < size && worse(indizes[child + 1], scores[child + 1], indizes[child], scores[child]))
+                        ++child;
+                    if (!worse(indizes[child], scores[child], index, score)) break;
+                    indizes[i] = indizes[child];
+                    scores[i] = scores[child];
+                    i = child;
+                }
+                indizes[i] = index;
+                scores[i] = score;
+            }
+        }
+
+        private static boolean worse(int indexA, double scoreA, int indexB, double scoreB) {
+            return scoreA < scoreB || (scoreA == scoreB && indexA > indexB);
+        }
+
+        private void addAll(TopHits other) {
+            for (int i = 0; i < other.size; ++i) add(other.indizes[i], other.scores[i]);
+        }
+
+        private Hit[] toSortedHits() {
+            final Hit[] hits = new Hit[size];
+            for (int i = 0; i < size; ++i) hits[i] = new Hit(indizes[i], scores[i]);
+            Arrays.sort(hits);
+            return hits;
+        }
+    }
+
+    /**
+     * Collects fingerprints for a new in-memory matrix.
+     */
+    public static class Builder {
+        private final FingerprintVersion version;
+        private final int words, rowsPerBlock;
+        private final List<long[]> blocks;
+        private long[] current;
+        private int size, currentSize;
+
+        private Builder(FingerprintVersion version) {
+            this.version = version;
+            this.words = PackedFingerprint.numberOfWords(version.size());
+            this.rowsPerBlock = rowsPerBlock(words);
+            this.blocks = new ArrayList<>();
+            this.current = new long[words * Math.min(1024, rowsPerBlock)];
+        }
+
+        public Builder add(Fingerprint fingerprint) {
+            if (!version.compatible(fingerprint.getFingerprintVersion()))
+                throw new IllegalArgumentException("fingerprint versions differ: " + version.toString() + " vs. " + fingerprint.getFingerprintVersion().toString());
+            return add(fingerprint.asPacked().bits);
+        }
+
+        private Builder add(long[] bits) {
+            if (size == Integer.MAX_VALUE) throw new IllegalStateException("Fingerprint matrix is full");
+            if (currentSize == rowsPerBlock) {
+                blocks.add(current);
+                current = new long[words * Math.min(1024, rowsPerBlock)];
+                currentSize = 0;
+            }
+            if ((currentSize + 1) * words > current.length) {
+                current = Arrays.copyOf(current, words * (int) Math.min(rowsPerBlock, currentSize + (currentSize >> 1) + 1L));
+            }
+            System.arraycopy(bits, 0, current, currentSize * words, words);
+            ++currentSize;
+            ++size;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public FingerprintMatrix build() {
+            final LongBuffer[] buffers = new LongBuffer[blocks.size() + 1];
+            for (int b = 0; b < blocks.size(); ++b) buffers[b] = LongBuffer.wrap(blocks.get(b));
+            buffers[blocks.size()] = LongBuffer.wrap(Arrays.copyOf(current, currentSize * words));
+            return new FingerprintMatrix(version, size, rowsPerBlock, buffers);
+        }
+    }
+}
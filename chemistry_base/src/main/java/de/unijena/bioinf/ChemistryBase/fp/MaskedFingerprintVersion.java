@@ -42,6 +42,17 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
     public ProbabilityFingerprint mask(double[] values) {
         return mask(new ProbabilityFingerprint(innerVersion, values));
     }
+    public PackedFingerprint mask(long[] values) {
+        return mask(new PackedFingerprint(innerVersion, values));
+    }
+    public PackedFingerprint mask(PackedFingerprint fingerprint) {
+        if (!innerVersion.compatible(fingerprint.getFingerprintVersion()))
+            throw new RuntimeException("Fingerprint is not compatible to mask. Given fingerprint is version " + fingerprint.getFingerprintVersion().toString() + ", mask is version " + innerVersion.toString());
+        final long[] masked = new long[PackedFingerprint.numberOfWords(allowedIndizes.length)];
+        for (int k=0; k < allowedIndizes.length; ++k)
+            if (fingerprint.isSet(allowedIndizes[k])) masked[k >>> 6] |= 1L << k;
+        return new PackedFingerprint(this, masked);
+    }
 
     public <T extends AbstractFingerprint> T mask(T fingerprint) {
         if (!innerVersion.compatible(fingerprint.getFingerprintVersion()))
@@ -70,6 +81,10 @@ public class MaskedFingerprintVersion extends FingerprintVersion{
                 int k=0;
                 for (int index : allowedIndizes) masked[k++] = fingerprint.isSet(index);
                 return (T) new BooleanFingerprint(this, masked);
+            } else if (fingerprint instanceof PackedFingerprint) {
+                // PackedFingerprint is final, so T is PackedFingerprint here
+                @SuppressWarnings("unchecked") final T masked = (T) mask((PackedFingerprint) fingerprint);
+                return masked;
             } else {
                 throw new RuntimeException("Cannot mask " + fingerprint.getClass());
             }
@@ -0,0 +1,383 @@
+package de.unijena.bioinf.ChemistryBase.fp;
+
+import java.util.Iterator;
+
+/**
+ * Deterministic fingerprint that stores its bits packed into a long array. Bit i of the fingerprint is the
+ * relative index i of the fingerprint version. Tanimoto and dot products between packed fingerprints are computed
+ * word by word with {@link Long#bitCount(long)} instead of iterating over pairs of bits.
+ */
+public final class PackedFingerprint extends Fingerprint {
+
+    protected final long[] bits;
+    protected final int cardinality;
+
+    public PackedFingerprint(FingerprintVersion fingerprintVersion, long[] bits) {
+        super(fingerprintVersion);
+        final int size = fingerprintVersion.size();
+        if (bits.length != numberOfWords(size))
+            throw new IllegalArgumentException("number of words does not match fingerprint version length: " + bits.length + " vs. " + numberOfWords(size));
+        if ((size & 63) != 0 && bits.length > 0 && (bits[bits.length - 1] >>> (size & 63)) != 0)
+            throw new IllegalArgumentException("Fingerprint has bits set that are not part of the fingerprint version with size " + size);
+        this.bits = bits.clone();
+        this.cardinality = cardinality(this.bits);
+    }
+
+    /**
+     * @return number of long words necessary to store a fingerprint with the given number of bits
+     */
+    public static int numberOfWords(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    /**
+     * converts the given fingerprint into a packed fingerprint
+     */
+    public static PackedFingerprint of(Fingerprint fingerprint) {
+        if (fingerprint instanceof PackedFingerprint) return (PackedFingerprint) fingerprint;
+        final FingerprintVersion version = fingerprint.getFingerprintVersion();
+        final long[] bits = new long[numberOfWords(version.size())];
+        if (fingerprint instanceof BooleanFingerprint) {
+            final boolean[] values = ((BooleanFingerprint) fingerprint).fingerprint;
+            for (int i = 0; i < values.length; ++i)
+                if (values[i]) bits[i >>> 6] |= 1L << i;
+        } else if (fingerprint instanceof ArrayFingerprint) {
+            for (short index : ((ArrayFingerprint) fingerprint).indizes) {
+                final int relative = version.getRelativeIndexOf(index);
+                bits[relative >>> 6] |= 1L << relative;
+            }
+        } else {
+            for (FPIter iter : fingerprint.presentFingerprints()) {
+                final int relative = version.getRelativeIndexOf(iter.getIndex());
+                bits[relative >>> 6] |= 1L << relative;
+            }
+        }
+        return new PackedFingerprint(version, bits);
+    }
+
+    static int cardinality(long[] bits) {
+        int count = 0;
+        for (long word : bits) count += Long.bitCount(word);
+        return count;
+    }
+
+    /**
+     * @return a copy of the packed bits of this fingerprint
+     */
+    public long[] toLongArray() {
+        return bits.clone();
+    }
+
+    @Override
+    public PackedFingerprint asPacked() {
+        return this;
+    }
+
+    @Override
+    public ArrayFingerprint asArray() {
+        return new ArrayFingerprint(fingerprintVersion, toIndizesArray());
+    }
+
+    @Override
+    public BooleanFingerprint asBooleans() {
+        return new BooleanFingerprint(fingerprintVersion, toBooleanArray());
+    }
+
+    @Override
+    public String toOneZeroString() {
+        final char[] buffer = new char[fingerprintVersion.size()];
+        for (int i = 0; i < buffer.length; ++i) buffer[i] = isSetRelative(i) ? '1' : '0';
+        return new String(buffer);
+    }
+
+    @Override
+    public boolean[] toBooleanArray() {
+        final boolean[] values = new boolean[fingerprintVersion.size()];
+        for (int i = 0; i < values.length; ++i) values[i] = isSetRelative(i);
+        return values;
+    }
+
+    @Override
+    public short[] toIndizesArray() {
+        final short[] indizes = new short[cardinality];
+        int k = 0;
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1))
+            indizes[k++] = (short) fingerprintVersion.getAbsoluteIndexOf(i);
+        return indizes;
+    }
+
+    @Override
+    public double tanimoto(Fingerprint other) {
+        if (other instanceof PackedFingerprint) return tanimoto((PackedFingerprint) other);
+        else return super.tanimoto(other);
+    }
+
+    public double tanimoto(PackedFingerprint other) {
+        enforceCompatibility(other);
+        final int intersection = intersection(other);
+        // Jaccard := |(A n B)| / (A u B)
+        return ((double) intersection) / (cardinality + other.cardinality - intersection);
+    }
+
+    @Override
+    public double dotProduct(Fingerprint other) {
+        if (other instanceof PackedFingerprint) return dotProduct((PackedFingerprint) other);
+        else return super.dotProduct(other);
+    }
+
+    public double dotProduct(PackedFingerprint other) {
+        enforceCompatibility(other);
+        return intersection(other);
+    }
+
+    @Override
+    public double plusMinusdotProduct(Fingerprint other) {
+        if (other instanceof PackedFingerprint) return plusMinusdotProduct((PackedFingerprint) other);
+        else return super.plusMinusdotProduct(other);
+    }
+
+    public double plusMinusdotProduct(PackedFingerprint other) {
+        enforceCompatibility(other);
+        final int intersection = intersection(other);
+        final int union = cardinality + other.cardinality - intersection;
+        // dot product is intersection + (length-union) - (union - intersection)
+        return intersection + (fingerprintVersion.size() - union) - (union - intersection);
+    }
+
+    private int intersection(PackedFingerprint other) {
+        final long[] as = bits, bs = other.bits;
+        int intersection = 0;
+        for (int i = 0; i < as.length; ++i) intersection += Long.bitCount(as[i] & bs[i]);
+        return intersection;
+    }
+
+    private boolean isSetRelative(int relativeIndex) {
+        return (bits[relativeIndex >>> 6] & (1L << relativeIndex)) != 0;
+    }
+
+    private int nextSetBit(int from) {
+        return nextSetBit(bits, null, false, from);
+    }
+
+    /**
+     * @return the first bit at or after from that is set in a (or in a and b if and is true, in a or b otherwise).
+     * -1 if there is no such bit
+     */
+    private static int nextSetBit(long[] a, long[] b, boolean and, int from) {
+        int w = from >>> 6;
+        if (w >= a.length) return -1;
+        long word = combine(a, b, and, w) & (-1L << from);
+        while (word == 0) {
+            if (++w >= a.length) return -1;
+            word = combine(a, b, and, w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private static long combine(long[] a, long[] b, boolean and, int w) {
+        if (b == null) return a[w];
+        return and ? a[w] & b[w] : a[w] | b[w];
+    }
+
+    @Override
+    public Fingerprint asDeterministic() {
+        return this;
+    }
+
+    @Override
+    public ProbabilityFingerprint asProbabilistic() {
+        return new ProbabilityFingerprint(fingerprintVersion, toProbabilityArray());
+    }
+
+    @Override
+    public String toTabSeparatedString() {
+        final StringBuilder buffer = new StringBuilder(fingerprintVersion.size() * 2);
+        for (int i = 0; i < fingerprintVersion.size(); ++i) {
+            if (i > 0) buffer.append('\t');
+            buffer.append(isSetRelative(i) ? '1' : '0');
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public double[] toProbabilityArray() {
+        final double[] ary = new double[fingerprintVersion.size()];
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) ary[i] = 1d;
+        return ary;
+    }
+
+    @Override
+    public boolean isSet(int index) {
+        if (!fingerprintVersion.hasProperty(index)) return false;
+        return isSetRelative(fingerprintVersion.getRelativeIndexOf(index));
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality;
+    }
+
+    @Override
+    public FPIter iterator() {
+        return new PackedIterator(-1, false);
+    }
+
+    @Override
+    public FPIter presentFingerprints() {
+        return new PackedIterator(-1, true);
+    }
+
+    @Override
+    public FPIter2 foreachUnion(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof PackedFingerprint) return new PairwiseIterator(this, (PackedFingerprint) fp, Mode.UNION, -1);
+        else throw new IllegalArgumentException("Pairwise iterators are only supported for same type fingerprints;");
+    }
+
+    @Override
+    public FPIter2 foreachIntersection(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof PackedFingerprint) return new PairwiseIterator(this, (PackedFingerprint) fp, Mode.INTERSECTION, -1);
+        else throw new IllegalArgumentException("Pairwise iterators are only supported for same type fingerprints;");
+    }
+
+    @Override
+    public FPIter2 foreachPair(AbstractFingerprint fp) {
+        enforceCompatibility(fp);
+        if (fp instanceof PackedFingerprint) return new PairwiseIterator(this, (PackedFingerprint) fp, Mode.ALL, -1);
+        else return super.foreachPair(fp);
+    }
+
+    private final class PackedIterator extends FPIter {
+
+        private final boolean onlySet;
+        private int current;
+
+        private PackedIterator(int current, boolean onlySet) {
+            this.current = current;
+            this.onlySet = onlySet;
+        }
+
+        private int findNext() {
+            if (!onlySet) return current + 1 < fingerprintVersion.size() ? current + 1 : -1;
+            return nextSetBit(current + 1);
+        }
+
+        @Override
+        public boolean isSet() {
+            return isSetRelative(current);
+        }
+
+        @Override
+        public int getIndex() {
+            return fingerprintVersion.getAbsoluteIndexOf(current);
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return fingerprintVersion.getMolecularProperty(fingerprintVersion.getAbsoluteIndexOf(current));
+        }
+
+        @Override
+        public FPIter clone() {
+            return new PackedIterator(current, onlySet);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return findNext() >= 0;
+        }
+
+        public String toString() {
+            return isSet() ? "1" : "0";
+        }
+
+        @Override
+        public FPIter next() {
+            current = findNext();
+            return this;
+        }
+    }
+
+    private enum Mode {ALL, UNION, INTERSECTION}
+
+    private static final class PairwiseIterator implements FPIter2 {
+        private final PackedFingerprint left, right;
+        private final Mode mode;
+        private int current;
+
+        private PairwiseIterator(PackedFingerprint left, PackedFingerprint right, Mode mode, int current) {
+            this.left = left;
+            this.right = right;
+            this.mode = mode;
+            this.current = current;
+        }
+
+        private int findNext() {
+            switch (mode) {
+                case UNION:
+                    return nextSetBit(left.bits, right.bits, false, current + 1);
+                case INTERSECTION:
+                    return nextSetBit(left.bits, right.bits, true, current + 1);
+                default:
+                    return current + 1 < left.fingerprintVersion.size() ? current + 1 : -1;
+            }
+        }
+
+        @Override
+        public PairwiseIterator clone() {
+            return new PairwiseIterator(left, right, mode, current);
+        }
+
+        @Override
+        public PairwiseIterator next() {
+            current = findNext();
+            return this;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return findNext() >= 0;
+        }
+
+        @Override
+        public double getLeftProbability() {
+            return isLeftSet() ? 1 : 0;
+        }
+
+        @Override
+        public double getRightProbability() {
+            return isRightSet() ? 1 : 0;
+        }
+
+        @Override
+        public boolean isLeftSet() {
+            return left.isSetRelative(current);
+        }
+
+        @Override
+        public boolean isRightSet() {
+            return right.isSetRelative(current);
+        }
+
+        @Override
+        public int getIndex() {
+            return left.fingerprintVersion.getAbsoluteIndexOf(current);
+        }
+
+        @Override
+        public MolecularProperty getMolecularProperty() {
+            return left.fingerprintVersion.getMolecularProperty(getIndex());
+        }
+
+        @Override
+        public Iterator<FPIter2> iterator() {
+            return clone();
+        }
+    }
+}
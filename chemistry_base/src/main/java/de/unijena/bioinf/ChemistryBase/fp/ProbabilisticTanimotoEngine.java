@@ -0,0 +1,321 @@
+package de.unijena.bioinf.ChemistryBase.fp;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JobManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Computes the probabilistic tanimoto of a single {@link ProbabilityFingerprint} query to many deterministic
+ * candidates. Expectation value and variance are the same as in {@link Tanimoto#probabilisticTanimoto(AbstractFingerprint, AbstractFingerprint)},
+ * except that a candidate without any set bit has tanimoto 0.
+ * <p>
+ * For a candidate B with |B| set bits, let Q be the number of predicted bits within B and M the number of predicted
+ * bits outside of B. Q and M are independent, so the expected tanimoto E[Q/(|B|+M)] is E[Q] * E[1/(|B|+M)]
+ * and the second moment is E[Q^2] * E[1/(|B|+M)^2]. The moments of Q and M are sums over the bits of the query,
+ * which are precomputed once for the query, such that a candidate only costs a pass over its set bits.
+ * E[1/(|B|+M)] and E[1/(|B|+M)^2] are approximated by their Taylor expansion around E[M] (that is, a normal
+ * approximation of M corrected by its skewness). The remainder of the expansion is bounded by the fourth central
+ * moment of M. If this bound exceeds the maximal allowed error, the exact distribution of M is computed with
+ * the same dynamic programming as in {@link Tanimoto}, but without allocating new arrays for each candidate.
+ * <p>
+ * Engines are immutable and can be used by several threads at once.
+ */
+public class ProbabilisticTanimotoEngine {
+
+    /**
+     * default upper bound for the absolute error of expectation value and variance
+     */
+    public static final double DEFAULT_MAX_ERROR = 1e-5;
+
+    /**
+     * minimal number of candidates a job gets. Smaller candidate lists are scored in the calling thread.
+     */
+    private static final int MIN_CANDIDATES_PER_JOB = 2048;
+
+    private final FingerprintVersion fingerprintVersion;
+    private final double maxError;
+    private final double[] probabilities, variances, thirdMoments, fourthCumulants;
+    private final double mean, variance, thirdMoment, fourthCumulant;
+
+    public ProbabilisticTanimotoEngine(ProbabilityFingerprint query) {
+        this(query, DEFAULT_MAX_ERROR);
+    }
+
+    /**
+     * @param maxError upper bound for the absolute error of expectation value and variance. With 0 everything is
+     *                 computed exactly.
+     */
+    public ProbabilisticTanimotoEngine(ProbabilityFingerprint query, double maxError) {
+        if (maxError < 0) throw new IllegalArgumentException("maximal error has to be non negative, but is " + maxError);
+        this.fingerprintVersion = query.getFingerprintVersion();
+        this.maxError = maxError;
+        this.probabilities = query.fingerprint.clone();
+        final int n = probabilities.length;
+        this.variances = new double[n];
+        this.thirdMoments = new double[n];
+        this.fourthCumulants = new double[n];
+        double mean = 0d, variance = 0d, thirdMoment = 0d, fourthCumulant = 0d;
+        for (int i = 0; i < n; ++i) {
+            final double p = probabilities[i], v = p * (1d - p);
+            // cumulants of a single bernoulli variable
+            variances[i] = v;
+            thirdMoments[i] = v * (1d - 2d * p);
+            fourthCumulants[i] = v * (1d - 6d * v);
+            mean += p;
+            variance += v;
+            thirdMoment += thirdMoments[i];
+            fourthCumulant += fourthCumulants[i];
+        }
+        this.mean = mean;
+        this.variance = variance;
+        this.thirdMoment = thirdMoment;
+        this.fourthCumulant = fourthCumulant;
+    }
+
+    public FingerprintVersion getFingerprintVersion() {
+        return fingerprintVersion;
+    }
+
+    public double getMaxError() {
+        return maxError;
+    }
+
+    public Result score(Fingerprint candidate) {
+        enforceCompatibility(candidate);
+        final PackedFingerprint packed = candidate.asPacked();
+        return score(packed.bits, packed.cardinality, new Scratch());
+    }
+
+    /**
+     * scores all candidates. Large lists are split into chunks which are scored in parallel with the global job manager.
+     */
+    public Result[] score(List<? extends Fingerprint> candidates) {
+        return score(candidates, candidates.size() >= 2 * MIN_CANDIDATES_PER_JOB ? SiriusJobs.getGlobalJobManager() : null);
+    }
+
+    /**
+     * scores all candidates. If a job manager is given, large lists are split into chunks which are scored in parallel.
+     */
+    public Result[] score(List<? extends Fingerprint> candidates, JobManager jobManager) {
+        return score(candidates, jobManager, MIN_CANDIDATES_PER_JOB);
+    }
+
+    /**
+     * @param minCandidatesPerJob minimal number of candidates a scoring job gets
+     */
+    Result[] score(final List<? extends Fingerprint> candidates, JobManager jobManager, int minCandidatesPerJob) {
+        for (Fingerprint candidate : candidates) enforceCompatibility(candidate);
+        return score(new Candidates() {
+            @Override
+            public int size() {
+                return candidates.size();
+            }
+
+            @Override
+            public int copy(int index, long[] target) {
+                final PackedFingerprint packed = candidates.get(index).asPacked();
+                System.arraycopy(packed.bits, 0, target, 0, target.length);
+                return packed.cardinality;
+            }
+        }, jobManager, minCandidatesPerJob);
+    }
+
+    /**
+     * scores all fingerprints of the given matrix. Large matrices are split into chunks which are scored in parallel
+     * with the global job manager.
+     */
+    public Result[] score(FingerprintMatrix matrix) {
+        return score(matrix, matrix.size() >= 2 * MIN_CANDIDATES_PER_JOB ? SiriusJobs.getGlobalJobManager() : null);
+    }
+
+    public Result[] score(final FingerprintMatrix matrix, JobManager jobManager) {
+        if (!fingerprintVersion.compatible(matrix.getFingerprintVersion()))
+            throw new IllegalArgumentException("fingerprint versions differ: " + fingerprintVersion.toString() + " vs. " + matrix.getFingerprintVersion().toString());
+        return score(new Candidates() {
+            @Override
+            public int size() {
+                return matrix.size();
+            }
+
+            @Override
+            public int copy(int index, long[] target) {
+                return matrix.copyRow(index, target);
+            }
+        }, jobManager, MIN_CANDIDATES_PER_JOB);
+    }
+
+    private interface Candidates {
+        int size();
+
+        /**
+         * copies the packed bits of the candidate with the given index into target
+         * @return cardinality of the candidate
+         */
+        int copy(int index, long[] target);
+    }
+
+    private Result[] score(final Candidates candidates, JobManager jobManager, int minCandidatesPerJob) {
+        final int size = candidates.size();
+        final Result[] results = new Result[size];
+        final int numberOfJobs = jobManager == null ? 1 : Math.max(1, Math.min(4 * jobManager.getCPUThreads(), size / minCandidatesPerJob));
+        if (numberOfJobs == 1) {
+            score(candidates, results, 0, size);
+            return results;
+        }
+        final List<BasicJJob<Object>> jobs = new ArrayList<>(numberOfJobs);
+        for (int j = 0; j < numberOfJobs; ++j) {
+            final int from = (int) ((long) size * j / numberOfJobs), to = (int) ((long) size * (j + 1) / numberOfJobs);
+            jobs.add(jobManager.submitJob(new BasicJJob<Object>() {
+                @Override
+                protected Object compute() throws Exception {
+                    score(candidates, results, from, to);
+                    return null;
+                }
+            }));
+        }
+        for (BasicJJob<Object> job : jobs) {
+            try {
+                job.awaitResult();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private void score(Candidates candidates, Result[] results, int from, int to) {
+        final Scratch scratch = new Scratch();
+        for (int i = from; i < to; ++i) {
+            final int cardinality = candidates.copy(i, scratch.bits);
+            results[i] = score(scratch.bits, cardinality, scratch);
+        }
+    }
+
+    private Result score(long[] bits, int cardinality, Scratch scratch) {
+        // moments of Q (predicted bits within the candidate) and M (predicted bits outside of the candidate)
+        double meanQ = 0d, varQ = 0d, thirdM = thirdMoment, fourthM = fourthCumulant;
+        for (int w = 0; w < bits.length; ++w) {
+            for (long word = bits[w]; word != 0; word &= word - 1) {
+                final int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                meanQ += probabilities[i];
+                varQ += variances[i];
+                thirdM -= thirdMoments[i];
+                fourthM -= fourthCumulants[i];
+            }
+        }
+        if (cardinality == 0) return new Result(0d, 0d, 0d);
+        final double a = cardinality;
+        final double meanM = Math.max(0d, mean - meanQ), varM = Math.max(0d, variance - varQ);
+        final double secondQ = varQ + meanQ * meanQ;
+        // central fourth moment of M is its fourth cumulant plus 3 varM^2
+        final double centralFourthM = Math.max(0d, fourthM) + 3d * varM * varM;
+
+        if (maxError > 0) {
+            // Taylor expansion of f(x) = 1/(a+x) and g(x) = 1/(a+x)^2 around meanM up to the third derivative.
+            // The remainder f''''(xi)/24 (M-meanM)^4 is non negative. As xi >= 0, its expectation is at most
+            // centralFourthM/a^5. For M >= (1-d)meanM it is at most centralFourthM/(a+(1-d)meanM)^5, and
+            // M < (1-d)meanM has probability at most exp(-d^2 meanM/2) (chernoff bound) with (M-meanM)^4 <= meanM^4.
+            final double s = a + meanM, meanM4 = meanM * meanM * meanM * meanM;
+            double boundF = centralFourthM / Math.pow(a, 5), boundG = 5d * centralFourthM / Math.pow(a, 6);
+            for (double d = 0.5d; d >= 0.125d; d /= 2d) {
+                final double lower = a + (1d - d) * meanM, tail = Math.exp(-d * d * meanM / 2d) * meanM4;
+                boundF = Math.min(boundF, centralFourthM / Math.pow(lower, 5) + tail / Math.pow(a, 5));
+                boundG = Math.min(boundG, 5d * (centralFourthM / Math.pow(lower, 6) + tail / Math.pow(a, 6)));
+            }
+            final double expF = 1d / s + varM / (s * s * s) - thirdM / (s * s * s * s) + boundF / 2d;
+            final double expG = 1d / (s * s) + 3d * varM / (s * s * s * s) - 4d * thirdM / Math.pow(s, 5) + boundG / 2d;
+            final double errorExp = meanQ * boundF / 2d, errorSecond = secondQ * boundG / 2d;
+            final double exp = meanQ * expF;
+            final double errorVar = errorSecond + 2d * exp * errorExp + errorExp * errorExp;
+            if (errorExp <= maxError && errorVar <= maxError) {
+                return new Result(exp, secondQ * expG - exp * exp, Math.max(errorExp, errorVar));
+            }
+        }
+
+        // exact distribution of M
+        final double[] m = scratch.distribution;
+        final int negatives = probabilities.length - cardinality;
+        Arrays.fill(m, 0, negatives + 1, 0d);
+        m[0] = 1d;
+        int msize = 1;
+        for (int w = 0; w < bits.length; ++w) {
+            final long word = bits[w];
+            for (int i = w << 6, n = Math.min(probabilities.length, i + 64); i < n; ++i) {
+                if ((word & (1L << i)) != 0) continue;
+                final double isset = probabilities[i], isnotset = 1d - isset;
+                for (int k = msize; k > 0; --k) {
+                    m[k] = m[k - 1] * isset + m[k] * isnotset;
+                }
+                m[0] *= isnotset;
+                ++msize;
+            }
+        }
+        double expF = 0d, expG = 0d;
+        for (int k = 0; k <= negatives; ++k) {
+            final double r = a + k;
+            expF += m[k] / r;
+            expG += m[k] / (r * r);
+        }
+        final double exp = meanQ * expF;
+        return new Result(exp, secondQ * expG - exp * exp, 0d);
+    }
+
+    private void enforceCompatibility(Fingerprint candidate) {
+        if (!fingerprintVersion.compatible(candidate.getFingerprintVersion()))
+            throw new IllegalArgumentException("fingerprint versions differ: " + fingerprintVersion.toString() + " vs. " + candidate.getFingerprintVersion().toString());
+    }
+
+    /**
+     * buffers that are reused for all candidates scored by the same thread
+     */
+    private final class Scratch {
+        private final long[] bits = new long[PackedFingerprint.numberOfWords(probabilities.length)];
+        private final double[] distribution = new double[probabilities.length + 1];
+    }
+
+    public static final class Result implements Tanimoto.ProbabilisticTanimoto {
+        private final double exp, var, errorBound;
+
+        private Result(double exp, double var, double errorBound) {
+            this.exp = exp;
+            this.var = var;
+            this.errorBound = errorBound;
+        }
+
+        @Override
+        public double expectationValue() {
+            return exp;
+        }
+
+        @Override
+        public double variance() {
+            return var;
+        }
+
+        @Override
+        public double standardDeviation() {
+            return Math.sqrt(Math.max(0d, var));
+        }
+
+        /**
+         * @return upper bound for the absolute error of expectation value and variance. 0 if both are exact.
+         */
+        public double getErrorBound() {
+            return errorBound;
+        }
+
+        public boolean isExact() {
+            return errorBound == 0d;
+        }
+
+        @Override
+        public String toString() {
+            return "tanimoto = " + exp + " (σ² = " + var + ")";
+        }
+    }
+}
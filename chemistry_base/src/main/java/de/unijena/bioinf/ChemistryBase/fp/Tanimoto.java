@@ -1,5 +1,7 @@
 package de.unijena.bioinf.ChemistryBase.fp;
 
+import java.util.List;
+
 public class Tanimoto {
 
     public interface ProbabilisticTanimoto {
@@ -12,6 +14,25 @@ public class Tanimoto {
         return new ExactDP(left, right, true);
     }
 
+    /**
+     * probabilistic tanimoto of the query to each candidate. Expectation value and variance have an absolute error
+     * of at most {@link ProbabilisticTanimotoEngine#DEFAULT_MAX_ERROR}.
+     */
+    public static ProbabilisticTanimoto[] probabilisticTanimoto(ProbabilityFingerprint query, List<? extends Fingerprint> candidates) {
+        return probabilisticTanimotoEngine(query).score(candidates);
+    }
+
+    /**
+     * @return an engine that scores many candidates against the same query
+     */
+    public static ProbabilisticTanimotoEngine probabilisticTanimotoEngine(ProbabilityFingerprint query) {
+        return new ProbabilisticTanimotoEngine(query);
+    }
+
+    public static ProbabilisticTanimotoEngine probabilisticTanimotoEngine(ProbabilityFingerprint query, double maxError) {
+        return new ProbabilisticTanimotoEngine(query, maxError);
+    }
+
     public static ProbabilisticTanimoto probabilisticTanimoto(AbstractFingerprint left, AbstractFingerprint right) {
         if (left instanceof ProbabilityFingerprint) {
             if (right instanceof ProbabilityFingerprint) {
@@ -61,6 +82,8 @@ public class Tanimoto {
     }
 
     private static double deterministicJaccard(Fingerprint left, Fingerprint right) {
+        if (left instanceof PackedFingerprint && right instanceof PackedFingerprint)
+            return ((PackedFingerprint) left).tanimoto((PackedFingerprint) right);
         left.enforceCompatibility(right);
         short union=0, intersection=0;
         for (FPIter2 pairwise : left.foreachPair(right)) {
@@ -0,0 +1,110 @@
+package de.unijena.bioinf.ChemistryBase.chem;
+
+import de.unijena.bioinf.ChemistryBase.fp.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PackedFingerprintTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(3, 150).enable(200, 300).toMask();
+
+    private static ArrayFingerprint randomFingerprint(Random random, double density) {
+        final boolean[] values = new boolean[M.size()];
+        for (int i = 0; i < values.length; ++i) values[i] = random.nextDouble() < density;
+        return new BooleanFingerprint(M, values).asArray();
+    }
+
+    @Test
+    public void testConversionAndTanimoto() {
+        final Random random = new Random(7);
+        final ArrayFingerprint a = randomFingerprint(random, 0.2), b = randomFingerprint(random, 0.3);
+        final PackedFingerprint pa = a.asPacked(), pb = b.asBooleans().asPacked();
+        assertEquals(a.cardinality(), pa.cardinality());
+        assertArrayEquals(a.toIndizesArray(), pa.toIndizesArray());
+        assertEquals(a.toOneZeroString(), pa.toOneZeroString());
+        for (int index : M.allowedIndizes()) assertEquals(a.isSet(index), pa.isSet(index));
+        assertFalse(pa.isSet(0));
+
+        assertEquals(a.tanimoto(b), pa.tanimoto(pb), 1e-12);
+        assertEquals(a.tanimoto(b), Tanimoto.tanimoto(pa, pb), 1e-12);
+        assertEquals(a.dotProduct(b), pa.dotProduct(pb), 0d);
+        assertEquals(a.plusMinusdotProduct(b), pa.plusMinusdotProduct(pb), 0d);
+
+        int union = 0, intersection = 0;
+        for (FPIter2 iter : pa.foreachUnion(pb)) {
+            assertTrue(iter.isLeftSet() || iter.isRightSet());
+            ++union;
+        }
+        for (FPIter2 iter : pa.foreachIntersection(pb)) {
+            assertTrue(iter.isLeftSet() && iter.isRightSet());
+            ++intersection;
+        }
+        assertEquals(pa.tanimoto(pb), ((double) intersection) / union, 1e-12);
+    }
+
+    @Test
+    public void testMask() {
+        final boolean[] values = new boolean[CdkFingerprintVersion.getDefault().size()];
+        values[2] = values[5] = values[149] = values[150] = values[250] = true;
+        final PackedFingerprint masked = M.mask(new BooleanFingerprint(CdkFingerprintVersion.getDefault(), values).asPacked());
+        assertSame(M, masked.getFingerprintVersion());
+        assertArrayEquals(new short[]{5, 149, 250}, masked.toIndizesArray());
+        // same result if the fingerprint type is only known at runtime
+        final AbstractFingerprint fingerprint = new BooleanFingerprint(CdkFingerprintVersion.getDefault(), values).asPacked();
+        final AbstractFingerprint maskedAtRuntime = M.mask(fingerprint);
+        assertTrue(maskedAtRuntime instanceof PackedFingerprint);
+        assertArrayEquals(masked.toIndizesArray(), ((PackedFingerprint) maskedAtRuntime).toIndizesArray());
+    }
+
+    @Test
+    public void testSearch() throws IOException {
+        final Random random = new Random(42);
+        final List<ArrayFingerprint> database = new ArrayList<>();
+        for (int i = 0; i < 2000; ++i) database.add(randomFingerprint(random, 0.05 + 0.3 * random.nextDouble()));
+        database.add(database.get(17)); // ties are ordered by index
+        final FingerprintMatrix matrix = FingerprintMatrix.of(M, database);
+        assertEquals(database.size(), matrix.size());
+        assertArrayEquals(database.get(1234).toIndizesArray(), matrix.get(1234).toIndizesArray());
+
+        final PackedFingerprint[] queries = new PackedFingerprint[]{database.get(17).asPacked(), randomFingerprint(random, 0.2).asPacked()};
+        final FingerprintMatrix.Hit[][] hits = matrix.search(queries, 10);
+        for (int q = 0; q < queries.length; ++q) {
+            final FingerprintMatrix.Hit[] expected = new FingerprintMatrix.Hit[database.size()];
+            for (int i = 0; i < database.size(); ++i)
+                expected[i] = new FingerprintMatrix.Hit(i, database.get(i).tanimoto(queries[q].asArray()));
+            Arrays.sort(expected);
+            assertEquals(10, hits[q].length);
+            for (int i = 0; i < 10; ++i) {
+                assertEquals(expected[i].getIndex(), hits[q][i].getIndex());
+                assertEquals(expected[i].getTanimoto(), hits[q][i].getTanimoto(), 1e-12);
+            }
+        }
+        assertEquals(17, hits[0][0].getIndex());
+        assertEquals(database.size() - 1, hits[0][1].getIndex());
+
+        final File file = folder.newFile("fingerprints.fpm");
+        matrix.write(file);
+        final FingerprintMatrix mapped = FingerprintMatrix.map(M, file);
+        assertEquals(matrix.size(), mapped.size());
+        assertArrayEquals(matrix.tanimoto(queries[1]), mapped.tanimoto(queries[1]), 0d);
+        try {
+            FingerprintMatrix.map(CdkFingerprintVersion.getDefault(), file);
+            fail("fingerprint version of the file is not checked");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
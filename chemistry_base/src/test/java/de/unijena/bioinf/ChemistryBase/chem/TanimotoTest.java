@@ -3,7 +3,12 @@ package de.unijena.bioinf.ChemistryBase.chem;
 import de.unijena.bioinf.ChemistryBase.fp.*;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TanimotoTest {
 
@@ -63,4 +68,37 @@ public class TanimotoTest {
 
     }
 
+    @Test
+    public void testProbabilisticTanimotoEngine() {
+        final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0,1000).toMask();
+        final Random random = new Random(5);
+        final double[] probabilities = new double[M.size()];
+        for (int i=0; i < probabilities.length; ++i) probabilities[i] = random.nextDouble() < 0.1 ? random.nextDouble() : 0.05*random.nextDouble();
+        final ProbabilityFingerprint query = new ProbabilityFingerprint(M, probabilities);
+        final List<Fingerprint> candidates = new ArrayList<>();
+        for (int c=0; c < 20; ++c) {
+            final boolean[] values = new boolean[M.size()];
+            for (int i=0; i < values.length; ++i) values[i] = random.nextDouble() < 0.01*c;
+            candidates.add(new BooleanFingerprint(M, values));
+        }
+
+        final ProbabilisticTanimotoEngine.Result[] exact = new ProbabilisticTanimotoEngine(query, 0d).score(candidates);
+        final ProbabilisticTanimotoEngine.Result[] approximated = new ProbabilisticTanimotoEngine(query, 1e-3).score(candidates);
+        assertEquals(0d, exact[0].expectationValue(), 0d);
+        int approximations = 0;
+        for (int c=1; c < candidates.size(); ++c) {
+            final Tanimoto.ProbabilisticTanimoto expected = Tanimoto.probabilisticTanimoto(query, candidates.get(c));
+            assertTrue(exact[c].isExact());
+            assertEquals(expected.expectationValue(), exact[c].expectationValue(), 1e-12);
+            assertEquals(expected.variance(), exact[c].variance(), 1e-12);
+            assertTrue(approximated[c].getErrorBound() <= 1e-3);
+            assertEquals(expected.expectationValue(), approximated[c].expectationValue(), approximated[c].getErrorBound() + 1e-12);
+            assertEquals(expected.variance(), approximated[c].variance(), approximated[c].getErrorBound() + 1e-12);
+            if (!approximated[c].isExact()) ++approximations;
+        }
+        // the taylor expansion is used for some, but not for all candidates
+        assertTrue(approximations > 0);
+        assertTrue(approximations < candidates.size() - 1);
+    }
+
 }
@@ -0,0 +1,69 @@
+package de.unijena.bioinf.ChemistryBase.fp;
+
+import de.unijena.bioinf.jjobs.JobManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FingerprintMatrixTest {
+
+    private static final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(3, 150).enable(200, 300).toMask();
+
+    private static ArrayFingerprint randomFingerprint(Random random, double density) {
+        final boolean[] values = new boolean[M.size()];
+        for (int i = 0; i < values.length; ++i) values[i] = random.nextDouble() < density;
+        return new BooleanFingerprint(M, values).asArray();
+    }
+
+    @Test
+    public void testChunkedSearchEqualsSequentialSearch() throws InterruptedException {
+        final Random random = new Random(11);
+        // sparse fingerprints have only a few distinct tanimoto values, so there are many ties
+        final List<ArrayFingerprint> database = new ArrayList<>();
+        for (int i = 0; i < 3000; ++i) database.add(randomFingerprint(random, 0.02));
+        // copies of the same fingerprint in all chunks
+        for (int i = 250; i < database.size(); i += 250) database.set(i, database.get(5));
+        final FingerprintMatrix matrix = FingerprintMatrix.of(M, database);
+        final PackedFingerprint[] queries = new PackedFingerprint[]{
+                database.get(5).asPacked(), randomFingerprint(random, 0.02).asPacked(), randomFingerprint(random, 0.3).asPacked()
+        };
+        final FingerprintMatrix.Hit[][] expected = new FingerprintMatrix.Hit[queries.length][database.size()];
+        for (int q = 0; q < queries.length; ++q) {
+            for (int i = 0; i < database.size(); ++i)
+                expected[q][i] = new FingerprintMatrix.Hit(i, database.get(i).tanimoto(queries[q].asArray()));
+            Arrays.sort(expected[q]);
+        }
+        // the top 10 of the first query are cut within its 12 copies, the top 100 of the second query within a tie
+        assertEquals(1d, expected[0][11].getTanimoto(), 0d);
+        assertEquals(expected[1][99].getTanimoto(), expected[1][100].getTanimoto(), 0d);
+
+        final JobManager manager = new JobManager(4, 1);
+        try {
+            for (int k : new int[]{1, 10, 100, database.size() + 5}) {
+                final FingerprintMatrix.Hit[][] sequential = matrix.search(queries, k, null);
+                // 16 chunks of less than 200 fingerprints
+                final FingerprintMatrix.Hit[][] chunked = matrix.search(queries, k, manager, 100);
+                for (int q = 0; q < queries.length; ++q) {
+                    assertEquals(Math.min(k, database.size()), sequential[q].length);
+                    assertEquals(sequential[q].length, chunked[q].length);
+                    for (int i = 0; i < sequential[q].length; ++i) {
+                        assertEquals(expected[q][i].getIndex(), sequential[q][i].getIndex());
+                        assertEquals(expected[q][i].getTanimoto(), sequential[q][i].getTanimoto(), 1e-12);
+                        assertEquals(sequential[q][i].getIndex(), chunked[q][i].getIndex());
+                        assertEquals(sequential[q][i].getTanimoto(), chunked[q][i].getTanimoto(), 0d);
+                    }
+                }
+            }
+        } finally {
+            manager.shutdown();
+        }
+        final FingerprintMatrix.Hit[] copies = matrix.search(queries[0], 10);
+        assertEquals(5, copies[0].getIndex());
+        for (int i = 1; i < copies.length; ++i) assertEquals(250 * i, copies[i].getIndex());
+    }
+}
@@ -0,0 +1,52 @@
+package de.unijena.bioinf.ChemistryBase.fp;
+
+import de.unijena.bioinf.jjobs.JobManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProbabilisticTanimotoEngineTest {
+
+    @Test
+    public void testParallelScoringEqualsSequentialScoring() throws InterruptedException {
+        final MaskedFingerprintVersion M = MaskedFingerprintVersion.buildMaskFor(CdkFingerprintVersion.getDefault()).disableAll().enable(0, 1000).toMask();
+        final Random random = new Random(13);
+        final double[] probabilities = new double[M.size()];
+        for (int i = 0; i < probabilities.length; ++i) probabilities[i] = random.nextDouble() < 0.1 ? random.nextDouble() : 0.05 * random.nextDouble();
+        final ProbabilityFingerprint query = new ProbabilityFingerprint(M, probabilities);
+        final List<Fingerprint> candidates = new ArrayList<>();
+        for (int c = 0; c < 1000; ++c) {
+            final double density = 0.002 * (c % 100);
+            final boolean[] values = new boolean[M.size()];
+            for (int i = 0; i < values.length; ++i) values[i] = random.nextDouble() < density;
+            candidates.add(new BooleanFingerprint(M, values));
+        }
+
+        final JobManager manager = new JobManager(4, 1);
+        try {
+            for (double maxError : new double[]{0d, 1e-3}) {
+                final ProbabilisticTanimotoEngine engine = new ProbabilisticTanimotoEngine(query, maxError);
+                final ProbabilisticTanimotoEngine.Result[] sequential = engine.score(candidates, null);
+                // 16 chunks of about 60 candidates
+                final ProbabilisticTanimotoEngine.Result[] parallel = engine.score(candidates, manager, 50);
+                assertEquals(candidates.size(), parallel.length);
+                int approximations = 0;
+                for (int c = 0; c < candidates.size(); ++c) {
+                    assertEquals(sequential[c].expectationValue(), parallel[c].expectationValue(), 0d);
+                    assertEquals(sequential[c].variance(), parallel[c].variance(), 0d);
+                    assertEquals(sequential[c].getErrorBound(), parallel[c].getErrorBound(), 0d);
+                    if (!parallel[c].isExact()) ++approximations;
+                }
+                if (maxError == 0d) assertEquals(0, approximations);
+                else assertTrue(approximations > 0 && approximations < candidates.size());
+            }
+        } finally {
+            manager.shutdown();
+        }
+    }
+}
@@ -5,6 +5,7 @@ import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.*;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.HypothesenDrivenRecalibration2;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.recalibration.SpectralRecalibration;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.LossScoreMemo;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring.TreeSizeScorer;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
 import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
@@ -16,10 +17,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FasterTreeComputationInstance extends AbstractTreeComputationInstance {
 
@@ -35,6 +38,8 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
     protected long startTime;
     protected volatile int restTime;
     protected int secondsPerInstance, secondsPerTree;
+    // graphs of the best scoring candidates, reused for exact computation, annotation and recalibration
+    protected GraphCache graphCache;
 
     public FasterTreeComputationInstance(FragmentationPatternAnalysis analyzer, Ms2Experiment input, int numberOfResultsToKeep) {
         super(analyzer);
@@ -51,6 +56,9 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
     private FasterTreeComputationInstance(FragmentationPatternAnalysis analyzer, ProcessedInput input, FTree tree) {
         this(analyzer, input.getOriginalInput(), 1);
         this.pinput = input;
+        // the statistics of the original computation are already recorded
+        if (pinput.getAnnotation(PipelineStatistics.class, null) != null)
+            pinput.setAnnotation(PipelineStatistics.class, new PipelineStatistics());
         this.pinput.setAnnotation(DecompositionList.class, new DecompositionList(Arrays.asList(new Decomposition(tree.getRoot().getFormula(), tree.getAnnotationOrThrow(PrecursorIonType.class).getIonization(), tree.getAnnotationOrThrow(TreeScoring.class).getRootScore()))));
         this.state = 3;
     }
@@ -132,9 +140,28 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         final List<FTree> trees = new ArrayList<>(results.length);
         for (ExactResult r : results) trees.add(r.tree);
         trees.forEach(this::recalculateScore);
+        recordStatistics();
         return new FinalResult(trees);
     }
 
+    /**
+     * adds the cache statistics to the statistics of the input and aggregates them for the job manager running this job
+     */
+    protected void recordStatistics() {
+        final PipelineStatistics statistics = pinput.getAnnotation(PipelineStatistics.class, null);
+        if (statistics == null) return;
+        final LossScoreMemo memo = analyzer.getLossScoreMemo(pinput);
+        if (memo != null) {
+            statistics.add(PipelineStatistics.Counter.LOSS_SCORE_MEMO_HITS, memo.getHits());
+            statistics.add(PipelineStatistics.Counter.LOSS_SCORE_MEMO_MISSES, memo.getMisses());
+        }
+        if (graphCache != null) {
+            statistics.add(PipelineStatistics.Counter.GRAPH_CACHE_HITS, graphCache.getHits());
+            statistics.add(PipelineStatistics.Counter.GRAPH_CACHE_MISSES, graphCache.getMisses());
+        }
+        if (jobManager != null) PipelineStatistics.forJobManager(jobManager).add(statistics);
+    }
+
     protected void recalculateScore(FTree tree) {
         double oldScore = tree.getTreeWeight();
         double newScore = analyzer.recalculateScores(tree);
@@ -145,10 +172,9 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
     }
 
     public ExactResult[] estimateTreeSizeAndRecalibration(List<Decomposition> decompositions, boolean useHeuristic) throws ExecutionException {
-        final int NCPUS = jobManager.getCPUThreads();
-        final int BATCH_SIZE = Math.min(4 * NCPUS, Math.max(30, NCPUS));
-        final int MAX_GRAPH_CACHE_SIZE = Math.max(30, BATCH_SIZE);
         final int n = Math.min(decompositions.size(), numberOfResultsToKeep);
+        // only the graphs of the top results are used again
+        graphCache = new GraphCache(pinput, n + 10);
 
         TreeSizeScorer.TreeSizeBonus treeSizeBonus;
         final TreeSizeScorer tss = FragmentationPatternAnalysis.getByClassName(TreeSizeScorer.class, analyzer.getFragmentPeakScorers());
@@ -161,21 +187,29 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         double inc = tss == null ? 0d : treeSizeBonus.score - tss.getTreeSizeScore();
         double treeSize = treeSizeBonus == null ? 0d : treeSizeBonus.score;
         final List<ExactResult> results = new ArrayList<>(decompositions.size());
+        // unreduced graphs are kept alive across tree size iterations as long as they fit into memory
+        final AtomicLong keptGraphMemory = new AtomicLong(useHeuristic ? GraphCache.getDefaultMaxMemory() : 0L);
+        List<TreeComputationJob> treeJobs = null;
         // TREE SIZE
         while (inc <= MAX_TREESIZE_INCREASE) {
             configureProgress(2, useHeuristic ? 50 : 90,decompositions.size());
             if (tss != null) tss.fastReplace(pinput, new TreeSizeScorer.TreeSizeBonus(treeSize));
+            graphCache.newScoringVersion();
             results.clear();
-            final List<TreeComputationJob> jobs = new ArrayList<>(decompositions.size());
             final TreeBuilder builder = useHeuristic ? getHeuristicTreeBuilder() : analyzer.getTreeBuilder();
-            for (Decomposition d : decompositions) {
-                if (Double.isInfinite(d.getScore())) continue;
-                final TreeComputationJob job = new TreeComputationJob(builder, null, d);
-                submitSubJob(job);
-                jobs.add(job);
+            if (treeJobs == null) {
+                treeJobs = new ArrayList<>(decompositions.size());
+                for (Decomposition d : decompositions) {
+                    if (Double.isInfinite(d.getScore())) continue;
+                    final TreeComputationJob job = new TreeComputationJob(builder, graphCache, d, treeSize, keptGraphMemory);
+                    submitSubJob(job);
+                    treeJobs.add(job);
+                }
+            } else {
+                treeJobs = resolveIncrementally(treeJobs, builder, treeSize, n + 10);
             }
             int counter = 0;
-            for (TreeComputationJob job : jobs) {
+            for (TreeComputationJob job : treeJobs) {
                 results.add(job.awaitResult());
                 if (++counter % 100 == 0) {
                     checkTimeout();
@@ -218,6 +252,86 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         return exact;
     }
 
+    /**
+     * The tree size bonus is added to the score of every fragment except the root. So instead of building and solving
+     * all graphs again, the trees of the last iteration are re-weighted and give a lower bound for the new optimal
+     * score, while the old optimal score plus the bonus increase for each color gives an upper bound. Only candidates
+     * whose upper bound can reach the lower bounds of the top k candidates are solved again, using their kept (and
+     * re-weighted) graph and their old tree as template.
+     * <p>
+     * Heuristic and timed out trees give no upper bound. Such candidates are always solved again, and heuristic trees
+     * are computed exactly as without incremental solving, just on the re-weighted graph.
+     */
+    protected List<TreeComputationJob> resolveIncrementally(List<TreeComputationJob> previousJobs, TreeBuilder builder, double treeSize, int k) {
+        final double[] lowerbounds = new double[previousJobs.size()];
+        for (int i = 0; i < lowerbounds.length; ++i) {
+            final TreeComputationJob job = previousJobs.get(i);
+            lowerbounds[i] = job.result.score + (treeSize - job.treeSize) * numberOfFragmentsWithBonus(job.result.tree);
+        }
+        Arrays.sort(lowerbounds);
+        final double threshold = lowerbounds.length < k ? Double.NEGATIVE_INFINITY : lowerbounds[lowerbounds.length - k];
+        final List<TreeComputationJob> jobs = new ArrayList<>(previousJobs.size());
+        for (TreeComputationJob previous : previousJobs) {
+            final TreeComputationJob job = new IncrementalTreeComputationJob(builder, previous, treeSize, threshold);
+            submitSubJob(job);
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    /**
+     * @return number of fragments in the tree which receive the tree size bonus (all except root and isotope peaks)
+     */
+    protected static int numberOfFragmentsWithBonus(FTree tree) {
+        int count = 0;
+        for (Fragment f : tree) {
+            if (!f.isRoot() && !f.getFormula().isEmpty()) ++count;
+        }
+        return count;
+    }
+
+    /**
+     * adds the given tree size bonus difference to all edges of the tree which get the tree size bonus
+     */
+    protected static void shiftTreeWeights(FTree tree, double diff) {
+        if (diff == 0) return;
+        int count = 0;
+        for (Fragment f : tree) {
+            if (!f.isRoot() && !f.getFormula().isEmpty()) {
+                f.getIncomingEdge().setWeight(f.getIncomingEdge().getWeight() + diff);
+                ++count;
+            }
+        }
+        tree.setTreeWeight(tree.getTreeWeight() + diff * count);
+    }
+
+    /**
+     * adds the given tree size bonus difference to all edges of the unreduced graph which get the tree size bonus
+     */
+    protected static void shiftGraphWeights(FGraph graph, double diff) {
+        if (diff == 0) return;
+        final FragmentAnnotation<IsotopicMarker> marker = graph.getFragmentAnnotationOrNull(IsotopicMarker.class);
+        final Fragment pseudoRoot = graph.getRoot();
+        for (Loss l : graph.losses()) {
+            if (l.getSource() == pseudoRoot) continue;
+            if (marker != null && marker.get(l.getTarget()) != null) continue;
+            l.setWeight(l.getWeight() + diff);
+        }
+    }
+
+    /**
+     * @return maximal number of fragments a tree in the given unreduced graph might contain, excluding the root and
+     * isotope peaks
+     */
+    protected static int maximalTreeSize(FGraph graph) {
+        final FragmentAnnotation<IsotopicMarker> marker = graph.getFragmentAnnotationOrNull(IsotopicMarker.class);
+        final BitSet colors = new BitSet();
+        for (Fragment f : graph.getFragmentsWithoutRoot()) {
+            if (marker == null || marker.get(f) == null) colors.set(f.getColor());
+        }
+        return Math.max(0, colors.cardinality() - 1);
+    }
+
     @NotNull
     private ExtendedCriticalPathHeuristicTreeBuilder getHeuristicTreeBuilder() {
         return new ExtendedCriticalPathHeuristicTreeBuilder();
@@ -238,7 +352,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            FGraph graph = analyzer.buildGraph(pinput, template.decomposition);
+            FGraph graph = getReducedGraph(template.decomposition);
             final FTree tree = analyzer.getTreeBuilder().computeTree().withMultithreading(1).withTimeLimit(Math.min(restTime, secondsPerTree)).withMinimalScore(template.score - 1e-3)/*.withTemplate(template.tree)*/.solve(pinput, graph).tree;
             analyzer.addTreeAnnotations(graph, tree);
             tick();
@@ -255,7 +369,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
 
         @Override
         protected ExactResult compute() throws Exception {
-            FGraph graph = analyzer.buildGraph(pinput, template.decomposition);
+            FGraph graph = getReducedGraph(template.decomposition);
             final FTree tree = template.tree;
             analyzer.addTreeAnnotations(graph, tree);
             tick();
@@ -266,37 +380,129 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
     protected class TreeComputationJob extends BasicJJob<ExactResult> {
 
         protected final TreeBuilder treeBuilder;
-        protected final DoubleEndWeightedQueue2<ExactResult> graphCache;
+        protected final GraphCache graphCache;
         protected final Decomposition decomposition;
-
-        public TreeComputationJob(TreeBuilder treeBuilder, DoubleEndWeightedQueue2<ExactResult> graphCache, Decomposition decomposition) {
+        // tree size bonus this job computes the tree for
+        protected final double treeSize;
+        // remaining memory for keeping unreduced graphs alive for the next tree size iteration
+        protected final AtomicLong keptGraphMemory;
+        // unreduced graph and the tree size bonus its edge weights are computed with
+        protected FGraph graph;
+        protected double graphTreeSize;
+        protected int maximalTreeSize;
+        protected ExactResult result;
+        // upper bound for the optimal score of this candidate. Infinite if the tree was not computed exactly
+        protected double upperbound = Double.POSITIVE_INFINITY;
+
+        public TreeComputationJob(TreeBuilder treeBuilder, GraphCache graphCache, Decomposition decomposition, double treeSize, AtomicLong keptGraphMemory) {
             this.treeBuilder = treeBuilder;
             this.graphCache = graphCache;
             this.decomposition = decomposition;
+            this.treeSize = treeSize;
+            this.keptGraphMemory = keptGraphMemory;
         }
 
         @Override
         protected ExactResult compute() throws Exception {
-            final FGraph graph = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder ? analyzer.buildGraphWithoutReduction(pinput, decomposition) : analyzer.buildGraph(pinput, decomposition);
-            final FTree tree = treeBuilder.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pinput, graph).tree;
+            final boolean reduced = !(treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder);
+            FGraph graph = analyzer.buildGraphWithoutReduction(pinput, decomposition);
+            this.maximalTreeSize = maximalTreeSize(graph);
+            if (reduced) graph = analyzer.performGraphReduction(graph, 0d);
+            else keepGraph(graph, treeSize);
+            final TreeBuilder.Result r = treeBuilder.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).solve(pinput, graph);
+            if (r.isOptimal) this.upperbound = r.tree.getTreeWeight();
+            return finish(graph, reduced, r.tree);
+        }
+
+        protected void keepGraph(FGraph graph, double graphTreeSize) {
+            final long memory = GraphCache.estimateMemory(graph);
+            if (keptGraphMemory.addAndGet(-memory) >= 0) {
+                this.graph = graph;
+                this.graphTreeSize = graphTreeSize;
+            } else keptGraphMemory.addAndGet(memory);
+        }
+
+        protected ExactResult finish(FGraph graph, boolean reduced, FTree tree) {
             final ExactResult er = new ExactResult(decomposition, null, tree, tree.getTreeWeight());
-            if (graphCache != null) {
-                double score = graphCache.getWeightLowerbound();
-                if (tree.getTreeWeight() > score) {
-                    synchronized (graphCache) {
-                        if (tree.getTreeWeight() > graphCache.getWeightLowerbound()) {
-                            er.graph = graph;
-                            if (!graphCache.add(er, tree.getTreeWeight()))
-                                er.graph = null;
-                        }
-                    }
-                }
+            if (graph != null && graphCache != null && tree.getTreeWeight() > graphCache.getScoreLowerbound()) {
+                graphCache.offer(pinput, decomposition, graph, tree.getTreeWeight(), reduced);
             }
+            this.result = er;
             tick();
             return er;
         }
     }
 
+    protected class IncrementalTreeComputationJob extends TreeComputationJob {
+
+        protected final TreeComputationJob previous;
+        protected final double threshold;
+
+        public IncrementalTreeComputationJob(TreeBuilder treeBuilder, TreeComputationJob previous, double treeSize, double threshold) {
+            super(treeBuilder, previous.graphCache, previous.decomposition, treeSize, previous.keptGraphMemory);
+            this.previous = previous;
+            this.threshold = threshold;
+            this.graph = previous.graph;
+            this.graphTreeSize = previous.graphTreeSize;
+            this.maximalTreeSize = previous.maximalTreeSize;
+        }
+
+        @Override
+        protected ExactResult compute() throws Exception {
+            final boolean heuristic = treeBuilder instanceof ExtendedCriticalPathHeuristicTreeBuilder;
+            final double diff = treeSize - previous.treeSize;
+            final FTree lowerbound = previous.result.tree;
+            // infinite if the previous tree is a heuristic or timed out solution
+            this.upperbound = previous.upperbound + Math.max(0, diff) * maximalTreeSize;
+            shiftTreeWeights(lowerbound, diff);
+            if (upperbound < threshold) {
+                // this candidate cannot reach the top k, so we keep its re-weighted tree
+                return finish(null, false, lowerbound);
+            }
+            final FGraph graph;
+            final boolean reduced;
+            if (this.graph != null) {
+                shiftGraphWeights(this.graph, treeSize - graphTreeSize);
+                this.graphTreeSize = treeSize;
+                graph = this.graph;
+                reduced = false;
+            } else if (heuristic) {
+                graph = analyzer.buildGraphWithoutReduction(pinput, decomposition);
+                keepGraph(graph, treeSize);
+                reduced = false;
+            } else {
+                graph = analyzer.buildGraph(pinput, decomposition);
+                reduced = true;
+            }
+            if (heuristic) {
+                // the heuristic ignores templates and minimal scores, and we want the same trees as without incremental solving
+                this.upperbound = Double.POSITIVE_INFINITY;
+                return finish(graph, reduced, treeBuilder.computeTree().solve(pinput, graph).tree);
+            }
+            final double minimalScore = Math.max(threshold, lowerbound.getTreeWeight()) - 1e-3;
+            final TreeBuilder.Result r = treeBuilder.computeTree().withTimeLimit(Math.min(restTime, secondsPerTree)).withTemplate(lowerbound).withMinimalScore(minimalScore).solve(pinput, graph);
+            if (r.isOptimal) this.upperbound = r.tree.getTreeWeight();
+            else if (r.error == TreeBuilder.AbortReason.NO_SOLUTION) this.upperbound = minimalScore;
+            else this.upperbound = Double.POSITIVE_INFINITY;
+            FTree tree = r.tree;
+            if (tree == null || tree.getTreeWeight() < lowerbound.getTreeWeight()) tree = lowerbound;
+            return finish(graph, reduced, tree);
+        }
+    }
+
+    /**
+     * @return the reduced graph of the given decomposition. Takes the graph from the graph cache, if possible.
+     */
+    protected FGraph getReducedGraph(Decomposition decomposition) {
+        if (graphCache != null) {
+            final GraphCache.CachedGraph cached = graphCache.take(pinput, decomposition);
+            if (cached != null) {
+                return cached.isReduced() ? cached.getGraph() : analyzer.performGraphReduction(cached.getGraph(), 0d);
+            }
+        }
+        return analyzer.buildGraph(pinput, decomposition);
+    }
+
     private void checkTimeout() {
         final long time = System.currentTimeMillis();
         final int elapsedTime = (int) ((time - startTime) / 1000);
@@ -317,7 +523,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
         protected ExactResult compute() throws Exception {
             FGraph graph;
             if (r.graph == null) {
-                graph = analyzer.buildGraph(pinput, r.decomposition);
+                graph = getReducedGraph(r.decomposition);
             } else graph = r.graph;
             final FTree tree = r.tree;
             return recalibrate(pinput, tb, tree, graph);
@@ -325,6 +531,8 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
     }
 
     protected ExactResult recalibrate(ProcessedInput input, TreeBuilder tb, FTree tree, FGraph origGraph) {
+        final PipelineStatistics statistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         if (tree.getAnnotationOrNull(ProcessedInput.class) == null)
             analyzer.addTreeAnnotations(origGraph, tree);
         final SpectralRecalibration rec = new HypothesenDrivenRecalibration2().collectPeaksFromMs2(input.getExperimentInformation(), tree);
@@ -353,6 +561,7 @@ public class FasterTreeComputationInstance extends AbstractTreeComputationInstan
             analyzer.addTreeAnnotations(origGraph, finalTree);
         }
         assert finalTree!=null;
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.RECALIBRATION, start);
         tick();
         return new ExactResult(l.getDecompositions().get(0), null, finalTree, finalTree.getTreeWeight());
     }
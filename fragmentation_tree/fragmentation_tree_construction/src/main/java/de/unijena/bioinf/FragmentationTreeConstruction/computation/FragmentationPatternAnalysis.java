@@ -23,6 +23,7 @@ import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
 import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
 import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.*;
+import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaVisitor;
 import de.unijena.bioinf.ChemistryBase.chem.utils.scoring.Hetero2CarbonScorer;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
@@ -51,6 +52,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuil
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilderFactory;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
 import de.unijena.bioinf.IsotopePatternAnalysis.IsotopePattern;
+import de.unijena.bioinf.MassDecomposer.CompomerBuffer;
 import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
 import gnu.trove.map.hash.TLongObjectHashMap;
@@ -112,6 +114,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     private GraphReduction reduction;
     private IsotopePatternInMs2Scorer isoInMs2Scorer;
     private IsotopeInMs2Handling isotopeInMs2Handling;
+    private final Map<ProcessedInput, LossScoreMemo> lossScoreMemos = Collections.synchronizedMap(new WeakHashMap<ProcessedInput, LossScoreMemo>());
+    private boolean collectingStatistics = PipelineStatistics.isEnabledByDefault();
 
     public enum IsotopeInMs2Handling {
         /**
@@ -186,6 +190,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * @return A ProcessedInput object wrapping the original input
      */
     public ProcessedInput performValidation(Ms2Experiment originalExperiment) {
+        final long start = collectingStatistics ? System.nanoTime() : 0L;
         // first of all: insert default profile if no profile is given
 
         MutableMs2Experiment input = new MutableMs2Experiment(originalExperiment);
@@ -220,6 +225,11 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
             pinput.setAnnotation(Whiteset.class, input.getAnnotation(Whiteset.class));
         }
 
+        if (collectingStatistics) {
+            final PipelineStatistics statistics = new PipelineStatistics();
+            pinput.setAnnotation(PipelineStatistics.class, statistics);
+            statistics.addTime(PipelineStatistics.Stage.VALIDATION, start);
+        }
         return pinput;
     }
 
@@ -230,79 +240,110 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * @return
      */
     public ProcessedInput performPreprocessing(ProcessedInput experiment) {
+        final PipelineStatistics statistics = experiment.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         MutableMs2Experiment exp = experiment.getExperimentInformation();
         for (Preprocessor proc : preprocessors) {
             exp = proc.process(exp, experiment.getMeasurementProfile());
         }
         experiment.setExperimentInformation(exp);
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.PREPROCESSING, start);
         return experiment;
     }
 
     /**
      * Step 3. Normalizing
      * Merge all peaks within a single spectrum
-     * Return a list of peaks (from all spectra) with relative intensities
+     * Return a table of peaks (from all spectra) with relative intensities. The table is stored as {@link PeakTable}
+     * annotation and processed peaks are only created for the merged peaks in step 4. If there are post processors
+     * for this stage, the peaks are stored as processed peaks in the merged peak list instead.
+     * <p>
+     * Without such post processors, {@link ProcessedInput#getMergedPeaks()} is NOT updated by this step and is only
+     * valid again after {@link #performPeakMerging(ProcessedInput)}. Use {@link PeakTable#toProcessedPeaks()} of the
+     * annotation to get the normalized peaks in between.
      */
     public ProcessedInput performNormalization(ProcessedInput input) {
+        final PipelineStatistics statistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         final Ms2Experiment experiment = input.getExperimentInformation();
         final double parentMass = experiment.getIonMass();
-        final ArrayList<ProcessedPeak> peaklist = new ArrayList<ProcessedPeak>(100);
+        final List<Ms2Spectrum<Peak>> spectra = experiment.getMs2Spectra();
+        int maxSize = 0, numberOfPeaks = 0;
+        for (Ms2Spectrum<Peak> s : spectra) {
+            maxSize = Math.max(maxSize, s.size());
+            numberOfPeaks += s.size();
+        }
+        final PeakTable table = new PeakTable(spectra, numberOfPeaks);
         final Deviation mergeWindow = getDefaultProfile().getAllowedMassDeviation().divide(2d);
+        // buffers are shared between all spectra
+        final double[] mzs = new double[maxSize], intensities = new double[maxSize];
+        final double[] sortedMzs = new double[maxSize], sortedIntensities = new double[maxSize];
+        final int[] byMass = new int[maxSize], byIntensity = new int[maxSize];
+        final BitSet deletedPeaks = new BitSet(maxSize);
         double globalMaxIntensity = 0d;
-        for (Ms2Spectrum s : experiment.getMs2Spectra()) {
+        for (int id = 0; id < spectra.size(); ++id) {
+            final Ms2Spectrum<Peak> s = spectra.get(id);
+            final int n = s.size();
+            for (int i = 0; i < n; ++i) {
+                mzs[i] = s.getMzAt(i);
+                intensities[i] = s.getIntensityAt(i);
+                byMass[i] = i;
+            }
+            PeakTable.sortIndizes(byMass, 0, n, mzs, false);
+            for (int i = 0; i < n; ++i) {
+                sortedMzs[i] = mzs[byMass[i]];
+                sortedIntensities[i] = intensities[byMass[i]];
+                byIntensity[i] = i;
+            }
+            PeakTable.sortIndizes(byIntensity, 0, n, sortedIntensities, true);
             // merge peaks: iterate them from highest to lowest intensity and remove peaks which
             // are in the mass range of a high intensive peak
-            final MutableSpectrum<Peak> sortedByIntensity = new SimpleMutableSpectrum(s);
-            Spectrums.sortSpectrumByDescendingIntensity(sortedByIntensity);
-            // simple spectra are always ordered by mass
-            final SimpleSpectrum sortedByMass = new SimpleSpectrum(s);
-            final BitSet deletedPeaks = new BitSet(s.size());
-            for (int i = 0; i < s.size(); ++i) {
-                // get index of peak in mass-ordered spectrum
-                final double mz = sortedByIntensity.getMzAt(i);
-                final int index = Spectrums.binarySearch(sortedByMass, mz);
-                assert index >= 0;
+            deletedPeaks.clear();
+            for (int i = 0; i < n; ++i) {
+                // index of peak in mass-ordered spectrum
+                final int index = byIntensity[i];
                 if (deletedPeaks.get(index)) continue; // peak is already deleted
+                final double mz = sortedMzs[index];
                 // delete all peaks within the mass range
-                for (int j = index - 1; j >= 0 && mergeWindow.inErrorWindow(mz, sortedByMass.getMzAt(j)); --j)
+                for (int j = index - 1; j >= 0 && mergeWindow.inErrorWindow(mz, sortedMzs[j]); --j)
                     deletedPeaks.set(j, true);
-                for (int j = index + 1; j < s.size() && mergeWindow.inErrorWindow(mz, sortedByMass.getMzAt(j)); ++j)
+                for (int j = index + 1; j < n && mergeWindow.inErrorWindow(mz, sortedMzs[j]); ++j)
                     deletedPeaks.set(j, true);
             }
-            final int offset = peaklist.size();
+            final int offset = table.size();
             // add all remaining peaks to the peaklist
-            for (int i = 0; i < s.size(); ++i) {
-                if (!deletedPeaks.get(i)) {
-                    final ProcessedPeak propeak = new ProcessedPeak(new MS2Peak(s, sortedByMass.getMzAt(i), sortedByMass.getIntensityAt(i)));
-                    peaklist.add(propeak);
-
-                }
+            for (int i = 0; i < n; ++i) {
+                if (!deletedPeaks.get(i)) table.add(id, sortedMzs[i], sortedIntensities[i]);
             }
             // now performNormalization spectrum. Ignore peaks near to the parent peak
             final double lowerbound = parentMass - 0.1d;
             double scale = 0d;
-            for (int i = offset; i < peaklist.size() && peaklist.get(i).getMz() < lowerbound; ++i) {
-                scale = Math.max(scale, peaklist.get(i).getIntensity());
+            for (int i = offset; i < table.size() && table.getMz(i) < lowerbound; ++i) {
+                scale = Math.max(scale, table.getIntensity(i));
             }
-            if (scale==0) scale = peaklist.get(0).getIntensity(); // happens for spectra with only one peak
+            if (scale==0) scale = table.getIntensity(0); // happens for spectra with only one peak
             // now set local relative intensities
-            for (int i = offset; i < peaklist.size(); ++i) {
-                final ProcessedPeak peak = peaklist.get(i);
-                peak.setLocalRelativeIntensity(peak.getIntensity() / scale);
+            for (int i = offset; i < table.size(); ++i) {
+                table.setLocalRelativeIntensity(i, table.getIntensity(i) / scale);
             }
             // and adjust global relative intensity
             globalMaxIntensity = Math.max(globalMaxIntensity, scale);
         }
         // now calculate global normalized intensities
-        for (ProcessedPeak peak : peaklist) {
-            peak.setGlobalRelativeIntensity(peak.getIntensity() / globalMaxIntensity);
-            peak.setRelativeIntensity(normalizationType == NormalizationType.GLOBAL ? peak.getGlobalRelativeIntensity() : peak.getLocalRelativeIntensity());
+        for (int i = 0; i < table.size(); ++i) {
+            table.setGlobalRelativeIntensity(i, table.getIntensity(i) / globalMaxIntensity);
+            table.setRelativeIntensity(i, normalizationType == NormalizationType.GLOBAL ? table.getGlobalRelativeIntensity(i) : table.getLocalRelativeIntensity(i));
         }
         // finished!
-        input.setMergedPeaks(peaklist);
-
-        // postprocess
-        postProcess(PostProcessor.Stage.AFTER_NORMALIZING, input);
+        if (hasPostProcessors(PostProcessor.Stage.AFTER_NORMALIZING)) {
+            input.removeAnnotation(PeakTable.class);
+            input.setMergedPeaks(table.toProcessedPeaks());
+            // postprocess
+            postProcess(PostProcessor.Stage.AFTER_NORMALIZING, input);
+        } else {
+            input.setAnnotation(PeakTable.class, table);
+        }
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.NORMALIZATION, start);
         return input;
     }
     /**
@@ -311,12 +352,16 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * a set of peaks are merged if:
      * - they are from different spectra
      * - they are in the same mass range
+     * Works on the peak table of step 3, if present, and on the merged peak list otherwise.
      */
     public ProcessedInput performPeakMerging(ProcessedInput input) {
+        final PipelineStatistics statistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         Ms2Experiment experiment = input.getExperimentInformation();
+        final PeakTable table = input.getAnnotation(PeakTable.class, null);
         List<ProcessedPeak> peaklists = input.getMergedPeaks();
-        final ArrayList<ProcessedPeak> mergedPeaks = new ArrayList<ProcessedPeak>(peaklists.size());
-        peakMerger.mergePeaks(peaklists, experiment, getDefaultProfile().getAllowedMassDeviation().multiply(2), new Merger() {
+        final ArrayList<ProcessedPeak> mergedPeaks = new ArrayList<ProcessedPeak>(table != null ? table.size() : peaklists.size());
+        final Merger merger = new Merger() {
             @Override
             public ProcessedPeak merge(List<ProcessedPeak> peaks, int index, double newMz) {
                 final ProcessedPeak newPeak = peaks.get(index);
@@ -337,13 +382,28 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
                 mergedPeaks.add(newPeak);
                 return newPeak;
             }
-        });
+
+            @Override
+            public ProcessedPeak merge(PeakTable table, int[] rows, int from, int to, int index, double newMz) {
+                final ProcessedPeak newPeak = table.merge(rows, from, to, rows[from + index], newMz);
+                mergedPeaks.add(newPeak);
+                return newPeak;
+            }
+        };
+        final Deviation mergeWindow = getDefaultProfile().getAllowedMassDeviation().multiply(2);
+        if (table != null) {
+            input.removeAnnotation(PeakTable.class);
+            peakMerger.mergePeaks(table, experiment, mergeWindow, merger);
+        } else {
+            peakMerger.mergePeaks(peaklists, experiment, mergeWindow, merger);
+        }
         {
             // DEBUGGING
             Collections.sort(mergedPeaks);
         }
         input.setMergedPeaks(mergedPeaks);
         postProcess(PostProcessor.Stage.AFTER_MERGING, input);
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.PEAK_MERGING, start);
         return input;
     }
 
@@ -355,6 +415,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * is is guaranteed, that the heaviest peak in the list is always the parent peak.
      */
     public ProcessedInput performParentPeakDetection(ProcessedInput input) {
+        final PipelineStatistics statistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         final List<ProcessedPeak> processedPeaks = input.getMergedPeaks();
         final Ms2Experiment experiment = input.getExperimentInformation();
         // and sort the resulting peaklist by mass
@@ -425,6 +487,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
 
         input.setParentPeak(parentPeak);
 
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.PARENT_PEAK_DETECTION, start);
         return input;
     }
 
@@ -433,6 +496,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * Decompose each peak as well as the parent peak
      */
     public ProcessedInput performDecomposition(ProcessedInput input) {
+        final PipelineStatistics statistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         final PeriodicTable PT = PeriodicTable.getInstance();
         final Whiteset whiteset = input.getAnnotation(Whiteset.class, null);
         final FormulaConstraints constraints = input.getMeasurementProfile().getFormulaConstraints();
@@ -488,22 +553,48 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         getDecomposersFor(pmds, constraints, decomposers, constraintList);
 
         decompositionList.set(parentPeak, new DecompositionList(decomps));
-        int j = 0;
-        for (ProcessedPeak peak : processedPeaks.subList(0, processedPeaks.size() - 1)) {
-            peak.setIndex(j++);
+        // decompose all fragment peaks with all ion modes in one batch per decomposer
+        final List<ProcessedPeak> fragmentPeaks = processedPeaks.subList(0, processedPeaks.size() - 1);
+        final int numberOfIonModes = ionModes.size();
+        final double[] masses = new double[fragmentPeaks.size() * numberOfIonModes];
+        final double[] tolerances = new double[masses.length];
+        for (int j = 0, q = 0; j < fragmentPeaks.size(); ++j) {
+            final ProcessedPeak peak = fragmentPeaks.get(j);
+            peak.setIndex(j);
+            final double tolerance = fragmentDeviation.absoluteFor(peak.getMass());
+            for (Ionization ion : ionModes) {
+                final double mass = ion.subtractFromMass(peak.getMass());
+                // non-positive masses are not decomposed
+                masses[q] = mass > 0 ? mass : 0d;
+                tolerances[q++] = mass > 0 ? tolerance : 0d;
+            }
+        }
+        final CompomerBuffer[] compomers = new CompomerBuffer[decomposers.size()];
+        final FormulaFilter[] filters = new FormulaFilter[decomposers.size()];
+        for (int D = 0; D < decomposers.size(); ++D) {
+            final FormulaConstraints cs = constraintList.get(D);
+            filters[D] = FormulaFilterList.create(cs.getFilters());
+            compomers[D] = decomposers.get(D).decomposeToCompomers(masses, tolerances, cs, null);
+        }
+        // the compomers of one decomposer are distinct, so duplicates are only possible with several decomposers
+        final HashSet<MolecularFormula> formulas = decomposers.size() > 1 ? new HashSet<MolecularFormula>() : null;
+        long numberOfDecompositions = decomps.size();
+        for (int j = 0, q = 0; j < fragmentPeaks.size(); ++j) {
             final List<Decomposition> decompositions = new ArrayList<>();
-            final double mz = peak.getMass();
             for (Ionization ion : ionModes) {
-                final double mass = ion.subtractFromMass(mz);
-                if (mass > 0) {
-                    final HashSet<MolecularFormula> formulas = new HashSet<>();
-                    for (int D=0; D < decomposers.size(); ++D) {
-                        formulas.addAll(decomposers.get(D).decomposeToFormulas(mass, fragmentDeviation.absoluteFor(peak.getMass()), constraintList.get(D)));
+                if (formulas != null) formulas.clear();
+                for (int D = 0; D < decomposers.size(); ++D) {
+                    final MassToFormulaDecomposer d = decomposers.get(D);
+                    for (int c = compomers[D].start(q), end = compomers[D].end(q); c < end; ++c) {
+                        final MolecularFormula formula = d.getFormula(compomers[D], c);
+                        if (filters[D].isValid(formula) && (formulas == null || formulas.add(formula)))
+                            decompositions.add(new Decomposition(formula, ion, 0d));
                     }
-                    for (MolecularFormula f : formulas) decompositions.add(new Decomposition(f, ion, 0d));
                 }
+                ++q;
             }
-            decompositionList.set(peak, new DecompositionList(decompositions));
+            numberOfDecompositions += decompositions.size();
+            decompositionList.set(fragmentPeaks.get(j), new DecompositionList(decompositions));
         }
         parentPeak.setIndex(processedPeaks.size() - 1);
         assert parentPeak == processedPeaks.get(processedPeaks.size() - 1);
@@ -516,13 +607,19 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
             }
         }
         input.setAnnotation(DecompositionList.class, decompositionList.get(parentPeak));
-        return postProcess(PostProcessor.Stage.AFTER_DECOMPOSING, input);
+        input = postProcess(PostProcessor.Stage.AFTER_DECOMPOSING, input);
+        if (statistics != null) {
+            statistics.add(PipelineStatistics.Counter.DECOMPOSITIONS, numberOfDecompositions);
+            statistics.addTime(PipelineStatistics.Stage.DECOMPOSITION, start);
+        }
+        return input;
     }
 
     private void getDecomposersFor(List<MolecularFormula> pmds, FormulaConstraints constraint, List<MassToFormulaDecomposer> decomposers, List<FormulaConstraints> constraintList) {
         pmds = new ArrayList<>(pmds);
         final TObjectLongHashMap<Element> elementMap = new TObjectLongHashMap<>(10, 0.75f, -1);
         final TLongObjectHashMap<MassToFormulaDecomposer> decomposerMap = new TLongObjectHashMap<>(10);
+        final TLongObjectHashMap<ChemicalAlphabet> alphabetMap = new TLongObjectHashMap<>(10);
         final long[] buf = new long[2];
         Collections.sort(pmds, new Comparator<MolecularFormula>() {
             @Override
@@ -556,15 +653,19 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
                     }
                 });
                 if (buf[1] < 0) {
-                    MassToFormulaDecomposer newDecomposer = getDecomposerCache().getDecomposer(new ChemicalAlphabet(formula.elementArray()));
+                    // the decomposer might be built for a superset of the alphabet. Therefore, the constraints
+                    // have to be restricted to the elements of the alphabet itself
+                    final ChemicalAlphabet alphabet = new ChemicalAlphabet(formula.elementArray());
+                    MassToFormulaDecomposer newDecomposer = getDecomposerCache().getDecomposerForSubset(alphabet);
                     decomposerMap.put(buf[0], newDecomposer);
+                    alphabetMap.put(buf[0], alphabet);
                 }
             }
         }
-        for (MassToFormulaDecomposer decomposer : decomposerMap.valueCollection()) {
-            final FormulaConstraints cs = constraint.intersection(new FormulaConstraints(decomposer.getChemicalAlphabet()));
+        for (long key : decomposerMap.keys()) {
+            final FormulaConstraints cs = constraint.intersection(new FormulaConstraints(alphabetMap.get(key)));
             constraintList.add(cs);
-            decomposers.add(decomposer);
+            decomposers.add(decomposerMap.get(key));
         }
     }
 
@@ -573,6 +674,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      * Scores each peak. Expects a decomposition list
      */
     public ProcessedInput performPeakScoring(ProcessedInput input) {
+        final PipelineStatistics statistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         final List<ProcessedPeak> processedPeaks = input.getMergedPeaks();
         final ProcessedPeak parentPeak = input.getParentPeak();
         final int n = processedPeaks.size();
@@ -634,6 +737,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         // set peak indizes
         for (int i = 0; i < processedPeaks.size(); ++i) processedPeaks.get(i).setIndex(i);
 
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.PEAK_SCORING, start);
         return input;
     }
 
@@ -1077,6 +1181,8 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     }
 
     protected FTree recalibrate(ProcessedInput input, FTree tree) {
+        final PipelineStatistics statistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         final SpectralRecalibration rec = new HypothesenDrivenRecalibration2().collectPeaksFromMs2(input.getExperimentInformation(), tree);
         final ProcessedInput pin = input.getRecalibratedVersion(rec);
         // we have to completely rescore the input...
@@ -1088,6 +1194,7 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         graph.addAnnotation(SpectralRecalibration.class, rec);
         final FTree recalibratedTree = computeTree(graph);
         recalibratedTree.setAnnotation(SpectralRecalibration.class, rec);
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.RECALIBRATION, start);
         return recalibratedTree;
     }
 
@@ -1263,11 +1370,21 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     }
 
     private FGraph buildGraphWithoutReduction(ProcessedInput input, Decomposition candidate, boolean topologicalSort) {
+        final PipelineStatistics inputStatistics = input.getAnnotation(PipelineStatistics.class, null);
+        final long start = inputStatistics == null ? 0L : System.nanoTime();
         // build Graph
         FGraph graph = graphBuilder.fillGraph(
                 graphBuilder.addRoot(graphBuilder.initializeEmptyGraph(input),
                         input.getParentPeak(), Collections.singletonList(candidate)));
         graph.addAliasForFragmentAnnotation(ProcessedPeak.class, Peak.class);
+        if (inputStatistics != null) {
+            final PipelineStatistics statistics = inputStatistics.newCandidateStatistics();
+            statistics.addTime(PipelineStatistics.Stage.GRAPH_BUILDING, start);
+            statistics.add(PipelineStatistics.Counter.GRAPHS, 1);
+            statistics.add(PipelineStatistics.Counter.VERTICES_BEFORE_REDUCTION, graph.numberOfVertices());
+            statistics.add(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION, graph.numberOfEdges());
+            graph.setAnnotation(PipelineStatistics.class, statistics);
+        }
         graph = performGraphScoring(graph);
         if (topologicalSort) {
             graph.sortTopological();
@@ -1281,7 +1398,15 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
 
     public FGraph performGraphReduction(FGraph fragments, double lowerbound) {
         if(reduction==null) return fragments;
-        return reduction.reduce(fragments, lowerbound);
+        final PipelineStatistics statistics = fragments.getAnnotation(PipelineStatistics.class, null);
+        if (statistics == null) return reduction.reduce(fragments, lowerbound);
+        final long start = System.nanoTime();
+        final FGraph reduced = reduction.reduce(fragments, lowerbound);
+        statistics.addTime(PipelineStatistics.Stage.GRAPH_REDUCTION, start);
+        statistics.add(PipelineStatistics.Counter.VERTICES_AFTER_REDUCTION, reduced.numberOfVertices());
+        statistics.add(PipelineStatistics.Counter.EDGES_AFTER_REDUCTION, reduced.numberOfEdges());
+        reduced.setAnnotation(PipelineStatistics.class, statistics);
+        return reduced;
     }
 
     /*
@@ -1519,17 +1644,26 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
     }
 
     public FGraph performGraphScoring(FGraph graph) {
+        final PipelineStatistics statistics = graph.getAnnotation(PipelineStatistics.class, null);
+        final long start = statistics == null ? 0L : System.nanoTime();
         // score graph
         final Iterator<Loss> edges = graph.lossIterator();
         final ProcessedInput input = graph.getAnnotationOrThrow(ProcessedInput.class);
         final Scoring scoring = input.getAnnotationOrThrow(Scoring.class);
         final double[] peakScores = scoring.getPeakScores();
         final double[][] peakPairScores = scoring.getPeakPairScores();
-        final LossScorer[] lossScorers = this.lossScorers.toArray(new LossScorer[this.lossScorers.size()]);
-        final Object[] precomputeds = new Object[lossScorers.length];
+        // scores of local loss scorers are shared between all graphs of the same input
+        final List<LossScorer<?>> localScorers = new ArrayList<>();
+        final List<PreparedLossScorer<?>> otherScorers = new ArrayList<>();
+        for (LossScorer<?> s : this.lossScorers) {
+            if (s instanceof LocalLossScorer) localScorers.add(s);
+            else otherScorers.add(PreparedLossScorer.prepare(s, input));
+        }
+        final PreparedLossScorer<?>[] lossScorers = otherScorers.toArray(new PreparedLossScorer<?>[otherScorers.size()]);
+        final LossScoreMemo memo = localScorers.isEmpty() ? null : getOrCreateLossScoreMemo(input, localScorers);
+        final LossScoreMemo.GraphLookup memoLookup = memo == null ? null : memo.lookup(graph, input);
         final ScoredFormulaMap map = graph.getAnnotationOrThrow(ScoredFormulaMap.class);
         final FragmentAnnotation<ProcessedPeak> peakAno = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
-        for (int i = 0; i < precomputeds.length; ++i) precomputeds[i] = lossScorers[i].prepare(input);
         while (edges.hasNext()) {
             final Loss loss = edges.next();
             final Fragment u = loss.getSource();
@@ -1545,17 +1679,38 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
                 score += peakPairScores[peakAno.get(u).getIndex()][peakAno.get(v).getIndex()]; // TODO: Umdrehen!
             assert !Double.isInfinite(score);
             // add the score of the loss
-            if (!u.isRoot())
-                for (int i = 0; i < lossScorers.length; ++i)
-                    score += lossScorers[i].score(loss, input, precomputeds[i]);
+            if (!u.isRoot()) {
+                if (memoLookup != null) score += memoLookup.score(loss, peakAno.get(u).getIndex(), peakAno.get(v).getIndex());
+                for (PreparedLossScorer<?> lossScorer : lossScorers)
+                    score += lossScorer.score(loss, input);
+            }
             assert !Double.isInfinite(score);
             loss.setWeight(score);
         }
         scoreIsotopesInMs2(input, graph);
 
+        if (statistics != null) statistics.addTime(PipelineStatistics.Stage.GRAPH_SCORING, start);
         return graph;
     }
 
+    /**
+     * @return the memo of local loss scores for the given input or null, if no graph of this input was scored yet
+     */
+    public LossScoreMemo getLossScoreMemo(ProcessedInput input) {
+        return lossScoreMemos.get(input);
+    }
+
+    private LossScoreMemo getOrCreateLossScoreMemo(ProcessedInput input, List<LossScorer<?>> localScorers) {
+        synchronized (lossScoreMemos) {
+            LossScoreMemo memo = lossScoreMemos.get(input);
+            if (memo == null || !memo.isValidFor(localScorers)) {
+                memo = new LossScoreMemo(input, localScorers);
+                lossScoreMemos.put(input, memo);
+            }
+            return memo;
+        }
+    }
+
     public boolean isScoringIsotopes(ProcessedInput input) {
         final boolean isBrukerMaxis = input.getAnnotation(MsInstrumentation.class, MsInstrumentation.Unknown).hasIsotopesInMs2();
         switch (isotopeInMs2Handling) {
@@ -1599,6 +1754,13 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
      */
 
 
+    private boolean hasPostProcessors(PostProcessor.Stage stage) {
+        for (PostProcessor proc : postProcessors) {
+            if (proc.getStage() == stage) return true;
+        }
+        return false;
+    }
+
     ProcessedInput postProcess(PostProcessor.Stage stage, ProcessedInput input) {
         for (PostProcessor proc : postProcessors) {
             if (proc.getStage() == stage) {
@@ -1736,6 +1898,17 @@ public class FragmentationPatternAnalysis implements Parameterized, Cloneable {
         return decomposers;
     }
 
+    /**
+     * @return true, if {@link PipelineStatistics} are attached to all inputs processed by this analyzer
+     */
+    public boolean isCollectingStatistics() {
+        return collectingStatistics;
+    }
+
+    public void setCollectingStatistics(boolean collectingStatistics) {
+        this.collectingStatistics = collectingStatistics;
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         setInitial();
@@ -0,0 +1,218 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps the scored (and possibly reduced) graphs of the best scoring decompositions of a single input, such that
+ * the exact computation, annotation and recalibration of the top candidates do not have to build their graphs again.
+ * <p>
+ * Graphs are keyed by the identity of the {@link ProcessedInput}, the decomposition and the scoring version. The cache
+ * only keeps the graphs of the {@link #getCapacity()} best scoring trees and evicts the graphs of the lowest scoring
+ * trees if the estimated memory of all graphs exceeds its memory limit. Each graph is handed out only once, as the
+ * caller is allowed to modify it (e.g. by reducing it).
+ */
+public class GraphCache {
+
+    /**
+     * maximal number of bytes the graphs of a single cache might use. Defaults to an eighth of the maximal heap size.
+     */
+    public static final String MAX_MEMORY_PROPERTY = "de.unijena.bioinf.sirius.graphCache.maxMemory";
+
+    // rough estimation of the memory used by a fragment and a loss including their annotations
+    private static final int BYTES_PER_VERTEX = 128, BYTES_PER_EDGE = 96;
+
+    private final ProcessedInput input;
+    private final int capacity;
+    private final long maxMemory;
+    private final HashMap<Key, CachedGraph> entries;
+    private final TreeSet<CachedGraph> entriesByScore;
+    private int scoringVersion;
+    private long memoryUsage, numberOfOffers;
+    private int hits, misses, evictions;
+
+    public static long getDefaultMaxMemory() {
+        final String value = PropertyManager.PROPERTIES.getProperty(MAX_MEMORY_PROPERTY);
+        if (value != null && !value.isEmpty()) return Long.parseLong(value.trim());
+        return Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    public GraphCache(ProcessedInput input, int capacity) {
+        this(input, capacity, getDefaultMaxMemory());
+    }
+
+    public GraphCache(ProcessedInput input, int capacity, long maxMemory) {
+        this.input = input;
+        this.capacity = capacity;
+        this.maxMemory = maxMemory;
+        this.entries = new HashMap<>(capacity * 2);
+        this.entriesByScore = new TreeSet<>();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * has to be called whenever the scoring of the input changes (e.g. the tree size bonus is increased). All cached
+     * graphs become invalid.
+     */
+    public synchronized void newScoringVersion() {
+        ++scoringVersion;
+        entries.clear();
+        entriesByScore.clear();
+        memoryUsage = 0;
+    }
+
+    /**
+     * @return the lowest tree score a graph needs to be added into the full cache
+     */
+    public synchronized double getScoreLowerbound() {
+        return entriesByScore.size() < capacity ? Double.NEGATIVE_INFINITY : entriesByScore.first().score;
+    }
+
+    /**
+     * adds the graph of the given decomposition, if its tree is one of the best scoring trees
+     *
+     * @param score   score of the tree computed from this graph
+     * @param reduced true if the graph is already reduced
+     * @return true if the graph was added
+     */
+    public synchronized boolean offer(ProcessedInput input, Decomposition decomposition, FGraph graph, double score, boolean reduced) {
+        if (input != this.input || score <= getScoreLowerbound()) return false;
+        final CachedGraph entry = new CachedGraph(new Key(decomposition, scoringVersion), graph, reduced, score, numberOfOffers++);
+        if (entry.memory > maxMemory) return false;
+        final CachedGraph old = entries.put(entry.key, entry);
+        if (old != null) remove(old);
+        entriesByScore.add(entry);
+        memoryUsage += entry.memory;
+        while (entriesByScore.size() > capacity || memoryUsage > maxMemory) {
+            final CachedGraph lowest = entriesByScore.first();
+            entries.remove(lowest.key);
+            remove(lowest);
+            ++evictions;
+            if (lowest == entry) return false;
+        }
+        return true;
+    }
+
+    /**
+     * removes the graph of the given decomposition from the cache
+     *
+     * @return the cached graph or null, if the graph is not cached
+     */
+    public synchronized CachedGraph take(ProcessedInput input, Decomposition decomposition) {
+        if (input == this.input) {
+            final CachedGraph entry = entries.remove(new Key(decomposition, scoringVersion));
+            if (entry != null) {
+                remove(entry);
+                ++hits;
+                return entry;
+            }
+        }
+        ++misses;
+        return null;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized int getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GraphCache(" + entries.size() + " graphs, " + (memoryUsage / 1024) + " kb, " + hits + " hits, " + misses + " misses, " + evictions + " evictions)";
+    }
+
+    private void remove(CachedGraph entry) {
+        entriesByScore.remove(entry);
+        memoryUsage -= entry.memory;
+    }
+
+    static long estimateMemory(FGraph graph) {
+        return (long) graph.numberOfVertices() * BYTES_PER_VERTEX + (long) graph.numberOfEdges() * BYTES_PER_EDGE;
+    }
+
+    private static final class Key {
+        private final MolecularFormula formula;
+        private final Ionization ionization;
+        private final int scoringVersion;
+
+        private Key(Decomposition decomposition, int scoringVersion) {
+            this.formula = decomposition.getCandidate();
+            this.ionization = decomposition.getIon();
+            this.scoringVersion = scoringVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return scoringVersion == key.scoringVersion && formula.equals(key.formula) && (ionization == null ? key.ionization == null : ionization.equals(key.ionization));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = formula.hashCode();
+            result = 31 * result + (ionization != null ? ionization.hashCode() : 0);
+            return 31 * result + scoringVersion;
+        }
+    }
+
+    public static final class CachedGraph implements Comparable<CachedGraph> {
+        private final Key key;
+        private final FGraph graph;
+        private final boolean reduced;
+        private final double score;
+        private final long memory;
+        // tie breaker for entries with same score
+        private final long id;
+
+        private CachedGraph(Key key, FGraph graph, boolean reduced, double score, long id) {
+            this.key = key;
+            this.graph = graph;
+            this.reduced = reduced;
+            this.score = score;
+            this.memory = estimateMemory(graph);
+            this.id = id;
+        }
+
+        public FGraph getGraph() {
+            return graph;
+        }
+
+        public boolean isReduced() {
+            return reduced;
+        }
+
+        @Override
+        public int compareTo(CachedGraph o) {
+            final int c = Double.compare(score, o.score);
+            return c != 0 ? c : Long.compare(id, o.id);
+        }
+    }
+
+}
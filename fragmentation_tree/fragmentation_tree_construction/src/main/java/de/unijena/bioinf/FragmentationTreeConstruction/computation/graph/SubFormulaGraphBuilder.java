@@ -20,21 +20,32 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
 import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.chem.TableSelection;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.*;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.*;
 
 /**
  * @author Kai Dührkop
  */
 public class SubFormulaGraphBuilder implements GraphBuilder {
 
+    private final boolean useFragmentIndex;
+
+    public SubFormulaGraphBuilder() {
+        this(true);
+    }
+
+    /**
+     * @param useFragmentIndex if false, each decomposition is compared with all fragments in the graph
+     */
+    SubFormulaGraphBuilder(boolean useFragmentIndex) {
+        this.useFragmentIndex = useFragmentIndex;
+    }
+
     @Override
     public FGraph initializeEmptyGraph(ProcessedInput input) {
         final FGraph graph = new FGraph();
@@ -83,6 +94,20 @@ public class SubFormulaGraphBuilder implements GraphBuilder {
             }
         }
 
+        // every fragment in the graph is a subformula of the union of all roots, so we encode all formulas with
+        // the elements of this union. If this is not possible (e.g. negative amounts), we fall back to comparing
+        // each decomposition with each fragment in the graph
+        final FragmentIndex index = useFragmentIndex ? FragmentIndex.newIndexFor(pmd) : null;
+        if (index != null) {
+            for (Fragment f : graph.getFragmentsWithoutRoot()) {
+                if (!index.add(f, ion.get(f), peakAno.get(f).getIndex())) {
+                    index.clear();
+                    break;
+                }
+            }
+        }
+        final ArrayList<Fragment> parents = new ArrayList<>();
+
         final ArrayList<ProcessedPeak> peaks = new ArrayList<ProcessedPeak>(graph.getAnnotationOrThrow(ProcessedInput.class).getMergedPeaks());
         Collections.sort(peaks, new ProcessedPeak.MassComparator());
         for (int i = peaks.size() - 1; i >= 0; --i) {
@@ -93,28 +118,165 @@ public class SubFormulaGraphBuilder implements GraphBuilder {
                 final MolecularFormula formula = decomposition.getCandidate();
                 final boolean hasEdge = formula.getMass() < pmd.getMass() && pmd.isSubtractable(formula);
                 if (hasEdge) {
-                    Fragment newFragment = null;
-                    for (Fragment f : graph) {
-                        if (f.isRoot() || peakAno.get(f).getIndex() == pi || !ion.get(f).equals(decomposition.getIon())) continue;
-                        final MolecularFormula fragmentFormula = f.getFormula();
-                        assert (peakAno.get(f).getMz() > peak.getMz());
-                        if (fragmentFormula.getMass() > formula.getMass() && fragmentFormula.isSubtractable(formula)) {
-                            if (newFragment == null) {
-                                newFragment = graph.addFragment(decomposition.getCandidate());
-                                ion.set(newFragment, decomposition.getIon());
-                                peakAno.set(newFragment, peak);
-                                newFragment.setColor(peak.getIndex());
-                                scoring.put(decomposition.getCandidate(), decomposition.getScore());
+                    parents.clear();
+                    final long encoded = index == null || index.isEmpty() ? -1 : index.encode(formula);
+                    if (encoded >= 0) {
+                        index.findParents(encoded, decomposition.getIon(), pi, parents);
+                    } else {
+                        for (Fragment f : graph) {
+                            if (f.isRoot() || peakAno.get(f).getIndex() == pi || !ion.get(f).equals(decomposition.getIon())) continue;
+                            final MolecularFormula fragmentFormula = f.getFormula();
+                            assert (peakAno.get(f).getMz() > peak.getMz());
+                            if (fragmentFormula.getMass() > formula.getMass() && fragmentFormula.isSubtractable(formula)) {
+                                parents.add(f);
                             }
-                            graph.addLoss(f, newFragment);
                         }
                     }
+                    if (parents.isEmpty()) continue;
+                    final Fragment newFragment = graph.addFragment(decomposition.getCandidate());
+                    ion.set(newFragment, decomposition.getIon());
+                    peakAno.set(newFragment, peak);
+                    newFragment.setColor(peak.getIndex());
+                    scoring.put(decomposition.getCandidate(), decomposition.getScore());
+                    for (Fragment f : parents) graph.addLoss(f, newFragment);
+                    if (index != null && !index.isEmpty() && (encoded < 0 || !index.add(newFragment, encoded, decomposition.getIon(), pi))) {
+                        // fragment cannot be indexed, so the index is incomplete from now on
+                        index.clear();
+                    }
                 }
             }
         }
         return graph;
     }
 
+    /**
+     * Indexes the fragments of a graph by ionization and packed molecular formula. Each element gets its own bit field
+     * with an additional guard bit above it, such that checking if one formula is a subformula of another is a single
+     * subtraction: the guard bits of (a | guards) - b are all set iff no element amount in b exceeds the one in a.
+     * Fragments are stored in primitive arrays in the order of their vertex ids, such that the edges are inserted in
+     * the same order as when iterating over the graph.
+     */
+    protected static final class FragmentIndex {
+        private final TableSelection selection;
+        private final int[] shifts, limits;
+        private final long guards;
+        private final HashMap<Ionization, Bucket> buckets;
+        private int size;
+
+        private FragmentIndex(TableSelection selection, int[] shifts, int[] limits, long guards) {
+            this.selection = selection;
+            this.shifts = shifts;
+            this.limits = limits;
+            this.guards = guards;
+            this.buckets = new HashMap<>();
+        }
+
+        /**
+         * @return an index for subformulas of the given formula or null, if these formulas cannot be encoded in 64 bit
+         */
+        static FragmentIndex newIndexFor(MolecularFormula formula) {
+            final TableSelection selection = formula.getTableSelection();
+            final short[] amounts = formula.copyToBuffer();
+            final int[] shifts = new int[amounts.length], limits = new int[amounts.length];
+            long guards = 0L;
+            int bits = 0;
+            for (int i = 0; i < amounts.length; ++i) {
+                if (amounts[i] < 0) return null;
+                final int width = 32 - Integer.numberOfLeadingZeros(amounts[i]);
+                shifts[i] = bits;
+                limits[i] = (1 << width) - 1;
+                bits += width;
+                if (bits >= 64) return null;
+                guards |= 1L << bits;
+                ++bits;
+            }
+            return new FragmentIndex(selection, shifts, limits, guards);
+        }
+
+        /**
+         * @return packed formula or -1 if the formula cannot be encoded
+         */
+        long encode(MolecularFormula formula) {
+            if (formula.getTableSelection() != selection) return -1;
+            final short[] amounts = formula.copyToBuffer();
+            if (amounts.length > shifts.length) {
+                for (int i = shifts.length; i < amounts.length; ++i)
+                    if (amounts[i] != 0) return -1;
+            }
+            long encoded = 0L;
+            final int n = Math.min(amounts.length, shifts.length);
+            for (int i = 0; i < n; ++i) {
+                final int amount = amounts[i];
+                if (amount < 0 || amount > limits[i]) return -1;
+                encoded |= (long) amount << shifts[i];
+            }
+            return encoded;
+        }
+
+        boolean add(Fragment fragment, Ionization ion, int peakIndex) {
+            final long encoded = encode(fragment.getFormula());
+            return encoded >= 0 && add(fragment, encoded, ion, peakIndex);
+        }
+
+        boolean add(Fragment fragment, long encoded, Ionization ion, int peakIndex) {
+            Bucket bucket = buckets.get(ion);
+            if (bucket == null) {
+                bucket = new Bucket();
+                buckets.put(ion, bucket);
+            }
+            bucket.add(fragment, encoded, peakIndex);
+            ++size;
+            return true;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            buckets.clear();
+            size = 0;
+        }
+
+        /**
+         * adds all fragments with the given ionization from other peaks which are proper superformulas of the given
+         * formula
+         */
+        void findParents(long formula, Ionization ion, int peakIndex, List<Fragment> parents) {
+            final Bucket bucket = buckets.get(ion);
+            if (bucket == null) return;
+            final long[] formulas = bucket.formulas;
+            final int[] peakIndizes = bucket.peakIndizes;
+            final long guards = this.guards;
+            for (int k = 0, n = bucket.size; k < n; ++k) {
+                final long f = formulas[k];
+                if ((((f | guards) - formula) & guards) == guards && f != formula && peakIndizes[k] != peakIndex) {
+                    parents.add(bucket.fragments[k]);
+                }
+            }
+        }
+
+        private static final class Bucket {
+            private long[] formulas = new long[32];
+            private int[] peakIndizes = new int[32];
+            private Fragment[] fragments = new Fragment[32];
+            private int size;
+
+            private void add(Fragment fragment, long formula, int peakIndex) {
+                if (size >= formulas.length) {
+                    final int capacity = formulas.length * 2;
+                    formulas = Arrays.copyOf(formulas, capacity);
+                    peakIndizes = Arrays.copyOf(peakIndizes, capacity);
+                    fragments = Arrays.copyOf(fragments, capacity);
+                }
+                formulas[size] = formula;
+                peakIndizes[size] = peakIndex;
+                fragments[size] = fragment;
+                ++size;
+            }
+        }
+    }
+
     /*
 
     @Override
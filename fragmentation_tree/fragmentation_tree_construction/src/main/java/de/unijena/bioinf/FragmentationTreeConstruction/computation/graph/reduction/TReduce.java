@@ -1074,6 +1074,14 @@ public class TReduce {
         return gUB;
     }
 
+    /**
+     * @return upper bound for the score of the best colorful subtree rooted at each vertex (indexed by vertex id),
+     * or null if no vertex upper bounds were computed yet
+     */
+    public double[] getVertexUpperBounds() {
+        return gUB;
+    }
+
     protected void setUB(double[] gUB) {
         this.gUB = gUB;
     }
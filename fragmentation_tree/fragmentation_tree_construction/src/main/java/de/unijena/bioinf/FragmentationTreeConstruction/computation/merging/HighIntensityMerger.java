@@ -24,6 +24,7 @@ import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
 import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.PeaklistSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.PeakTable;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
 
 import java.util.ArrayList;
@@ -85,6 +86,101 @@ public class HighIntensityMerger implements PeakMerger {
         }
     }
 
+    /**
+     * Same algorithm as {@link #mergePeaks(List, Ms2Experiment, Deviation, Merger)}, but works on the rows of the peak
+     * table, such that only the merged peaks are materialized.
+     */
+    @Override
+    public void mergePeaks(PeakTable peaks, Ms2Experiment experiment, Deviation mergeWindow, Merger merger) {
+        mergeWindow = new Deviation(mergeWindow.getPpm(), Math.max(mergeWindow.getAbsolute(), minMergeDistance));
+        final int[] mzArray = peaks.rowsOrderedByMass();
+        int n = mzArray.length;
+        // first: Merge parent peak!!!!
+        int parentIndex = mergeParentPeak(experiment, mergeWindow, merger, peaks, mzArray);
+        // after this you can merge the other peaks. Ignore all peaks near the parent peak
+        final double parentMass = experiment.getIonMass();
+        for (; parentIndex > 0 && peaks.getMz(mzArray[parentIndex-1])+0.1d >= parentMass; --parentIndex);
+        n = parentIndex;
+        final int[] parray = Arrays.copyOf(mzArray, parentIndex);
+        peaks.sortByDescendingRelativeIntensity(parray, 0, parray.length);
+        for (int i=0; i < parray.length; ++i) {
+            final double mz = peaks.getMz(parray[i]);
+            final int index = binarySearch(peaks, mzArray, n, mz);
+            if (index < 0) continue;
+            final double error = mergeWindow.absoluteFor(mz);
+            final double min = mz - error;
+            final double max = mz + error;
+            int minIndex = index;
+            while (minIndex >= 0 && peaks.getMz(mzArray[minIndex]) >= min) --minIndex;
+            ++minIndex;
+            int maxIndex = index;
+            while (maxIndex < n && peaks.getMz(mzArray[maxIndex]) <= max) ++maxIndex;
+            merger.merge(peaks, mzArray, minIndex, maxIndex, index-minIndex, mz);
+            System.arraycopy(mzArray, maxIndex, mzArray, minIndex, n-maxIndex);
+            n -= (maxIndex - minIndex);
+        }
+    }
+
+    private static int binarySearch(PeakTable peaks, int[] mzArray, int n, double mz) {
+        int low = 0, high = n - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int c = Double.compare(peaks.getMz(mzArray[mid]), mz);
+            if (c < 0) low = mid + 1;
+            else if (c > 0) high = mid - 1;
+            else return mid;
+        }
+        return -(low + 1);
+    }
+
+    protected int mergeParentPeak(Ms2Experiment experiment, Deviation mergeWindow, Merger merger, PeakTable peaks, int[] mzArray) {
+        final double parentMass = experiment.getIonMass();
+        // the peak nearest to the parent mass
+        int properParentPeak = -1;
+        double minDiff = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < mzArray.length; ++i) {
+            final double diff = Math.abs(peaks.getMz(mzArray[i]) - parentMass);
+            if (diff < minDiff) {
+                minDiff = diff;
+                properParentPeak = i;
+            }
+        }
+        if (properParentPeak < 0 || !mergeWindow.inErrorWindow(parentMass, peaks.getMz(mzArray[properParentPeak]))) {
+            // there is no parent peak in spectrum
+            // therefore it is save to merge all peaks
+            return mzArray.length;
+        }
+        int lowerBound = properParentPeak;
+        int upperBound = properParentPeak;
+        double hightestIntensity = peaks.getIntensity(mzArray[properParentPeak]);
+        int intensiveIndex = properParentPeak;
+        int secondIntensiveIndex = properParentPeak;
+        // merge now all peaks in its neighbourhood
+        for (int j = properParentPeak-1; j >= 0 && mergeWindow.inErrorWindow(parentMass, peaks.getMz(mzArray[j])); --j ) {
+            lowerBound=j;
+            if (hightestIntensity < peaks.getIntensity(mzArray[j])) {
+                secondIntensiveIndex = intensiveIndex;
+                hightestIntensity = peaks.getIntensity(mzArray[j]);
+                intensiveIndex = j;
+            }
+        }
+        for (int j = properParentPeak+1; j < mzArray.length && mergeWindow.inErrorWindow(parentMass, peaks.getMz(mzArray[j])); ++j ) {
+            upperBound=j;
+            if (hightestIntensity < peaks.getIntensity(mzArray[j])) {
+                hightestIntensity = peaks.getIntensity(mzArray[j]);
+                secondIntensiveIndex = intensiveIndex;
+                intensiveIndex = j;
+            }
+        }
+        final int mainIndex;
+        if (peaks.getIntensity(mzArray[secondIntensiveIndex]) < 0.1 ) mainIndex = intensiveIndex;
+        else if (Math.abs(peaks.getMz(mzArray[secondIntensiveIndex]) - parentMass) < Math.abs(peaks.getMz(mzArray[intensiveIndex]) - parentMass))
+            mainIndex = secondIntensiveIndex;
+        else mainIndex = intensiveIndex;
+        merger.merge(peaks, mzArray, lowerBound, upperBound+1, mainIndex-lowerBound, peaks.getMz(mzArray[mainIndex]));
+        return lowerBound;
+    }
+
     protected int mergeParentPeak(Ms2Experiment experiment, Deviation mergeWindow, Merger merger, ProcessedPeak[] mzArray, Spectrum<ProcessedPeak> massOrderedSpectrum) {
         final double parentMass = experiment.getIonMass();
         final int properParentPeak = Spectrums.search(massOrderedSpectrum, parentMass, mergeWindow);
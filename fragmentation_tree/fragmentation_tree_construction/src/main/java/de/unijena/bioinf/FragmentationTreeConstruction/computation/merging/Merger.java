@@ -17,6 +17,7 @@
  */
 package de.unijena.bioinf.FragmentationTreeConstruction.computation.merging;
 
+import de.unijena.bioinf.FragmentationTreeConstruction.model.PeakTable;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
 
 import java.util.List;
@@ -35,4 +36,15 @@ public interface Merger {
      */
     ProcessedPeak merge(List<ProcessedPeak> peaks, int index, double newMz);
 
+    /**
+     * Merge the peaks rows[from] to rows[to-1] of the given table to a single peak. The default implementation
+     * materializes the peaks and calls {@link #merge(List, int, double)}.
+     * @param rows row indizes of the table. Must not be modified or kept after the method call
+     * @param index the index of the main peak relative to from
+     * @return the merged peak
+     */
+    default ProcessedPeak merge(PeakTable table, int[] rows, int from, int to, int index, double newMz) {
+        return merge(table.toProcessedPeaks(rows, from, to), index, newMz);
+    }
+
 }
@@ -20,6 +20,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.merging;
 import de.unijena.bioinf.ChemistryBase.algorithm.Parameterized;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.PeakTable;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
 
 import java.util.List;
@@ -36,4 +37,12 @@ public interface PeakMerger extends Parameterized {
 
     void mergePeaks(List<ProcessedPeak> peaks, Ms2Experiment experiment, Deviation mergeWindow, Merger merger);
 
+    /**
+     * Merges the peaks of the given table. The default implementation materializes all peaks and calls
+     * {@link #mergePeaks(List, Ms2Experiment, Deviation, Merger)}.
+     */
+    default void mergePeaks(PeakTable peaks, Ms2Experiment experiment, Deviation mergeWindow, Merger merger) {
+        mergePeaks(peaks.toProcessedPeaks(), experiment, mergeWindow, merger);
+    }
+
 }
@@ -26,7 +26,7 @@ import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 
-public class ChemicalPriorEdgeScorer implements LossScorer {
+public class ChemicalPriorEdgeScorer implements LocalLossScorer<Object> {
 
     private MolecularFormulaScorer prior;
     private double normalization;
@@ -24,7 +24,7 @@ import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 
 @Called("Loss RDBE")
-public class DBELossScorer implements LossScorer {
+public class DBELossScorer implements LocalLossScorer<Object> {
 
     private double score;
 
@@ -18,7 +18,7 @@ import java.util.*;
  * To change this template use File | Settings | File Templates.
  */
 @Called("EI Common Losses")
-public class EICommonLossEdgeScorer implements LossScorer {
+public class EICommonLossEdgeScorer implements LocalLossScorer<Object> {
     public final static List<String> neutralLossList;
 
     static {
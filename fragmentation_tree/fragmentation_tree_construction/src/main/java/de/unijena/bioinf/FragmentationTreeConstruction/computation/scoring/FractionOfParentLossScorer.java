@@ -31,7 +31,7 @@ import java.util.List;
  * Different to RelativeLossSizeScorer because it don't punishes if loss sizes don't grow with parent mass (?)
  */
 @Called("FractionOfParent")
-public class FractionOfParentLossScorer implements LossScorer {
+public class FractionOfParentLossScorer implements LocalLossScorer<Double> {
     //todo implement as PeakPairScorer?...
     @Override
     public Double prepare(ProcessedInput inputh) {
@@ -50,8 +50,8 @@ public class FractionOfParentLossScorer implements LossScorer {
 
 
     @Override
-    public double score(Loss loss, ProcessedInput input, Object precomputed) {
-        double comparableMass = (Double) precomputed;
+    public double score(Loss loss, ProcessedInput input, Double precomputed) {
+        double comparableMass = precomputed;
         // Score with fraction of the parentmass or largest mass in spectrum.
         return Math.log(1 - (loss.getFormula().getMass() / comparableMass));
     }
@@ -0,0 +1,256 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.chem.utils.MolecularFormulaPacker;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoizes the summed scores of all {@link LocalLossScorer}s for a single input. The graphs of different candidates of the
+ * same spectrum share most of their edges, so each distinct edge (source formula, target formula, source peak, target
+ * peak) is scored only once per input. The memo keeps no reference to its input, such that it can be stored in a weak
+ * map keyed by the input.
+ * <p>
+ * Edges are keyed by packed formulas and peak indizes in primitive open addressing hash tables. Peaks are identified
+ * by their index in the processed input, as the vertex colors are renumbered when a graph is sorted topologically.
+ * The memo is shared between concurrently running graph scorings. It is split into segments by the hash of the key,
+ * each guarded by its own monitor, such that concurrent scorings rarely wait for each other.
+ * <p>
+ * Graphs should be scored via {@link #lookup(FGraph, ProcessedInput)}, which encodes each vertex formula only once
+ * instead of once per edge.
+ */
+public class LossScoreMemo {
+
+    private final static int SEGMENT_BITS = 6;
+    private final static int MAX_SEGMENT_CAPACITY = (1 << 24) >>> SEGMENT_BITS;
+    private final static long NOT_ENCODED = -2L;
+
+    private final List<LossScorer<?>> scorers;
+    private final MolecularFormulaPacker packer;
+    private final Segment[] segments;
+    private final LongAdder hits, misses;
+
+    public LossScoreMemo(ProcessedInput input, List<LossScorer<?>> scorers) {
+        this.scorers = new ArrayList<LossScorer<?>>(scorers);
+        this.packer = MolecularFormulaPacker.newPacker(input.getMeasurementProfile().getFormulaConstraints().getChemicalAlphabet());
+        this.segments = new Segment[1 << SEGMENT_BITS];
+        for (int i = 0; i < segments.length; ++i) segments[i] = new Segment();
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+    }
+
+    /**
+     * @return true if this memo was created for the given (local) loss scorers
+     */
+    public boolean isValidFor(List<LossScorer<?>> scorers) {
+        return this.scorers.equals(scorers);
+    }
+
+    /**
+     * @return the local loss scorers of this memo, prepared for the given input
+     */
+    public PreparedLossScorer<?>[] prepare(ProcessedInput input) {
+        final PreparedLossScorer<?>[] prepared = new PreparedLossScorer<?>[scorers.size()];
+        for (int i = 0; i < prepared.length; ++i) prepared[i] = PreparedLossScorer.prepare(scorers.get(i), input);
+        return prepared;
+    }
+
+    /**
+     * @param graph a graph of the input this memo was created for
+     * @return a lookup for scoring the losses of the given graph. It must not be used by several threads at once.
+     */
+    public GraphLookup lookup(FGraph graph, ProcessedInput input) {
+        return new GraphLookup(graph, input);
+    }
+
+    /**
+     * @param sourcePeak index of the processed peak of the source fragment
+     * @param targetPeak index of the processed peak of the target fragment
+     * @param input the input this memo was created for
+     * @param prepared the scorers of this memo, prepared for the input by {@link #prepare(ProcessedInput)}
+     * @return the sum of the scores of all local loss scorers for the given loss
+     */
+    public double score(Loss loss, int sourcePeak, int targetPeak, ProcessedInput input, PreparedLossScorer<?>[] prepared) {
+        return score(loss, packer.tryEncode(loss.getSource().getFormula()), packer.tryEncode(loss.getTarget().getFormula()), sourcePeak, targetPeak, input, prepared);
+    }
+
+    private double score(Loss loss, long source, long target, int sourcePeak, int targetPeak, ProcessedInput input, PreparedLossScorer<?>[] prepared) {
+        if (source < 0 || target < 0) {
+            misses.increment();
+            return computeScore(loss, input, prepared);
+        }
+        final long peaks = ((long) (sourcePeak + 1) << 32) | ((targetPeak + 1) & 0xffffffffL);
+        final int hash = hash(source, target, peaks);
+        final Segment segment = segments[hash >>> (32 - SEGMENT_BITS)];
+        final double memoized = segment.get(source, target, peaks, hash);
+        // NaN scores are never memoized
+        if (!Double.isNaN(memoized)) {
+            hits.increment();
+            return memoized;
+        }
+        misses.increment();
+        final double score = computeScore(loss, input, prepared);
+        if (!Double.isNaN(score)) segment.put(source, target, peaks, hash, score);
+        return score;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate() {
+        final long h = hits.sum(), total = h + misses.sum();
+        return total == 0 ? 0d : ((double) h) / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "LossScoreMemo(" + size() + " losses, " + getHits() + " hits, " + getMisses() + " misses, hit rate " + String.format("%.2f", getHitRate()) + ")";
+    }
+
+    private static double computeScore(Loss loss, ProcessedInput input, PreparedLossScorer<?>[] prepared) {
+        double score = 0d;
+        for (PreparedLossScorer<?> scorer : prepared)
+            score += scorer.score(loss, input);
+        return score;
+    }
+
+    private static int hash(long source, long target, long peaks) {
+        long h = source * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 29) ^ target) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 31) ^ peaks) * 0x94D049BB133111EBL;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * scores the losses of a single graph. The packed formula of each vertex is computed on first use and kept for all
+     * further edges of this vertex.
+     */
+    public final class GraphLookup {
+        private final ProcessedInput input;
+        private final PreparedLossScorer<?>[] prepared;
+        private final long[] formulas;
+
+        private GraphLookup(FGraph graph, ProcessedInput input) {
+            this.input = input;
+            this.prepared = prepare(input);
+            this.formulas = new long[graph.numberOfVertices()];
+            Arrays.fill(formulas, NOT_ENCODED);
+        }
+
+        /**
+         * @param sourcePeak index of the processed peak of the source fragment
+         * @param targetPeak index of the processed peak of the target fragment
+         * @return the sum of the scores of all local loss scorers for the given loss
+         */
+        public double score(Loss loss, int sourcePeak, int targetPeak) {
+            return LossScoreMemo.this.score(loss, encode(loss.getSource()), encode(loss.getTarget()), sourcePeak, targetPeak, input, prepared);
+        }
+
+        private long encode(Fragment fragment) {
+            final int id = fragment.getVertexId();
+            if (id >= formulas.length) return packer.tryEncode(fragment.getFormula());
+            if (formulas[id] == NOT_ENCODED) formulas[id] = packer.tryEncode(fragment.getFormula());
+            return formulas[id];
+        }
+    }
+
+    /**
+     * open addressing hash table with linear probing over a part of the key space. Three longs per slot: source
+     * formula, target formula and peak indizes (both incremented by one, so 0 is empty)
+     */
+    private static final class Segment {
+        private long[] keys = new long[3 * 64];
+        private double[] values = new double[64];
+        private int size, mask = 63;
+
+        /**
+         * @return the memoized score or NaN if the key is not contained
+         */
+        private synchronized double get(long source, long target, long peaks, int hash) {
+            final int slot = find(source, target, peaks, hash);
+            return keys[3 * slot + 2] == 0 ? Double.NaN : values[slot];
+        }
+
+        private synchronized void put(long source, long target, long peaks, int hash, double score) {
+            if (2 * (size + 1) > values.length) {
+                if (values.length >= MAX_SEGMENT_CAPACITY) return;
+                rehash();
+            }
+            final int slot = find(source, target, peaks, hash);
+            if (keys[3 * slot + 2] == 0) {
+                keys[3 * slot] = source;
+                keys[3 * slot + 1] = target;
+                keys[3 * slot + 2] = peaks;
+                values[slot] = score;
+                ++size;
+            }
+        }
+
+        private synchronized int size() {
+            return size;
+        }
+
+        // returns the slot containing the key or the empty slot where it has to be inserted
+        private int find(long source, long target, long peaks, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                final int k = 3 * slot;
+                if (keys[k + 2] == 0 || (keys[k] == source && keys[k + 1] == target && keys[k + 2] == peaks)) return slot;
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void rehash() {
+            final long[] oldKeys = keys;
+            final double[] oldValues = values;
+            final int capacity = oldValues.length * 2;
+            keys = new long[3 * capacity];
+            values = new double[capacity];
+            mask = capacity - 1;
+            for (int slot = 0; slot < oldValues.length; ++slot) {
+                final int k = 3 * slot;
+                if (oldKeys[k + 2] == 0) continue;
+                final int newSlot = find(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2], hash(oldKeys[k], oldKeys[k + 1], oldKeys[k + 2]));
+                keys[3 * newSlot] = oldKeys[k];
+                keys[3 * newSlot + 1] = oldKeys[k + 1];
+                keys[3 * newSlot + 2] = oldKeys[k + 2];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+}
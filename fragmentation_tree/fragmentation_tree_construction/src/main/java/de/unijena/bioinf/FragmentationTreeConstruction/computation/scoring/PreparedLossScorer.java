@@ -0,0 +1,49 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+
+/**
+ * A loss scorer together with its precomputed data for a single input. Keeps the type of the precomputed data, such
+ * that scorers of different types can be stored in the same collection.
+ */
+public final class PreparedLossScorer<T> {
+
+    private final LossScorer<T> scorer;
+    private final T precomputed;
+
+    private PreparedLossScorer(LossScorer<T> scorer, T precomputed) {
+        this.scorer = scorer;
+        this.precomputed = precomputed;
+    }
+
+    public static <T> PreparedLossScorer<T> prepare(LossScorer<T> scorer, ProcessedInput input) {
+        return new PreparedLossScorer<T>(scorer, scorer.prepare(input));
+    }
+
+    public LossScorer<T> getScorer() {
+        return scorer;
+    }
+
+    public double score(Loss loss, ProcessedInput input) {
+        return scorer.score(loss, input, precomputed);
+    }
+
+}
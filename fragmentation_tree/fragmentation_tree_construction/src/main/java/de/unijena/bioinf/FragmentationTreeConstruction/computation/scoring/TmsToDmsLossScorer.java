@@ -31,7 +31,7 @@ import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
  * a single CH3. Because the CH3 group of TMS is not directly connected to other groups but the DMS part.
  */
 @Called("TmsToDmsLossScorer")
-public class TmsToDmsLossScorer implements LossScorer {
+public class TmsToDmsLossScorer implements LocalLossScorer<Object> {
     @Override
     public Object prepare(ProcessedInput inputh) {
         return null;  //To change body of implemented methods use File | Settings | File Templates.
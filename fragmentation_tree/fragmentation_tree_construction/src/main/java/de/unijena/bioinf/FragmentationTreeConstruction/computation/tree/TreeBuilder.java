@@ -2,6 +2,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
 
 import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
 import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.PipelineStatistics;
 import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
 
 public interface TreeBuilder {
@@ -64,7 +65,13 @@ public interface TreeBuilder {
         }
 
         public Result solve(ProcessedInput input, FGraph graph) {
-            return treeBuilder.computeTree(input,graph,this);
+            final PipelineStatistics statistics = graph.getAnnotation(PipelineStatistics.class, null);
+            if (statistics == null) return treeBuilder.computeTree(input,graph,this);
+            final long start = System.nanoTime();
+            final Result result = treeBuilder.computeTree(input,graph,this);
+            statistics.addTime(PipelineStatistics.Stage.TREE_COMPUTATION, start);
+            if (result.tree != null) result.tree.setAnnotation(PipelineStatistics.class, statistics);
+            return result;
         }
     }
 
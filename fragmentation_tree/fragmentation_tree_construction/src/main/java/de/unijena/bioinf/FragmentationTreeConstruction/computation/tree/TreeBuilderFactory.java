@@ -8,6 +8,7 @@ package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree;
 import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.BranchAndBoundSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.GLPKSolver;
 import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.IlpFactory;
 import org.slf4j.LoggerFactory;
@@ -37,7 +38,11 @@ public final class TreeBuilderFactory {
 
     private static TreeBuilderFactory INSTANCE = null;
 
-    public enum DefaultBuilder {GUROBI, CPLEX, GLPK}
+    public enum DefaultBuilder {GUROBI, CPLEX, GLPK, BRANCH_AND_BOUND}
+
+    // the branch and bound solver has no LP relaxation and might need exponential time on large graphs. It is only
+    // used when it is selected explicitly
+    private static final DefaultBuilder[] DEFAULT_PRIORITIES = {DefaultBuilder.GUROBI, DefaultBuilder.CPLEX, DefaultBuilder.GLPK};
 
     private static DefaultBuilder[] builderPriorities = null;
 
@@ -91,7 +96,7 @@ public final class TreeBuilderFactory {
         if (builderPriorities != null) return builderPriorities.clone();
         DefaultBuilder[] b = parseBuilderPriority(PropertyManager.PROPERTIES.getProperty("de.unijena.bioinf.sirius.treebuilder"));
         if (b!=null && b.length>0) return b;
-        return DefaultBuilder.values();
+        return DEFAULT_PRIORITIES.clone();
     }
 
     public <T extends AbstractSolver> IlpFactory<T> getTreeBuilderFromClass(String className) {
@@ -133,6 +138,9 @@ public final class TreeBuilderFactory {
             case CPLEX:
                 factory = getTreeBuilderFromClass("de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.CPLEXSolver");
                 break;
+            case BRANCH_AND_BOUND:
+                factory = getTreeBuilderFromClass(BranchAndBoundSolver.class); // pure java, no native libraries required
+                break;
             default:
                 LoggerFactory.getLogger(this.getClass()).warn("TreeBuilder " + builder.toString() + " is Unknown, supported are: " + Arrays.toString(DefaultBuilder.values()), new IllegalArgumentException("Unknown BuilderType!"));
                 return null;
@@ -0,0 +1,441 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.IsotopicMarker;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.graph.reduction.TReduce;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.CriticalPathInsertionHeuristic;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.CriticalPathInsertionWithIsotopePeaksHeuristic;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Exact solver for the maximum colorful subtree problem which does not depend on any native ILP solver.
+ * <p>
+ * The vertices of the graph are processed in topological order. For each vertex, the search branches over all
+ * incoming edges from already selected vertices and over not selecting the vertex at all. Branches are pruned by
+ * <ul>
+ * <li>the vertex upper bounds of {@link TReduce}: an edge (u,v) is never used if its weight plus the upper bound of v
+ * is not positive</li>
+ * <li>a color bound: each unused color contributes at most the best incoming edge into one of its remaining vertices
+ * whose source might still be part of the tree</li>
+ * </ul>
+ * The incumbent is initialized with the template tree (if given) and with the critical path insertion heuristic.
+ * With more than one CPU, the upper levels of the search tree are explored in parallel using a fork join pool.
+ * <p>
+ * Without an LP relaxation the running time might grow exponentially with the size of the graph. The solver is
+ * therefore not part of the default builder priorities and should be used together with a time limit.
+ */
+public class BranchAndBoundSolver extends AbstractSolver {
+
+    public final static IlpFactory<BranchAndBoundSolver> Factory = new IlpFactory<BranchAndBoundSolver>() {
+        @Override
+        public BranchAndBoundSolver create(ProcessedInput input, FGraph graph, TreeBuilder.FluentInterface options) {
+            return new BranchAndBoundSolver(graph, input, options);
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public String name() {
+            return "Branch and Bound";
+        }
+    };
+
+    private final static double EPSILON = 1e-9;
+    // check time limit every 2^12 search nodes
+    private final static int TIME_CHECK_MASK = (1 << 12) - 1;
+
+    // graph in primitive arrays. Vertices are identified by vertex id, edges by their index in 'losses'
+    protected int numberOfColors;
+    protected int[] colors;
+    protected int[] sources;
+    protected double[] weights;
+    protected int[] inOffsets, inEdges;
+    protected boolean[] usableEdge;
+    // vertices without pseudo root in topological order and the position of each vertex in this order
+    protected int[] order, positions;
+    protected int lastRootPosition;
+    // suffixColorBound[p*numberOfColors + c] is the best usable incoming edge into a vertex of color c at position >= p
+    protected double[] suffixColorBound;
+
+    // search parameters
+    protected double minimalScore = Double.NEGATIVE_INFINITY;
+    protected long deadline = Long.MAX_VALUE;
+    protected int numberOfCPUS = 1;
+
+    // incumbent
+    protected volatile double bestScore = Double.NEGATIVE_INFINITY;
+    protected int[] bestEdges;
+    protected volatile boolean timeout;
+
+    protected BranchAndBoundSolver(FGraph graph, ProcessedInput input, TreeBuilder.FluentInterface options) {
+        super(graph, input, options);
+    }
+
+    @Override
+    protected void setTimeLimitInSeconds(double timeLimitsInSeconds) throws Exception {
+        this.deadline = System.nanoTime() + (long) (timeLimitsInSeconds * 1e9);
+    }
+
+    @Override
+    protected void setNumberOfCpus(int numberOfCPUS) throws Exception {
+        this.numberOfCPUS = numberOfCPUS;
+    }
+
+    @Override
+    protected void initializeModel() throws Exception {
+        final int n = graph.numberOfVertices();
+        final int m = losses.size();
+        this.numberOfColors = graph.maxColor() + 1;
+        this.colors = new int[n];
+        for (int i = 0; i < n; ++i) colors[i] = graph.getFragmentAt(i).getColor();
+        this.sources = new int[m];
+        this.weights = new double[m];
+        this.inOffsets = new int[n + 1];
+        for (int k = 0; k < m; ++k) {
+            final Loss l = losses.get(k);
+            sources[k] = l.getSource().getVertexId();
+            weights[k] = l.getWeight();
+            ++inOffsets[l.getTarget().getVertexId() + 1];
+        }
+        for (int i = 0; i < n; ++i) inOffsets[i + 1] += inOffsets[i];
+        this.inEdges = new int[m];
+        final int[] fill = Arrays.copyOf(inOffsets, n);
+        for (int k = 0; k < m; ++k) inEdges[fill[losses.get(k).getTarget().getVertexId()]++] = k;
+        computeTopologicalOrder();
+    }
+
+    private void computeTopologicalOrder() {
+        final int n = graph.numberOfVertices();
+        final int root = graph.getRoot().getVertexId();
+        final int[] indegree = new int[n];
+        for (int i = 0; i < n; ++i) indegree[i] = inOffsets[i + 1] - inOffsets[i];
+        final int[] queue = new int[n];
+        int head = 0, tail = 0;
+        queue[tail++] = root;
+        while (head < tail) {
+            final Fragment u = graph.getFragmentAt(queue[head++]);
+            for (int j = 0; j < u.getOutDegree(); ++j) {
+                final int v = u.getChildren(j).getVertexId();
+                if (--indegree[v] == 0) queue[tail++] = v;
+            }
+        }
+        // vertices which are not reachable from the pseudo root can never be part of the tree
+        this.order = Arrays.copyOfRange(queue, 1, tail);
+        this.positions = new int[n];
+        Arrays.fill(positions, -1);
+        this.lastRootPosition = -1;
+        for (int p = 0; p < order.length; ++p) {
+            positions[order[p]] = p;
+            for (int e = inOffsets[order[p]]; e < inOffsets[order[p] + 1]; ++e)
+                if (sources[inEdges[e]] == root) lastRootPosition = p;
+        }
+    }
+
+    @Override
+    protected void defineVariables() throws Exception {
+        // remove edges which can never be part of an optimal solution
+        final TReduce reduce = new TReduce(graph);
+        reduce.doTimVertexUpperBounds();
+        final double[] vertexUpperBounds = reduce.getVertexUpperBounds();
+        final int root = graph.getRoot().getVertexId();
+        this.usableEdge = new boolean[losses.size()];
+        for (int k = 0; k < losses.size(); ++k) {
+            final int target = losses.get(k).getTarget().getVertexId();
+            usableEdge[k] = positions[target] >= 0 && (sources[k] == root || weights[k] + vertexUpperBounds[target] > 0);
+        }
+        // static color bounds for each position in the order
+        this.suffixColorBound = new double[(order.length + 1) * numberOfColors];
+        for (int p = order.length - 1; p >= 0; --p) {
+            final int v = order[p];
+            System.arraycopy(suffixColorBound, (p + 1) * numberOfColors, suffixColorBound, p * numberOfColors, numberOfColors);
+            final int i = p * numberOfColors + colors[v];
+            for (int e = inOffsets[v]; e < inOffsets[v + 1]; ++e) {
+                final int k = inEdges[e];
+                if (usableEdge[k]) suffixColorBound[i] = Math.max(suffixColorBound[i], weights[k]);
+            }
+        }
+    }
+
+    @Override
+    protected void setVariableStartValues(int[] usedEdgeIds) throws Exception {
+        // use the start solution as incumbent if it is a valid colorful subtree
+        final int root = graph.getRoot().getVertexId();
+        final boolean[] selected = new boolean[graph.numberOfVertices()];
+        final boolean[] usedColors = new boolean[numberOfColors];
+        // process edges in topological order of their targets, such that sources are always selected before
+        final Integer[] sorted = new Integer[usedEdgeIds.length];
+        for (int i = 0; i < usedEdgeIds.length; ++i) sorted[i] = usedEdgeIds[i];
+        Arrays.sort(sorted, (a, b) -> Integer.compare(positions[losses.get(a).getTarget().getVertexId()], positions[losses.get(b).getTarget().getVertexId()]));
+        double score = 0d;
+        int numberOfRoots = 0;
+        for (int k : sorted) {
+            final int target = losses.get(k).getTarget().getVertexId();
+            if (positions[target] < 0 || selected[target] || usedColors[colors[target]]) return;
+            if (sources[k] == root) ++numberOfRoots;
+            else if (!selected[sources[k]]) return;
+            selected[target] = true;
+            usedColors[colors[target]] = true;
+            score += weights[k];
+        }
+        if (numberOfRoots == 1) offer(score, usedEdgeIds.clone());
+    }
+
+    @Override
+    protected void setTreeConstraint() throws Exception {
+        // tree, color and size constraints are implicitly satisfied by the search
+    }
+
+    @Override
+    protected void setColorConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setMinimalTreeSizeConstraint() throws Exception {
+    }
+
+    @Override
+    protected void setMinimalScoreConstraints(double minimalScore) throws Exception {
+        this.minimalScore = minimalScore;
+    }
+
+    @Override
+    protected void setObjective() throws Exception {
+    }
+
+    @Override
+    protected TreeBuilder.AbortReason solveMIP() throws Exception {
+        computeHeuristicStartSolution();
+        final Search search = new Search();
+        if (numberOfCPUS > 1) {
+            final ForkJoinPool pool = new ForkJoinPool(numberOfCPUS);
+            try {
+                // explore the upper levels of the search tree in parallel, such that there are enough tasks for
+                // all threads
+                pool.invoke(new SearchTask(search, 0, 2 + 32 - Integer.numberOfLeadingZeros(numberOfCPUS)));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            search.search(0, Integer.MAX_VALUE);
+        }
+        if (timeout) return TreeBuilder.AbortReason.TIMEOUT;
+        if (bestEdges == null || bestScore < minimalScore) return TreeBuilder.AbortReason.NO_SOLUTION;
+        return TreeBuilder.AbortReason.COMPUTATION_CORRECT;
+    }
+
+    private void computeHeuristicStartSolution() throws Exception {
+        // the heuristic is designed for graphs with a single root
+        if (graph.getRoot().getOutDegree() != 1) return;
+        try {
+            final FTree tree;
+            if (graph.getFragmentAnnotationOrNull(IsotopicMarker.class) != null)
+                tree = new CriticalPathInsertionWithIsotopePeaksHeuristic(graph).solve();
+            else tree = new CriticalPathInsertionHeuristic(graph).solve();
+            setVariableStartValues(tree);
+        } catch (RuntimeException e) {
+            LoggerFactory.getLogger(BranchAndBoundSolver.class).warn("Cannot compute heuristic start solution: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void pastBuildSolution() throws Exception {
+    }
+
+    @Override
+    protected boolean[] getVariableAssignment() throws Exception {
+        final boolean[] assignment = new boolean[losses.size()];
+        for (int k : bestEdges) assignment[k] = true;
+        return assignment;
+    }
+
+    @Override
+    protected double getSolverScore() throws Exception {
+        return bestScore;
+    }
+
+    protected synchronized boolean offer(double score, int[] edges) {
+        if (score > bestScore) {
+            bestScore = score;
+            bestEdges = edges;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * state of a (partial) search. Each thread works on its own copy.
+     */
+    protected class Search {
+        // incoming edge of each selected vertex, -1 for unselected vertices
+        private final int[] parentEdge;
+        private final boolean[] usedColors;
+        private final double[] colorBound;
+        private final int[] stack;
+        private int stackSize;
+        private boolean rootChosen;
+        private double score;
+        private int nodes;
+
+        protected Search() {
+            this.parentEdge = new int[graph.numberOfVertices()];
+            Arrays.fill(parentEdge, -1);
+            this.usedColors = new boolean[numberOfColors];
+            this.colorBound = new double[numberOfColors];
+            this.stack = new int[order.length];
+        }
+
+        protected Search(Search s) {
+            this.parentEdge = s.parentEdge.clone();
+            this.usedColors = s.usedColors.clone();
+            this.colorBound = new double[numberOfColors];
+            this.stack = s.stack.clone();
+            this.stackSize = s.stackSize;
+            this.rootChosen = s.rootChosen;
+            this.score = s.score;
+        }
+
+        /**
+         * explores all trees which extend the current tree by vertices at position {@literal >=} p.
+         *
+         * @param splitDepth number of branching levels which are still explored in parallel
+         */
+        protected void search(int p, int splitDepth) {
+            if ((++nodes & TIME_CHECK_MASK) == 0 && System.nanoTime() > deadline) timeout = true;
+            if (timeout) return;
+            if (rootChosen && score > bestScore) offer(score, Arrays.copyOf(stack, stackSize));
+            // skip vertices which cannot be added to the tree
+            int v = -1;
+            final int root = graph.getRoot().getVertexId();
+            for (; p < order.length; ++p) {
+                if (!rootChosen && p > lastRootPosition) return;
+                v = order[p];
+                if (usedColors[colors[v]]) continue;
+                if (hasSelectedParent(v, root)) break;
+            }
+            if (p >= order.length || !isPromising(p, root)) return;
+            // collect incoming edges from selected vertices ordered by weight
+            final int[] candidates = new int[inOffsets[v + 1] - inOffsets[v]];
+            int numberOfCandidates = 0;
+            for (int e = inOffsets[v]; e < inOffsets[v + 1]; ++e) {
+                final int k = inEdges[e];
+                if (usableEdge[k] && isSelected(sources[k], root)) {
+                    int i = numberOfCandidates++;
+                    while (i > 0 && weights[candidates[i - 1]] < weights[k]) {
+                        candidates[i] = candidates[i - 1];
+                        --i;
+                    }
+                    candidates[i] = k;
+                }
+            }
+            if (splitDepth > 0 && numberOfCPUS > 1) {
+                final List<SearchTask> tasks = new ArrayList<>(numberOfCandidates + 1);
+                for (int i = 0; i < numberOfCandidates; ++i) {
+                    final Search child = new Search(this);
+                    child.add(v, candidates[i], root);
+                    tasks.add(new SearchTask(child, p + 1, splitDepth - 1));
+                }
+                tasks.add(new SearchTask(new Search(this), p + 1, splitDepth - 1));
+                ForkJoinTask.invokeAll(tasks);
+                return;
+            }
+            for (int i = 0; i < numberOfCandidates; ++i) {
+                add(v, candidates[i], root);
+                search(p + 1, 0);
+                remove(v, candidates[i], root);
+                if (timeout) return;
+            }
+            search(p + 1, 0);
+        }
+
+        private void add(int v, int edge, int root) {
+            parentEdge[v] = edge;
+            usedColors[colors[v]] = true;
+            stack[stackSize++] = edge;
+            score += weights[edge];
+            if (sources[edge] == root) rootChosen = true;
+        }
+
+        private void remove(int v, int edge, int root) {
+            parentEdge[v] = -1;
+            usedColors[colors[v]] = false;
+            --stackSize;
+            score -= weights[edge];
+            if (sources[edge] == root) rootChosen = false;
+        }
+
+        private boolean isSelected(int u, int root) {
+            return u == root ? !rootChosen : parentEdge[u] >= 0;
+        }
+
+        private boolean hasSelectedParent(int v, int root) {
+            for (int e = inOffsets[v]; e < inOffsets[v + 1]; ++e) {
+                final int k = inEdges[e];
+                if (usableEdge[k] && isSelected(sources[k], root)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return true if the upper bound for all trees in the current branch exceeds the incumbent
+         */
+        private boolean isPromising(int p, int root) {
+            final double threshold = Math.max(bestScore + EPSILON, minimalScore);
+            // static bound over all remaining vertices
+            double bound = score;
+            final int offset = p * numberOfColors;
+            for (int c = 0; c < numberOfColors; ++c)
+                if (!usedColors[c]) bound += suffixColorBound[offset + c];
+            if (bound < threshold) return false;
+            // dynamic bound: only consider edges whose source is selected or might still be selected
+            Arrays.fill(colorBound, 0d);
+            for (int q = p; q < order.length; ++q) {
+                final int v = order[q];
+                final int c = colors[v];
+                if (usedColors[c]) continue;
+                for (int e = inOffsets[v]; e < inOffsets[v + 1]; ++e) {
+                    final int k = inEdges[e];
+                    if (!usableEdge[k] || weights[k] <= colorBound[c]) continue;
+                    final int u = sources[k];
+                    if (isSelected(u, root) || (u != root && positions[u] >= p && !usedColors[colors[u]]))
+                        colorBound[c] = weights[k];
+                }
+            }
+            bound = score;
+            for (int c = 0; c < numberOfColors; ++c) bound += colorBound[c];
+            return bound >= threshold;
+        }
+    }
+
+    protected class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Search search;
+        private final int position, splitDepth;
+
+        protected SearchTask(Search search, int position, int splitDepth) {
+            this.search = search;
+            this.position = position;
+            this.splitDepth = splitDepth;
+        }
+
+        @Override
+        protected void compute() {
+            search.search(position, splitDepth);
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.model;
+
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Spectrum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar storage of the normalized peaks of all MS/MS spectra of an input. Each row is a single peak of a single
+ * spectrum, stored in parallel arrays for mass, intensities and spectrum id. The preprocessing operates on the rows
+ * directly and only materializes {@link ProcessedPeak} objects for the merged peaks, which avoids creating objects
+ * for every raw peak of large spectra.
+ * <p>
+ * The table is stored as annotation of the {@link ProcessedInput} between normalization and peak merging.
+ */
+public class PeakTable {
+
+    private final Ms2Spectrum<?>[] spectra;
+    private int size;
+    private double[] mz, intensity, localRelativeIntensity, globalRelativeIntensity, relativeIntensity;
+    private int[] spectrumIds;
+
+    public PeakTable(List<? extends Ms2Spectrum<?>> spectra, int capacity) {
+        this.spectra = spectra.toArray(new Ms2Spectrum<?>[spectra.size()]);
+        capacity = Math.max(capacity, 4);
+        this.mz = new double[capacity];
+        this.intensity = new double[capacity];
+        this.localRelativeIntensity = new double[capacity];
+        this.globalRelativeIntensity = new double[capacity];
+        this.relativeIntensity = new double[capacity];
+        this.spectrumIds = new int[capacity];
+    }
+
+    /**
+     * adds a peak of the spectrum with the given id (its index in the spectra list)
+     * @return row of the new peak
+     */
+    public int add(int spectrumId, double mz, double intensity) {
+        if (size >= this.mz.length) grow();
+        this.mz[size] = mz;
+        this.intensity[size] = intensity;
+        this.spectrumIds[size] = spectrumId;
+        return size++;
+    }
+
+    private void grow() {
+        final int capacity = mz.length + (mz.length >> 1);
+        mz = Arrays.copyOf(mz, capacity);
+        intensity = Arrays.copyOf(intensity, capacity);
+        localRelativeIntensity = Arrays.copyOf(localRelativeIntensity, capacity);
+        globalRelativeIntensity = Arrays.copyOf(globalRelativeIntensity, capacity);
+        relativeIntensity = Arrays.copyOf(relativeIntensity, capacity);
+        spectrumIds = Arrays.copyOf(spectrumIds, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double getMz(int row) {
+        return mz[row];
+    }
+
+    public double getIntensity(int row) {
+        return intensity[row];
+    }
+
+    public double getLocalRelativeIntensity(int row) {
+        return localRelativeIntensity[row];
+    }
+
+    public void setLocalRelativeIntensity(int row, double value) {
+        localRelativeIntensity[row] = value;
+    }
+
+    public double getGlobalRelativeIntensity(int row) {
+        return globalRelativeIntensity[row];
+    }
+
+    public void setGlobalRelativeIntensity(int row, double value) {
+        globalRelativeIntensity[row] = value;
+    }
+
+    public double getRelativeIntensity(int row) {
+        return relativeIntensity[row];
+    }
+
+    public void setRelativeIntensity(int row, double value) {
+        relativeIntensity[row] = value;
+    }
+
+    public int getSpectrumId(int row) {
+        return spectrumIds[row];
+    }
+
+    public Ms2Spectrum<?> getSpectrum(int row) {
+        return spectra[spectrumIds[row]];
+    }
+
+    public CollisionEnergy getCollisionEnergy(int row) {
+        return getSpectrum(row).getCollisionEnergy();
+    }
+
+    public MS2Peak getOriginalPeak(int row) {
+        return new MS2Peak(getSpectrum(row), mz[row], intensity[row]);
+    }
+
+    /**
+     * @return a new processed peak with the values of the given row
+     */
+    public ProcessedPeak toProcessedPeak(int row) {
+        final ProcessedPeak peak = new ProcessedPeak(getOriginalPeak(row));
+        peak.setLocalRelativeIntensity(localRelativeIntensity[row]);
+        peak.setGlobalRelativeIntensity(globalRelativeIntensity[row]);
+        peak.setRelativeIntensity(relativeIntensity[row]);
+        return peak;
+    }
+
+    /**
+     * @return processed peaks for all rows of the table
+     */
+    public List<ProcessedPeak> toProcessedPeaks() {
+        final ArrayList<ProcessedPeak> peaks = new ArrayList<>(size);
+        for (int row = 0; row < size; ++row) peaks.add(toProcessedPeak(row));
+        return peaks;
+    }
+
+    /**
+     * @return processed peaks for the rows rows[from] to rows[to-1]
+     */
+    public List<ProcessedPeak> toProcessedPeaks(int[] rows, int from, int to) {
+        final ArrayList<ProcessedPeak> peaks = new ArrayList<>(to - from);
+        for (int i = from; i < to; ++i) peaks.add(toProcessedPeak(rows[i]));
+        return peaks;
+    }
+
+    /**
+     * Merges the rows rows[from] to rows[to-1] into a single processed peak with the given mz. Intensity and collision
+     * energy are taken from the main row, local relative intensities are maximized, global and relative intensities
+     * are summed up. Each merged row becomes an original peak of the new peak.
+     */
+    public ProcessedPeak merge(int[] rows, int from, int to, int mainRow, double newMz) {
+        final ProcessedPeak peak = new ProcessedPeak(getOriginalPeak(mainRow));
+        double local = 0d, global = 0d, relative = 0d;
+        final MS2Peak[] originalPeaks = new MS2Peak[to - from];
+        for (int i = from; i < to; ++i) {
+            final int row = rows[i];
+            local = Math.max(local, localRelativeIntensity[row]);
+            global += globalRelativeIntensity[row];
+            relative += relativeIntensity[row];
+            originalPeaks[i - from] = row == mainRow ? peak.getOriginalPeaks().get(0) : getOriginalPeak(row);
+        }
+        peak.setMz(newMz);
+        peak.setLocalRelativeIntensity(local);
+        peak.setGlobalRelativeIntensity(global);
+        peak.setRelativeIntensity(relative);
+        peak.setOriginalPeaks(Arrays.asList(originalPeaks));
+        return peak;
+    }
+
+    /**
+     * @return all rows ordered by ascending mass. Rows with the same mass keep their order.
+     */
+    public int[] rowsOrderedByMass() {
+        final int[] rows = new int[size];
+        for (int i = 0; i < size; ++i) rows[i] = i;
+        sortIndizes(rows, 0, size, mz, false);
+        return rows;
+    }
+
+    /**
+     * sorts the rows rows[from] to rows[to-1] by descending relative intensity. Rows with the same intensity keep their order.
+     */
+    public void sortByDescendingRelativeIntensity(int[] rows, int from, int to) {
+        sortIndizes(rows, from, to, relativeIntensity, true);
+    }
+
+    /**
+     * Stable sort of the indizes[from] to indizes[to-1] by their keys, such that no objects have to be created for
+     * sorting peaks.
+     */
+    public static void sortIndizes(int[] indizes, int from, int to, double[] keys, boolean descending) {
+        if (to - from < 2) return;
+        mergeSort(indizes, new int[(to - from + 1) / 2], from, to, keys, descending);
+    }
+
+    private static void mergeSort(int[] indizes, int[] buffer, int from, int to, double[] keys, boolean descending) {
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; ++i) {
+                final int value = indizes[i];
+                int j = i - 1;
+                for (; j >= from && before(keys[value], keys[indizes[j]], descending); --j) indizes[j + 1] = indizes[j];
+                indizes[j + 1] = value;
+            }
+            return;
+        }
+        final int mid = (from + to) >>> 1;
+        mergeSort(indizes, buffer, from, mid, keys, descending);
+        mergeSort(indizes, buffer, mid, to, keys, descending);
+        if (!before(keys[indizes[mid]], keys[indizes[mid - 1]], descending)) return;
+        final int leftSize = mid - from;
+        System.arraycopy(indizes, from, buffer, 0, leftSize);
+        int i = 0, j = mid, k = from;
+        while (i < leftSize && j < to) {
+            indizes[k++] = before(keys[indizes[j]], keys[buffer[i]], descending) ? indizes[j++] : buffer[i++];
+        }
+        while (i < leftSize) indizes[k++] = buffer[i++];
+    }
+
+    private static boolean before(double a, double b, boolean descending) {
+        final int c = Double.compare(a, b);
+        return descending ? c > 0 : c < 0;
+    }
+}
@@ -0,0 +1,192 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.model;
+
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
+import de.unijena.bioinf.jjobs.JobManager;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runtime and size statistics of the fragmentation tree pipeline. Collecting is disabled by default and can be enabled
+ * with {@link #ENABLED_PROPERTY} or per analyzer. If enabled, the statistics of an input are attached as annotation to
+ * its {@link ProcessedInput}, while the statistics of a single candidate (graph building, scoring, reduction and tree
+ * computation) are attached to its graph and tree. Everything recorded for a candidate is also added to the statistics
+ * of its input. If disabled, each stage only pays for a single annotation lookup.
+ * <p>
+ * All values are accumulated, so the statistics can be shared between concurrently computed candidates and can be
+ * aggregated over all inputs computed by the tree computation jobs of a job manager (see
+ * {@link #forJobManager(JobManager)}). Times of nested stages are counted in both stages, e.g. the decomposition of a
+ * recalibrated input is contained in {@link Stage#RECALIBRATION}.
+ */
+public class PipelineStatistics {
+
+    /**
+     * if set to true, every analyzer collects statistics
+     */
+    public static final String ENABLED_PROPERTY = "de.unijena.bioinf.sirius.statistics";
+
+    public enum Stage {
+        VALIDATION, PREPROCESSING, NORMALIZATION, PEAK_MERGING, PARENT_PEAK_DETECTION, DECOMPOSITION, PEAK_SCORING,
+        GRAPH_BUILDING, GRAPH_SCORING, GRAPH_REDUCTION, TREE_COMPUTATION, RECALIBRATION
+    }
+
+    public enum Counter {
+        /**
+         * number of molecular formula decompositions of precursor and fragment peaks
+         */
+        DECOMPOSITIONS,
+        GRAPHS,
+        VERTICES_BEFORE_REDUCTION, EDGES_BEFORE_REDUCTION, VERTICES_AFTER_REDUCTION, EDGES_AFTER_REDUCTION,
+        LOSS_SCORE_MEMO_HITS, LOSS_SCORE_MEMO_MISSES,
+        GRAPH_CACHE_HITS, GRAPH_CACHE_MISSES
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final Counter[] COUNTERS = Counter.values();
+
+    private static final Map<JobManager, PipelineStatistics> perJobManager = Collections.synchronizedMap(new WeakHashMap<JobManager, PipelineStatistics>());
+
+    public static boolean isEnabledByDefault() {
+        return Boolean.parseBoolean(PropertyManager.PROPERTIES.getProperty(ENABLED_PROPERTY, "false").trim());
+    }
+
+    /**
+     * @return the statistics of all inputs which were computed by tree computation jobs of the given job manager
+     */
+    public static PipelineStatistics forJobManager(JobManager manager) {
+        synchronized (perJobManager) {
+            PipelineStatistics statistics = perJobManager.get(manager);
+            if (statistics == null) {
+                statistics = new PipelineStatistics();
+                perJobManager.put(manager, statistics);
+            }
+            return statistics;
+        }
+    }
+
+    private final PipelineStatistics parent;
+    private final AtomicLongArray nanos, calls, counters;
+
+    public PipelineStatistics() {
+        this(null);
+    }
+
+    private PipelineStatistics(PipelineStatistics parent) {
+        this.parent = parent;
+        this.nanos = new AtomicLongArray(STAGES.length);
+        this.calls = new AtomicLongArray(STAGES.length);
+        this.counters = new AtomicLongArray(COUNTERS.length);
+    }
+
+    /**
+     * @return new statistics for a single candidate. Everything recorded for the candidate is added to this statistics, too.
+     */
+    public PipelineStatistics newCandidateStatistics() {
+        return new PipelineStatistics(this);
+    }
+
+    /**
+     * adds the time since startNanos (as given by {@link System#nanoTime()}) to the given stage
+     */
+    public void addTime(Stage stage, long startNanos) {
+        addTime(stage, System.nanoTime() - startNanos, 1);
+    }
+
+    private void addTime(Stage stage, long time, long numberOfCalls) {
+        for (PipelineStatistics s = this; s != null; s = s.parent) {
+            s.nanos.addAndGet(stage.ordinal(), time);
+            s.calls.addAndGet(stage.ordinal(), numberOfCalls);
+        }
+    }
+
+    public void add(Counter counter, long value) {
+        for (PipelineStatistics s = this; s != null; s = s.parent) {
+            s.counters.addAndGet(counter.ordinal(), value);
+        }
+    }
+
+    /**
+     * adds all values of the given statistics to this one
+     */
+    public void add(PipelineStatistics other) {
+        for (Stage stage : STAGES) addTime(stage, other.getNanos(stage), other.getCalls(stage));
+        for (Counter counter : COUNTERS) add(counter, other.getCount(counter));
+    }
+
+    public long getNanos(Stage stage) {
+        return nanos.get(stage.ordinal());
+    }
+
+    public long getCalls(Stage stage) {
+        return calls.get(stage.ordinal());
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    public double getLossScoreMemoHitRate() {
+        return rate(getCount(Counter.LOSS_SCORE_MEMO_HITS), getCount(Counter.LOSS_SCORE_MEMO_MISSES));
+    }
+
+    public double getGraphCacheHitRate() {
+        return rate(getCount(Counter.GRAPH_CACHE_HITS), getCount(Counter.GRAPH_CACHE_MISSES));
+    }
+
+    private static double rate(long hits, long misses) {
+        return hits + misses == 0 ? 0d : hits / (double) (hits + misses);
+    }
+
+    /**
+     * writes the column names of {@link #writeCsvRow(Writer, String)}
+     */
+    public static void writeCsvHeader(Writer writer) throws IOException {
+        writer.write("name");
+        for (Stage stage : STAGES) {
+            final String name = stage.name().toLowerCase(Locale.US);
+            writer.write("," + name + "_calls," + name + "_nanos");
+        }
+        for (Counter counter : COUNTERS) writer.write("," + counter.name().toLowerCase(Locale.US));
+        writer.write('\n');
+    }
+
+    public void writeCsvRow(Writer writer, String name) throws IOException {
+        writer.write(name.replace(',', '_'));
+        for (Stage stage : STAGES) writer.write("," + getCalls(stage) + "," + getNanos(stage));
+        for (Counter counter : COUNTERS) writer.write("," + getCount(counter));
+        writer.write('\n');
+    }
+
+    public void writeJson(Writer writer) throws IOException {
+        writer.write("{\"stages\":{");
+        for (Stage stage : STAGES) {
+            if (stage.ordinal() > 0) writer.write(',');
+            writer.write("\"" + stage.name().toLowerCase(Locale.US) + "\":{\"calls\":" + getCalls(stage) + ",\"nanos\":" + getNanos(stage) + "}");
+        }
+        writer.write("},\"counters\":{");
+        for (Counter counter : COUNTERS) {
+            if (counter.ordinal() > 0) writer.write(',');
+            writer.write("\"" + counter.name().toLowerCase(Locale.US) + "\":" + getCount(counter));
+        }
+        writer.write(String.format(Locale.US, "},\"lossScoreMemoHitRate\":%.4f,\"graphCacheHitRate\":%.4f}", getLossScoreMemoHitRate(), getGraphCacheHitRate()));
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buffer = new StringBuilder("PipelineStatistics(");
+        for (Stage stage : STAGES) {
+            if (getCalls(stage) == 0) continue;
+            buffer.append(stage.name().toLowerCase(Locale.US)).append(": ").append(getNanos(stage) / 1000000).append(" ms (").append(getCalls(stage)).append("x), ");
+        }
+        for (Counter counter : COUNTERS) {
+            buffer.append(counter.name().toLowerCase(Locale.US)).append(": ").append(getCount(counter)).append(", ");
+        }
+        buffer.setLength(buffer.length() - 2);
+        return buffer.append(')').toString();
+    }
+}
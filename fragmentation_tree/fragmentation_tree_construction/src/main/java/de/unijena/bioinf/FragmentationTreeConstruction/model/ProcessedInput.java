@@ -182,6 +182,10 @@ public class ProcessedInput implements Cloneable {
         return annotations.put(klass, annotation) == annotation;
     }
 
+    public boolean removeAnnotation(Class<?> klass) {
+        return annotations.remove(klass) != null;
+    }
+
     @SuppressWarnings("unchecked cast")
     public <T> PeakAnnotation<T> getOrCreatePeakAnnotation(Class<T> klass) {
         if (peakAnnotations.containsKey(klass)) return peakAnnotations.get(klass);
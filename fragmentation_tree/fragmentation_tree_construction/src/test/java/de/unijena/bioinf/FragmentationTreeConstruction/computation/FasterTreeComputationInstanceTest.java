@@ -0,0 +1,167 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.AbstractTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp.BranchAndBoundSolver;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ForbidRecalibration;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.PipelineStatistics;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import de.unijena.bioinf.jjobs.JobManager;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FasterTreeComputationInstanceTest {
+
+    @Test
+    public void testIncrementalHeuristicResolve() throws IOException {
+        // precursor mass is above 300 Da, so the heuristic is used for estimating the tree size
+        compareWithNonIncrementalResolve(true);
+    }
+
+    @Test
+    public void testIncrementalExactResolve() throws IOException {
+        compareWithNonIncrementalResolve(false);
+    }
+
+    @Test
+    public void testStatisticsReachInputAndTrees() throws Exception {
+        final FragmentationPatternAnalysis analyzer = analyzer();
+        analyzer.setCollectingStatistics(true);
+        // the statistics are aggregated for the job manager which runs the job, not for the global one
+        final JobManager manager = new JobManager(2, 1);
+        final long globalGraphs = PipelineStatistics.forJobManager(SiriusJobs.getGlobalJobManager()).getCount(PipelineStatistics.Counter.GRAPHS);
+        final FasterTreeComputationInstance instance = new FasterTreeComputationInstance(analyzer, experiment(), 5) {
+            @Override
+            public ProcessedInput precompute() {
+                // without recalibration each tree carries the statistics of the candidate graph it was computed from
+                final ProcessedInput input = super.precompute();
+                input.setAnnotation(ForbidRecalibration.class, ForbidRecalibration.FORBIDDEN);
+                return input;
+            }
+        };
+        final List<FTree> trees;
+        try {
+            trees = manager.submitJob(instance).takeResult().getResults();
+        } finally {
+            manager.shutdown();
+        }
+
+        final PipelineStatistics input = instance.pinput.getAnnotation(PipelineStatistics.class, null);
+        assertNotNull(input);
+        for (PipelineStatistics.Stage stage : new PipelineStatistics.Stage[]{PipelineStatistics.Stage.VALIDATION, PipelineStatistics.Stage.PREPROCESSING,
+                PipelineStatistics.Stage.NORMALIZATION, PipelineStatistics.Stage.PEAK_MERGING, PipelineStatistics.Stage.PARENT_PEAK_DETECTION,
+                PipelineStatistics.Stage.DECOMPOSITION, PipelineStatistics.Stage.PEAK_SCORING, PipelineStatistics.Stage.GRAPH_BUILDING,
+                PipelineStatistics.Stage.GRAPH_SCORING, PipelineStatistics.Stage.TREE_COMPUTATION}) {
+            assertTrue(stage.name(), input.getCalls(stage) > 0);
+            assertTrue(stage.name(), input.getNanos(stage) > 0);
+        }
+        assertTrue(input.getCount(PipelineStatistics.Counter.DECOMPOSITIONS) > 0);
+        assertTrue(input.getCount(PipelineStatistics.Counter.GRAPHS) > 0);
+        assertTrue(input.getCount(PipelineStatistics.Counter.VERTICES_BEFORE_REDUCTION) > input.getCount(PipelineStatistics.Counter.GRAPHS));
+        assertTrue(input.getCount(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION) > 0);
+        assertTrue(input.getCount(PipelineStatistics.Counter.LOSS_SCORE_MEMO_HITS) + input.getCount(PipelineStatistics.Counter.LOSS_SCORE_MEMO_MISSES) > 0);
+
+        assertTrue(trees.size() > 0);
+        for (FTree tree : trees) {
+            final PipelineStatistics candidate = tree.getAnnotation(PipelineStatistics.class, null);
+            assertNotNull(tree.getRoot().getFormula().toString(), candidate);
+            assertTrue(candidate != input);
+            assertEquals(1, candidate.getCount(PipelineStatistics.Counter.GRAPHS));
+            assertTrue(candidate.getCalls(PipelineStatistics.Stage.TREE_COMPUTATION) > 0);
+            assertTrue(candidate.getNanos(PipelineStatistics.Stage.TREE_COMPUTATION) > 0);
+            assertTrue(candidate.getCount(PipelineStatistics.Counter.VERTICES_BEFORE_REDUCTION) >= tree.numberOfVertices());
+            assertTrue(candidate.getCount(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION) >= tree.numberOfEdges());
+            assertTrue(candidate.getCount(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION) <= input.getCount(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION));
+        }
+
+        assertEquals(input.getCount(PipelineStatistics.Counter.GRAPHS), PipelineStatistics.forJobManager(manager).getCount(PipelineStatistics.Counter.GRAPHS));
+        assertEquals(input.getCount(PipelineStatistics.Counter.LOSS_SCORE_MEMO_MISSES), PipelineStatistics.forJobManager(manager).getCount(PipelineStatistics.Counter.LOSS_SCORE_MEMO_MISSES));
+        assertEquals(globalGraphs, PipelineStatistics.forJobManager(SiriusJobs.getGlobalJobManager()).getCount(PipelineStatistics.Counter.GRAPHS));
+    }
+
+    private static FragmentationPatternAnalysis analyzer() throws IOException {
+        final FragmentationPatternAnalysis analyzer = FragmentationPatternAnalysis.loadFromProfile(new JSONDocumentType(), JSONDocumentType.getJSON("/profiles/qtof.json", "qtof.json"));
+        analyzer.setTreeBuilder(new AbstractTreeBuilder<>(BranchAndBoundSolver.Factory));
+        return analyzer;
+    }
+
+    private static Ms2Experiment experiment() throws IOException {
+        try (final InputStream stream = FasterTreeComputationInstanceTest.class.getResourceAsStream("/C20H21NO4.ms")) {
+            return new GenericParser<Ms2Experiment>(new JenaMsParser()).parse(stream);
+        }
+    }
+
+    private static void compareWithNonIncrementalResolve(boolean useHeuristic) throws IOException {
+        final FragmentationPatternAnalysis analyzer = analyzer();
+        final Ms2Experiment experiment = experiment();
+        final List<FTree> expected = SiriusJobs.getGlobalJobManager().submitJob(new AllTreeSizesInstance(analyzer, experiment, useHeuristic, false)).takeResult().getResults();
+        final List<FTree> incremental = SiriusJobs.getGlobalJobManager().submitJob(new AllTreeSizesInstance(analyzer, experiment, useHeuristic, true)).takeResult().getResults();
+        assertEquals(expected.size(), incremental.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.get(i).getRoot().getFormula(), incremental.get(i).getRoot().getFormula());
+            assertEquals(expected.get(i).getTreeWeight(), incremental.get(i).getTreeWeight(), 1e-6);
+        }
+    }
+
+    /**
+     * computes the trees for all tree size bonus increments without recalibration. Optionally solves each iteration
+     * from scratch instead of incrementally.
+     */
+    private static class AllTreeSizesInstance extends FasterTreeComputationInstance {
+
+        private final boolean useHeuristic, incremental;
+
+        private AllTreeSizesInstance(FragmentationPatternAnalysis analyzer, Ms2Experiment input, boolean useHeuristic, boolean incremental) {
+            super(analyzer, input, 5);
+            this.useHeuristic = useHeuristic;
+            this.incremental = incremental;
+        }
+
+        @Override
+        protected FinalResult compute() throws Exception {
+            pinput = analyzer.performPeakScoring(precompute());
+            pinput.setAnnotation(ForbidRecalibration.class, ForbidRecalibration.FORBIDDEN);
+            state = 3;
+            startTime = System.currentTimeMillis();
+            secondsPerInstance = secondsPerTree = restTime = 600;
+            final List<FTree> trees = new ArrayList<>();
+            for (ExactResult r : estimateTreeSizeAndRecalibration(pinput.getAnnotationOrThrow(DecompositionList.class).getDecompositions(), useHeuristic))
+                trees.add(r.tree);
+            return new FinalResult(trees);
+        }
+
+        @Override
+        protected boolean checkForTreeQuality(List<TreeComputationInstance.ExactResult> results, boolean addAnnotation) {
+            return false;
+        }
+
+        @Override
+        protected List<TreeComputationJob> resolveIncrementally(List<TreeComputationJob> previousJobs, TreeBuilder builder, double treeSize, int k) {
+            if (incremental) return super.resolveIncrementally(previousJobs, builder, treeSize, k);
+            final List<TreeComputationJob> jobs = new ArrayList<>(previousJobs.size());
+            for (TreeComputationJob previous : previousJobs) {
+                final TreeComputationJob job = new TreeComputationJob(builder, previous.graphCache, previous.decomposition, treeSize, new AtomicLong());
+                submitSubJob(job);
+                jobs.add(job);
+            }
+            return jobs;
+        }
+    }
+
+}
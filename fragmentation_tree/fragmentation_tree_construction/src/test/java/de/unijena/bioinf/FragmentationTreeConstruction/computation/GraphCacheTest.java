@@ -0,0 +1,117 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.ftheuristics.treebuilder.ExtendedCriticalPathHeuristicTreeBuilder;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GraphCacheTest {
+
+    private static Ms2Experiment experiment;
+
+    @BeforeClass
+    public static void loadExperiment() throws IOException {
+        try (final InputStream stream = GraphCacheTest.class.getResourceAsStream("/C20H21NO4.ms")) {
+            experiment = new GenericParser<Ms2Experiment>(new JenaMsParser()).parse(stream);
+        }
+    }
+
+    private static FragmentationPatternAnalysis analyzer(String profile) throws IOException {
+        return FragmentationPatternAnalysis.loadFromProfile(new JSONDocumentType(), JSONDocumentType.getJSON("/profiles/" + profile + ".json", profile + ".json"));
+    }
+
+    @Test
+    public void testCachedGraphEqualsFreshGraph() throws IOException {
+        final FragmentationPatternAnalysis analyzer = analyzer("qtof");
+        final ProcessedInput input = analyzer.preprocessing(experiment);
+        final List<Decomposition> decompositions = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        final GraphCache cache = new GraphCache(input, decompositions.size());
+        final ExtendedCriticalPathHeuristicTreeBuilder builder = new ExtendedCriticalPathHeuristicTreeBuilder();
+        for (int i = 0; i < Math.min(10, decompositions.size()); ++i) {
+            final Decomposition d = decompositions.get(i);
+            // reduced graphs are cached after the tree is computed, unreduced graphs are reduced after taking them
+            final boolean reduced = i % 2 == 0;
+            final FGraph graph = reduced ? analyzer.buildGraph(input, d) : analyzer.buildGraphWithoutReduction(input, d);
+            assertTrue(cache.offer(input, d, graph, builder.computeTree().solve(input, graph).tree.getTreeWeight(), reduced));
+        }
+        for (int i = 0; i < Math.min(10, decompositions.size()); ++i) {
+            final Decomposition d = decompositions.get(i);
+            final GraphCache.CachedGraph cached = cache.take(input, d);
+            assertNotNull(cached);
+            final FGraph graph = cached.isReduced() ? cached.getGraph() : analyzer.performGraphReduction(cached.getGraph(), 0d);
+            assertSameGraph(analyzer.buildGraph(input, d), graph);
+            // each graph is handed out only once
+            assertNull(cache.take(input, d));
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMemoryUsage());
+    }
+
+    @Test
+    public void testInvalidation() throws IOException {
+        final FragmentationPatternAnalysis analyzer = analyzer("qtof");
+        final ProcessedInput input = analyzer.preprocessing(experiment);
+        final Decomposition d = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions().get(0);
+        final GraphCache cache = new GraphCache(input, 5);
+
+        // changed scoring, e.g. a new tree size bonus
+        assertTrue(cache.offer(input, d, analyzer.buildGraph(input, d), 1d, true));
+        cache.newScoringVersion();
+        assertEquals(0, cache.size());
+        assertNull(cache.take(input, d));
+
+        // same experiment, but preprocessed again
+        assertTrue(cache.offer(input, d, analyzer.buildGraph(input, d), 1d, true));
+        final ProcessedInput otherInput = analyzer.preprocessing(experiment);
+        assertNull(cache.take(otherInput, d));
+        assertFalse(cache.offer(otherInput, d, analyzer.buildGraph(otherInput, d), 2d, true));
+
+        // same experiment, but preprocessed with another profile
+        final FragmentationPatternAnalysis otherAnalyzer = analyzer("orbitrap");
+        final ProcessedInput otherProfileInput = otherAnalyzer.preprocessing(experiment);
+        final Decomposition otherProfileDecomposition = otherProfileInput.getAnnotationOrThrow(DecompositionList.class).find(d.getCandidate());
+        assertNotNull(otherProfileDecomposition);
+        assertNull(cache.take(otherProfileInput, otherProfileDecomposition));
+        assertFalse(cache.offer(otherProfileInput, otherProfileDecomposition, otherAnalyzer.buildGraph(otherProfileInput, otherProfileDecomposition), 2d, true));
+
+        assertNotNull(cache.take(input, d));
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    private static void assertSameGraph(FGraph expected, FGraph graph) {
+        assertEquals(expected.numberOfVertices(), graph.numberOfVertices());
+        assertEquals(expected.numberOfEdges(), graph.numberOfEdges());
+        for (int i = 0; i < expected.numberOfVertices(); ++i) {
+            final Fragment u = expected.getFragmentAt(i), v = graph.getFragmentAt(i);
+            assertEquals(u.getFormula(), v.getFormula());
+            assertEquals(u.getColor(), v.getColor());
+            assertEquals(u.getInDegree(), v.getInDegree());
+            assertEquals(u.getOutDegree(), v.getOutDegree());
+        }
+        final List<Loss> expectedLosses = expected.losses(), losses = graph.losses();
+        for (int i = 0; i < expectedLosses.size(); ++i) {
+            final Loss l = expectedLosses.get(i), m = losses.get(i);
+            assertEquals(l.getSource().getVertexId(), m.getSource().getVertexId());
+            assertEquals(l.getTarget().getVertexId(), m.getTarget().getVertexId());
+            assertEquals(l.getFormula(), m.getFormula());
+            assertEquals(l.getWeight(), m.getWeight(), 1e-9);
+        }
+    }
+
+}
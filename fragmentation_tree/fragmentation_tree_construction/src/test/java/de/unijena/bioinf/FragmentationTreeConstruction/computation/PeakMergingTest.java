@@ -0,0 +1,127 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.ParameterHelper;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.data.DataDocument;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.MS2Peak;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.filtering.PostProcessor;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.merging.HighIntensityMerger;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.PeakTable;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PeakMergingTest {
+
+    @Test
+    public void testPeakTableGivesSameMergedPeaksAsPeakList() throws IOException {
+        final MutableMs2Experiment experiment = experiment();
+
+        final FragmentationPatternAnalysis analyzer = analyzer();
+        assertTrue(analyzer.getPeakMerger() instanceof HighIntensityMerger);
+        final ProcessedInput table = analyzer.performNormalization(analyzer.performValidation(experiment));
+        assertNotNull(table.getAnnotation(PeakTable.class, null));
+        final List<ProcessedPeak> fromTable = analyzer.performPeakMerging(table).getMergedPeaks();
+        assertNull(table.getAnnotation(PeakTable.class, null));
+
+        // a post processor after normalizing makes the analyzer merge the processed peak list
+        final FragmentationPatternAnalysis listAnalyzer = analyzer();
+        listAnalyzer.getPostProcessors().add(new NoPostProcessing());
+        final ProcessedInput list = listAnalyzer.performNormalization(listAnalyzer.performValidation(experiment));
+        assertNull(list.getAnnotation(PeakTable.class, null));
+        final List<ProcessedPeak> fromList = listAnalyzer.performPeakMerging(list).getMergedPeaks();
+
+        assertEquals(fromList.size(), fromTable.size());
+        int mergedPeaks = 0;
+        for (int i = 0; i < fromList.size(); ++i) {
+            final ProcessedPeak expected = fromList.get(i), peak = fromTable.get(i);
+            final String name = "peak " + expected.getMz();
+            assertEquals(name, expected.getMz(), peak.getMz(), 0d);
+            assertEquals(name, expected.getOriginalMz(), peak.getOriginalMz(), 0d);
+            assertEquals(name, expected.getIntensity(), peak.getIntensity(), 0d);
+            assertEquals(name, expected.getLocalRelativeIntensity(), peak.getLocalRelativeIntensity(), 0d);
+            assertEquals(name, expected.getGlobalRelativeIntensity(), peak.getGlobalRelativeIntensity(), 1e-12);
+            assertEquals(name, expected.getRelativeIntensity(), peak.getRelativeIntensity(), 1e-12);
+            assertEquals(name, expected.getCollisionEnergy(), peak.getCollisionEnergy());
+            assertEquals(name, expected.getOriginalPeaks().size(), peak.getOriginalPeaks().size());
+            for (int k = 0; k < expected.getOriginalPeaks().size(); ++k) {
+                final MS2Peak a = expected.getOriginalPeaks().get(k), b = peak.getOriginalPeaks().get(k);
+                assertEquals(name, a.getMz(), b.getMz(), 0d);
+                assertEquals(name, a.getIntensity(), b.getIntensity(), 0d);
+                // each analyzer validates its own copy of the experiment
+                final int spectrum = list.getExperimentInformation().getMs2Spectra().indexOf(a.getSpectrum());
+                assertTrue(name, spectrum >= 0);
+                assertEquals(name, spectrum, table.getExperimentInformation().getMs2Spectra().indexOf(b.getSpectrum()));
+            }
+            if (peak.getOriginalPeaks().size() > 1) ++mergedPeaks;
+        }
+        // peaks of different spectra are merged, including the parent peak
+        assertTrue(mergedPeaks >= 5);
+    }
+
+    /**
+     * three spectra with equal intensities, identical masses in different spectra and near duplicate masses within and
+     * across spectra, around fragments and the parent peak
+     */
+    private static MutableMs2Experiment experiment() {
+        final MutableMs2Experiment experiment = new MutableMs2Experiment();
+        experiment.setName("merging");
+        experiment.setPrecursorIonType(PrecursorIonType.getPrecursorIonType("[M+H]+"));
+        experiment.setIonMass(200.1d);
+        final List<MutableMs2Spectrum> spectra = new ArrayList<>();
+        spectra.add(spectrum(10,
+                new double[]{80.049, 100.0, 100.001, 120.05, 120.054, 150.07, 200.099, 200.1},
+                new double[]{40, 50, 50, 30, 30, 50, 100, 100}));
+        spectra.add(spectrum(20,
+                new double[]{80.049, 100.003, 120.052, 150.07, 160.08, 200.1005},
+                new double[]{40, 50, 30, 50, 50, 100}));
+        spectra.add(spectrum(30,
+                new double[]{100.0, 120.05, 150.074, 160.08, 200.1, 200.102},
+                new double[]{50, 30, 50, 50, 100, 100}));
+        experiment.setMs2Spectra(spectra);
+        return experiment;
+    }
+
+    private static MutableMs2Spectrum spectrum(double energy, double[] mzs, double[] intensities) {
+        return new MutableMs2Spectrum(new SimpleSpectrum(mzs, intensities), 200.1d, new CollisionEnergy(energy, energy), 2);
+    }
+
+    private static FragmentationPatternAnalysis analyzer() throws IOException {
+        return FragmentationPatternAnalysis.loadFromProfile(new JSONDocumentType(), JSONDocumentType.getJSON("/profiles/qtof.json", "qtof.json"));
+    }
+
+    private static class NoPostProcessing implements PostProcessor {
+        @Override
+        public ProcessedInput process(ProcessedInput input) {
+            return input;
+        }
+
+        @Override
+        public Stage getStage() {
+            return Stage.AFTER_NORMALIZING;
+        }
+
+        @Override
+        public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        }
+
+        @Override
+        public <G, D, L> void exportParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
+        }
+    }
+
+}
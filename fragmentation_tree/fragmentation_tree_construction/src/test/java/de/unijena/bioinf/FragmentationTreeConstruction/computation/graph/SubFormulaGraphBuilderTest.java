@@ -0,0 +1,104 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.graph;
+
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SubFormulaGraphBuilderTest {
+
+    private static Ms2Experiment experiment;
+
+    @BeforeClass
+    public static void loadExperiment() throws IOException {
+        try (final InputStream stream = SubFormulaGraphBuilderTest.class.getResourceAsStream("/C20H21NO4.ms")) {
+            experiment = new GenericParser<Ms2Experiment>(new JenaMsParser()).parse(stream);
+        }
+    }
+
+    @Test
+    public void testIndexGivesSameGraphAsQuadraticFallback() throws IOException {
+        for (String profile : new String[]{"qtof", "orbitrap"}) {
+            assertSameGraphs(analyzer(profile).preprocessing(experiment));
+        }
+    }
+
+    @Test
+    public void testIndexGivesSameGraphWithSeveralIonModes() throws IOException {
+        // fragments of all ion modes are decomposed, but only those of the root's ion mode are connected
+        final MutableMs2Experiment unknownIon = new MutableMs2Experiment(experiment);
+        unknownIon.setPrecursorIonType(PrecursorIonType.unknown(1));
+        unknownIon.setMolecularFormula(null);
+        assertSameGraphs(analyzer("qtof").preprocessing(unknownIon));
+    }
+
+    private static FragmentationPatternAnalysis analyzer(String profile) throws IOException {
+        return FragmentationPatternAnalysis.loadFromProfile(new JSONDocumentType(), JSONDocumentType.getJSON("/profiles/" + profile + ".json", profile + ".json"));
+    }
+
+    private static void assertSameGraphs(ProcessedInput input) {
+        final List<Decomposition> decompositions = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        assertTrue(decompositions.size() > 1);
+        int edges = 0;
+        for (Decomposition d : decompositions) {
+            final FGraph indexed = buildGraph(new SubFormulaGraphBuilder(), input, d);
+            final FGraph quadratic = buildGraph(new SubFormulaGraphBuilder(false), input, d);
+            assertSameGraph(quadratic, indexed);
+            edges += indexed.numberOfEdges();
+        }
+        assertTrue(edges > decompositions.size());
+    }
+
+    private static FGraph buildGraph(SubFormulaGraphBuilder builder, ProcessedInput input, Decomposition candidate) {
+        return builder.fillGraph(builder.addRoot(builder.initializeEmptyGraph(input), input.getParentPeak(), Collections.singletonList(candidate)));
+    }
+
+    private static void assertSameGraph(FGraph expected, FGraph graph) {
+        final FragmentAnnotation<Ionization> expectedIon = expected.getFragmentAnnotationOrThrow(Ionization.class), ion = graph.getFragmentAnnotationOrThrow(Ionization.class);
+        final FragmentAnnotation<ProcessedPeak> expectedPeak = expected.getFragmentAnnotationOrThrow(ProcessedPeak.class), peak = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+        assertEquals(expected.numberOfVertices(), graph.numberOfVertices());
+        assertEquals(expected.numberOfEdges(), graph.numberOfEdges());
+        for (int i = 0; i < expected.numberOfVertices(); ++i) {
+            final Fragment u = expected.getFragmentAt(i), v = graph.getFragmentAt(i);
+            assertEquals(u.getFormula(), v.getFormula());
+            assertEquals(u.getColor(), v.getColor());
+            if (u.isRoot()) continue;
+            assertEquals(expectedIon.get(u), ion.get(v));
+            assertEquals(expectedPeak.get(u), peak.get(v));
+            // same incoming edges in the same order
+            assertEquals(u.getInDegree(), v.getInDegree());
+            for (int k = 0; k < u.getInDegree(); ++k) {
+                assertEquals(u.getIncomingEdge(k).getSource().getVertexId(), v.getIncomingEdge(k).getSource().getVertexId());
+            }
+        }
+        final List<Loss> expectedLosses = expected.losses(), losses = graph.losses();
+        for (int i = 0; i < expectedLosses.size(); ++i) {
+            final Loss l = expectedLosses.get(i), m = losses.get(i);
+            assertEquals(l.getSource().getVertexId(), m.getSource().getVertexId());
+            assertEquals(l.getTarget().getVertexId(), m.getTarget().getVertexId());
+        }
+    }
+
+}
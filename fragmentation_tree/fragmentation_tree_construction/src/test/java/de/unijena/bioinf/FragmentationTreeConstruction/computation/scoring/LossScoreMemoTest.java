@@ -0,0 +1,122 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.scoring;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FragmentAnnotation;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.FragmentationPatternAnalysis;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.Decomposition;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.DecompositionList;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedInput;
+import de.unijena.bioinf.FragmentationTreeConstruction.model.ProcessedPeak;
+import de.unijena.bioinf.babelms.GenericParser;
+import de.unijena.bioinf.babelms.json.JSONDocumentType;
+import de.unijena.bioinf.babelms.ms.JenaMsParser;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class LossScoreMemoTest {
+
+    @Test
+    public void testMemoizedScoresEqualDirectScores() throws IOException {
+        final FragmentationPatternAnalysis analyzer = analyzer();
+        final ProcessedInput input = analyzer.preprocessing(experiment());
+        final List<LossScorer<?>> localScorers = new ArrayList<>();
+        for (LossScorer<?> scorer : analyzer.getLossScorers())
+            if (scorer instanceof LocalLossScorer) localScorers.add(scorer);
+        assertFalse(localScorers.isEmpty());
+
+        final List<Decomposition> decompositions = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        final List<FGraph> graphs = new ArrayList<>();
+        for (int i = 0; i < Math.min(10, decompositions.size()); ++i)
+            graphs.add(analyzer.buildGraphWithoutReduction(input, decompositions.get(i)));
+        // the memo is filled while scoring the graphs
+        final LossScoreMemo memo = analyzer.getLossScoreMemo(input);
+        assertNotNull(memo);
+        assertTrue(memo.isValidFor(localScorers));
+        assertTrue(memo.getHits() > 0);
+
+        final LossScoreMemo emptyMemo = new LossScoreMemo(input, localScorers);
+        final PreparedLossScorer<?>[] prepared = memo.prepare(input);
+        final long hits = memo.getHits();
+        int numberOfLosses = 0;
+        for (FGraph graph : graphs) {
+            final LossScoreMemo.GraphLookup lookup = memo.lookup(graph, input);
+            // vertex colors are renumbered when sorting the graph, so peaks have to be taken from the annotation
+            final FragmentAnnotation<ProcessedPeak> peaks = graph.getFragmentAnnotationOrThrow(ProcessedPeak.class);
+            for (Loss loss : graph.losses()) {
+                if (loss.getSource().isRoot()) continue;
+                double expected = 0d;
+                for (LossScorer<?> scorer : localScorers)
+                    expected += PreparedLossScorer.prepare(scorer, input).score(loss, input);
+                final int u = peaks.get(loss.getSource()).getIndex(), v = peaks.get(loss.getTarget()).getIndex();
+                assertEquals(expected, memo.score(loss, u, v, input, prepared), 1e-9);
+                assertEquals(expected, emptyMemo.score(loss, u, v, input, prepared), 1e-9);
+                assertEquals(expected, lookup.score(loss, u, v), 1e-9);
+                numberOfLosses += 2;
+            }
+        }
+        // all losses were already scored while building the graphs
+        assertEquals(hits + numberOfLosses, memo.getHits());
+    }
+
+    @Test
+    public void testConcurrentScoring() throws Exception {
+        final FragmentationPatternAnalysis analyzer = analyzer();
+        final ProcessedInput input = analyzer.preprocessing(experiment());
+        final List<Decomposition> decompositions = input.getAnnotationOrThrow(DecompositionList.class).getDecompositions();
+        final List<FGraph> graphs = new ArrayList<>();
+        for (int i = 0; i < Math.min(8, decompositions.size()); ++i)
+            graphs.add(analyzer.buildGraphWithoutReduction(input, decompositions.get(i)));
+        final List<double[]> expected = new ArrayList<>();
+        for (FGraph graph : graphs) expected.add(weights(graph));
+
+        // score all graphs again in parallel with a fresh memo
+        final ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            for (int repetition = 0; repetition < 3; ++repetition) {
+                final FragmentationPatternAnalysis scoringAnalyzer = analyzer();
+                final List<Future<double[]>> futures = new ArrayList<>();
+                for (final FGraph graph : graphs) {
+                    futures.add(service.submit(new Callable<double[]>() {
+                        @Override
+                        public double[] call() {
+                            final FGraph copy = new FGraph(graph);
+                            return weights(scoringAnalyzer.performGraphScoring(copy));
+                        }
+                    }));
+                }
+                for (int i = 0; i < graphs.size(); ++i)
+                    assertArrayEquals(expected.get(i), futures.get(i).get(), 1e-9);
+                assertTrue(scoringAnalyzer.getLossScoreMemo(input).getHits() > 0);
+            }
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    private static FragmentationPatternAnalysis analyzer() throws IOException {
+        return FragmentationPatternAnalysis.loadFromProfile(new JSONDocumentType(), JSONDocumentType.getJSON("/profiles/qtof.json", "qtof.json"));
+    }
+
+    private static Ms2Experiment experiment() throws IOException {
+        try (final InputStream stream = LossScoreMemoTest.class.getResourceAsStream("/C20H21NO4.ms")) {
+            return new GenericParser<Ms2Experiment>(new JenaMsParser()).parse(stream);
+        }
+    }
+
+    private static double[] weights(FGraph graph) {
+        final List<Loss> losses = graph.losses();
+        final double[] weights = new double[losses.size()];
+        for (int i = 0; i < weights.length; ++i) weights[i] = losses.get(i).getWeight();
+        return weights;
+    }
+
+}
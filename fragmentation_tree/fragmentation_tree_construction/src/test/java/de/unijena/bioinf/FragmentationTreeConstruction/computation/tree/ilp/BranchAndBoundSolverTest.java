@@ -0,0 +1,101 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.ilp;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FGraph;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Fragment;
+import de.unijena.bioinf.ChemistryBase.ms.ft.Loss;
+import de.unijena.bioinf.FragmentationTreeConstruction.computation.tree.TreeBuilder;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BranchAndBoundSolverTest {
+
+    @Test
+    public void testOptimalSolution() {
+        final TreeBuilder builder = new AbstractTreeBuilder<>(BranchAndBoundSolver.Factory);
+        final Random r = new Random(4711);
+        for (int i = 0; i < 20; ++i) {
+            final FGraph graph = randomGraph(r, 12, 2);
+            final double optimum = bruteForce(graph);
+            final TreeBuilder.Result result = builder.computeTree().solve(null, graph);
+            assertTrue(result.isOptimal);
+            assertEquals(optimum, result.tree.getTreeWeight(), 1e-6);
+            final TreeBuilder.Result parallel = builder.computeTree().withMultithreading(4).solve(null, graph);
+            assertEquals(optimum, parallel.tree.getTreeWeight(), 1e-6);
+            final TreeBuilder.Result noSolution = builder.computeTree().withMinimalScore(optimum + 1).solve(null, graph);
+            assertNull(noSolution.tree);
+            assertEquals(TreeBuilder.AbortReason.NO_SOLUTION, noSolution.error);
+        }
+    }
+
+    @Test
+    public void testSameScoreAsIlpSolver() {
+        final TreeBuilder ilp = new AbstractTreeBuilder<>(GLPKSolver.Factory);
+        final TreeBuilder builder = new AbstractTreeBuilder<>(BranchAndBoundSolver.Factory);
+        final Random r = new Random(1234);
+        for (int i = 0; i < 8; ++i) {
+            final FGraph graph = randomGraph(r, 40 + 5 * i, 3);
+            final TreeBuilder.Result expected;
+            try {
+                expected = ilp.computeTree().solve(null, graph);
+            } catch (LinkageError e) {
+                // native GLPK library is not installed on this machine
+                Assume.assumeNoException(e);
+                return;
+            }
+            final TreeBuilder.Result result = builder.computeTree().withTimeLimit(60).solve(null, graph);
+            assertTrue(result.isOptimal);
+            assertEquals(expected.tree.getTreeWeight(), result.tree.getTreeWeight(), 1e-6);
+        }
+    }
+
+    private static FGraph randomGraph(Random r, int numberOfVertices, int verticesPerColor) {
+        final FGraph graph = new FGraph();
+        final Fragment[] vertices = new Fragment[numberOfVertices];
+        vertices[0] = graph.addRootVertex(MolecularFormula.parse("C" + (2 * numberOfVertices) + "H" + (2 * numberOfVertices)));
+        vertices[0].setColor(1);
+        graph.getRoot().getOutgoingEdge(0).setWeight(r.nextDouble());
+        for (int i = 1; i < numberOfVertices; ++i) {
+            vertices[i] = graph.addFragment(MolecularFormula.parse("C" + (2 * numberOfVertices - i) + "H" + (2 * numberOfVertices - 2 * i)));
+            // several vertices share a color
+            vertices[i].setColor(2 + (i - 1) / verticesPerColor);
+            for (int j = 0; j < i; ++j) {
+                if (vertices[j].getColor() < vertices[i].getColor() && (j == 0 || r.nextDouble() < 0.5)) {
+                    graph.addLoss(vertices[j], vertices[i]).setWeight(r.nextDouble() * 4 - 2);
+                }
+            }
+        }
+        return graph;
+    }
+
+    private static double bruteForce(FGraph graph) {
+        return bruteForce(graph, 2, new boolean[graph.numberOfVertices()], new boolean[graph.maxColor() + 1], 0d);
+    }
+
+    private static double bruteForce(FGraph graph, int vertexId, boolean[] selected, boolean[] usedColors, double score) {
+        if (vertexId == 2) {
+            final Loss rootLoss = graph.getRoot().getOutgoingEdge(0);
+            selected[rootLoss.getTarget().getVertexId()] = true;
+            usedColors[rootLoss.getTarget().getColor()] = true;
+            score = rootLoss.getWeight();
+        }
+        if (vertexId >= graph.numberOfVertices()) return score;
+        final Fragment v = graph.getFragmentAt(vertexId);
+        double best = bruteForce(graph, vertexId + 1, selected, usedColors, score);
+        if (usedColors[v.getColor()]) return best;
+        for (Loss l : v.getIncomingEdges()) {
+            if (!selected[l.getSource().getVertexId()]) continue;
+            selected[vertexId] = true;
+            usedColors[v.getColor()] = true;
+            best = Math.max(best, bruteForce(graph, vertexId + 1, selected, usedColors, score + l.getWeight()));
+            selected[vertexId] = false;
+            usedColors[v.getColor()] = false;
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,53 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.model;
+
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PeakTableTest {
+
+    @Test
+    public void testSortIndizesIsStable() {
+        final Random random = new Random(42);
+        final double[] keys = new double[1000];
+        for (int i = 0; i < keys.length; ++i) keys[i] = random.nextInt(50);
+        final int[] indizes = new int[keys.length];
+        final Integer[] expected = new Integer[keys.length];
+        for (int i = 0; i < indizes.length; ++i) indizes[i] = expected[i] = i;
+        PeakTable.sortIndizes(indizes, 0, indizes.length, keys, true);
+        Arrays.sort(expected, (a, b) -> Double.compare(keys[b], keys[a]));
+        for (int i = 0; i < indizes.length; ++i) assertEquals(expected[i].intValue(), indizes[i]);
+    }
+
+    @Test
+    public void testMerge() {
+        final MutableMs2Spectrum a = new MutableMs2Spectrum(new SimpleMutableSpectrum(), 200d, new CollisionEnergy(10, 10), 2);
+        final MutableMs2Spectrum b = new MutableMs2Spectrum(new SimpleMutableSpectrum(), 200d, new CollisionEnergy(20, 20), 2);
+        final PeakTable table = new PeakTable(Arrays.asList(a, b), 1);
+        final int[] rows = new int[]{table.add(1, 100.002, 50), table.add(0, 100.001, 100), table.add(1, 50, 10)};
+        assertEquals(3, table.size());
+        for (int row = 0; row < 3; ++row) {
+            table.setLocalRelativeIntensity(row, row + 1);
+            table.setGlobalRelativeIntensity(row, 0.1 * (row + 1));
+            table.setRelativeIntensity(row, 0.1 * (row + 1));
+        }
+        assertArrayEquals(new int[]{2, 1, 0}, table.rowsOrderedByMass());
+
+        final ProcessedPeak peak = table.merge(rows, 0, 2, rows[1], 100.0015);
+        assertEquals(100.0015, peak.getMz(), 0d);
+        assertEquals(100.001, peak.getOriginalMz(), 0d);
+        assertEquals(100, peak.getIntensity(), 0d);
+        assertEquals(2, peak.getLocalRelativeIntensity(), 0d);
+        assertEquals(0.3, peak.getGlobalRelativeIntensity(), 1e-12);
+        assertEquals(a.getCollisionEnergy(), peak.getCollisionEnergy());
+        assertEquals(2, peak.getOriginalPeaks().size());
+        assertEquals(b, peak.getOriginalPeaks().get(0).getSpectrum());
+    }
+}
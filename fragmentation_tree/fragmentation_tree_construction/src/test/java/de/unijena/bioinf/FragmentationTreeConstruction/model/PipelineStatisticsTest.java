@@ -0,0 +1,53 @@
+package de.unijena.bioinf.FragmentationTreeConstruction.model;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStatisticsTest {
+
+    @Test
+    public void testCandidateStatisticsAreAddedToInput() {
+        final PipelineStatistics input = new PipelineStatistics();
+        final PipelineStatistics a = input.newCandidateStatistics(), b = input.newCandidateStatistics();
+        a.add(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION, 100);
+        b.add(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION, 50);
+        a.addTime(PipelineStatistics.Stage.TREE_COMPUTATION, System.nanoTime());
+        assertEquals(100, a.getCount(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION));
+        assertEquals(150, input.getCount(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION));
+        assertEquals(1, input.getCalls(PipelineStatistics.Stage.TREE_COMPUTATION));
+        assertEquals(0, b.getCalls(PipelineStatistics.Stage.TREE_COMPUTATION));
+        assertEquals(a.getNanos(PipelineStatistics.Stage.TREE_COMPUTATION), input.getNanos(PipelineStatistics.Stage.TREE_COMPUTATION));
+
+        final PipelineStatistics aggregated = new PipelineStatistics();
+        aggregated.add(input);
+        aggregated.add(input);
+        assertEquals(300, aggregated.getCount(PipelineStatistics.Counter.EDGES_BEFORE_REDUCTION));
+        assertEquals(2, aggregated.getCalls(PipelineStatistics.Stage.TREE_COMPUTATION));
+    }
+
+    @Test
+    public void testHitRateAndExport() throws IOException {
+        final PipelineStatistics statistics = new PipelineStatistics();
+        assertEquals(0d, statistics.getGraphCacheHitRate(), 0d);
+        statistics.add(PipelineStatistics.Counter.GRAPH_CACHE_HITS, 3);
+        statistics.add(PipelineStatistics.Counter.GRAPH_CACHE_MISSES, 1);
+        assertEquals(0.75, statistics.getGraphCacheHitRate(), 1e-12);
+
+        final StringWriter csv = new StringWriter();
+        PipelineStatistics.writeCsvHeader(csv);
+        statistics.writeCsvRow(csv, "compound");
+        final String[] lines = csv.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals(lines[0].split(",").length, lines[1].split(",").length);
+
+        final StringWriter json = new StringWriter();
+        statistics.writeJson(json);
+        assertTrue(json.toString().contains("\"graph_cache_hits\":3"));
+        assertTrue(json.toString().contains("\"graphCacheHitRate\":0.7500"));
+    }
+}
@@ -2380,6 +2380,7 @@ public class GibbsSamplerMain {
 
         int pos = 0;
         Map<String, List<FragmentsCandidate>> candidatesMap = new HashMap<>();
+        final FormulaDictionary dictionary = new FormulaDictionary();
         for (ExperimentResult result : results) {
             List<FTree> trees = new ArrayList<>();
             Ms2Experiment experiment = allExperiments.get(pos++); //use experiments with assigned quality
@@ -2396,7 +2397,7 @@ public class GibbsSamplerMain {
                 CompoundQuality.setProperty(experiment, SpectrumProperty.PoorlyExplained);
             }
 
-            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experiment);
+            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experiment, dictionary);
 
             Collections.sort(candidates);
             if (candidates.size() > maxCandidates) candidates = candidates.subList(0, maxCandidates);
@@ -2531,6 +2532,7 @@ public class GibbsSamplerMain {
 
 
         final Map<String, List<FragmentsCandidate>> listMap = new HashMap<>();
+        final FormulaDictionary dictionary = new FormulaDictionary();
         Set<String> keys = idToTrees.keySet();
         for (String key : keys) {
             List<FTree> trees  = idToTrees.get(key);
@@ -2544,7 +2546,7 @@ public class GibbsSamplerMain {
 //                continue;
 //            }
 
-            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experimentMap.get(key));
+            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experimentMap.get(key), dictionary);
 
             Collections.sort(candidates);
             if (candidates.size()>maxCandidates) candidates = candidates.subList(0, maxCandidates);
@@ -2644,6 +2646,7 @@ public class GibbsSamplerMain {
 
 
         final Map<String, List<FragmentsCandidate>> listMap = new HashMap<>();
+        final FormulaDictionary dictionary = new FormulaDictionary();
         Set<String> keys = idToTrees.keySet();
         for (String key : keys) {
             List<FTree> trees  = idToTrees.get(key);
@@ -2659,7 +2662,7 @@ public class GibbsSamplerMain {
 //                continue;
             }
 
-            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experiment);
+            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experiment, dictionary);
 
             Collections.sort(candidates);
             if (candidates.size()>maxCandidates) candidates = candidates.subList(0, maxCandidates);
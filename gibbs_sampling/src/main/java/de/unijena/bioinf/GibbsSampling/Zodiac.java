@@ -35,6 +35,10 @@ public class Zodiac {
 
     Map<String, String[]> representativeToCluster;
 
+    int convergenceCheckInterval = -1;
+    double convergenceTolerance;
+    int threadsPerRepetition = 1;
+
     public Zodiac(List<ExperimentResult> experimentResults, List<LibraryHit> anchors, NodeScorer[] nodeScorers, EdgeScorer<FragmentsCandidate>[] edgeScorers, EdgeFilter edgeFilter, int maxCandidates, boolean clusterCompounds, MasterJJob masterJJob) throws ExecutionException {
         this.experimentResults = experimentResults;
         this.anchors = anchors==null?Collections.emptyList():anchors;
@@ -72,6 +76,8 @@ public class Zodiac {
 
         TwoPhaseGibbsSampling<FragmentsCandidate> twoPhaseGibbsSampling = new TwoPhaseGibbsSampling<>(ids, candidatesArray, nodeScorers, edgeScorers, edgeFilter, repetitions);
         twoPhaseGibbsSampling.setIterationSteps(iterationSteps, burnIn);
+        twoPhaseGibbsSampling.setConvergenceCheck(convergenceCheckInterval, convergenceTolerance);
+        twoPhaseGibbsSampling.setThreadsPerRepetition(threadsPerRepetition);
         if (masterJJob!=null) masterJJob.submitSubJob(twoPhaseGibbsSampling);
         else SiriusJobs.getGlobalJobManager().submitJob(twoPhaseGibbsSampling);
 
@@ -83,7 +89,7 @@ public class Zodiac {
         addZodiacScoreToIdentificationResult(result, experimentResults);
 
         if (clusterCompounds) zodiacResult = includedAllClusterInstances(zodiacResult);
-        else zodiacResult = new ZodiacResultsWithClusters(ids, zodiacResult.getGraph(), zodiacResult.getResults(), getSelfMapping(ids));
+        else zodiacResult = new ZodiacResultsWithClusters(ids, zodiacResult.getGraph(), zodiacResult.getResults(), getSelfMapping(ids), zodiacResult.getConvergenceStatistic());
 
         return (ZodiacResultsWithClusters)zodiacResult;
     }
@@ -128,6 +134,24 @@ public class Zodiac {
         return new ZodiacResultsWithClusters(ids, graph, new CompoundResult[]{compoundResult}, getSelfMapping(ids));
     }
 
+    /**
+     * stop the Gibbs sampling as soon as the parallel repetitions converged.
+     * @see GibbsParallel#setConvergenceCheck(int, double)
+     */
+    public void setConvergenceCheck(int checkInterval, double tolerance) {
+        this.convergenceCheckInterval = checkInterval;
+        this.convergenceTolerance = tolerance;
+    }
+
+    /**
+     * use chromatic sampling with the given number of threads for each repetition.
+     * Useful if there are fewer repetitions than cores.
+     * @see GibbsMFCorrectionNetwork#setNumberOfThreads(int)
+     */
+    public void setThreadsPerRepetition(int threadsPerRepetition) {
+        this.threadsPerRepetition = threadsPerRepetition;
+    }
+
     private Map<String, String[]> getSelfMapping(String[] strings){
         Map<String, String[]> map = new HashMap<>();
         for (int i = 0; i < strings.length; i++) {
@@ -150,7 +174,7 @@ public class Zodiac {
                 allCandidates.add(result.withNewId(c));
             }
         }
-        return new ZodiacResultsWithClusters(allIds.toArray(new String[0]), zodiacResult.getGraph(), allCandidates.toArray(new CompoundResult[0]), representativeToCluster);
+        return new ZodiacResultsWithClusters(allIds.toArray(new String[0]), zodiacResult.getGraph(), allCandidates.toArray(new CompoundResult[0]), representativeToCluster, zodiacResult.getConvergenceStatistic());
     }
 
 
@@ -254,6 +278,8 @@ public class Zodiac {
     private void init(){
         Map<String, List<FragmentsCandidate>> candidatesMap = new HashMap<>();
         Set<String> experimentIDSet = new HashSet<>();
+        //formula ids are only comparable within this dataset
+        final FormulaDictionary dictionary = new FormulaDictionary();
         for (ExperimentResult result : experimentResults) {
             List<FTree> trees = new ArrayList<>();
             for (IdentificationResult identificationResult : result.getResults()) {
@@ -262,7 +288,7 @@ public class Zodiac {
 
 
             Ms2Experiment experiment = result.getExperiment();
-            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experiment);
+            List<FragmentsCandidate> candidates = FragmentsCandidate.createAllCandidateInstances(trees, experiment, dictionary);
 
             Collections.sort(candidates);
             if (candidates.size() > 0) candidatesMap.put(experiment.getName(), candidates);
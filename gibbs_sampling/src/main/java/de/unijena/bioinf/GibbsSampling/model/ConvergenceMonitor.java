@@ -0,0 +1,161 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.Arrays;
+
+/**
+ * Monitors the convergence of parallel {@link GibbsMFCorrectionNetwork} chains sampling the same {@link Graph}.
+ * Every checkInterval sweeps after burn-in each chain reports its candidate assignment frequencies. Only the latest
+ * report of each chain is kept, so the memory does not grow with the number of checkpoints a fast chain runs ahead.
+ * As soon as every chain reported at least the checkpoint of the slowest chain, the Gelman-Rubin potential scale
+ * reduction factor (PSRF) is computed for every candidate on the latest per-chain assignment frequencies. Chains which
+ * are ahead contribute their frequencies with more samples, the number of samples of the slowest chain is used for the
+ * variance estimate. The statistic of a compound is the maximum over its candidates, the overall statistic is the
+ * maximum over all compounds which are not fixed.
+ * If the overall statistic is at most 1+tolerance, all chains are asked to stop sampling.
+ * <p>
+ * If there are more chains than threads, the first chains may run to their last step before the other chains start.
+ * These chains cannot stop early, but their final frequencies are kept, such that the later chains can stop as soon
+ * as they agree with them.
+ */
+class ConvergenceMonitor {
+
+    private final Graph<?> graph;
+    private final TIntHashSet fixedCompounds;
+    private final int numberOfChains;
+    private final int checkInterval;
+    private final double tolerance;
+
+    //chain -> assignment frequencies and checkpoint of its latest report
+    private final int[][] latestReports;
+    private final int[] latestCheckpoints;
+
+    private volatile boolean converged;
+    private double statistic;
+    private int lastCheckpoint;
+
+    ConvergenceMonitor(Graph<?> graph, TIntHashSet fixedCompounds, int numberOfChains, int checkInterval, double tolerance) {
+        if (numberOfChains < 2) throw new IllegalArgumentException("convergence can only be monitored for at least 2 chains.");
+        if (checkInterval <= 0) throw new IllegalArgumentException("check interval must be positive.");
+        this.graph = graph;
+        this.fixedCompounds = fixedCompounds;
+        this.numberOfChains = numberOfChains;
+        this.checkInterval = checkInterval;
+        this.tolerance = tolerance;
+        this.latestReports = new int[numberOfChains][];
+        this.latestCheckpoints = new int[numberOfChains];
+        this.statistic = Double.NaN;
+        this.lastCheckpoint = 0;
+    }
+
+    int getCheckInterval() {
+        return checkInterval;
+    }
+
+    boolean isConverged() {
+        return converged;
+    }
+
+    /**
+     * @return potential scale reduction factor of the last complete checkpoint. NaN if no checkpoint was reached by all chains.
+     */
+    synchronized double getStatistic() {
+        return statistic;
+    }
+
+    /**
+     * @return number of sweeps after burn-in of the slowest chain at the last complete checkpoint.
+     */
+    synchronized int getSweeps() {
+        return lastCheckpoint * checkInterval;
+    }
+
+    /**
+     * report the assignment frequencies of a chain after checkpoint*checkInterval sweeps after burn-in.
+     * The frequencies are copied and replace the previous report of this chain.
+     */
+    void report(int chain, int checkpoint, int[] assignmentFreq) {
+        final int[] copy = assignmentFreq.clone();
+        final int[][] complete;
+        final int slowestCheckpoint;
+        synchronized (this) {
+            if (converged || checkpoint <= latestCheckpoints[chain]) return;
+            latestReports[chain] = copy;
+            latestCheckpoints[chain] = checkpoint;
+            int min = checkpoint;
+            for (int c : latestCheckpoints) min = Math.min(min, c);
+            if (min <= lastCheckpoint) return;
+            slowestCheckpoint = min;
+            // reports are never modified, they are only replaced
+            complete = latestReports.clone();
+        }
+
+        final double psrf = computeStatistic(complete);
+
+        synchronized (this) {
+            if (converged || slowestCheckpoint <= lastCheckpoint) return;
+            lastCheckpoint = slowestCheckpoint;
+            statistic = psrf;
+            if (psrf - 1d <= tolerance) {
+                converged = true;
+                Arrays.fill(latestReports, null);
+            }
+        }
+    }
+
+    private double computeStatistic(int[][] frequencies) {
+        final int m = frequencies.length;
+        final double[] p = new double[m];
+        final int[] samples = new int[m];
+        double max = 1d;
+        for (int i = 0; i < graph.numberOfCompounds(); i++) {
+            if (fixedCompounds != null && fixedCompounds.contains(i)) continue;
+            final int[] b = graph.getPeakBoundaries(i);
+            final int min = b[0];
+            final int maxIdx = b[1];
+            if (min == maxIdx) continue;
+
+            //every sample increments the frequency of exactly one candidate per compound
+            int n = Integer.MAX_VALUE;
+            for (int c = 0; c < m; c++) {
+                int sum = 0;
+                for (int j = min; j <= maxIdx; j++) sum += frequencies[c][j];
+                samples[c] = sum;
+                n = Math.min(n, sum);
+            }
+            //not enough samples to estimate the within-chain variance
+            if (n < 2) return Double.POSITIVE_INFINITY;
+
+            for (int j = min; j <= maxIdx; j++) {
+                double mean = 0d;
+                double within = 0d;
+                for (int c = 0; c < m; c++) {
+                    p[c] = (double) frequencies[c][j] / samples[c];
+                    mean += p[c];
+                    //unbiased variance of the indicator samples of candidate j in chain c
+                    within += p[c] * (1d - p[c]) * samples[c] / (samples[c] - 1d);
+                }
+                mean /= m;
+                within /= m;
+                double between = 0d;
+                for (int c = 0; c < m; c++) {
+                    between += (p[c] - mean) * (p[c] - mean);
+                }
+                //variance of the chain means, that is B/n
+                between /= (m - 1);
+
+                final double psrf;
+                if (within <= 0d) {
+                    //all chains always chose or never chose this candidate
+                    psrf = between <= 0d ? 1d : Double.POSITIVE_INFINITY;
+                } else {
+                    final double pooled = (n - 1d) / n * within + between;
+                    psrf = Math.sqrt(pooled / within);
+                }
+                if (psrf > max) max = psrf;
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,77 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interns fragment and loss formulas to dense int ids. Two fragments have the same id if and only if their formulas
+ * in Hill notation are equal. So candidates can compare their fragments and losses by id instead of by formula string,
+ * and each formula string is stored only once for the whole dataset.
+ * Ids of different dictionaries are not comparable, so all candidates of one dataset have to be created with the same
+ * dictionary. The dictionary is referenced by the fragments of these candidates and freed together with them.
+ * All methods are thread-safe.
+ */
+public class FormulaDictionary {
+
+    private final TObjectIntHashMap<String> ids;
+    private final List<String> formulas;
+    private final TDoubleArrayList masses;
+
+    public FormulaDictionary() {
+        this.ids = new TObjectIntHashMap<>(1024, 0.75f, -1);
+        this.formulas = new ArrayList<>();
+        this.masses = new TDoubleArrayList();
+    }
+
+    /**
+     * @return id of the formula, adds it to the dictionary if it is not known yet
+     */
+    public int getId(MolecularFormula formula) {
+        final String hill = formula.formatByHill();
+        synchronized (this) {
+            final int id = ids.get(hill);
+            if (id >= 0) return id;
+            return add(hill, formula.getMass());
+        }
+    }
+
+    /**
+     * @return id of the formula given in Hill notation, adds it to the dictionary if it is not known yet
+     */
+    public int getId(String formula) {
+        synchronized (this) {
+            final int id = ids.get(formula);
+            if (id >= 0) return id;
+        }
+        final double mass = MolecularFormula.parse(formula).getMass();
+        synchronized (this) {
+            final int id = ids.get(formula);
+            if (id >= 0) return id;
+            return add(formula, mass);
+        }
+    }
+
+    private int add(String formula, double mass) {
+        final int id = formulas.size();
+        ids.put(formula, id);
+        formulas.add(formula);
+        masses.add(mass);
+        return id;
+    }
+
+    public synchronized String getFormula(int id) {
+        return formulas.get(id);
+    }
+
+    public synchronized double getMass(int id) {
+        return masses.get(id);
+    }
+
+    public synchronized int size() {
+        return formulas.size();
+    }
+}
@@ -2,32 +2,33 @@ package de.unijena.bioinf.GibbsSampling.model;
 
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by ge28quv on 16/05/17.
+ * Thread-safe. Fragment and loss formulas of candidates are interned by the {@link FormulaDictionary}.
  */
 public class FormulaFactory {
-    private static FormulaFactory instance;
+    private static final FormulaFactory instance = new FormulaFactory();
 
-    private Map<String, MolecularFormula> formulaMap;
+    private final ConcurrentMap<String, MolecularFormula> formulaMap;
 
 
     public static FormulaFactory getInstance(){
-        if (instance==null) instance = new FormulaFactory();
         return instance;
     }
 
     public FormulaFactory() {
-        this.formulaMap = new HashMap<>();
+        this.formulaMap = new ConcurrentHashMap<>();
     }
 
     public MolecularFormula getFormula(String formulaString){
         MolecularFormula mf = formulaMap.get(formulaString);
         if (mf ==null) {
             mf = MolecularFormula.parse(formulaString);
-            formulaMap.put(formulaString, mf);
+            final MolecularFormula known = formulaMap.putIfAbsent(formulaString, mf);
+            if (known != null) mf = known;
         }
         return mf;
     }
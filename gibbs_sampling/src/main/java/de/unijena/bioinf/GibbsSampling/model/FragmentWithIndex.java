@@ -1,26 +1,53 @@
 package de.unijena.bioinf.GibbsSampling.model;
 
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+
 /**
  * Created by ge28quv on 16/05/17.
  */
 public class FragmentWithIndex implements Comparable<FragmentWithIndex> {
-    public final String mf;
+    private final FormulaDictionary dictionary;
+    /**
+     * id of the formula in the {@link FormulaDictionary}
+     */
+    public final int formulaId;
     public final short idx;
     public final double score;
 
-    public FragmentWithIndex(String mf, short idx, double score) {
-        this.mf = mf;
+    public FragmentWithIndex(FormulaDictionary dictionary, int formulaId, short idx, double score) {
+        this.dictionary = dictionary;
+        this.formulaId = formulaId;
         this.idx = idx;
         this.score = score;
     }
 
+    public FragmentWithIndex(FormulaDictionary dictionary, MolecularFormula mf, short idx, double score) {
+        this(dictionary, dictionary.getId(mf), idx, score);
+    }
+
+    public FragmentWithIndex(FormulaDictionary dictionary, String mf, short idx, double score) {
+        this(dictionary, dictionary.getId(mf), idx, score);
+    }
+
+    /**
+     * orders fragments by formula id. Fragments with the same formula are equal.
+     * Both fragments have to be from the same {@link FormulaDictionary}.
+     */
     @Override
     public int compareTo(FragmentWithIndex o) {
-        return mf.compareTo(o.mf);
+        return Integer.compare(formulaId, o.formulaId);
     }
 
     public String getFormula() {
-        return mf;
+        return dictionary.getFormula(formulaId);
+    }
+
+    public FormulaDictionary getDictionary() {
+        return dictionary;
+    }
+
+    public int getFormulaId() {
+        return formulaId;
     }
 
     public short getIndex() {
@@ -8,10 +8,34 @@ import java.util.Arrays;
 public class FragmentsAndLosses {
     private final FragmentWithIndex[] fragments;
     private final FragmentWithIndex[] losses;
+    //formula ids of fragments and losses, same order as the arrays above
+    private final int[] fragmentIds;
+    private final int[] lossIds;
 
+    /**
+     * @param fragments fragments sorted by formula id
+     * @param losses losses sorted by formula id
+     */
     public FragmentsAndLosses(FragmentWithIndex[] fragments, FragmentWithIndex[] losses) {
         this.fragments = fragments;
         this.losses = losses;
+        this.fragmentIds = toIds(fragments);
+        this.lossIds = toIds(losses);
+    }
+
+    private static int[] toIds(FragmentWithIndex[] fragments) {
+        final int[] ids = new int[fragments.length];
+        for (int i = 0; i < fragments.length; i++) {
+            ids[i] = fragments[i].getFormulaId();
+        }
+        return ids;
+    }
+
+    /**
+     * @return dictionary of the formula ids, null if there are no fragments
+     */
+    public FormulaDictionary getDictionary() {
+        return fragments.length > 0 ? fragments[0].getDictionary() : null;
     }
 
     public FragmentWithIndex[] getFragments() {
@@ -22,6 +46,20 @@ public class FragmentsAndLosses {
         return losses;
     }
 
+    /**
+     * @return sorted formula ids of all fragments
+     */
+    public int[] getFragmentIds() {
+        return fragmentIds;
+    }
+
+    /**
+     * @return sorted formula ids of all losses
+     */
+    public int[] getLossIds() {
+        return lossIds;
+    }
+
 
     @Override
     public boolean equals(Object o) {
@@ -18,9 +18,12 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
 //    protected MolecularFormula formula;
 //    protected PrecursorIonType ionType;
 
-    public static FragmentsCandidate newInstance(FTree tree, Ms2Experiment experiment){
+    /**
+     * @param dictionary interns the fragment and loss formulas. Use the same dictionary for all candidates of a dataset.
+     */
+    public static FragmentsCandidate newInstance(FTree tree, Ms2Experiment experiment, FormulaDictionary dictionary){
 
-        FragmentsAndLosses fragmentsAndLosses = getFragments(tree, experiment);
+        FragmentsAndLosses fragmentsAndLosses = getFragments(tree, experiment, dictionary);
         double score = (tree.getAnnotationOrThrow(TreeScoring.class)).getOverallScore();
         MolecularFormula formula = tree.getRoot().getFormula();
         PrecursorIonType ionType = tree.getAnnotationOrThrow(PrecursorIonType.class);
@@ -35,7 +38,10 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
         return candidate;
     }
 
-    public static List<FragmentsCandidate> createAllCandidateInstances(Collection<FTree> trees, Ms2Experiment experiment){
+    /**
+     * @param dictionary interns the fragment and loss formulas. Use the same dictionary for all candidates of a dataset.
+     */
+    public static List<FragmentsCandidate> createAllCandidateInstances(Collection<FTree> trees, Ms2Experiment experiment, FormulaDictionary dictionary){
 
         Map<Peak, List<Fragment>> peakToFragments = new HashMap<>();
 
@@ -73,7 +79,7 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
 
         List<FragmentsCandidate> candidates = new ArrayList<>();
         for (FTree tree : trees) {
-            FragmentsAndLosses fragmentsAndLosses = getFragments(tree, peakToIdx);
+            FragmentsAndLosses fragmentsAndLosses = getFragments(tree, peakToIdx, dictionary);
             double score = (tree.getAnnotationOrThrow(TreeScoring.class)).getOverallScore();
             MolecularFormula formula = tree.getRoot().getFormula();
             PrecursorIonType ionType = tree.getAnnotationOrThrow(PrecursorIonType.class);
@@ -124,7 +130,7 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
         }
     }
 
-    private static FragmentsAndLosses getFragments(FTree tree, TObjectIntMap<Peak> peakToIdx) {
+    private static FragmentsAndLosses getFragments(FTree tree, TObjectIntMap<Peak> peakToIdx, FormulaDictionary dictionary) {
         List<Fragment> fragments = tree.getFragments();
 
         MolecularFormula root = tree.getRoot().getFormula();
@@ -147,7 +153,7 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
                 }
                 else if (idx>Short.MAX_VALUE) throw new RuntimeException("index too big");
                 final double score = fscore.get(f).sum()+lscore.get(f.getIncomingEdge()).sum();
-                lossWithIdx[i++] = new FragmentWithIndex(root.subtract(f.getFormula()).formatByHill(), (short)idx, score);
+                lossWithIdx[i++] = new FragmentWithIndex(dictionary, root.subtract(f.getFormula()), (short)idx, score);
 
             }
         }
@@ -163,29 +169,13 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
             else if (idx>Short.MAX_VALUE) throw new RuntimeException("index too big");
             //todo is root??
             final double score = fscore.get(f).sum()+(f.isRoot()?0:lscore.get(f.getIncomingEdge()).sum());
-            fragWithIdx[i++] = new FragmentWithIndex(f.getFormula().formatByHill(), (short)idx, score);
+            fragWithIdx[i++] = new FragmentWithIndex(dictionary, f.getFormula(), (short)idx, score);
 
         }
 
         Arrays.sort(lossWithIdx);
         Arrays.sort(fragWithIdx);
 
-        String[] lStrings = new String[lossWithIdx.length];
-        short[] lIdx = new short[lossWithIdx.length];
-
-        for (int j = 0; j < lossWithIdx.length; j++) {
-            lStrings[j] = lossWithIdx[j].mf;
-            lIdx[j] = lossWithIdx[j].idx;
-        }
-
-        String[] fStrings = new String[fragWithIdx.length];
-        short[] fIdx = new short[fragWithIdx.length];
-
-        for (int j = 0; j < fragWithIdx.length; j++) {
-            fStrings[j] = fragWithIdx[j].mf;
-            fIdx[j] = fragWithIdx[j].idx;
-        }
-
         return new FragmentsAndLosses(fragWithIdx, lossWithIdx);
     }
 
@@ -195,7 +185,7 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
     }
 
 
-    private static FragmentsAndLosses getFragments(FTree tree, Ms2Experiment experiment) {
+    private static FragmentsAndLosses getFragments(FTree tree, Ms2Experiment experiment, FormulaDictionary dictionary) {
         MolecularFormula root = tree.getRoot().getFormula();
         List<Fragment> fragments = tree.getFragments();
         FragmentWithIndex[] lossWithIdx = new FragmentWithIndex[fragments.size() - 1];
@@ -251,7 +241,7 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
                     throw new RuntimeException("index < 0");
                 }
                 else if (idx>Short.MAX_VALUE) throw new RuntimeException("index too big");
-                lossWithIdx[i++] = new FragmentWithIndex(root.subtract(f.getFormula()).formatByHill(), (short)idx, f.getIncomingEdge().getWeight());
+                lossWithIdx[i++] = new FragmentWithIndex(dictionary, root.subtract(f.getFormula()), (short)idx, f.getIncomingEdge().getWeight());
 
             }
         }
@@ -278,7 +268,7 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
                 throw new RuntimeException("index < 0");
             }
             else if (idx>Short.MAX_VALUE) throw new RuntimeException("index too big");
-            fragWithIdx[i++] = new FragmentWithIndex(f.getFormula().formatByHill(), (short)idx, f.getIncomingEdge().getWeight());
+            fragWithIdx[i++] = new FragmentWithIndex(dictionary, f.getFormula(), (short)idx, f.getIncomingEdge().getWeight());
 
 //            fStrings[i++] = f.getFormula().formatByHill();
 //            fIdx[i] = (short)f.getColor();
@@ -287,26 +277,17 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
         Arrays.sort(lossWithIdx);
         Arrays.sort(fragWithIdx);
 
-        String[] lStrings = new String[lossWithIdx.length];
-        short[] lIdx = new short[lossWithIdx.length];
-
-        for (int j = 0; j < lossWithIdx.length; j++) {
-            lStrings[j] = lossWithIdx[j].mf;
-            lIdx[j] = lossWithIdx[j].idx;
-        }
-
-        String[] fStrings = new String[fragWithIdx.length];
-        short[] fIdx = new short[fragWithIdx.length];
-
-        for (int j = 0; j < fragWithIdx.length; j++) {
-            fStrings[j] = fragWithIdx[j].mf;
-            fIdx[j] = fragWithIdx[j].idx;
-        }
-
         return new FragmentsAndLosses(fragWithIdx, lossWithIdx);
     }
 
 
+    /**
+     * @return dictionary of the fragment and loss formula ids, null if the candidate has no fragments
+     */
+    public FormulaDictionary getDictionary(){
+        return getCandidate().getDictionary();
+    }
+
     public FragmentWithIndex[] getFragments(){
         return getCandidate().getFragments();
     }
@@ -315,4 +296,18 @@ public class FragmentsCandidate extends StandardCandidate<FragmentsAndLosses>{
         return getCandidate().getLosses();
     }
 
+    /**
+     * @return sorted ids of all fragment formulas in the {@link FormulaDictionary}
+     */
+    public int[] getFragmentIds(){
+        return getCandidate().getFragmentIds();
+    }
+
+    /**
+     * @return sorted ids of all loss formulas in the {@link FormulaDictionary}
+     */
+    public int[] getLossIds(){
+        return getCandidate().getLossIds();
+    }
+
 }
@@ -6,6 +6,10 @@ import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.hash.TIntHashSet;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMasterJJob<Scored<C>[][]> {
     public static final boolean DEBUG = false;
@@ -51,6 +55,7 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
     public GibbsMFCorrectionNetwork(Graph graph, TIntHashSet fixedCompounds) {
         super(JobType.CPU);
         this.graph = graph;
+        this.graph.compress();
         this.fixedCompounds = fixedCompounds==null?new TIntHashSet():fixedCompounds;
         this.random = new Random();
         this.setActive();
@@ -113,10 +118,10 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
             int peak = graph.getPeakIdx(i);
             if (isFixed(fixedCompounds, peak)) continue;
 
-            int[] conn = this.graph.getConnections(i);
-            for(int j = 0; j < conn.length; ++j) {
-                if(this.active[conn[j]]) {
-                    this.addActiveEdge(conn[j], i);
+            for(int k = this.graph.getEdgeOffset(i), end = this.graph.getEdgeOffset(i + 1); k < end; ++k) {
+                final int c = this.graph.getEdgeTarget(k);
+                if(this.active[c]) {
+                    this.addActiveEdge(c, i, this.graph.getReverseEdge(k));
                     ++this.activeEdgeCounter[i];
                 }
             }
@@ -146,11 +151,62 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
         this.burnIn = burnIn;
     }
 
+    /*
+    if set, assignment frequencies are reported to the monitor and sampling stops as soon as all chains converged.
+     */
+    private ConvergenceMonitor convergenceMonitor;
+    private int chainIdx;
+
+    void setConvergenceMonitor(ConvergenceMonitor convergenceMonitor, int chainIdx) {
+        this.convergenceMonitor = convergenceMonitor;
+        this.chainIdx = chainIdx;
+    }
+
+    /*
+    chromatic sampling: compounds are colored such that no two compounds of the same color are connected.
+    All compounds of one color are conditionally independent given the others and are sampled in parallel.
+     */
+    private static final int CHROMATIC_GRAIN_SIZE = 32;
+    private int numberOfThreads = 1;
+    private int[][] colorClasses;
+    private Object[] compoundLocks;
+    private int[] affectedStamp;
+    private int currentStamp;
+    private int[] affectedCompounds;
+    private final AtomicInteger numberOfAffectedCompounds = new AtomicInteger();
+    private final AtomicInteger numberOfChangedCompounds = new AtomicInteger();
+
+    /**
+     * sample a single chain with several threads. Compounds are colored such that no two compounds of the same color
+     * are connected in the graph. Each sweep samples all compounds of one color in parallel, one color after another
+     * (chromatic Gibbs sampling). This is still a valid Gibbs sampler, as compounds of the same color only
+     * depend on compounds of other colors.
+     * @param numberOfThreads number of threads used for sampling. 1 for sequential sampling in random order.
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
     @Override
     protected Scored<C>[][] compute() throws Exception {
+        if (numberOfThreads <= 1) return sample(null);
+        final ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+        try {
+            return sample(pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Scored<C>[][] sample(ForkJoinPool pool) throws Exception {
         if (maxSteps<0 || burnIn<0) throw new IllegalArgumentException("number of iterations steps not set.");
         updateProgress(0, maxSteps+burnIn, 0);
         setActive();
+        if (pool != null) initChromaticSampling();
         this.burnInRounds = burnIn;
         int iterationStepLength = this.graph.numberOfCompounds();
         double sampleProbability;
@@ -160,7 +216,6 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
         for(int i = 0; i < burnIn + maxSteps; ++i) {
             this.currentRound = i;
             boolean changed = false;
-            int[] randomOrdering = getRandomOrdering(iterationStepLength);
 
             if (OUTPUT_SAMPLE_PROBABILITY) {
                 if (i%10!=0) continue;
@@ -188,9 +243,14 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
             }
 
 
-            for(int runtime = 0; runtime < randomOrdering.length; ++runtime) {
-                if(this.iterationStep(randomOrdering[runtime])) {
-                    changed = true;
+            if (pool != null) {
+                changed = chromaticSweep(pool);
+            } else {
+                int[] randomOrdering = getRandomOrdering(iterationStepLength);
+                for(int runtime = 0; runtime < randomOrdering.length; ++runtime) {
+                    if(this.iterationStep(randomOrdering[runtime])) {
+                        changed = true;
+                    }
                 }
             }
 
@@ -199,6 +259,17 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
             if (DEBUG && !changed) System.out.println("nothing changed in step "+i);
 
             updateProgress(0, maxSteps+burnIn, i+1);
+
+            if (convergenceMonitor != null && i >= burnIn) {
+                final int sweepsAfterBurnIn = i + 1 - burnIn;
+                if (sweepsAfterBurnIn % convergenceMonitor.getCheckInterval() == 0) {
+                    convergenceMonitor.report(chainIdx, sweepsAfterBurnIn / convergenceMonitor.getCheckInterval(), overallAssignmentFreq);
+                }
+                if (convergenceMonitor.isConverged()) {
+                    if (DEBUG) System.out.println("chain " + chainIdx + " converged after " + (i + 1) + " steps");
+                    break;
+                }
+            }
 //            if((i % step == 0 && i>0) || i == (burnIn+maxSteps-1)) {
 //                LOG().info("step "+((double)(((i+1)*100/(maxSteps+burnIn))))+"%");
 //
@@ -326,7 +397,7 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
         int min = b[0];
         int max = b[1];
         double probSum = this.posteriorProbSums[peakIdx];
-        int absIdx = this.getRandomIdx(min, max, probSum, this.posteriorProbs);
+        int absIdx = this.getRandomIdx(min, max, probSum, this.posteriorProbs, this.random);
         if(this.currentRound > this.burnInRounds) {
             if((double)(this.currentRound - this.burnInRounds) % DEFAULT_CORRELATION_STEPSIZE == 0.0D) {
                 ++this.overallAssignmentFreq[absIdx];
@@ -340,19 +411,19 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
             return false;
         } else {
             BitSet toUpdate = new BitSet();
-            int[] c = this.graph.getConnections(absCurrentActive);
-            for (int conjugate : c) {
+            for (int k = this.graph.getEdgeOffset(absCurrentActive), end = this.graph.getEdgeOffset(absCurrentActive + 1); k < end; ++k) {
+                final int conjugate = this.graph.getEdgeTarget(k);
                 final int corrspondingPeakIdx = this.graph.getPeakIdx(conjugate);
                 if (isFixed(fixedCompounds, corrspondingPeakIdx)) continue;
-                this.removeActiveEdge(absCurrentActive, conjugate);
+                this.removeActiveEdge(absCurrentActive, conjugate, k);
                 toUpdate.set(corrspondingPeakIdx);
             }
 
-            c = this.graph.getConnections(absIdx);
-            for (int conjugate : c) {
+            for (int k = this.graph.getEdgeOffset(absIdx), end = this.graph.getEdgeOffset(absIdx + 1); k < end; ++k) {
+                final int conjugate = this.graph.getEdgeTarget(k);
                 final int corrspondingPeakIdx = this.graph.getPeakIdx(conjugate);
                 if (isFixed(fixedCompounds, corrspondingPeakIdx)) continue;
-                this.addActiveEdge(absIdx, conjugate);
+                this.addActiveEdge(absIdx, conjugate, k);
                 toUpdate.set(corrspondingPeakIdx);
             }
 
@@ -372,18 +443,24 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
     }
 
 
-    private void removeActiveEdge(int outgoing, int incoming) {
+    /**
+     * @param edge position of the edge from outgoing to incoming in the compressed graph or -1 if there is no such edge
+     */
+    private double getLogWeight(int edge) {
+        return edge < 0 ? 0.0D : this.graph.getEdgeLogWeight(edge);
+    }
+
+    private void removeActiveEdge(int outgoing, int incoming, int edge) {
         if (USE_MAX_PRIOR_PROBABILITY) {
-            final double removedWeight = this.graph.getLogWeight(outgoing, incoming);
+            final double removedWeight = getLogWeight(edge);
             final double currentWeight = this.priorProb[incoming];
             if (removedWeight==currentWeight){
                 //find 2nd best score
                 double max = 0; //no active edge = 0;
-                int[] conn = this.graph.getConnections(incoming);
-                for(int j = 0; j < conn.length; ++j) {
-                    final int c = conn[j];
+                for(int k = this.graph.getEdgeOffset(incoming), end = this.graph.getEdgeOffset(incoming + 1); k < end; ++k) {
+                    final int c = this.graph.getEdgeTarget(k);
                     if(this.active[c] && c!=outgoing) {
-                        final double weight = graph.getLogWeight(c, incoming);
+                        final double weight = getLogWeight(this.graph.getReverseEdge(k));
                         if (weight>max) max = weight;
                     }
                 }
@@ -395,25 +472,25 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
 
         } else {
             if (USE_SQRT_PRIOR_PROBABILITY){
-                this.priorProb[incoming] -= Math.sqrt(this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] -= Math.sqrt(getLogWeight(edge));
             } else {
-                this.priorProb[incoming] -= (this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] -= getLogWeight(edge);
             }
         }
     }
 
-    private void addActiveEdge(int outgoing, int incoming) {
+    private void addActiveEdge(int outgoing, int incoming, int edge) {
         if (USE_MAX_PRIOR_PROBABILITY) {
-            final double newWeight = this.graph.getLogWeight(outgoing, incoming);
+            final double newWeight = getLogWeight(edge);
             final double currentWeight = this.priorProb[incoming];
             if (newWeight>currentWeight){
                 this.priorProb[incoming] = newWeight;
             }
         } else {
             if (USE_SQRT_PRIOR_PROBABILITY){
-                this.priorProb[incoming] += Math.sqrt(this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] += Math.sqrt(getLogWeight(edge));
             } else {
-                this.priorProb[incoming] += (this.graph.getLogWeight(outgoing, incoming));
+                this.priorProb[incoming] += getLogWeight(edge);
             }
         }
     }
@@ -429,7 +506,7 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
      * @param probs
      * @return absolute index
      */
-    private int getRandomIdx(int minIdx, int maxIdx, double probSum, double[] probs){
+    private int getRandomIdx(int minIdx, int maxIdx, double probSum, double[] probs, Random random){
         double r = random.nextDouble()*probSum;
         int absIdx = minIdx-1;
         double sum = 0;
@@ -465,6 +542,176 @@ public class GibbsMFCorrectionNetwork<C extends Candidate<?>> extends BasicMaste
         return absIdx;
     }
 
+    private void initChromaticSampling() {
+        final int numberOfCompounds = this.graph.numberOfCompounds();
+        this.colorClasses = colorCompounds();
+        this.compoundLocks = new Object[numberOfCompounds];
+        for (int i = 0; i < numberOfCompounds; ++i) this.compoundLocks[i] = new Object();
+        this.affectedStamp = new int[numberOfCompounds];
+        this.currentStamp = 0;
+        this.affectedCompounds = new int[numberOfCompounds];
+        LOG().debug("chromatic sampling of " + numberOfCompounds + " compounds with " + colorClasses.length + " colors and " + numberOfThreads + " threads");
+    }
+
+    /**
+     * greedy coloring of the compound graph, compounds with many neighbours first.
+     * Two compounds are neighbours if any of their candidates are connected.
+     * @return compound indices of each color
+     */
+    private int[][] colorCompounds() {
+        final int numberOfCompounds = this.graph.numberOfCompounds();
+        final int[][] neighbours = new int[numberOfCompounds][];
+        final TIntHashSet set = new TIntHashSet();
+        for (int i = 0; i < numberOfCompounds; ++i) {
+            set.clear();
+            final int[] b = this.graph.getPeakBoundaries(i);
+            for (int k = this.graph.getEdgeOffset(b[0]), end = this.graph.getEdgeOffset(b[1] + 1); k < end; ++k) {
+                final int neighbour = this.graph.getPeakIdx(this.graph.getEdgeTarget(k));
+                if (neighbour != i) set.add(neighbour);
+            }
+            neighbours[i] = set.toArray();
+        }
+
+        final Integer[] order = new Integer[numberOfCompounds];
+        for (int i = 0; i < numberOfCompounds; ++i) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Integer.compare(neighbours[o2].length, neighbours[o1].length);
+            }
+        });
+
+        final int[] colors = new int[numberOfCompounds];
+        Arrays.fill(colors, -1);
+        // usedBy[c] == v+1 if color c is used by a neighbour of v
+        final int[] usedBy = new int[numberOfCompounds + 1];
+        final TIntArrayList sizes = new TIntArrayList();
+        for (int v : order) {
+            for (int u : neighbours[v]) {
+                if (colors[u] >= 0) usedBy[colors[u]] = v + 1;
+            }
+            int color = 0;
+            while (usedBy[color] == v + 1) ++color;
+            colors[v] = color;
+            if (color == sizes.size()) sizes.add(0);
+            sizes.set(color, sizes.get(color) + 1);
+        }
+
+        final int[][] colorClasses = new int[sizes.size()][];
+        for (int c = 0; c < colorClasses.length; ++c) colorClasses[c] = new int[sizes.get(c)];
+        final int[] filled = new int[colorClasses.length];
+        for (int i = 0; i < numberOfCompounds; ++i) {
+            colorClasses[colors[i]][filled[colors[i]]++] = i;
+        }
+        return colorClasses;
+    }
+
+    /**
+     * one sweep of chromatic sampling. Colors are visited in random order.
+     * First all compounds of a color are sampled, their changed active candidates are added to the prior probabilities
+     * of the connected candidates. Afterwards the posterior probabilities of all affected compounds are updated.
+     * @return true if any active candidate changed
+     */
+    private boolean chromaticSweep(ForkJoinPool pool) {
+        numberOfChangedCompounds.set(0);
+        final int[] colorOrdering = getRandomOrdering(colorClasses.length);
+        for (int color : colorOrdering) {
+            final int[] compounds = colorClasses[color];
+            ++currentStamp;
+            numberOfAffectedCompounds.set(0);
+            runChromatic(pool, compounds, compounds.length, true);
+            runChromatic(pool, affectedCompounds, numberOfAffectedCompounds.get(), false);
+        }
+        return numberOfChangedCompounds.get() > 0;
+    }
+
+    private void runChromatic(ForkJoinPool pool, int[] compounds, int length, boolean sample) {
+        if (length <= CHROMATIC_GRAIN_SIZE) {
+            for (int i = 0; i < length; ++i) {
+                if (sample) sampleCompound(compounds[i]);
+                else updatePeak(compounds[i]);
+            }
+        } else {
+            pool.invoke(new ChromaticTask(compounds, 0, length, sample));
+        }
+    }
+
+    private final class ChromaticTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] compounds;
+        private final int from, to;
+        private final boolean sample;
+
+        private ChromaticTask(int[] compounds, int from, int to, boolean sample) {
+            this.compounds = compounds;
+            this.from = from;
+            this.to = to;
+            this.sample = sample;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHROMATIC_GRAIN_SIZE) {
+                for (int i = from; i < to; ++i) {
+                    if (sample) sampleCompound(compounds[i]);
+                    else updatePeak(compounds[i]);
+                }
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ChromaticTask(compounds, from, mid, sample), new ChromaticTask(compounds, mid, to, sample));
+            }
+        }
+    }
+
+    /**
+     * same as {@link #iterationStep(int)}, but may run in parallel for compounds which are not connected.
+     * Updates of the prior probabilities of a connected compound are synchronized on this compound, its posterior
+     * probabilities are updated later on.
+     */
+    private void sampleCompound(int peakIdx) {
+        final int[] b = this.graph.getPeakBoundaries(peakIdx);
+        final int min = b[0];
+        final int max = b[1];
+        final int absIdx = this.getRandomIdx(min, max, this.posteriorProbSums[peakIdx], this.posteriorProbs, ThreadLocalRandom.current());
+        if (this.currentRound > this.burnInRounds && (this.currentRound - this.burnInRounds) % DEFAULT_CORRELATION_STEPSIZE == 0) {
+            ++this.overallAssignmentFreq[absIdx];
+        }
+
+        final int absCurrentActive = this.activeIdx[peakIdx] + min;
+        if (absCurrentActive == absIdx) return;
+        numberOfChangedCompounds.incrementAndGet();
+        this.activeIdx[peakIdx] = absIdx - min;
+        this.active[absCurrentActive] = false;
+        this.active[absIdx] = true;
+        updateConnectedPriors(absCurrentActive, false);
+        updateConnectedPriors(absIdx, true);
+    }
+
+    private void updateConnectedPriors(int candidate, boolean activated) {
+        int k = this.graph.getEdgeOffset(candidate);
+        final int end = this.graph.getEdgeOffset(candidate + 1);
+        while (k < end) {
+            //edges are sorted by target, so all edges into one compound are consecutive
+            final int targetPeakIdx = this.graph.getPeakIdx(this.graph.getEdgeTarget(k));
+            int blockEnd = k + 1;
+            while (blockEnd < end && this.graph.getPeakIdx(this.graph.getEdgeTarget(blockEnd)) == targetPeakIdx) ++blockEnd;
+            if (!isFixed(fixedCompounds, targetPeakIdx)) {
+                synchronized (compoundLocks[targetPeakIdx]) {
+                    for (int e = k; e < blockEnd; ++e) {
+                        if (activated) this.addActiveEdge(candidate, this.graph.getEdgeTarget(e), e);
+                        else this.removeActiveEdge(candidate, this.graph.getEdgeTarget(e), e);
+                    }
+                    if (affectedStamp[targetPeakIdx] != currentStamp) {
+                        affectedStamp[targetPeakIdx] = currentStamp;
+                        affectedCompounds[numberOfAffectedCompounds.getAndIncrement()] = targetPeakIdx;
+                    }
+                }
+            }
+            k = blockEnd;
+        }
+    }
+
     private void updatePeak(int peakIdx) {
         int[] b = this.graph.getPeakBoundaries(peakIdx);
         int min = b[0];
@@ -22,11 +22,14 @@ public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<Compo
     private int maxProgress;
     private int currentProgress;
     private int step;
+    private TIntHashSet fixedCompounds;
+    private ConvergenceMonitor convergenceMonitor;
 
     public GibbsParallel(Graph<C> graph, int repetitions, TIntHashSet fixedCompounds) throws ExecutionException {
         super(JobType.CPU);
         this.repetitions = repetitions;
         this.graph = graph;
+        this.fixedCompounds = fixedCompounds;
         this.gibbsNetworks = init(repetitions, fixedCompounds);
     }
 
@@ -115,6 +118,46 @@ public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<Compo
         this.burnIn = burnIn;
     }
 
+    private int convergenceCheckInterval = -1;
+    private double convergenceTolerance;
+
+    /**
+     * stop sampling of all repetitions as soon as the assignment frequencies of all compounds converged.
+     * Every checkInterval steps after burn-in the Gelman-Rubin potential scale reduction factor is computed on the
+     * candidate assignment frequencies of the parallel chains. Sampling stops if it is at most 1+tolerance for all compounds.
+     * Requires at least 2 repetitions.
+     * @param checkInterval number of steps between two checks. Non-positive values disable the check.
+     * @param tolerance maximal deviation of the potential scale reduction factor from 1
+     */
+    public void setConvergenceCheck(int checkInterval, double tolerance) {
+        this.convergenceCheckInterval = checkInterval;
+        this.convergenceTolerance = tolerance;
+    }
+
+    private int threadsPerRepetition = 1;
+
+    /**
+     * use chromatic sampling with the given number of threads for each repetition.
+     * @see GibbsMFCorrectionNetwork#setNumberOfThreads(int)
+     */
+    public void setThreadsPerRepetition(int threadsPerRepetition) {
+        this.threadsPerRepetition = threadsPerRepetition;
+    }
+
+    /**
+     * @return the potential scale reduction factor of the last convergence check. NaN if convergence was not checked.
+     */
+    public double getConvergenceStatistic() {
+        return convergenceMonitor == null ? Double.NaN : convergenceMonitor.getStatistic();
+    }
+
+    /**
+     * @return true if sampling was stopped early because all chains converged
+     */
+    public boolean hasConverged() {
+        return convergenceMonitor != null && convergenceMonitor.isConverged();
+    }
+
     @Override
     protected CompoundResult<C>[] compute() throws Exception {
         if (maxSteps<0 || burnIn<0) throw new IllegalArgumentException("Number of iterations steps not set.");
@@ -123,15 +166,35 @@ public class GibbsParallel<C extends Candidate<?>> extends BasicMasterJJob<Compo
         currentProgress = 0;
         step = maxProgress/20;
 
+        convergenceMonitor = null;
+        if (convergenceCheckInterval > 0) {
+            if (repetitions < 2) {
+                LOG().warn("Convergence of the Gibbs sampling can only be checked for at least 2 repetitions.");
+            } else {
+                convergenceMonitor = new ConvergenceMonitor(graph, fixedCompounds, repetitions, convergenceCheckInterval, convergenceTolerance);
+            }
+        }
+
         updateProgress(0, maxProgress, 0, "Sample probabilities");
+        int chainIdx = 0;
         for (final GibbsMFCorrectionNetwork gibbsNetwork : gibbsNetworks) {
             gibbsNetwork.setIterationSteps(maxStepProportioned, burnIn);
+            gibbsNetwork.setConvergenceMonitor(convergenceMonitor, chainIdx++);
+            gibbsNetwork.setNumberOfThreads(threadsPerRepetition);
             gibbsNetwork.addPropertyChangeListener(this);
             submitSubJob(gibbsNetwork);
         }
 
         awaitAllSubJobs();
 
+        if (convergenceMonitor != null) {
+            if (convergenceMonitor.isConverged()) {
+                LOG().info("Gibbs sampling converged after " + convergenceMonitor.getSweeps() + " of " + maxStepProportioned + " steps. Potential scale reduction factor: " + convergenceMonitor.getStatistic());
+            } else {
+                LOG().info("Gibbs sampling did not converge. Potential scale reduction factor: " + convergenceMonitor.getStatistic());
+            }
+        }
+
         combineResults();
 
         return createCompoundResults();
@@ -32,10 +32,18 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.LogManager;
 
 public class Graph<C extends Candidate<?>> {
-    protected final TIntIntHashMap[] indexMap;
-    protected final TDoubleArrayList[] weights;
+    // edge weights while building the graph. Are dropped after compressing the graph
+    protected TIntIntHashMap[] indexMap;
+    protected TDoubleArrayList[] weights;
     protected double[] edgeThresholds;
     protected int[][] connections;
+    // compressed sparse row representation of the final graph: the edges of candidate i are stored at positions
+    // edgeOffsets[i] to edgeOffsets[i+1]-1, sorted by target. reverseEdges[k] is the position of the edge in opposite
+    // direction or -1 if there is none.
+    protected int[] edgeOffsets;
+    protected int[] edgeTargets;
+    protected int[] reverseEdges;
+    protected double[] edgeWeights;
     protected int[] boundaries;
     private int[] formulaIdxToPeakIdx;
     protected int size;
@@ -49,7 +57,7 @@ public class Graph<C extends Candidate<?>> {
     public Graph(String[] ids, Scored<C>[][] possibleFormulas) {
         this.ids = ids;
         this.possibleFormulas = possibleFormulas;
-        InitData initData= this.setUp(possibleFormulas);
+        InitData<C> initData = setUp(possibleFormulas);
         this.boundaries = initData.boundaries;
         this.formulaIdxToPeakIdx = initData.formulaIdxToPeakIdx;
         this.possibleFormulas1D = initData.possibleFormulas1D;
@@ -86,7 +94,7 @@ public class Graph<C extends Candidate<?>> {
     }
 
     public static <C extends Candidate<?>> Graph<C> getGraph(String[] ids, Scored<C>[][] possibleFormulas){
-        InitData initData = setUp(possibleFormulas);
+        InitData<C> initData = setUp(possibleFormulas);
         Scored<C>[] possibleFormulas1D = initData.possibleFormulas1D;
         int[] boundaries = initData.boundaries;
         int[] formulaIdxToPeakIdx = initData.formulaIdxToPeakIdx;
@@ -98,7 +106,7 @@ public class Graph<C extends Candidate<?>> {
     private Graph(String[] ids, Scored<C>[][] possibleFormulas, TIntIntHashMap[] indexMap, TDoubleArrayList[] weights, int[][] connections, double[] edgeThresholds) {
         this.ids = ids;
         this.possibleFormulas = possibleFormulas;
-        InitData initData = this.setUp(possibleFormulas);
+        InitData<C> initData = setUp(possibleFormulas);
         this.boundaries = initData.boundaries;
         this.formulaIdxToPeakIdx = initData.formulaIdxToPeakIdx;
         this.possibleFormulas1D = initData.possibleFormulas1D;
@@ -109,6 +117,23 @@ public class Graph<C extends Candidate<?>> {
         this.connections = connections;
 //        this.edgeScorers = edgeScorers;
 //        this.edgeFilter = edgeFilter;
+        compress();
+    }
+
+    private Graph(String[] ids, Scored<C>[][] possibleFormulas, Graph<C> compressedGraph) {
+        this.ids = ids;
+        this.possibleFormulas = possibleFormulas;
+        InitData<C> initData = setUp(possibleFormulas);
+        this.boundaries = initData.boundaries;
+        this.formulaIdxToPeakIdx = initData.formulaIdxToPeakIdx;
+        this.possibleFormulas1D = initData.possibleFormulas1D;
+        this.size = this.possibleFormulas1D.length;
+        this.edgeThresholds = compressedGraph.edgeThresholds;
+        this.connections = compressedGraph.connections.clone();
+        this.edgeOffsets = compressedGraph.edgeOffsets;
+        this.edgeTargets = compressedGraph.edgeTargets;
+        this.reverseEdges = compressedGraph.reverseEdges;
+        this.edgeWeights = compressedGraph.edgeWeights;
     }
 
     private static <C extends Candidate<?>> void assertInput(Graph<C> graph) {
@@ -131,19 +156,26 @@ public class Graph<C extends Candidate<?>> {
     }
 
     public double getLogWeight(int i, int j) {
+        if (isCompressed()) {
+            final int k = getEdgeIndex(i, j);
+            return k < 0 ? 0.0D : this.edgeWeights[k];
+        }
         int relJ = this.indexMap[i].get(j);
         return relJ < 0?0.0D:this.weights[i].get(relJ);
     }
 
     public int getNumberOfConnections(int i) {
+        if (isCompressed()) return this.edgeOffsets[i + 1] - this.edgeOffsets[i];
         return this.weights[i].size();
     }
 
     public int[] getLogWeightConnections(int i) {
+        if (isCompressed()) return Arrays.copyOfRange(this.edgeTargets, this.edgeOffsets[i], this.edgeOffsets[i + 1]);
         return this.indexMap[i].keys();
     }
 
     public void setLogWeight(int i, int j, double weight) {
+        if (isCompressed()) throw new IllegalStateException("weights of a compressed graph cannot be changed");
         int relJ = this.indexMap[i].get(j);
         if(relJ < 0) {
             this.indexMap[i].put(j, this.weights[i].size());
@@ -154,6 +186,89 @@ public class Graph<C extends Candidate<?>> {
 
     }
 
+    /**
+     * @return true if the edges of this graph are stored in compressed sparse row format. The edges of a compressed
+     * graph are fixed.
+     */
+    public boolean isCompressed() {
+        return this.edgeOffsets != null;
+    }
+
+    /**
+     * Converts the edges given by the connections into compressed sparse row format and drops the hash maps used
+     * for building the graph. Rows of the connections array are sorted afterwards, such that getConnections(i)[k]
+     * is the edge at position getEdgeOffset(i)+k.
+     */
+    protected void compress() {
+        if (isCompressed()) return;
+        final int[] offsets = new int[this.size + 1];
+        for (int i = 0; i < this.size; ++i) {
+            Arrays.sort(this.connections[i]);
+            offsets[i + 1] = offsets[i] + this.connections[i].length;
+        }
+        final int numberOfEdges = offsets[this.size];
+        final int[] targets = new int[numberOfEdges];
+        final double[] weights = new double[numberOfEdges];
+        for (int i = 0; i < this.size; ++i) {
+            final int[] conns = this.connections[i];
+            for (int k = 0; k < conns.length; ++k) {
+                targets[offsets[i] + k] = conns[k];
+                final int relJ = this.indexMap[i].get(conns[k]);
+                weights[offsets[i] + k] = relJ < 0 ? 0.0D : this.weights[i].get(relJ);
+            }
+        }
+        final int[] reverse = new int[numberOfEdges];
+        for (int i = 0; i < this.size; ++i) {
+            for (int k = offsets[i]; k < offsets[i + 1]; ++k) {
+                final int j = targets[k];
+                final int r = Arrays.binarySearch(targets, offsets[j], offsets[j + 1], i);
+                reverse[k] = r < 0 ? -1 : r;
+            }
+        }
+        this.edgeTargets = targets;
+        this.edgeWeights = weights;
+        this.reverseEdges = reverse;
+        this.edgeOffsets = offsets;
+        this.indexMap = null;
+        this.weights = null;
+    }
+
+    /**
+     * @return position of the first edge of candidate i in the compressed graph
+     */
+    public int getEdgeOffset(int i) {
+        return this.edgeOffsets[i];
+    }
+
+    /**
+     * @return target candidate of the edge at position k in the compressed graph
+     */
+    public int getEdgeTarget(int k) {
+        return this.edgeTargets[k];
+    }
+
+    /**
+     * @return log weight of the edge at position k in the compressed graph
+     */
+    public double getEdgeLogWeight(int k) {
+        return this.edgeWeights[k];
+    }
+
+    /**
+     * @return position of the edge in opposite direction of the edge at position k or -1 if there is no such edge
+     */
+    public int getReverseEdge(int k) {
+        return this.reverseEdges[k];
+    }
+
+    /**
+     * @return position of the edge from i to j in the compressed graph or -1 if there is no such edge
+     */
+    public int getEdgeIndex(int i, int j) {
+        final int k = Arrays.binarySearch(this.edgeTargets, this.edgeOffsets[i], this.edgeOffsets[i + 1], j);
+        return k < 0 ? -1 : k;
+    }
+
     public void setEdgeThreshold(int idx, double thres) {
         this.edgeThresholds[idx] = thres;
     }
@@ -248,22 +363,23 @@ public class Graph<C extends Candidate<?>> {
     }
 
 
-    private static InitData setUp(Scored[][] possibleFormulas) {
+    private static <C extends Candidate<?>> InitData<C> setUp(Scored<C>[][] possibleFormulas) {
         int length = 0;
 
         for(int i = 0; i < possibleFormulas.length; ++i) {
             length += possibleFormulas[i].length;
         }
 
-        Scored[] possibleFormulas1D = new Scored[length];
+        @SuppressWarnings("unchecked") // generic array creation
+        Scored<C>[] possibleFormulas1D = new Scored[length];
         int[] formulaIdxToPeakIdx = new int[length];
         int z = 0;
 
         for(int i = 0; i < possibleFormulas.length; ++i) {
-            Scored[] scoredFormulas = possibleFormulas[i];
+            Scored<C>[] scoredFormulas = possibleFormulas[i];
 
             for(int j = 0; j < scoredFormulas.length; ++j) {
-                Scored smf = scoredFormulas[j];
+                Scored<C> smf = scoredFormulas[j];
                 possibleFormulas1D[z] = smf;
                 formulaIdxToPeakIdx[z] = i;
                 ++z;
@@ -278,7 +394,7 @@ public class Graph<C extends Candidate<?>> {
             boundaries[i] = sum;
         }
 
-        return new InitData(boundaries, formulaIdxToPeakIdx, possibleFormulas1D);
+        return new InitData<C>(boundaries, formulaIdxToPeakIdx, possibleFormulas1D);
     }
 
 
@@ -350,7 +466,7 @@ public class Graph<C extends Candidate<?>> {
 
             }
             this.possibleFormulas = possibleFormulasNew;
-            InitData initData = this.setUp(possibleFormulas);
+            InitData<C> initData = setUp(possibleFormulas);
             this.boundaries = initData.boundaries;
             this.formulaIdxToPeakIdx = initData.formulaIdxToPeakIdx;
             this.possibleFormulas1D = initData.possibleFormulas1D;
@@ -779,10 +895,12 @@ public class Graph<C extends Candidate<?>> {
             if (!ids[i].equals(this.ids[i])) throw new RuntimeException("new ids differ from old ones.");
         }
 
+        @SuppressWarnings("unchecked") // generic array creation
         Scored<C>[][] possibleFormulasSorted = new Scored[possibleFormulas.length][];
         for (int i = 0; i < possibleFormulas.length; i++) {
             Scored<C>[] candidates1 = this.possibleFormulas[i];
             Scored<C>[] candidates2 = possibleFormulas[i];
+            @SuppressWarnings("unchecked") // generic array creation
             Scored<C>[] candidates2Resorted = new Scored[candidates2.length];
             if (candidates1.length!=candidates2.length){
                 System.out.println("i "+i+" | id "+ids[i]);
@@ -807,6 +925,7 @@ public class Graph<C extends Candidate<?>> {
         }
 
 
+        if (isCompressed()) return new Graph<C>(this.ids, possibleFormulasSorted, this);
         return new Graph<C>(this.ids, possibleFormulasSorted, indexMap.clone(), weights, connections.clone(), edgeThresholds);
 
     }
@@ -107,6 +107,8 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
                 if (GibbsMFCorrectionNetwork.DEBUG) System.out.println("thinning out graph in "+(System.currentTimeMillis()-time)+" ms");
             }
         }
+        //edges are fixed from now on
+        graph.compress();
         return graph;
     }
 
@@ -156,6 +158,7 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
 
         this.edgeFilter.setThreshold(minV);
         final Graph final_graph = graph;
+        final double dissimilarScore = getDissimilarScore();
         size = graph.getSize();
         step = Math.max(size/20, 1);
         updateProgress(0, size,0, "Computing edges");
@@ -166,25 +169,30 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
             BasicJJob job = new BasicJJob() {
                 @Override
                 protected Object compute() throws Exception {
-                    TDoubleArrayList scores = new TDoubleArrayList(graph.getSize());
-
-                    for(int j = 0; j < graph.getSize(); ++j) {
-                        if(graph.getPeakIdx(final_i) == graph.getPeakIdx(j)) {
-                            scores.add(0.0D);
-                        } else {
-                            C candidate2 = graph.getPossibleFormulas1D(j).getCandidate();
-                            double score = 0.0D;
-
-                            for(int k = 0; k < edgeScorers.length; ++k) {
-                                EdgeScorer edgeScorer = edgeScorers[k];
-                                score += edgeScorer.score(candidate, candidate2);
+                    final int[] similarCompounds = getPossiblySimilarCompounds(graph.getPeakIdx(final_i));
+                    final double[] scores;
+                    if (similarCompounds==null){
+                        scores = new double[graph.getSize()];
+                        for(int j = 0; j < graph.getSize(); ++j) {
+                            if(graph.getPeakIdx(final_i) != graph.getPeakIdx(j)) {
+                                scores[j] = score(candidate, j);
+                            }
+                        }
+                    } else {
+                        //only candidates of possibly similar compounds have to be scored. All others get the same score.
+                        scores = new double[graph.getSize()];
+                        Arrays.fill(scores, dissimilarScore);
+                        final int[] ownBoundaries = graph.getPeakBoundaries(graph.getPeakIdx(final_i));
+                        Arrays.fill(scores, ownBoundaries[0], ownBoundaries[1]+1, 0d);
+                        for (int peakIdx : similarCompounds) {
+                            final int[] boundaries = graph.getPeakBoundaries(peakIdx);
+                            for (int j = boundaries[0]; j <= boundaries[1]; j++) {
+                                scores[j] = score(candidate, j);
                             }
-
-                            scores.add(score);
                         }
                     }
 
-                    edgeFilter.filterEdgesAndSetThreshold(final_graph, final_i, scores.toArray());
+                    edgeFilter.filterEdgesAndSetThreshold(final_graph, final_i, scores);
 
                     //progess is always fired if job done
                     checkForInterruption();
@@ -202,6 +210,53 @@ public class GraphBuilder<C extends Candidate<?>> extends BasicMasterJJob<Graph<
     }
 
 
+    private double score(C candidate, int j) {
+        C candidate2 = graph.getPossibleFormulas1D(j).getCandidate();
+        double score = 0.0D;
+
+        for(int k = 0; k < edgeScorers.length; ++k) {
+            EdgeScorer edgeScorer = edgeScorers[k];
+            score += edgeScorer.score(candidate, candidate2);
+        }
+        return score;
+    }
+
+    /**
+     * @return sum of the scores of all edge scorers for candidates of compounds which are not possibly similar. NaN if not all edge scorers are sparse.
+     */
+    private double getDissimilarScore() {
+        double score = 0.0D;
+        for (EdgeScorer<C> edgeScorer : edgeScorers) {
+            if (!(edgeScorer instanceof SparseEdgeScorer)) return Double.NaN;
+            score += ((SparseEdgeScorer<C>)edgeScorer).getDissimilarScore();
+        }
+        return score;
+    }
+
+    /**
+     * @return sorted union of the possibly similar compounds of all edge scorers. null if any edge scorer has to score all pairs.
+     */
+    private int[] getPossiblySimilarCompounds(int peakIdx) {
+        if (edgeScorers.length==0) return null;
+        TIntHashSet union = null;
+        int[] similar = null;
+        for (EdgeScorer<C> edgeScorer : edgeScorers) {
+            if (!(edgeScorer instanceof SparseEdgeScorer)) return null;
+            final int[] compounds = ((SparseEdgeScorer<C>)edgeScorer).getPossiblySimilarCompounds(peakIdx);
+            if (compounds==null) return null;
+            if (similar==null){
+                similar = compounds;
+            } else {
+                if (union==null) union = new TIntHashSet(similar);
+                union.addAll(compounds);
+            }
+        }
+        if (union==null) return similar;
+        similar = union.toArray();
+        Arrays.sort(similar);
+        return similar;
+    }
+
     private void setConnections() {
         long time = System.currentTimeMillis();
         graph.connections = this.edgeFilter.postprocessCompleteGraph(graph);
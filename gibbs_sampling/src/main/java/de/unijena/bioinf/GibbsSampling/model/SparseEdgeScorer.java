@@ -0,0 +1,22 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+/**
+ * An {@link EdgeScorer} which knows after {@link #prepare(Candidate[][])} which compounds might be similar at all.
+ * All candidates of compounds which are not listed for each other get the same score {@link #getDissimilarScore()},
+ * so the {@link GraphBuilder} only has to score candidate pairs of possibly similar compounds.
+ */
+public interface SparseEdgeScorer<C extends Candidate<?>> extends EdgeScorer<C> {
+
+    /**
+     *
+     * @param compoundIdx index of the compound in the candidates array given to {@link #prepare(Candidate[][])}
+     * @return sorted indices of all compounds whose candidates might get a score different from {@link #getDissimilarScore()}
+     * when scored against candidates of the given compound. null if this is not known and all pairs have to be scored.
+     */
+    int[] getPossiblySimilarCompounds(int compoundIdx);
+
+    /**
+     * @return the score {@link #score(Candidate, Candidate)} returns for all candidate pairs of compounds which are not possibly similar
+     */
+    double getDissimilarScore();
+}
@@ -103,6 +103,28 @@ public class TwoPhaseGibbsSampling<C extends Candidate<?>> extends BasicMasterJJ
         this.burnIn = burnIn;
     }
 
+    private int convergenceCheckInterval = -1;
+    private double convergenceTolerance;
+
+    /**
+     * stop sampling as soon as the parallel repetitions converged.
+     * @see GibbsParallel#setConvergenceCheck(int, double)
+     */
+    public void setConvergenceCheck(int checkInterval, double tolerance) {
+        this.convergenceCheckInterval = checkInterval;
+        this.convergenceTolerance = tolerance;
+    }
+
+    private int threadsPerRepetition = 1;
+
+    /**
+     * use chromatic sampling with the given number of threads for each repetition.
+     * @see GibbsMFCorrectionNetwork#setNumberOfThreads(int)
+     */
+    public void setThreadsPerRepetition(int threadsPerRepetition) {
+        this.threadsPerRepetition = threadsPerRepetition;
+    }
+
     @Override
     protected ZodiacResult<C> compute() throws Exception {
         if (maxSteps<0 || burnIn<0) throw new IllegalArgumentException("number of iterations steps not set.");
@@ -112,10 +134,13 @@ public class TwoPhaseGibbsSampling<C extends Candidate<?>> extends BasicMasterJJ
         validate(graph);
         gibbsParallel = new GibbsParallel<>(graph, repetitions);
         gibbsParallel.setIterationSteps(maxSteps, burnIn);
+        gibbsParallel.setConvergenceCheck(convergenceCheckInterval, convergenceTolerance);
+        gibbsParallel.setThreadsPerRepetition(threadsPerRepetition);
         submitSubJob(gibbsParallel);
 
         results1 = gibbsParallel.awaitResult();
         checkForInterruption();
+        double convergenceStatistic = gibbsParallel.getConvergenceStatistic();
 
         firstRoundIds = gibbsParallel.getGraph().getIds();
 
@@ -145,10 +170,14 @@ public class TwoPhaseGibbsSampling<C extends Candidate<?>> extends BasicMasterJJ
 
             gibbsParallel = new GibbsParallel<>(graph, repetitions, fixedIds);
             gibbsParallel.setIterationSteps(maxSteps, burnIn);
+            gibbsParallel.setConvergenceCheck(convergenceCheckInterval, convergenceTolerance);
+            gibbsParallel.setThreadsPerRepetition(threadsPerRepetition);
             submitSubJob(gibbsParallel);
 
             results2 = gibbsParallel.awaitResult();
             checkForInterruption();
+            //report the worse statistic of both rounds
+            if (!(gibbsParallel.getConvergenceStatistic() <= convergenceStatistic)) convergenceStatistic = gibbsParallel.getConvergenceStatistic();
 
 //            addConnectivityInfo(results2, graph, true);
 
@@ -158,7 +187,7 @@ public class TwoPhaseGibbsSampling<C extends Candidate<?>> extends BasicMasterJJ
             combinedResult = combineResults(results1, firstRoundIds, results2, usedIds);
 
         }
-        return new ZodiacResult(ids, graph, combinedResult);
+        return new ZodiacResult<>(ids, graph, combinedResult, convergenceStatistic);
     }
 
     private void addConnectivityInfo(CompoundResult<C>[] results, Graph<C> graph, boolean onlyAddNew){
@@ -6,11 +6,17 @@ public class ZodiacResult<C extends Candidate<?>> {
     private String[] ids;
     private Graph<C> graph;
     private CompoundResult<C>[] results;
+    private double convergenceStatistic;
 
     public ZodiacResult(String[] ids, Graph<C> graph, CompoundResult<C>[] results) {
+        this(ids, graph, results, Double.NaN);
+    }
+
+    public ZodiacResult(String[] ids, Graph<C> graph, CompoundResult<C>[] results, double convergenceStatistic) {
         this.ids = ids;
         this.graph = graph;
         this.results = results;
+        this.convergenceStatistic = convergenceStatistic;
     }
 
     public String[] getIds() {
@@ -24,4 +30,12 @@ public class ZodiacResult<C extends Candidate<?>> {
     public CompoundResult<C>[] getResults() {
         return results;
     }
+
+    /**
+     * @return the largest Gelman-Rubin potential scale reduction factor over all compounds which was achieved by the
+     * parallel Gibbs sampling chains. NaN if convergence was not monitored.
+     */
+    public double getConvergenceStatistic() {
+        return convergenceStatistic;
+    }
 }
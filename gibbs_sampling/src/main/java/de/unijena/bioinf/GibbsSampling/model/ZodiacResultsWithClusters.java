@@ -8,7 +8,11 @@ public class ZodiacResultsWithClusters extends ZodiacResult<FragmentsCandidate>
     Map<String, String[]> representativeToCluster;
 
     public ZodiacResultsWithClusters(String[] ids, Graph<FragmentsCandidate> graph, CompoundResult<FragmentsCandidate>[] results, Map<String, String[]> representativeToCluster) {
-        super(ids, graph, results);
+        this(ids, graph, results, representativeToCluster, Double.NaN);
+    }
+
+    public ZodiacResultsWithClusters(String[] ids, Graph<FragmentsCandidate> graph, CompoundResult<FragmentsCandidate>[] results, Map<String, String[]> representativeToCluster, double convergenceStatistic) {
+        super(ids, graph, results, convergenceStatistic);
         this.representativeToCluster = representativeToCluster;
     }
 
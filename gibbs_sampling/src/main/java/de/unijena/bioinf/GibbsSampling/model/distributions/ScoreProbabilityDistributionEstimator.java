@@ -4,13 +4,14 @@ import de.unijena.bioinf.ChemistryBase.math.HighQualityRandom;
 import de.unijena.bioinf.GibbsSampling.model.Candidate;
 import de.unijena.bioinf.GibbsSampling.model.EdgeScorer;
 import de.unijena.bioinf.GibbsSampling.model.GibbsMFCorrectionNetwork;
+import de.unijena.bioinf.GibbsSampling.model.SparseEdgeScorer;
 import gnu.trove.list.array.TDoubleArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 
-public class ScoreProbabilityDistributionEstimator<C extends Candidate<?>> implements EdgeScorer<C> {
+public class ScoreProbabilityDistributionEstimator<C extends Candidate<?>> implements SparseEdgeScorer<C> {
     private static final Logger LOG = LoggerFactory.getLogger(ScoreProbabilityDistributionEstimator.class);
     protected final EdgeScorer<C> edgeScorer;
     protected ScoreProbabilityDistribution scoreProbabilityDistribution;
@@ -192,6 +193,18 @@ public class ScoreProbabilityDistributionEstimator<C extends Candidate<?>> imple
         return prob;
     }
 
+    @Override
+    public int[] getPossiblySimilarCompounds(int compoundIdx) {
+        if (edgeScorer instanceof SparseEdgeScorer) return ((SparseEdgeScorer<C>)edgeScorer).getPossiblySimilarCompounds(compoundIdx);
+        return null;
+    }
+
+    @Override
+    public double getDissimilarScore() {
+        if (edgeScorer instanceof SparseEdgeScorer) return this.scoreProbabilityDistribution.toLogPvalue(((SparseEdgeScorer<C>)edgeScorer).getDissimilarScore());
+        return Double.NaN;
+    }
+
     public ScoreProbabilityDistribution getProbabilityDistribution() {
         return this.scoreProbabilityDistribution;
     }
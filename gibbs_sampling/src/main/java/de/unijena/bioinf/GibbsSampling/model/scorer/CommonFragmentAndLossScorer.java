@@ -3,14 +3,19 @@ package de.unijena.bioinf.GibbsSampling.model.scorer;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
 import de.unijena.bioinf.ChemistryBase.ms.*;
 import de.unijena.bioinf.GibbsSampling.model.*;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
 
 import java.util.*;
 
-public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidate> {
+public class CommonFragmentAndLossScorer implements SparseEdgeScorer<FragmentsCandidate> {
     protected TObjectIntHashMap<Ms2Experiment> idxMap;
     protected BitSet[] maybeSimilar;
+    //symmetric version of maybeSimilar. possiblySimilar[i] is sorted
+    protected int[][] possiblySimilar;
     protected TObjectDoubleHashMap<Ms2Experiment> normalizationMap;
     protected double threshold;
     protected  double MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES = 5;//changed from 3
@@ -19,10 +24,18 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
     }
 
     public void prepare(FragmentsCandidate[][] candidates) {
-        prepare(candidates, MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES);
+        prepare(candidates, true);
     }
 
-    private void prepare(FragmentsCandidate[][] candidates, double minimum_numer_matched_peaks_losses) {
+    /**
+     * @param useInvertedIndex false to test the similarity of all pairs of compounds
+     */
+    void prepare(FragmentsCandidate[][] candidates, boolean useInvertedIndex) {
+        prepare(candidates, MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES, useInvertedIndex);
+    }
+
+    private void prepare(FragmentsCandidate[][] candidates, double minimum_numer_matched_peaks_losses, boolean useInvertedIndex) {
+        final FormulaDictionary dictionary = getDictionary(candidates);
         double[] norm = this.normalization(candidates);
         this.normalizationMap = new TObjectDoubleHashMap(candidates.length, 0.75F, 0.0D / 0.0);
 
@@ -40,10 +53,10 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
             Ms2Experiment experiment = candidates[i][0].getExperiment();
             FragmentsCandidate[] currentCandidates = candidates[i];
 
-            PeakWithExplanation[] fragmentPeaks = getPeaksWithExplanations(currentCandidates, true);
+            PeakWithExplanation[] fragmentPeaks = getPeaksWithExplanations(currentCandidates, true, dictionary);
             allFragmentPeaks[i] = fragmentPeaks;
 
-            PeakWithExplanation[] lossPeaks = getPeaksWithExplanations(currentCandidates, false);
+            PeakWithExplanation[] lossPeaks = getPeaksWithExplanations(currentCandidates, false, dictionary);
             allLossPeaks[i] = lossPeaks;
 
             this.idxMap.put(experiment, i);
@@ -52,19 +65,33 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         }
 
 
-        for(int i = 0; i < allFragmentPeaks.length; ++i) {
-            for(int j = i + 1; j < allFragmentPeaks.length; ++j) {
-                final double commonL = this.scoreCommons(allFragmentPeaks[i], allFragmentPeaks[j]);
-                final double commonF = this.scoreCommons(allLossPeaks[i], allLossPeaks[j]);
-                final double score = ((commonF + commonL) / norm[i]) + ((commonF + commonL) / norm[j]);
-
-                if((commonF + commonL) >= minimum_numer_matched_peaks_losses && (score >= this.threshold)){
-                    this.maybeSimilar[i].set(j);
-
+        final double maxMatchScore = maxMatchScore(allFragmentPeaks, allLossPeaks);
+        if (useInvertedIndex && minimum_numer_matched_peaks_losses > 0 && maxMatchScore >= 0) {
+            //compounds which do not share enough fragment or loss formulas can never reach the minimum number of matched peaks
+            findSimilarWithInvertedIndex(allFragmentPeaks, allLossPeaks, norm, minimum_numer_matched_peaks_losses, maxMatchScore);
+        } else {
+            for(int i = 0; i < allFragmentPeaks.length; ++i) {
+                for(int j = i + 1; j < allFragmentPeaks.length; ++j) {
+                    testSimilarity(allFragmentPeaks, allLossPeaks, norm, minimum_numer_matched_peaks_losses, i, j);
                 }
+            }
+        }
 
+        final TIntArrayList[] similarCompounds = new TIntArrayList[candidates.length];
+        for (int i = 0; i < similarCompounds.length; i++) {
+            similarCompounds[i] = new TIntArrayList();
+        }
+        for (int i = 0; i < maybeSimilar.length; i++) {
+            for (int j = maybeSimilar[i].nextSetBit(0); j >= 0; j = maybeSimilar[i].nextSetBit(j+1)) {
+                similarCompounds[i].add(j);
+                similarCompounds[j].add(i);
             }
         }
+        //lists are sorted: all i<j are added before the j>i of the same compound
+        this.possiblySimilar = new int[candidates.length][];
+        for (int i = 0; i < similarCompounds.length; i++) {
+            possiblySimilar[i] = similarCompounds[i].toArray();
+        }
 
         int sum = 0;
         for (BitSet bitSet : this.maybeSimilar) {
@@ -73,6 +100,124 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         if (GibbsMFCorrectionNetwork.DEBUG) System.out.println("compounds: " + this.maybeSimilar.length + " | maybeSimilar: " + sum + " | threshold was "+threshold);
     }
 
+    /**
+     * fragments and losses are compared by formula id, so all candidates have to share the same dictionary.
+     * @return dictionary of all candidates, null if no candidate has fragments
+     */
+    private static FormulaDictionary getDictionary(FragmentsCandidate[][] candidates) {
+        FormulaDictionary dictionary = null;
+        for (FragmentsCandidate[] currentCandidates : candidates) {
+            for (FragmentsCandidate candidate : currentCandidates) {
+                final FormulaDictionary d = candidate.getDictionary();
+                if (d == null) continue;
+                if (dictionary == null) dictionary = d;
+                else if (d != dictionary) throw new IllegalArgumentException("all candidates have to be created with the same FormulaDictionary");
+            }
+        }
+        return dictionary;
+    }
+
+    private void testSimilarity(PeakWithExplanation[][] allFragmentPeaks, PeakWithExplanation[][] allLossPeaks, double[] norm, double minimum_numer_matched_peaks_losses, int i, int j) {
+        final double commonL = this.scoreCommons(allFragmentPeaks[i], allFragmentPeaks[j]);
+        final double commonF = this.scoreCommons(allLossPeaks[i], allLossPeaks[j]);
+        final double score = ((commonF + commonL) / norm[i]) + ((commonF + commonL) / norm[j]);
+
+        if((commonF + commonL) >= minimum_numer_matched_peaks_losses && (score >= this.threshold)){
+            this.maybeSimilar[i].set(j);
+
+        }
+    }
+
+    /**
+     * @return upper bound on the score of a single pair of matched peaks. Assumes that scoreMatchedPeaks does not
+     * decrease with the bestScore of the peaks.
+     */
+    private double maxMatchScore(PeakWithExplanation[][] allFragmentPeaks, PeakWithExplanation[][] allLossPeaks) {
+        double maxBestScore = Double.NEGATIVE_INFINITY;
+        for (PeakWithExplanation[][] allPeaks : Arrays.asList(allFragmentPeaks, allLossPeaks)) {
+            for (PeakWithExplanation[] peaks : allPeaks) {
+                for (PeakWithExplanation peak : peaks) {
+                    maxBestScore = Math.max(maxBestScore, peak.bestScore);
+                }
+            }
+        }
+        final PeakWithExplanation bestPeak = new PeakWithExplanation(new int[0], 0d, maxBestScore);
+        return scoreMatchedPeaks(bestPeak, bestPeak);
+    }
+
+    /**
+     * only compares compounds which share at least one fragment or loss formula. The number of peaks of compound i
+     * which share a formula with any peak of compound j, multiplied with the maximal score of a matched peak, is an
+     * upper bound on the matched peaks score. Hence, scoreCommons is only called for pairs which might reach the
+     * minimum number of matched peaks and losses.
+     */
+    private void findSimilarWithInvertedIndex(PeakWithExplanation[][] allFragmentPeaks, PeakWithExplanation[][] allLossPeaks, double[] norm, double minimum_numer_matched_peaks_losses, double maxMatchScore) {
+        final int n = allFragmentPeaks.length;
+        final TIntObjectHashMap<TIntArrayList> fragmentIndex = createInvertedIndex(allFragmentPeaks);
+        final TIntObjectHashMap<TIntArrayList> lossIndex = createInvertedIndex(allLossPeaks);
+
+        final int[] numberOfSharedPeaks = new int[n];
+        final int[] lastPeak = new int[n];
+        Arrays.fill(lastPeak, -1);
+        final TIntArrayList touched = new TIntArrayList();
+        int peakCounter = 0;
+        for (int i = 0; i < n; i++) {
+            peakCounter = countSharedPeaks(i, allFragmentPeaks[i], fragmentIndex, numberOfSharedPeaks, lastPeak, peakCounter, touched);
+            peakCounter = countSharedPeaks(i, allLossPeaks[i], lossIndex, numberOfSharedPeaks, lastPeak, peakCounter, touched);
+
+            touched.sort();
+            for (int k = 0; k < touched.size(); k++) {
+                final int j = touched.get(k);
+                if (numberOfSharedPeaks[j]*maxMatchScore >= minimum_numer_matched_peaks_losses) {
+                    testSimilarity(allFragmentPeaks, allLossPeaks, norm, minimum_numer_matched_peaks_losses, i, j);
+                }
+                numberOfSharedPeaks[j] = 0;
+            }
+            touched.resetQuick();
+        }
+    }
+
+    /**
+     * counts for each compound j>i the peaks of compound i which share at least one formula with compound j
+     */
+    private int countSharedPeaks(int i, PeakWithExplanation[] peaks, TIntObjectHashMap<TIntArrayList> invertedIndex, int[] numberOfSharedPeaks, int[] lastPeak, int peakCounter, TIntArrayList touched) {
+        for (PeakWithExplanation peak : peaks) {
+            final int peakId = peakCounter++;
+            for (int formula : peak.formulas) {
+                final TIntArrayList compounds = invertedIndex.get(formula);
+                int start = compounds.binarySearch(i + 1);
+                if (start < 0) start = -start - 1;
+                for (int k = start; k < compounds.size(); k++) {
+                    final int j = compounds.getQuick(k);
+                    if (lastPeak[j] == peakId) continue;
+                    lastPeak[j] = peakId;
+                    if (numberOfSharedPeaks[j]++ == 0) touched.add(j);
+                }
+            }
+        }
+        return peakCounter;
+    }
+
+    /**
+     * @return map from formula id to the sorted indices of all compounds with a peak explained by this formula
+     */
+    private TIntObjectHashMap<TIntArrayList> createInvertedIndex(PeakWithExplanation[][] allPeaks) {
+        final TIntObjectHashMap<TIntArrayList> invertedIndex = new TIntObjectHashMap<>();
+        for (int i = 0; i < allPeaks.length; i++) {
+            for (PeakWithExplanation peak : allPeaks[i]) {
+                for (int formula : peak.formulas) {
+                    TIntArrayList compounds = invertedIndex.get(formula);
+                    if (compounds == null) {
+                        compounds = new TIntArrayList();
+                        invertedIndex.put(formula, compounds);
+                    }
+                    if (compounds.isEmpty() || compounds.get(compounds.size()-1) != i) compounds.add(i);
+                }
+            }
+        }
+        return invertedIndex;
+    }
+
 //    private void prepareData(){
 //
 //    }
@@ -83,9 +228,10 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
      *
      * @param currentCandidates
      * @param useFragments true: normal spectrum and fragments, false: inverted spectrum and losses
+     * @param dictionary dictionary of the fragment and loss formula ids
      * @return
      */
-    private PeakWithExplanation[] getPeaksWithExplanations(FragmentsCandidate[] currentCandidates, final boolean useFragments){
+    private PeakWithExplanation[] getPeaksWithExplanations(FragmentsCandidate[] currentCandidates, final boolean useFragments, FormulaDictionary dictionary){
         Set<PrecursorIonType> ions = collectIons(currentCandidates);
 
         int maxIdx = -1;
@@ -106,11 +252,11 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         maxIdx += 1;
 
 
-        Set<String>[] matchedFragments;
+        TIntHashSet[] matchedFragments;
         if (useFragments){
-            matchedFragments = new Set[maxIdx*ions.size()];
+            matchedFragments = new TIntHashSet[maxIdx*ions.size()];
         }  else {
-            matchedFragments = new Set[maxIdx];
+            matchedFragments = new TIntHashSet[maxIdx];
         }
         for(int j = 0; j < currentCandidates.length; ++j) {
             FragmentsCandidate c = currentCandidates[j];
@@ -120,10 +266,10 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
             if (useFragments){
                 fragments = c.getFragments();
                 for (int i = 0; i < fragments.length; i++) {
-                    final String formula = fragments[i].getFormula();
+                    final int formula = fragments[i].getFormulaId();
                     final int idx = fragments[i].getIndex()+maxIdx*ionToIdx.get(currentIon);
                     if (matchedFragments[idx]==null){
-                        matchedFragments[idx] = new HashSet<>();
+                        matchedFragments[idx] = new TIntHashSet();
                     }
                     matchedFragments[idx].add(formula);
                 }
@@ -132,10 +278,10 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
                 fragments = c.getLosses();
 
                 for (int i = 0; i < fragments.length; i++) {
-                    final String formula = fragments[i].getFormula();
+                    final int formula = fragments[i].getFormulaId();
                     final short idx = fragments[i].getIndex();
                     if (matchedFragments[idx]==null){
-                        matchedFragments[idx] = new HashSet<>();
+                        matchedFragments[idx] = new TIntHashSet();
                     }
                     matchedFragments[idx].add(formula);
                 }
@@ -146,7 +292,7 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
 
 
         int numOfRealPeaks = 0;
-        for (Set<String> matched : matchedFragments) {
+        for (TIntHashSet matched : matchedFragments) {
             if (matched!=null) ++numOfRealPeaks;
         }
 
@@ -155,8 +301,9 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         pos = 0;
         for (int j = 0; j < matchedFragments.length; j++) {
             if (matchedFragments[j]!=null){
-                final String[] mfArray = matchedFragments[j].toArray(new String[0]);
-                final double mass = meanMass(mfArray);
+                final int[] mfArray = matchedFragments[j].toArray();
+                Arrays.sort(mfArray);
+                final double mass = meanMass(mfArray, dictionary);
                 peaksWithExplanations[pos++] = new PeakWithExplanation(mfArray, mass, 1d);
             }
         }
@@ -166,12 +313,10 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         return peaksWithExplanations;
     }
 
-    private double meanMass(String[] formulas){
-        FormulaFactory factory = FormulaFactory.getInstance();
-
+    private double meanMass(int[] formulas, FormulaDictionary dictionary){
         double sum = 0;
-        for (String formula : formulas) {
-            sum += factory.getFormula(formula).getMass();
+        for (int formula : formulas) {
+            sum += dictionary.getMass(formula);
         }
         return sum/formulas.length;
     }
@@ -201,8 +346,8 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
             }
         }
 
-        final double commonF = this.scoreCommons(candidate1.getFragments(), candidate2.getFragments());
-        final double commonL = this.scoreCommons(candidate1.getLosses(), candidate2.getLosses());
+        final double commonF = this.scoreCommons(candidate1.getFragmentIds(), candidate1.getFragments(), candidate2.getFragmentIds(), candidate2.getFragments());
+        final double commonL = this.scoreCommons(candidate1.getLossIds(), candidate1.getLosses(), candidate2.getLossIds(), candidate2.getLosses());
 
         if (commonF+commonL<MINIMUM_NUMBER_MATCHED_PEAKS_LOSSES) return 0;
 
@@ -215,8 +360,8 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
 
     @Override
     public double scoreWithoutThreshold(FragmentsCandidate candidate1, FragmentsCandidate candidate2) {
-        final double commonF = this.scoreCommons(candidate1.getFragments(), candidate2.getFragments());
-        final double commonL = this.scoreCommons(candidate1.getLosses(), candidate2.getLosses());
+        final double commonF = this.scoreCommons(candidate1.getFragmentIds(), candidate1.getFragments(), candidate2.getFragmentIds(), candidate2.getFragments());
+        final double commonL = this.scoreCommons(candidate1.getLossIds(), candidate1.getLosses(), candidate2.getLossIds(), candidate2.getLosses());
         final double norm1 = this.normalizationMap.get(candidate1.getExperiment());
         final double norm2 = this.normalizationMap.get(candidate2.getExperiment());
 
@@ -237,10 +382,21 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         return threshold;
     }
 
+    @Override
+    public int[] getPossiblySimilarCompounds(int compoundIdx) {
+        return possiblySimilar==null ? null : possiblySimilar[compoundIdx];
+    }
+
+    @Override
+    public double getDissimilarScore() {
+        return 0d;
+    }
+
     public void clean() {
         this.idxMap.clear();
         this.idxMap = null;
         this.maybeSimilar = null;
+        this.possiblySimilar = null;
     }
 
     public double[] normalization(FragmentsCandidate[][] candidates) {
@@ -305,18 +461,15 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         return 1;
     }
 
-    private boolean hasMatch(String[] fragments1, String[] fragments2){
+    private boolean hasMatch(int[] fragments1, int[] fragments2){
         int i = 0;
         int j = 0;
         while(i < fragments1.length && j < fragments2.length) {
-            int compare = fragments1[i].compareTo(fragments2[j]);
-            if(compare < 0) {
-                ++i;
-            } else if(compare > 0) {
-                ++j;
-            } else {
-                return true;
-            }
+            final int a = fragments1[i];
+            final int b = fragments2[j];
+            if (a == b) return true;
+            if (a < b) ++i;
+            else ++j;
         }
         return false;
     }
@@ -343,17 +496,40 @@ public class CommonFragmentAndLossScorer implements EdgeScorer<FragmentsCandidat
         return commonCounter;
     }
 
+    /**
+     * merges the sorted formula ids of two candidates and scores all fragments (or losses) with the same formula
+     * @param ids1 sorted formula ids of fragments1
+     * @param ids2 sorted formula ids of fragments2
+     */
+    protected double scoreCommons(int[] ids1, FragmentWithIndex[] fragments1, int[] ids2, FragmentWithIndex[] fragments2) {
+        //same as scoreCommons(FragmentWithIndex[], FragmentWithIndex[]): the counter is an int
+        int commonScore = 0;
+        int i = 0;
+        int j = 0;
+
+        while(i < ids1.length && j < ids2.length) {
+            final int a = ids1[i];
+            final int b = ids2[j];
+            if (a == b) commonScore += scoreMatchedFragments(fragments1[i], fragments2[j]);
+            if (a <= b) ++i;
+            if (a >= b) ++j;
+        }
+
+        return commonScore;
+    }
+
     protected double scoreMatchedFragments(FragmentWithIndex fragment1, FragmentWithIndex fragment2){
         return 1;
     }
 
 
     class PeakWithExplanation implements Comparable<PeakWithExplanation>{
-        String[] formulas;
+        //sorted formula ids
+        int[] formulas;
         double mass;
         double bestScore;
 
-        public PeakWithExplanation(String[] formulas, double mass, double bestScore) {
+        public PeakWithExplanation(int[] formulas, double mass, double bestScore) {
             this.formulas = formulas;
             Arrays.sort(this.formulas);
             this.mass = mass;
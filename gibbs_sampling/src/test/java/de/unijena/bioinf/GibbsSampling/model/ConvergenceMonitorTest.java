@@ -0,0 +1,172 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConvergenceMonitorTest {
+
+    // compound0: 2 candidates, compound1: 3 candidates, compound2: a single candidate, which is never monitored
+    private static final int[] CANDIDATES = {2, 3, 1};
+
+    // chains agree on compound1 and disagree on compound0
+    private static final int[] DIVERGED_A = {90, 10, 40, 30, 30, 100}, DIVERGED_B = {10, 90, 40, 30, 30, 100};
+    // p = 0.9 and p = 0.1 with 100 samples: W = 100/99*0.09, B/n = 0.32, V = 0.99*W + B/n = 0.41
+    private static final double DIVERGED_PSRF = Math.sqrt(0.41 / (0.09 * 100d / 99d));
+
+    private static final int[] CLOSE_A = {60, 40, 40, 30, 30, 100}, CLOSE_B = {50, 50, 40, 30, 30, 100};
+    // p = 0.6 and p = 0.5 with 100 samples: W = 100/99*0.245, B/n = 0.005, V = 0.99*W + B/n = 0.25
+    private static final double CLOSE_PSRF = Math.sqrt(0.25 / (0.245 * 100d / 99d));
+
+    @Test
+    public void testKnownStatistics() {
+        assertEquals(DIVERGED_PSRF, statistic(null, DIVERGED_A, DIVERGED_B), 1e-12);
+        assertEquals(CLOSE_PSRF, statistic(null, CLOSE_A, CLOSE_B), 1e-12);
+        assertEquals(psrf(100, 0.9, 0.1), DIVERGED_PSRF, 1e-12);
+        assertEquals(psrf(100, 0.6, 0.5), CLOSE_PSRF, 1e-12);
+        // three chains, the statistic is the maximum over all candidates
+        final int[] third = {70, 30, 20, 50, 30, 100};
+        final double expected = Math.max(psrf(100, 0.6, 0.5, 0.7), Math.max(psrf(100, 0.4, 0.4, 0.2), psrf(100, 0.3, 0.3, 0.5)));
+        assertEquals(expected, statistic(null, CLOSE_A, CLOSE_B, third), 1e-12);
+        // identical chains
+        assertEquals(1d, statistic(null, CLOSE_A, CLOSE_A), 0d);
+        // fixed compounds are ignored
+        assertEquals(1d, statistic(new TIntHashSet(new int[]{0}), DIVERGED_A, DIVERGED_B), 0d);
+        // all chains always chose the same, but different candidates
+        assertEquals(Double.POSITIVE_INFINITY, statistic(null, new int[]{100, 0, 40, 30, 30, 100}, new int[]{0, 100, 40, 30, 30, 100}), 0d);
+        // too few samples
+        assertEquals(Double.POSITIVE_INFINITY, statistic(null, new int[]{1, 0, 1, 0, 0, 1}, new int[]{0, 1, 0, 1, 0, 1}), 0d);
+    }
+
+    @Test
+    public void testStoppingRule() {
+        final ConvergenceMonitor monitor = new ConvergenceMonitor(graph(), null, 2, 10, 0.01);
+        assertTrue(Double.isNaN(monitor.getStatistic()));
+
+        // checkpoint is incomplete until all chains reported it
+        monitor.report(0, 1, DIVERGED_A);
+        assertTrue(Double.isNaN(monitor.getStatistic()));
+        assertEquals(0, monitor.getSweeps());
+        monitor.report(1, 1, DIVERGED_B);
+        assertEquals(DIVERGED_PSRF, monitor.getStatistic(), 1e-12);
+        assertEquals(10, monitor.getSweeps());
+        assertFalse(monitor.isConverged());
+
+        // reported frequencies are copied
+        final int[] frequencies = CLOSE_A.clone();
+        monitor.report(0, 2, frequencies);
+        frequencies[0] = 0;
+        monitor.report(1, 2, CLOSE_B);
+        assertEquals(CLOSE_PSRF, monitor.getStatistic(), 1e-12);
+        assertEquals(20, monitor.getSweeps());
+        assertTrue(monitor.isConverged());
+
+        // after convergence all further reports are ignored
+        monitor.report(0, 3, DIVERGED_A);
+        monitor.report(1, 3, DIVERGED_B);
+        assertEquals(CLOSE_PSRF, monitor.getStatistic(), 1e-12);
+        assertEquals(20, monitor.getSweeps());
+        assertTrue(monitor.isConverged());
+    }
+
+    @Test
+    public void testDivergedChainsDoNotStop() {
+        // CLOSE_PSRF is about 1.005
+        final ConvergenceMonitor monitor = new ConvergenceMonitor(graph(), null, 2, 5, 0.001);
+        monitor.report(1, 1, CLOSE_B);
+        monitor.report(0, 1, CLOSE_A);
+        assertEquals(CLOSE_PSRF, monitor.getStatistic(), 1e-12);
+        assertFalse(monitor.isConverged());
+
+        // a late report of an older checkpoint does not replace the statistic
+        monitor.report(0, 3, CLOSE_A);
+        monitor.report(1, 3, CLOSE_A);
+        monitor.report(0, 2, DIVERGED_A);
+        monitor.report(1, 2, DIVERGED_B);
+        assertEquals(1d, monitor.getStatistic(), 0d);
+        assertEquals(15, monitor.getSweeps());
+        assertTrue(monitor.isConverged());
+    }
+
+    @Test
+    public void testChainsRunningAheadOfOthers() {
+        // more chains than threads: the first chain runs to its last step before the second chain starts
+        final ConvergenceMonitor monitor = new ConvergenceMonitor(graph(), null, 2, 10, 0.01);
+        for (int checkpoint = 1; checkpoint <= 1000; ++checkpoint) monitor.report(0, checkpoint, DIVERGED_A);
+        assertTrue(Double.isNaN(monitor.getStatistic()));
+        assertFalse(monitor.isConverged());
+
+        // the second chain is compared with the final frequencies of the first one
+        monitor.report(1, 1, DIVERGED_B);
+        assertEquals(DIVERGED_PSRF, monitor.getStatistic(), 1e-12);
+        assertEquals(10, monitor.getSweeps());
+        assertFalse(monitor.isConverged());
+        // an older report of a chain is ignored
+        monitor.report(0, 2, CLOSE_A);
+        assertEquals(DIVERGED_PSRF, monitor.getStatistic(), 1e-12);
+        // and stops as soon as it agrees with them
+        monitor.report(1, 2, DIVERGED_A);
+        assertEquals(1d, monitor.getStatistic(), 0d);
+        assertEquals(20, monitor.getSweeps());
+        assertTrue(monitor.isConverged());
+    }
+
+    @Test
+    public void testSlowestChainDeterminesCheckpoint() {
+        final ConvergenceMonitor monitor = new ConvergenceMonitor(graph(), null, 3, 5, 0.001);
+        monitor.report(0, 4, CLOSE_A);
+        monitor.report(1, 2, CLOSE_B);
+        assertTrue(Double.isNaN(monitor.getStatistic()));
+        monitor.report(2, 1, CLOSE_B);
+        assertEquals(psrf(100, 0.6, 0.5, 0.5), monitor.getStatistic(), 1e-12);
+        assertEquals(5, monitor.getSweeps());
+        // the latest report of the first chain replaces its older ones
+        monitor.report(0, 5, CLOSE_B);
+        assertEquals(5, monitor.getSweeps());
+        monitor.report(2, 3, CLOSE_B);
+        assertEquals(10, monitor.getSweeps());
+        assertEquals(1d, monitor.getStatistic(), 0d);
+        assertTrue(monitor.isConverged());
+    }
+
+    private static double statistic(TIntHashSet fixedCompounds, int[]... chains) {
+        final ConvergenceMonitor monitor = new ConvergenceMonitor(graph(), fixedCompounds, chains.length, 1, -1d);
+        for (int c = 0; c < chains.length; ++c) monitor.report(c, 1, chains[c]);
+        assertFalse(monitor.isConverged());
+        return monitor.getStatistic();
+    }
+
+    /**
+     * Gelman-Rubin potential scale reduction factor of indicator samples with the given frequency in each chain.
+     * The maximum with 1 is returned, as the monitor does.
+     */
+    private static double psrf(int n, double... p) {
+        final int m = p.length;
+        double mean = 0d, within = 0d;
+        for (double q : p) {
+            mean += q / m;
+            within += q * (1d - q) * n / (n - 1d) / m;
+        }
+        double between = 0d;
+        for (double q : p) between += n * (q - mean) * (q - mean) / (m - 1d);
+        return Math.max(1d, Math.sqrt(((n - 1d) / n * within + between / n) / within));
+    }
+
+    private static Graph<Candidate<String>> graph() {
+        final String[] ids = new String[CANDIDATES.length];
+        @SuppressWarnings("unchecked")
+        final Scored<Candidate<String>>[][] possibleFormulas = new Scored[CANDIDATES.length][];
+        for (int i = 0; i < CANDIDATES.length; ++i) {
+            ids[i] = "compound" + i;
+            @SuppressWarnings("unchecked")
+            final Scored<Candidate<String>>[] candidates = new Scored[CANDIDATES[i]];
+            for (int j = 0; j < candidates.length; ++j)
+                candidates[j] = new Scored<>(new Candidate<>(ids[i] + "_" + j, -1d), -1d);
+            possibleFormulas[i] = candidates;
+        }
+        return Graph.getGraph(ids, possibleFormulas);
+    }
+
+}
@@ -0,0 +1,125 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GibbsMFCorrectionNetworkTest {
+
+    // triangles of compounds, each with up to 3 candidates
+    private static final int NUMBER_OF_TRIANGLES = 40, MAX_CANDIDATES = 3;
+    private static final int BURN_IN = 500, STEPS = 50000;
+
+    @Test
+    public void testSequentialMarginals() {
+        final Graph<Candidate<String>> graph = triangleGraph(new Random(17));
+        assertMarginals(graph, sample(graph, 1));
+    }
+
+    @Test
+    public void testChromaticMarginals() {
+        final Graph<Candidate<String>> graph = triangleGraph(new Random(17));
+        assertMarginals(graph, sample(graph, 4));
+    }
+
+    private static int[] sample(Graph<Candidate<String>> graph, int numberOfThreads) {
+        final GibbsMFCorrectionNetwork<Candidate<String>> network = new GibbsMFCorrectionNetwork<>(graph);
+        network.setIterationSteps(STEPS, BURN_IN);
+        network.setNumberOfThreads(numberOfThreads);
+        SiriusJobs.getGlobalJobManager().submitJob(network).takeResult();
+        return network.overallAssignmentFreq;
+    }
+
+    /**
+     * The sampler itself is not seeded, so the bounds are far above the standard error of about 0.007 for the
+     * 5000 thinned samples per compound.
+     */
+    private static void assertMarginals(Graph<Candidate<String>> graph, int[] frequencies) {
+        final double[] exact = exactMarginals(graph);
+        double meanError = 0d;
+        for (int i = 0; i < graph.numberOfCompounds(); ++i) {
+            final int[] b = graph.getPeakBoundaries(i);
+            int samples = 0;
+            for (int j = b[0]; j <= b[1]; ++j) samples += frequencies[j];
+            assertEquals(STEPS / GibbsMFCorrectionNetwork.DEFAULT_CORRELATION_STEPSIZE - 1, samples);
+            for (int j = b[0]; j <= b[1]; ++j) {
+                final double error = Math.abs(exact[j] - (double) frequencies[j] / samples);
+                assertTrue("marginal of candidate " + j + " is " + ((double) frequencies[j] / samples) + " instead of " + exact[j], error < 0.05);
+                meanError += error / graph.getSize();
+            }
+        }
+        assertTrue("mean error of the marginals is " + meanError, meanError < 0.015);
+    }
+
+    /**
+     * marginal probabilities of all candidates by enumerating all assignments of each triangle
+     */
+    private static double[] exactMarginals(Graph<Candidate<String>> graph) {
+        final double[] marginals = new double[graph.getSize()];
+        for (int t = 0; t < NUMBER_OF_TRIANGLES; ++t) {
+            final int[] u = graph.getPeakBoundaries(3 * t), v = graph.getPeakBoundaries(3 * t + 1), w = graph.getPeakBoundaries(3 * t + 2);
+            double sum = 0d;
+            for (int a = u[0]; a <= u[1]; ++a) {
+                for (int b = v[0]; b <= v[1]; ++b) {
+                    for (int c = w[0]; c <= w[1]; ++c) {
+                        final double p = Math.exp(graph.getCandidateScore(a) + graph.getCandidateScore(b) + graph.getCandidateScore(c)
+                                + graph.getLogWeight(a, b) + graph.getLogWeight(a, c) + graph.getLogWeight(b, c));
+                        marginals[a] += p;
+                        marginals[b] += p;
+                        marginals[c] += p;
+                        sum += p;
+                    }
+                }
+            }
+            for (int i = u[0]; i <= w[1]; ++i) marginals[i] /= sum;
+        }
+        return marginals;
+    }
+
+    /**
+     * disjoint triangles of compounds with symmetric edges between some of their candidates. Each color class of the
+     * chromatic sampler has one compound per triangle, so the color classes are sampled by several tasks.
+     */
+    private static Graph<Candidate<String>> triangleGraph(Random random) {
+        final int numberOfCompounds = 3 * NUMBER_OF_TRIANGLES;
+        final String[] ids = new String[numberOfCompounds];
+        @SuppressWarnings("unchecked")
+        final Scored<Candidate<String>>[][] possibleFormulas = new Scored[numberOfCompounds][];
+        for (int i = 0; i < numberOfCompounds; ++i) {
+            ids[i] = "compound" + i;
+            final int m = 1 + random.nextInt(MAX_CANDIDATES);
+            @SuppressWarnings("unchecked")
+            final Scored<Candidate<String>>[] candidates = new Scored[m];
+            for (int j = 0; j < m; ++j) {
+                final double score = Math.log(0.05 + 0.95 * random.nextDouble());
+                candidates[j] = new Scored<>(new Candidate<>(ids[i] + "_" + j, score), score);
+            }
+            possibleFormulas[i] = candidates;
+        }
+        final Graph<Candidate<String>> graph = Graph.getGraph(ids, possibleFormulas);
+        final int n = graph.getSize();
+        final TIntArrayList[] connections = new TIntArrayList[n];
+        for (int i = 0; i < n; ++i) connections[i] = new TIntArrayList();
+        for (int i = 0; i < n; ++i) {
+            for (int j = i + 1; j < n; ++j) {
+                final int p = graph.getPeakIdx(i), q = graph.getPeakIdx(j);
+                if (p == q || p / 3 != q / 3 || random.nextDouble() < 0.3) continue;
+                final double weight = 2 * random.nextDouble();
+                graph.setLogWeight(i, j, weight);
+                graph.setLogWeight(j, i, weight);
+                connections[i].add(j);
+                connections[j].add(i);
+            }
+        }
+        graph.connections = new int[n][];
+        for (int i = 0; i < n; ++i) graph.connections[i] = connections[i].toArray();
+        return graph;
+    }
+
+}
@@ -0,0 +1,135 @@
+package de.unijena.bioinf.GibbsSampling.model;
+
+import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GraphTest {
+
+    @Test
+    public void testCompressedGraphEqualsDenseGraph() {
+        final Random random = new Random(23);
+        final Graph<Candidate<String>> graph = randomGraph(random, 12, 6);
+        final int n = graph.getSize();
+        final double[][] denseWeights = new double[n][n];
+        final int[][] denseConnections = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < n; ++j) denseWeights[i][j] = graph.getLogWeight(i, j);
+            denseConnections[i] = graph.getConnections(i).clone();
+            Arrays.sort(denseConnections[i]);
+        }
+
+        graph.compress();
+        assertTrue(graph.isCompressed());
+        for (int i = 0; i < n; ++i) {
+            assertArrayEquals(denseConnections[i], graph.getLogWeightConnections(i));
+            assertEquals(denseConnections[i].length, graph.getNumberOfConnections(i));
+            for (int j = 0; j < n; ++j) assertEquals(denseWeights[i][j], graph.getLogWeight(i, j), 0d);
+            // connections are sorted, such that the k-th connection is the k-th edge in the compressed graph
+            final int[] connections = graph.getConnections(i);
+            for (int k = 0; k < connections.length; ++k) {
+                final int e = graph.getEdgeOffset(i) + k;
+                final int j = connections[k];
+                assertEquals(j, graph.getEdgeTarget(e));
+                assertEquals(denseWeights[i][j], graph.getEdgeLogWeight(e), 0d);
+                final int r = graph.getReverseEdge(e);
+                if (r < 0) {
+                    assertTrue(Arrays.binarySearch(graph.getConnections(j), i) < 0);
+                } else {
+                    assertEquals(i, graph.getEdgeTarget(r));
+                    assertEquals(e, graph.getReverseEdge(r));
+                    assertEquals(denseWeights[j][i], graph.getEdgeLogWeight(r), 0d);
+                }
+            }
+        }
+        try {
+            graph.setLogWeight(0, 1, -1d);
+            fail("compressed graph must not be changed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReplacedCandidatesShareCompressedGraph() {
+        final Random random = new Random(5);
+        final Graph<Candidate<String>> graph = randomGraph(random, 8, 4);
+        graph.compress();
+        final Scored<Candidate<String>>[][] possibleFormulas = graph.getPossibleFormulas();
+        @SuppressWarnings("unchecked")
+        final Scored<Candidate<String>>[][] replacement = new Scored[possibleFormulas.length][];
+        for (int i = 0; i < possibleFormulas.length; ++i) {
+            // same candidates with new scores in reverse order
+            final int m = possibleFormulas[i].length;
+            @SuppressWarnings("unchecked")
+            final Scored<Candidate<String>>[] candidates = new Scored[m];
+            for (int j = 0; j < m; ++j)
+                candidates[m - 1 - j] = new Scored<>(possibleFormulas[i][j].getCandidate(), -random.nextDouble());
+            replacement[i] = candidates;
+        }
+        final Graph<Candidate<String>> replaced = graph.replaceScoredCandidates(graph.getIds(), replacement);
+        assertTrue(replaced.isCompressed());
+        for (int i = 0; i < graph.getSize(); ++i) {
+            assertSame(graph.getPossibleFormulas1D(i).getCandidate(), replaced.getPossibleFormulas1D(i).getCandidate());
+            assertArrayEquals(graph.getLogWeightConnections(i), replaced.getLogWeightConnections(i));
+            for (int j = 0; j < graph.getSize(); ++j)
+                assertEquals(graph.getLogWeight(i, j), replaced.getLogWeight(i, j), 0d);
+        }
+    }
+
+    /**
+     * random graph with mostly symmetric edges between candidates of different compounds. Some edges exist in one
+     * direction only. As after edge filtering, pairs which are not connected might have a weight of zero.
+     */
+    private static Graph<Candidate<String>> randomGraph(Random random, int numberOfCompounds, int maxCandidates) {
+        final String[] ids = new String[numberOfCompounds];
+        @SuppressWarnings("unchecked")
+        final Scored<Candidate<String>>[][] possibleFormulas = new Scored[numberOfCompounds][];
+        for (int i = 0; i < numberOfCompounds; ++i) {
+            ids[i] = "compound" + i;
+            final int m = 1 + random.nextInt(maxCandidates);
+            @SuppressWarnings("unchecked")
+            final Scored<Candidate<String>>[] candidates = new Scored[m];
+            for (int j = 0; j < m; ++j) {
+                final double score = -random.nextDouble();
+                candidates[j] = new Scored<>(new Candidate<>(ids[i] + "_" + j, score), score);
+            }
+            possibleFormulas[i] = candidates;
+        }
+        final Graph<Candidate<String>> graph = Graph.getGraph(ids, possibleFormulas);
+        final int n = graph.getSize();
+        final TIntArrayList[] connections = new TIntArrayList[n];
+        for (int i = 0; i < n; ++i) connections[i] = new TIntArrayList();
+        for (int i = 0; i < n; ++i) {
+            for (int j = i + 1; j < n; ++j) {
+                if (graph.getPeakIdx(i) == graph.getPeakIdx(j) || random.nextDouble() < 0.5) continue;
+                final double weight = random.nextDouble() * 5;
+                final double p = random.nextDouble();
+                if (p < 0.9) {
+                    graph.setLogWeight(i, j, weight);
+                    graph.setLogWeight(j, i, weight);
+                    connections[i].add(j);
+                    connections[j].add(i);
+                } else if (p < 0.95) {
+                    graph.setLogWeight(i, j, weight);
+                    connections[i].add(j);
+                } else {
+                    graph.setLogWeight(j, i, 0d);
+                }
+            }
+        }
+        graph.connections = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            // connections are not sorted before compressing the graph
+            connections[i].shuffle(random);
+            graph.connections[i] = connections[i].toArray();
+        }
+        return graph;
+    }
+
+}
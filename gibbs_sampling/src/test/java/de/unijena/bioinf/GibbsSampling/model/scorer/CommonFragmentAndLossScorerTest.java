@@ -0,0 +1,93 @@
+package de.unijena.bioinf.GibbsSampling.model.scorer;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.GibbsSampling.model.FormulaDictionary;
+import de.unijena.bioinf.GibbsSampling.model.FragmentWithIndex;
+import de.unijena.bioinf.GibbsSampling.model.FragmentsAndLosses;
+import de.unijena.bioinf.GibbsSampling.model.FragmentsCandidate;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CommonFragmentAndLossScorerTest {
+
+    @Test
+    public void testInvertedIndexFindsAllSimilarCompounds() {
+        compareWithAllPairs(new CommonFragmentAndLossScorer(0.5), new CommonFragmentAndLossScorer(0.5));
+    }
+
+    @Test
+    public void testInvertedIndexFindsAllSimilarCompoundsWithTreeScores() {
+        compareWithAllPairs(new CommonFragmentAndLossWithTreeScoresScorer(1d), new CommonFragmentAndLossWithTreeScoresScorer(1d));
+    }
+
+    @Test
+    public void testCandidatesFromDifferentDictionaries() {
+        final FragmentsCandidate[][] candidates = randomCandidates(new Random(3), 4, new FormulaDictionary());
+        candidates[2] = randomCandidates(new Random(3), 1, new FormulaDictionary())[0];
+        try {
+            new CommonFragmentAndLossScorer(0.5).prepare(candidates);
+            fail("formula ids of different dictionaries must not be compared");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void compareWithAllPairs(CommonFragmentAndLossScorer indexed, CommonFragmentAndLossScorer allPairs) {
+        final FragmentsCandidate[][] candidates = randomCandidates(new Random(11), 60, new FormulaDictionary());
+        indexed.prepare(candidates, true);
+        allPairs.prepare(candidates, false);
+        int numberOfSimilar = 0;
+        for (int i = 0; i < candidates.length; ++i) {
+            assertArrayEquals(allPairs.getPossiblySimilarCompounds(i), indexed.getPossiblySimilarCompounds(i));
+            numberOfSimilar += indexed.getPossiblySimilarCompounds(i).length;
+            for (int j = 0; j < candidates.length; ++j) {
+                if (i == j) continue;
+                for (FragmentsCandidate c1 : candidates[i])
+                    for (FragmentsCandidate c2 : candidates[j])
+                        assertEquals(allPairs.score(c1, c2), indexed.score(c1, c2), 0d);
+            }
+        }
+        // the test is pointless if there are no or only similar compounds
+        assertTrue(numberOfSimilar > 0);
+        assertTrue(numberOfSimilar < candidates.length * (candidates.length - 1));
+    }
+
+    /**
+     * compounds with up to three candidates. The fragments of each compound are drawn from one of a few overlapping
+     * pools of formulas, such that some compounds share many fragments and others share few.
+     */
+    private static FragmentsCandidate[][] randomCandidates(Random random, int numberOfCompounds, FormulaDictionary dictionary) {
+        final PrecursorIonType ionType = PrecursorIonType.getPrecursorIonType("[M+H]+");
+        final FragmentsCandidate[][] candidates = new FragmentsCandidate[numberOfCompounds][];
+        for (int i = 0; i < numberOfCompounds; ++i) {
+            final Ms2Experiment experiment = new MutableMs2Experiment();
+            final int pool = random.nextInt(4);
+            candidates[i] = new FragmentsCandidate[1 + random.nextInt(3)];
+            for (int k = 0; k < candidates[i].length; ++k) {
+                final int numberOfFragments = 3 + random.nextInt(12);
+                final FragmentWithIndex[] fragments = new FragmentWithIndex[numberOfFragments];
+                final FragmentWithIndex[] losses = new FragmentWithIndex[numberOfFragments - 1];
+                final int[] carbons = new int[numberOfFragments];
+                for (int f = 0; f < numberOfFragments; ++f) carbons[f] = 1 + pool * 3 + random.nextInt(20);
+                for (int f = 0; f < numberOfFragments; ++f) {
+                    final String formula = "C" + carbons[f] + "H" + (2 * carbons[f] + f % 2) + "O" + (f % 3);
+                    fragments[f] = new FragmentWithIndex(dictionary, formula, (short) f, 4 * random.nextDouble() - 1);
+                    if (f > 0) losses[f - 1] = new FragmentWithIndex(dictionary, "C" + (1 + random.nextInt(4)) + "H" + (2 + f % 4), (short) f, 4 * random.nextDouble() - 1);
+                }
+                Arrays.sort(fragments);
+                Arrays.sort(losses);
+                final MolecularFormula root = MolecularFormula.parse("C30H60O2");
+                candidates[i][k] = new FragmentsCandidate(new FragmentsAndLosses(fragments, losses), -random.nextDouble(), root, ionType, experiment) {};
+            }
+        }
+        return candidates;
+    }
+
+}
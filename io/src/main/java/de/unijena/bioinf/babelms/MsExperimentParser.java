@@ -18,7 +18,7 @@
 package de.unijena.bioinf.babelms;
 
 import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
-import de.unijena.bioinf.babelms.mgf.MgfParser;
+import de.unijena.bioinf.babelms.mgf.MappedMgfParser;
 import de.unijena.bioinf.babelms.ms.JenaMsParser;
 
 import java.io.File;
@@ -41,7 +41,7 @@ public class MsExperimentParser {
         final Class<? extends Parser<Ms2Experiment>> pc = knownEndings.get(extName);
         if (pc==null) return null;
         try {
-            if (pc.equals(ZippedSpectraParser.class)){
+            if (GenericParser.class.isAssignableFrom(pc)){
                 return (GenericParser<Ms2Experiment>)pc.newInstance();
             }
             return new GenericParser<Ms2Experiment>(pc.newInstance());
@@ -54,7 +54,7 @@ public class MsExperimentParser {
 
     private void addKnownEndings() {
         knownEndings.put(".ms", JenaMsParser.class);
-        knownEndings.put(".mgf", MgfParser.class);
+        knownEndings.put(".mgf", MappedMgfParser.class);
         knownEndings.put(".zip", ZippedSpectraParser.class);
     }
 }
@@ -49,6 +49,13 @@ public class DescriptorRegistry {
         }
     }
 
+    /**
+     * @return true if the given descriptor is one of the descriptors registered by default
+     */
+    public static boolean isDefaultDescriptor(Descriptor<?> descriptor) {
+        return descriptor != null && descriptor.getClass().getEnclosingClass() == DefaultDescriptors.class;
+    }
+
     public <AnnotationType, Annotation> Descriptor<Annotation> get(Class<AnnotationType> annotationType, Class<Annotation> annotoAnnotationClass) {
         synchronized (registry) {
             final DescriptorMap map =registry.get(annotationType);
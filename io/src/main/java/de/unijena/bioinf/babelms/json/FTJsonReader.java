@@ -18,18 +18,18 @@
 package de.unijena.bioinf.babelms.json;
 
 import com.google.common.collect.HashMultimap;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.ms.ft.*;
 import de.unijena.bioinf.babelms.Parser;
 import de.unijena.bioinf.babelms.descriptor.Descriptor;
 import de.unijena.bioinf.babelms.descriptor.DescriptorRegistry;
 
-import java.io.BufferedReader;
-import java.io.IOException;
+import java.io.*;
 import java.net.URL;
 import java.util.*;
 
@@ -44,35 +44,92 @@ public class FTJsonReader implements Parser<FTree> {
         return parse(reader, null);
     }
 
+    /**
+     * reads the tree from the given reader. Only the top-level members of the document are streamed: the tree
+     * annotations and every single fragment and loss are still parsed into their own {@link JsonObject}, because the
+     * descriptors look up their keywords in it. This avoids building one Gson document for the whole tree, but not the
+     * per-element objects.
+     */
     public FTree parse(BufferedReader reader, URL source) throws IOException {
-        final StringBuilder buffer = new StringBuilder(1024);
-        String line = null;
-        while ((line = reader.readLine()) != null) {
-            buffer.append(line).append('\n');
-        }
-        if (buffer.length() == 0) return null;
-        return treeFromJsonString(buffer.toString(), source);
+        return readTree(reader, source);
     }
 
     public FTree treeFromJsonString(String jsonString, URL source) {
+        try {
+            return readTree(new StringReader(jsonString), source);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * builds the tree from an already parsed JSON document
+     */
+    public FTree treeFromJson(JsonObject json, URL source) {
+        final List<JsonObject> fragments = new ArrayList<>(), losses = new ArrayList<>();
+        for (JsonElement fragment : json.getAsJsonArray("fragments")) fragments.add(fragment.getAsJsonObject());
+        for (JsonElement loss : json.getAsJsonArray("losses")) losses.add(loss.getAsJsonObject());
+        return buildTree(json.get("root").getAsString(), json.get("annotations").getAsJsonObject(), fragments, losses, source);
+    }
+
+    protected FTree readTree(Reader reader, URL source) throws IOException {
+        final JsonReader json = new JsonReader(reader);
+        json.setLenient(true);
+        try {
+            if (json.peek() == JsonToken.END_DOCUMENT) return null;
+        } catch (EOFException e) {
+            // empty document
+            return null;
+        }
+        final JsonParser parser = new JsonParser();
+        String root = null;
+        JsonObject annotations = null;
+        final List<JsonObject> fragments = new ArrayList<>(), losses = new ArrayList<>();
+        json.beginObject();
+        while (json.hasNext()) {
+            switch (json.nextName()) {
+                case "root":
+                    root = json.nextString();
+                    break;
+                case "annotations":
+                    annotations = parser.parse(json).getAsJsonObject();
+                    break;
+                case "fragments":
+                    readElements(json, parser, fragments);
+                    break;
+                case "losses":
+                    readElements(json, parser, losses);
+                    break;
+                default:
+                    json.skipValue();
+            }
+        }
+        json.endObject();
+        if (root == null) throw new IOException("Tree has no root");
+        return buildTree(root, annotations == null ? new JsonObject() : annotations, fragments, losses, source);
+    }
+
+    private static void readElements(JsonReader json, JsonParser parser, List<JsonObject> elements) throws IOException {
+        json.beginArray();
+        while (json.hasNext()) {
+            elements.add(parser.parse(json).getAsJsonObject());
+        }
+        json.endArray();
+    }
+
+    protected FTree buildTree(String root, JsonObject treeAnnotations, List<JsonObject> fragments, List<JsonObject> losses, URL source) {
         final DescriptorRegistry registry = DescriptorRegistry.getInstance();
         final JSONDocumentType JSONdoc = new JSONDocumentType();
-        final JsonParser r = new JsonParser();
-        final JsonObject json = r.parse(jsonString).getAsJsonObject();
-        final FTree tree = new FTree(MolecularFormula.parse(json.get("root").getAsString()));
-        final JsonArray fragments = json.getAsJsonArray("fragments");
+        final FTree tree = new FTree(MolecularFormula.parse(root));
         final HashMap<MolecularFormula, JsonObject> fragmentMap = new HashMap<>(fragments.size());
-        for (int k = 0; k < fragments.size(); ++k) {
-            final JsonObject fragment = fragments.get(k).getAsJsonObject();
+        for (JsonObject fragment : fragments) {
             final MolecularFormula vertex = MolecularFormula.parse(fragment.get("molecularFormula").getAsString());
             fragmentMap.put(vertex, fragment);
         }
 
         final HashMap<MolecularFormula, JsonObject> incomingLossMap = new HashMap<>();
         final HashMultimap<MolecularFormula, MolecularFormula> edges = HashMultimap.create();
-        final JsonArray losses = json.get("losses").getAsJsonArray();
-        for (int k = 0; k < losses.size(); ++k) {
-            final JsonObject loss = losses.get(k).getAsJsonObject();
+        for (JsonObject loss : losses) {
             final MolecularFormula a = MolecularFormula.parse(loss.get("source").getAsString()),
                     b = MolecularFormula.parse(loss.get("target").getAsString());
             edges.put(a, b);
@@ -91,7 +148,6 @@ public class FTJsonReader implements Parser<FTree> {
         }
 
         {
-            final JsonObject treeAnnotations = json.get("annotations").getAsJsonObject();
             final String[] keywords = getKeyArray(treeAnnotations);
             final Descriptor[] descriptors = registry.getByKeywords(FTree.class, keywords);
             for (Descriptor<Object> descriptor : descriptors) {
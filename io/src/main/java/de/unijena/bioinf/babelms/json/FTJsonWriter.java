@@ -21,33 +21,119 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.AnnotatedPeak;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
 import de.unijena.bioinf.ChemistryBase.ms.ft.*;
 import de.unijena.bioinf.babelms.descriptor.Descriptor;
 import de.unijena.bioinf.babelms.descriptor.DescriptorRegistry;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.IOException;
-import java.io.Writer;
+import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Writes fragmentation trees as JSON.
+ * <p>
+ * {@link #writeTree(Writer, FTree)} streams the document token by token. Fragment and loss annotations of the default
+ * descriptors are written directly from their {@link FragmentAnnotation} and {@link LossAnnotation}, only the tree
+ * annotations and elements with annotations of other descriptors are built as Gson objects. The output is identical
+ * to serializing {@link #tree2json(FTree)} with a pretty printing {@link Gson}.
+ */
 public class FTJsonWriter {
 
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
 
     private DescriptorRegistry registry = DescriptorRegistry.getInstance();
 
     public String treeToJsonString(FTree tree) {
-        final Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        return gson.toJson(tree2json(tree));
+        final StringWriter writer = new StringWriter(8192);
+        try {
+            writeTree(writer, tree);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return writer.toString();
     }
 
     public void writeTree(Writer writer, FTree tree) throws IOException {
-        writer.write(treeToJsonString(tree));
+        final JsonWriter json = GSON.newJsonWriter(writer);
+        // same settings as Gson uses for serializing a JsonElement
+        json.setLenient(true);
+        json.setHtmlSafe(true);
+        final JSONDocumentType JSON = new JSONDocumentType();
+        json.beginObject();
+        writeFormulas(json, tree);
+
+        final JsonObject ano = new JsonObject();
+        for (Map.Entry<Class<Object>, Object> anot : tree.getAnnotations().entrySet()) {
+            Descriptor<Object> d = registry.get(FTree.class, anot.getKey());
+            if (d != null) {
+                d.write(JSON, ano, anot.getValue());
+            } else {
+                hardCodedAnnotations(JSON, ano, tree);
+            }
+        }
+        json.name("annotations");
+        GSON.toJson(ano, json);
+
+        final Fields fields = new Fields();
+        json.name("fragments");
+        json.beginArray();
+        final List<FragmentAnnotation<Object>> fragmentAnnotations = tree.getFragmentAnnotations();
+        boolean fragmentsStreamable = true;
+        for (FragmentAnnotation<Object> fano : fragmentAnnotations) {
+            fragmentsStreamable &= isStreamable(registry.get(Fragment.class, fano.getAnnotationType()), fano.getAnnotationType());
+        }
+        for (Fragment f : tree.getFragments()) {
+            if (fragmentsStreamable) {
+                fields.clear();
+                fields.putLong("id", f.getVertexId());
+                fields.putString("molecularFormula", f.getFormula().toString());
+                for (FragmentAnnotation<Object> fano : fragmentAnnotations) {
+                    final Object value = fano.get(f);
+                    if (value != null) addAnnotation(fields, fano.getAnnotationType(), value);
+                }
+                fields.write(json);
+            } else {
+                GSON.toJson(fragment2json(JSON, f, fragmentAnnotations), json);
+            }
+        }
+        json.endArray();
+
+        json.name("losses");
+        json.beginArray();
+        final List<LossAnnotation<Object>> lossAnnotations = tree.getLossAnnotations();
+        boolean lossesStreamable = true;
+        for (LossAnnotation<Object> lano : lossAnnotations) {
+            lossesStreamable &= isStreamable(registry.get(Loss.class, lano.getAnnotationType()), lano.getAnnotationType());
+        }
+        for (Loss l : tree.losses()) {
+            if (lossesStreamable) {
+                fields.clear();
+                fields.putString("source", l.getSource().getFormula().toString());
+                fields.putString("target", l.getTarget().getFormula().toString());
+                fields.putString("molecularFormula", l.getFormula().toString());
+                for (LossAnnotation<Object> lano : lossAnnotations) {
+                    final Object value = lano.get(l);
+                    if (value != null) addAnnotation(fields, lano.getAnnotationType(), value);
+                }
+                fields.write(json);
+            } else {
+                GSON.toJson(loss2json(JSON, l, lossAnnotations), json);
+            }
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
     }
 
     public void writeTreeToFile(File f, FTree tree) throws IOException {
@@ -90,17 +176,7 @@ public class FTJsonWriter {
 
         final List<FragmentAnnotation<Object>> fragmentAnnotations = tree.getFragmentAnnotations();
         for (Fragment f : tree.getFragments()) {
-            final JsonObject fragment = new JsonObject();
-            fragmentList.add(fragment);
-            fragment.addProperty("id", f.getVertexId());
-            fragment.addProperty("molecularFormula", f.getFormula().toString());
-            for (FragmentAnnotation<Object> fano : fragmentAnnotations) {
-                if (fano.get(f)!=null) {
-                    Descriptor<Object> d = registry.get(Fragment.class, fano.getAnnotationType());
-                    if (d != null)
-                        d.write(JSON, fragment, fano.get(f));
-                }
-            }
+            fragmentList.add(fragment2json(JSON, f, fragmentAnnotations));
         }
 
         final JsonArray lossList = new JsonArray();
@@ -108,21 +184,221 @@ public class FTJsonWriter {
 
         final List<LossAnnotation<Object>> lossAnnotations = tree.getLossAnnotations();
         for (Loss l : tree.losses()) {
-            final JsonObject loss = new JsonObject();
-            lossList.add(loss);
-            loss.addProperty("source", l.getSource().getFormula().toString());
-            loss.addProperty("target", l.getTarget().getFormula().toString());
-            loss.addProperty("molecularFormula", l.getFormula().toString());
-            for (LossAnnotation<Object> lano : lossAnnotations) {
-                if (lano.get(l)!=null) {
-                    Descriptor<Object> d = registry.get(Loss.class, lano.getAnnotationType());
-                    if (d != null)
-                        d.write(JSON, loss, lano.get(l));
+            lossList.add(loss2json(JSON, l, lossAnnotations));
+        }
+
+        return j;
+    }
+
+    private JsonObject fragment2json(JSONDocumentType JSON, Fragment f, List<FragmentAnnotation<Object>> fragmentAnnotations) {
+        final JsonObject fragment = new JsonObject();
+        fragment.addProperty("id", f.getVertexId());
+        fragment.addProperty("molecularFormula", f.getFormula().toString());
+        for (FragmentAnnotation<Object> fano : fragmentAnnotations) {
+            if (fano.get(f)!=null) {
+                Descriptor<Object> d = registry.get(Fragment.class, fano.getAnnotationType());
+                if (d != null)
+                    d.write(JSON, fragment, fano.get(f));
+            }
+        }
+        return fragment;
+    }
+
+    private JsonObject loss2json(JSONDocumentType JSON, Loss l, List<LossAnnotation<Object>> lossAnnotations) {
+        final JsonObject loss = new JsonObject();
+        loss.addProperty("source", l.getSource().getFormula().toString());
+        loss.addProperty("target", l.getTarget().getFormula().toString());
+        loss.addProperty("molecularFormula", l.getFormula().toString());
+        for (LossAnnotation<Object> lano : lossAnnotations) {
+            if (lano.get(l)!=null) {
+                Descriptor<Object> d = registry.get(Loss.class, lano.getAnnotationType());
+                if (d != null)
+                    d.write(JSON, loss, lano.get(l));
+            }
+        }
+        return loss;
+    }
+
+    private void writeFormulas(JsonWriter json, FTree tree) throws IOException {
+        final PrecursorIonType generalIonType = tree.getAnnotationOrNull(PrecursorIonType.class);
+        if (generalIonType!=null) {
+            final MolecularFormula formula = tree.getRoot().getFormula();
+            final PrecursorIonType fragmentIon = getFragmentIon(tree.getFragmentAnnotationOrNull(PrecursorIonType.class), tree.getRoot(), generalIonType);
+            json.name("molecularFormula").value(fragmentIon.measuredNeutralMoleculeToNeutralMolecule(formula).toString());
+            json.name("root").value(formula.toString());
+        } else {
+            final String f = tree.getRoot().getFormula().toString();
+            json.name("molecularFormula").value(f);
+            json.name("root").value(f);
+        }
+    }
+
+    /**
+     * annotations without descriptor are not written, annotations of the default descriptors are written directly
+     */
+    private static boolean isStreamable(Descriptor<Object> descriptor, Class<?> annotationType) {
+        if (descriptor == null) return true;
+        if (!DescriptorRegistry.isDefaultDescriptor(descriptor)) return false;
+        return annotationType == Peak.class || annotationType == AnnotatedPeak.class || annotationType == Score.class
+                || annotationType == Ionization.class || annotationType == Ms2IsotopePattern.class
+                || annotationType == InsourceFragmentation.class;
+    }
+
+    /**
+     * adds the same keys and values a default descriptor would add to the dictionary of the element
+     */
+    private void addAnnotation(Fields fields, Class<?> annotationType, Object annotation) {
+        if (annotationType == AnnotatedPeak.class) {
+            final AnnotatedPeak peak = (AnnotatedPeak) annotation;
+            if (!fields.contains("molecularFormula"))
+                fields.putString("molecularFormula", peak.getMolecularFormula().toString());
+            final double theoreticalMass = peak.getIonization().addToMass(peak.getMolecularFormula().getMass());
+            fields.putDouble("mz", peak.getMass());
+            fields.putDouble("relativeIntensity", peak.getRelativeIntensity());
+            fields.putDouble("recalibratedMass", peak.getRecalibratedMass());
+            fields.putString("massDeviation", Deviation.fromMeasurementAndReference(peak.getMass(), theoreticalMass).toString());
+            fields.putString("recalibratedMassDeviation", Deviation.fromMeasurementAndReference(peak.getRecalibratedMass(), theoreticalMass).toString());
+            fields.putString("ion", peak.getIonization().toString());
+            fields.put("peaks", Fields.PEAKS, peak.getOriginalPeaks());
+            fields.put("collisionEnergies", Fields.ENERGIES, peak.getCollisionEnergies());
+        } else if (annotationType == Score.class) {
+            final Score score = (Score) annotation;
+            fields.putDouble("score", score.sum());
+            fields.put("scores", Fields.SCORES, score);
+        } else if (annotationType == Ionization.class) {
+            fields.putString("ion", annotation.toString());
+        } else if (annotationType == Ms2IsotopePattern.class) {
+            fields.put("isotopes", Fields.ISOTOPES, annotation);
+        } else if (annotationType == InsourceFragmentation.class) {
+            if (((InsourceFragmentation) annotation).isInsource())
+                fields.put("insourceFragmentation", Fields.TRUE, null);
+        }
+        // a plain Peak is not written
+    }
+
+    private static void writeDouble(JsonWriter json, double value) throws IOException {
+        // JsonWriter rejects NaN and infinity as primitive double even in lenient mode
+        if (Double.isNaN(value) || Double.isInfinite(value)) json.value((Number) value);
+        else json.value(value);
+    }
+
+    /**
+     * Keys and values of a single fragment or loss, in the order they are written. As in a {@link JsonObject}, adding
+     * an existing key replaces its value but keeps its position.
+     */
+    private static final class Fields {
+        private static final byte LONG = 0, DOUBLE = 1, STRING = 2, TRUE = 3, PEAKS = 4, ENERGIES = 5, SCORES = 6, ISOTOPES = 7;
+
+        private String[] keys = new String[16];
+        private byte[] types = new byte[16];
+        private double[] numbers = new double[16];
+        private Object[] objects = new Object[16];
+        private int size = 0;
+
+        private void clear() {
+            Arrays.fill(objects, 0, size, null);
+            size = 0;
+        }
+
+        private boolean contains(String key) {
+            return indexOf(key) >= 0;
+        }
+
+        private int indexOf(String key) {
+            for (int i = 0; i < size; ++i) {
+                if (keys[i].equals(key)) return i;
+            }
+            return -1;
+        }
+
+        private void putLong(String key, long value) {
+            numbers[put(key, LONG, null)] = value;
+        }
+
+        private void putDouble(String key, double value) {
+            numbers[put(key, DOUBLE, null)] = value;
+        }
+
+        private void putString(String key, String value) {
+            put(key, STRING, value);
+        }
+
+        private int put(String key, byte type, Object value) {
+            int i = indexOf(key);
+            if (i < 0) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    types = Arrays.copyOf(types, size * 2);
+                    numbers = Arrays.copyOf(numbers, size * 2);
+                    objects = Arrays.copyOf(objects, size * 2);
                 }
+                i = size++;
+                keys[i] = key;
             }
+            types[i] = type;
+            objects[i] = value;
+            return i;
         }
 
-        return j;
+        private void write(JsonWriter json) throws IOException {
+            json.beginObject();
+            for (int i = 0; i < size; ++i) {
+                json.name(keys[i]);
+                switch (types[i]) {
+                    case LONG:
+                        json.value((long) numbers[i]);
+                        break;
+                    case DOUBLE:
+                        writeDouble(json, numbers[i]);
+                        break;
+                    case STRING:
+                        json.value((String) objects[i]);
+                        break;
+                    case TRUE:
+                        json.value(true);
+                        break;
+                    case PEAKS:
+                        json.beginArray();
+                        for (Peak p : (Peak[]) objects[i]) {
+                            json.beginObject();
+                            json.name("mz");
+                            writeDouble(json, p.getMass());
+                            json.name("intensity");
+                            writeDouble(json, p.getIntensity());
+                            json.endObject();
+                        }
+                        json.endArray();
+                        break;
+                    case ENERGIES:
+                        json.beginArray();
+                        for (CollisionEnergy e : (CollisionEnergy[]) objects[i]) json.value(e.toString());
+                        json.endArray();
+                        break;
+                    case SCORES:
+                        json.beginObject();
+                        for (Map.Entry<String, Double> entry : ((Score) objects[i]).entrySet()) {
+                            json.name(entry.getKey());
+                            writeDouble(json, entry.getValue());
+                        }
+                        json.endObject();
+                        break;
+                    case ISOTOPES:
+                        final Ms2IsotopePattern pattern = (Ms2IsotopePattern) objects[i];
+                        json.beginObject();
+                        json.name("score");
+                        writeDouble(json, pattern.getScore());
+                        json.name("mz").beginArray();
+                        for (Peak p : pattern.getPeaks()) writeDouble(json, p.getMass());
+                        json.endArray();
+                        json.name("relInt").beginArray();
+                        for (Peak p : pattern.getPeaks()) writeDouble(json, p.getIntensity());
+                        json.endArray();
+                        json.endObject();
+                        break;
+                }
+            }
+            json.endObject();
+        }
     }
 
     private void hardCodedAnnotations(JSONDocumentType json, JsonObject ano, FTree tree) {
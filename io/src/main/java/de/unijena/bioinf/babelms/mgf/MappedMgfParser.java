@@ -0,0 +1,593 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.babelms.mgf;
+
+import de.unijena.bioinf.ChemistryBase.exceptions.MultipleChargeException;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.babelms.GenericParser;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parses MGF files by memory mapping them. The file is split at the BEGIN IONS/END IONS lines into byte ranges which
+ * are parsed by worker threads. Peaks are parsed directly from the mapped bytes without creating strings.
+ * Spectra are merged into experiments in their original order by {@link MgfParser#parseExperiment}, so the resulting
+ * experiments (including their {@link de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index}) are the same as
+ * the ones of the {@link MgfParser}.
+ * <p>
+ * Only files are parsed this way. Streams and readers are delegated to the {@link MgfParser}.
+ */
+public class MappedMgfParser extends GenericParser<Ms2Experiment> {
+
+    // files smaller than this are parsed in the calling thread
+    protected static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+    // bytes of the file which are mapped at once
+    protected static final int REGION_SIZE = 256 * 1024 * 1024;
+    // minimal number of bytes parsed by a single task
+    protected static final int BATCH_SIZE = 1024 * 1024;
+
+    private static final byte[] BEGIN_IONS = "BEGIN IONS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_IONS = "END IONS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FEATURE_ID = "FEATURE_ID".getBytes(StandardCharsets.US_ASCII);
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1d;
+        for (int i = 1; i < POWERS_OF_TEN.length; ++i) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10d;
+    }
+
+    private final int numberOfThreads;
+    private final long parallelThreshold;
+    private final int regionSize, batchSize;
+
+    public MappedMgfParser() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MappedMgfParser(int numberOfThreads) {
+        this(numberOfThreads, PARALLEL_THRESHOLD, REGION_SIZE, BATCH_SIZE);
+    }
+
+    /**
+     * @param parallelThreshold files smaller than this are parsed in the calling thread
+     * @param regionSize        bytes of the file which are mapped at once
+     * @param batchSize         minimal number of bytes parsed by a single task
+     */
+    MappedMgfParser(int numberOfThreads, long parallelThreshold, int regionSize, int batchSize) {
+        super(new MgfParser());
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.parallelThreshold = parallelThreshold;
+        this.regionSize = regionSize;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public <S extends Ms2Experiment> CloseableIterator<S> parseFromFileIterator(File file) throws IOException {
+        // lines are split on bytes, which only works for ASCII compatible encodings
+        if (!isAsciiCompatible(Charset.defaultCharset())) return super.parseFromFileIterator(file);
+        final URL source = file.toURI().toURL();
+        final MappedMgfParserInstance inst = new MappedMgfParserInstance(file, file.length() < parallelThreshold ? 1 : numberOfThreads, regionSize, batchSize);
+        return new CloseableIterator<S>() {
+            S elem = parseNext(inst, source);
+
+            @Override
+            public boolean hasNext() {
+                return elem != null;
+            }
+
+            @Override
+            public S next() {
+                if (elem == null) throw new NoSuchElementException();
+                final S mem = elem;
+                try {
+                    elem = parseNext(inst, source);
+                } catch (IOException e) {
+                    inst.close();
+                    throw new RuntimeException(e);
+                }
+                return mem;
+            }
+
+            @Override
+            public void close() throws IOException {
+                inst.close();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public <S extends Ms2Experiment> List<S> parseFromFile(File file) throws IOException {
+        final ArrayList<S> list = new ArrayList<S>();
+        try (final CloseableIterator<S> iterator = parseFromFileIterator(file)) {
+            while (iterator.hasNext()) list.add(iterator.next());
+        } catch (IOException e) {
+            throw new IOException("Error while parsing " + file.getName(), e);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) throw new IOException("Error while parsing " + file.getName(), e.getCause());
+            throw e;
+        }
+        return list;
+    }
+
+    private <S extends Ms2Experiment> S parseNext(MappedMgfParserInstance inst, URL source) throws IOException {
+        try {
+            // as in Parser.parse, the caller chooses the experiment type. MgfParser always returns MutableMs2Experiments
+            @SuppressWarnings("unchecked")
+            final S exp = (S) MgfParser.parseExperiment(inst, source);
+            if (exp == null) inst.close();
+            return exp;
+        } catch (IOException | RuntimeException e) {
+            inst.close();
+            throw e;
+        }
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII) || charset.equals(StandardCharsets.ISO_8859_1) || charset.name().equals("windows-1252");
+    }
+
+    /**
+     * Provides the spectra of the file in their original order. The main thread splits the file into entries and
+     * handles all lines outside of entries, the entries themselves are parsed in the workers.
+     */
+    private static class MappedMgfParserInstance extends MgfParser.MgfParserInstance {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final ExecutorService executor;
+        private final int maxPendingBatches;
+        private final int regionSize, batchSize;
+        private final ArrayDeque<Future<Entry[]>> pending;
+        private final ArrayDeque<Entry> parsed;
+        private final Charset charset;
+
+        private MappedByteBuffer region;
+        private long regionStart;
+        private int position;
+        private boolean eof;
+        // keywords given outside of entries. Replaced instead of modified, as entries keep a reference to it.
+        private MgfParser.MgfSpec prototype;
+
+        private MappedMgfParserInstance(File file, int numberOfThreads, int regionSize, int batchSize) throws IOException {
+            super(null);
+            this.regionSize = regionSize;
+            this.batchSize = batchSize;
+            this.file = new RandomAccessFile(file, "r");
+            this.channel = this.file.getChannel();
+            this.fileSize = channel.size();
+            this.executor = numberOfThreads > 1 ? Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "mgf-parser");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }) : null;
+            this.maxPendingBatches = numberOfThreads * 4;
+            this.pending = new ArrayDeque<>();
+            this.parsed = new ArrayDeque<>();
+            this.charset = Charset.defaultCharset();
+            this.prototype = new MgfParser.MgfSpec();
+            this.eof = fileSize == 0;
+            if (!eof) map(0, (int) Math.min(fileSize, regionSize));
+        }
+
+        @Override
+        MgfParser.MgfSpec readNext() throws IOException {
+            while (true) {
+                final Entry entry = parsed.pollFirst();
+                if (entry != null) {
+                    for (ParsingError error : entry.errors) increaseIndexForError(error);
+                    if (entry.spec != null) {
+                        lastErrorFeatureId = null;
+                        return entry.spec;
+                    }
+                    continue;
+                }
+                while (pending.size() < maxPendingBatches) {
+                    final Entry[] batch = scanBatch();
+                    if (batch == null) break;
+                    submit(batch);
+                }
+                if (pending.isEmpty()) return null;
+                parsed.addAll(Arrays.asList(await(pending.pollFirst())));
+            }
+        }
+
+        // same bookkeeping as in MgfParserInstance: not-parsed compounds still get an index
+        private void increaseIndexForError(ParsingError error) {
+            if (error.featureId != null && !error.featureId.equals(lastErrorFeatureId)) {
+                ++specIndex;
+                lastErrorFeatureId = error.featureId;
+                return;
+            }
+            for (String id : error.followingFeatureIds) {
+                if (id.length() > 0 && !id.equals(lastErrorFeatureId)) {
+                    ++specIndex;
+                    lastErrorFeatureId = id;
+                    return;
+                }
+            }
+        }
+
+        private void submit(final Entry[] batch) {
+            final ByteBufferSource buffer = new ByteBufferSource(region, charset);
+            final Callable<Entry[]> task = new Callable<Entry[]>() {
+                @Override
+                public Entry[] call() throws Exception {
+                    for (Entry entry : batch) entry.parse(buffer);
+                    return batch;
+                }
+            };
+            if (executor == null) {
+                final FutureTask<Entry[]> future = new FutureTask<>(task);
+                future.run();
+                pending.addLast(future);
+            } else {
+                pending.addLast(executor.submit(task));
+            }
+        }
+
+        private Entry[] await(Future<Entry[]> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IOException(cause);
+            }
+        }
+
+        /**
+         * splits the next part of the file into entries. All entries of a batch are in the same mapped region.
+         *
+         * @return the next entries or null, if the end of the file is reached
+         */
+        private Entry[] scanBatch() throws IOException {
+            final ArrayList<Entry> batch = new ArrayList<>();
+            int batchSize = 0;
+            scanning:
+            while (!eof && batchSize < this.batchSize) {
+                final int limit = region.limit();
+                final int lineStart = position;
+                final int lineEnd = lineEnd(region, lineStart, limit);
+                if (needsRemapping(lineEnd)) {
+                    if (!batch.isEmpty()) break;
+                    remap(lineStart);
+                    continue;
+                }
+                final int next = nextLineStart(region, lineEnd, limit);
+                if (startsWith(region, lineStart, lineEnd, BEGIN_IONS)) {
+                    int entryEnd = next;
+                    while (true) {
+                        final int end = lineEnd(region, entryEnd, limit);
+                        if (needsRemapping(end)) {
+                            if (!batch.isEmpty()) break scanning;
+                            remap(lineStart);
+                            continue scanning;
+                        }
+                        if (startsWith(region, entryEnd, end, END_IONS)) {
+                            batch.add(new Entry(prototype, next, entryEnd, true));
+                            position = nextLineStart(region, end, limit);
+                            break;
+                        }
+                        if (end >= limit) {
+                            // entries without END IONS at the end of the file are discarded
+                            batch.add(new Entry(prototype, next, limit, false));
+                            position = limit;
+                            break;
+                        }
+                        entryEnd = nextLineStart(region, end, limit);
+                    }
+                    batchSize += position - lineStart;
+                } else {
+                    if (lineEnd > lineStart) handlePrototypeLine(lineStart, lineEnd);
+                    position = next;
+                }
+                if (position >= limit && regionStart + limit >= fileSize) eof = true;
+            }
+            return batch.isEmpty() ? null : batch.toArray(new Entry[batch.size()]);
+        }
+
+        private void handlePrototypeLine(int lineStart, int lineEnd) throws IOException {
+            final ByteBufferSource source = new ByteBufferSource(region, charset);
+            final int i = indexOf(region, lineStart, lineEnd, (byte) '=');
+            if (i < 0) return;
+            final MgfParser.MgfSpec newPrototype = new MgfParser.MgfSpec(prototype);
+            newPrototype.instrumentation = prototype.instrumentation;
+            try {
+                handleKeyword(newPrototype, source.decode(lineStart, i), source.decode(i + 1, lineEnd), ignoreUnsupportedIonTypes);
+                prototype = newPrototype;
+            } catch (RuntimeException e) {
+                LoggerFactory.getLogger(MgfParser.MgfParserInstance.class).error(e.getMessage(), e);
+            }
+        }
+
+        // true if the line might continue behind the mapped region
+        private boolean needsRemapping(int lineEnd) {
+            final int limit = region.limit();
+            if (regionStart + limit >= fileSize) return false;
+            return lineEnd >= limit - 1;
+        }
+
+        private void remap(int start) throws IOException {
+            final long newStart = regionStart + start;
+            long size = Math.min(fileSize - newStart, regionSize);
+            if (start == 0) {
+                // a single entry does not fit into the region
+                if (region.limit() >= Integer.MAX_VALUE) throw new IOException("MGF entry at byte " + newStart + " is too large");
+                size = Math.min(fileSize - newStart, Math.min(2L * region.limit(), Integer.MAX_VALUE));
+            }
+            map(newStart, (int) size);
+        }
+
+        private void map(long start, int size) throws IOException {
+            this.region = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            this.regionStart = start;
+            this.position = 0;
+        }
+
+        void close() {
+            if (executor != null) executor.shutdownNow();
+            try {
+                file.close();
+            } catch (IOException e) {
+                LoggerFactory.getLogger(MappedMgfParser.class).warn("Cannot close file", e);
+            }
+        }
+    }
+
+    /**
+     * the byte range of a single entry (without the BEGIN IONS and END IONS lines) and the result of its parsing
+     */
+    private static class Entry {
+        private final MgfParser.MgfSpec prototype;
+        private final int start, end;
+        private final boolean terminated;
+        private MgfParser.MgfSpec spec;
+        private List<ParsingError> errors = Collections.emptyList();
+
+        private Entry(MgfParser.MgfSpec prototype, int start, int end, boolean terminated) {
+            this.prototype = prototype;
+            this.start = start;
+            this.end = end;
+            this.terminated = terminated;
+        }
+
+        /**
+         * parses the lines of the entry in the same way as {@link MgfParser.MgfParserInstance} does
+         */
+        private void parse(ByteBufferSource source) throws IOException {
+            final MappedByteBuffer buf = source.buffer;
+            MgfParser.MgfSpec spec = newSpec();
+            int pos = start;
+            while (pos < end) {
+                final int lineEnd = lineEnd(buf, pos, end);
+                int next = nextLineStart(buf, lineEnd, end);
+                if (lineEnd > pos) {
+                    try {
+                        final byte first = buf.get(pos);
+                        if (first >= '0' && first <= '9') {
+                            parsePeak(source, pos, lineEnd, spec.spectrum);
+                        } else {
+                            final int i = indexOf(buf, pos, lineEnd, (byte) '=');
+                            if (i >= 0) MgfParser.MgfParserInstance.handleKeyword(spec, source.decode(pos, i), source.decode(i + 1, lineEnd), true);
+                        }
+                    } catch (RuntimeException e) {
+                        if (e instanceof MultipleChargeException) {
+                            LoggerFactory.getLogger(MgfParser.MgfParserInstance.class).warn("Compound ignored. SIRIUS does not support multiple charged compounds.");
+                        } else {
+                            LoggerFactory.getLogger(MgfParser.MgfParserInstance.class).error(e.getMessage(), e);
+                        }
+                        final ParsingError error = new ParsingError(spec.featureId);
+                        if (errors.isEmpty()) errors = new ArrayList<>(1);
+                        errors.add(error);
+                        // skip the rest of the entry. A new BEGIN IONS starts a new spectrum.
+                        spec = null;
+                        while (next < end) {
+                            final int skipped = next;
+                            final int skippedEnd = lineEnd(buf, skipped, end);
+                            next = nextLineStart(buf, skippedEnd, end);
+                            if (startsWith(buf, skipped, skippedEnd, BEGIN_IONS)) {
+                                spec = newSpec();
+                                break;
+                            } else if (startsWithIgnoreCase(buf, skipped, skippedEnd, FEATURE_ID)) {
+                                final int i = indexOf(buf, skipped, skippedEnd, (byte) '=');
+                                error.followingFeatureIds.add(source.decode(i + 1, skippedEnd).trim());
+                            }
+                        }
+                        if (spec == null) return;
+                    }
+                }
+                pos = next;
+            }
+            if (terminated) this.spec = spec;
+        }
+
+        private MgfParser.MgfSpec newSpec() {
+            return new MgfParser.MgfSpec(prototype);
+        }
+    }
+
+    private static class ParsingError {
+        private final String featureId;
+        private final List<String> followingFeatureIds = new ArrayList<>(1);
+
+        private ParsingError(String featureId) {
+            this.featureId = featureId;
+        }
+    }
+
+    /**
+     * mapped region of the file and a buffer for decoding strings. Each thread uses its own instance.
+     */
+    private static class ByteBufferSource {
+        private final MappedByteBuffer buffer;
+        private final Charset charset;
+        private byte[] bytes = new byte[256];
+
+        private ByteBufferSource(MappedByteBuffer buffer, Charset charset) {
+            this.buffer = buffer;
+            this.charset = charset;
+        }
+
+        private String decode(int from, int to) {
+            final int length = to - from;
+            if (bytes.length < length) bytes = new byte[Math.max(length, bytes.length * 2)];
+            for (int i = 0; i < length; ++i) bytes[i] = buffer.get(from + i);
+            return new String(bytes, 0, length, charset);
+        }
+    }
+
+    private static void parsePeak(ByteBufferSource source, int from, int to, MutableMs2Spectrum spectrum) {
+        final MappedByteBuffer buf = source.buffer;
+        final int massEnd = skip(buf, from, to, false);
+        final int intensityStart = skip(buf, massEnd, to, true);
+        final int intensityEnd = skip(buf, intensityStart, to, false);
+        if (intensityStart >= intensityEnd) throw new IllegalArgumentException("Peak without intensity: " + source.decode(from, to));
+        spectrum.addPeak(parseDouble(source, from, massEnd), parseDouble(source, intensityStart, intensityEnd));
+    }
+
+    /**
+     * parses simple decimal numbers (as they are used in MGF files) without creating a string. The result is exactly
+     * the same as the one of {@link Double#parseDouble(String)}: mantissas with up to 15 digits and small exponents
+     * can be converted with a single (correctly rounded) floating point operation. All other numbers are delegated to
+     * {@link Double#parseDouble(String)}.
+     */
+    private static double parseDouble(ByteBufferSource source, int from, int to) {
+        final MappedByteBuffer buf = source.buffer;
+        int i = from;
+        boolean negative = false;
+        if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+            negative = buf.get(i) == '-';
+            ++i;
+        }
+        long mantissa = 0;
+        int numberOfDigits = 0, significantDigits = 0, exponent = 0;
+        byte b;
+        while (i < to && (b = buf.get(i)) >= '0' && b <= '9') {
+            mantissa = mantissa * 10 + (b - '0');
+            if (mantissa != 0) ++significantDigits;
+            ++numberOfDigits;
+            ++i;
+        }
+        if (i < to && buf.get(i) == '.') {
+            ++i;
+            while (i < to && (b = buf.get(i)) >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) ++significantDigits;
+                ++numberOfDigits;
+                --exponent;
+                ++i;
+            }
+        }
+        if (i < to && (buf.get(i) == 'e' || buf.get(i) == 'E') && numberOfDigits > 0) {
+            ++i;
+            boolean negativeExponent = false;
+            if (i < to && (buf.get(i) == '-' || buf.get(i) == '+')) {
+                negativeExponent = buf.get(i) == '-';
+                ++i;
+            }
+            int value = 0, exponentDigits = 0;
+            while (i < to && (b = buf.get(i)) >= '0' && b <= '9' && value < 1000) {
+                value = value * 10 + (b - '0');
+                ++exponentDigits;
+                ++i;
+            }
+            if (exponentDigits == 0) i = -1;
+            exponent += negativeExponent ? -value : value;
+        }
+        if (i != to || numberOfDigits == 0 || significantDigits > 15 || exponent < -22 || exponent > 22)
+            return Double.parseDouble(source.decode(from, to));
+        final double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    // returns the first index which is (not) a whitespace
+    private static int skip(MappedByteBuffer buf, int from, int to, boolean whitespace) {
+        for (int i = from; i < to; ++i) {
+            final byte b = buf.get(i);
+            final boolean isWhitespace = b == ' ' || b == '\t' || b == 0x0B || b == '\f';
+            if (isWhitespace != whitespace) return i;
+        }
+        return to;
+    }
+
+    // lines are terminated by \n, \r or \r\n, as in BufferedReader
+    private static int lineEnd(MappedByteBuffer buf, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            final byte b = buf.get(i);
+            if (b == '\n' || b == '\r') return i;
+        }
+        return to;
+    }
+
+    private static int nextLineStart(MappedByteBuffer buf, int lineEnd, int to) {
+        if (lineEnd >= to) return to;
+        if (buf.get(lineEnd) == '\r' && lineEnd + 1 < to && buf.get(lineEnd + 1) == '\n') return lineEnd + 2;
+        return lineEnd + 1;
+    }
+
+    private static int indexOf(MappedByteBuffer buf, int from, int to, byte c) {
+        for (int i = from; i < to; ++i) {
+            if (buf.get(i) == c) return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(MappedByteBuffer buf, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) return false;
+        for (int i = 0; i < prefix.length; ++i) {
+            if (buf.get(from + i) != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWithIgnoreCase(MappedByteBuffer buf, int from, int to, byte[] upperCasePrefix) {
+        if (to - from < upperCasePrefix.length) return false;
+        for (int i = 0; i < upperCasePrefix.length; ++i) {
+            byte b = buf.get(from + i);
+            if (b >= 'a' && b <= 'z') b -= 'a' - 'A';
+            if (b != upperCasePrefix[i]) return false;
+        }
+        return true;
+    }
+}
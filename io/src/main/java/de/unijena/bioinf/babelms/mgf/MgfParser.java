@@ -35,20 +35,20 @@ import java.util.regex.Pattern;
 
 public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
 
-    private static enum SpecType {
+    static enum SpecType {
         UNKNOWN,MS1, MSMS, CORRELATED;
     }
 
-    private static class MgfSpec {
+    static class MgfSpec {
 
-        private String featureId;
-        private MutableMs2Spectrum spectrum;
-        private PrecursorIonType ionType;
-        private HashMap<String, String> fields;
-        private String inchi, smiles, name;
-        private RetentionTime retentionTime;
-        private MsInstrumentation instrumentation = MsInstrumentation.Unknown;
-        private SpecType type;
+        String featureId;
+        MutableMs2Spectrum spectrum;
+        PrecursorIonType ionType;
+        HashMap<String, String> fields;
+        String inchi, smiles, name;
+        RetentionTime retentionTime;
+        MsInstrumentation instrumentation = MsInstrumentation.Unknown;
+        SpecType type;
 
         public MgfSpec(MgfSpec s) {
             this.spectrum=new MutableMs2Spectrum(s.spectrum);
@@ -69,11 +69,11 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
         }
     }
 
-    private static class MgfParserInstance {
+    static class MgfParserInstance {
         private final MgfSpec prototype;
         private final ArrayDeque<MgfSpec> buffer;
         private final BufferedReader reader;
-        private int specIndex = 0;
+        int specIndex = 0;
         protected boolean ignoreUnsupportedIonTypes ;
 
         public MgfParserInstance(BufferedReader reader) {
@@ -109,6 +109,10 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
         private static Pattern NOT_AVAILABLE = Pattern.compile("\\s*N/A\\s*");
 
         private void handleKeyword(MgfSpec spec, String keyword, String value) throws IOException {
+            handleKeyword(spec, keyword, value, ignoreUnsupportedIonTypes);
+        }
+
+        static void handleKeyword(MgfSpec spec, String keyword, String value, boolean ignoreUnsupportedIonTypes) throws IOException {
             keyword = keyword.toUpperCase();
             value = value.trim();
             if (value.isEmpty()) return;
@@ -155,14 +159,14 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
                     try {
                         ion = PeriodicTable.getInstance().ionByName(value);
                         if (ion == null) {
-                            LoggerFactory.getLogger(this.getClass()).error("Unknown ion '" + value + "'");
+                            LoggerFactory.getLogger(MgfParserInstance.class).error("Unknown ion '" + value + "'");
                             if (!ignoreUnsupportedIonTypes) throw new IOException("Unknown ion '" + value + "'");
                             else return;
                         } else {
 
                         }
                     } catch (RuntimeException e) {
-                        LoggerFactory.getLogger(this.getClass()).error(e.getMessage(), e);
+                        LoggerFactory.getLogger(MgfParserInstance.class).error(e.getMessage(), e);
                         if (!ignoreUnsupportedIonTypes) throw (e);
                         else return;
                     }
@@ -192,8 +196,8 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
             }
         }
 
-        private String lastErrorFeatureId = null;
-        private MgfSpec readNext() throws IOException {
+        String lastErrorFeatureId = null;
+        MgfSpec readNext() throws IOException {
             String line;
             boolean reading=false;
             MgfSpec spec = null;
@@ -295,6 +299,14 @@ public class MgfParser extends SpectralParser implements Parser<Ms2Experiment> {
     @Override
     public synchronized Ms2Experiment parse(BufferedReader reader, URL source) throws IOException {
         if (inst==null || inst.reader!=reader) inst = new MgfParserInstance(reader);
+        return parseExperiment(inst, source);
+    }
+
+    /**
+     * merges the next spectra which belong to the same compound into an experiment
+     * @return the next experiment or null, if there are no further spectra
+     */
+    static Ms2Experiment parseExperiment(MgfParserInstance inst, URL source) throws IOException {
         if (!inst.hasNext()) return null;
         ++inst.specIndex;
         final MutableMs2Experiment exp = new MutableMs2Experiment();
@@ -0,0 +1,161 @@
+package de.unijena.bioinf.babelms.json;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.AnnotatedPeak;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.Peak;
+import de.unijena.bioinf.ChemistryBase.ms.ft.*;
+import de.unijena.bioinf.babelms.descriptor.Descriptor;
+import de.unijena.bioinf.babelms.descriptor.DescriptorRegistry;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FTJsonWriterTest {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private FTree readTree() throws IOException {
+        try (final BufferedReader r = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/de/unijena/bioinf/babelms/ms/casmi2016_084.json"), StandardCharsets.UTF_8))) {
+            final FTree tree = new FTJsonReader().parse(r, null);
+            assertNotNull(tree);
+            return tree;
+        }
+    }
+
+    @Test
+    public void testStreamingWriterProducesSameJson() throws IOException {
+        final FTJsonWriter writer = new FTJsonWriter();
+        final FTree tree = readTree();
+        assertEquals(GSON.toJson(writer.tree2json(tree)), writer.treeToJsonString(tree));
+    }
+
+    @Test
+    public void testStreamingWriterWithAdditionalAnnotations() throws IOException {
+        final FTJsonWriter writer = new FTJsonWriter();
+        final FTree tree = readTree();
+        final FragmentAnnotation<Ionization> ion = tree.getOrCreateFragmentAnnotation(Ionization.class);
+        final FragmentAnnotation<Ms2IsotopePattern> iso = tree.getOrCreateFragmentAnnotation(Ms2IsotopePattern.class);
+        final FragmentAnnotation<Score> score = tree.getOrCreateFragmentAnnotation(Score.class);
+        final Fragment f = tree.getFragmentAt(1);
+        ion.set(tree.getRoot(), PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization());
+        iso.set(f, new Ms2IsotopePattern(new Peak[]{new Peak(f.getFormula().getMass(), 1d), new Peak(f.getFormula().getMass() + 1.00336, 0.1)}, 1.5));
+        if (score.get(f) != null) score.get(f).set(0, Double.NaN);
+        tree.getOrCreateLossAnnotation(InsourceFragmentation.class).set(f.getIncomingEdge(), new InsourceFragmentation(true));
+
+        final String expected = GSON.toJson(writer.tree2json(tree));
+        assertEquals(expected, writer.treeToJsonString(tree));
+
+        // streaming reader and DOM reader build the same tree
+        final FTJsonReader reader = new FTJsonReader();
+        final FTree streamed = reader.parse(new BufferedReader(new StringReader(expected)), null);
+        final FTree dom = reader.treeFromJson(new JsonParser().parse(expected).getAsJsonObject(), null);
+        assertEquals(writer.treeToJsonString(dom), writer.treeToJsonString(streamed));
+        assertEquals(tree.numberOfVertices(), streamed.numberOfVertices());
+    }
+
+    @Test
+    public void testStreamedFieldsEqualDefaultDescriptors() {
+        final Ionization protonation = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        final Score score = new Score(new String[]{"first", "second", "third"});
+        score.set(0, -1.5);
+        score.set(1, Double.NaN);
+        score.set(2, Double.NEGATIVE_INFINITY);
+        final Score noScores = new Score(new String[0]);
+        final AnnotatedPeak peak = new AnnotatedPeak(MolecularFormula.parse("C3H5N2O"), 85.0396, 85.0394, 0.25, protonation,
+                new Peak[]{new Peak(85.0396, 1e7), new Peak(85.0399, Double.NaN)}, new CollisionEnergy[]{new CollisionEnergy(10, 20), CollisionEnergy.none()});
+        final AnnotatedPeak emptyPeak = new AnnotatedPeak(MolecularFormula.parse("C3H5N2O"), 85.0396, 0d, 0d, protonation, new Peak[0], new CollisionEnergy[0]);
+        final Ms2IsotopePattern isotopes = new Ms2IsotopePattern(new Peak[]{new Peak(85.0396, 1d), new Peak(86.0429, 0.04)}, Double.POSITIVE_INFINITY);
+
+        assertSameFields(Fragment.class, Peak.class, new Peak(85.0396, 0.25));
+        assertSameFields(Fragment.class, AnnotatedPeak.class, peak);
+        assertSameFields(Fragment.class, AnnotatedPeak.class, emptyPeak);
+        assertSameFields(Fragment.class, Score.class, score);
+        assertSameFields(Fragment.class, Score.class, noScores);
+        assertSameFields(Fragment.class, Ionization.class, protonation);
+        assertSameFields(Fragment.class, Ms2IsotopePattern.class, isotopes);
+        assertSameFields(Fragment.class, Ms2IsotopePattern.class, new Ms2IsotopePattern(new Peak[0], 0d));
+        assertSameFields(Loss.class, Score.class, score);
+        assertSameFields(Loss.class, InsourceFragmentation.class, new InsourceFragmentation(true));
+        assertSameFields(Loss.class, InsourceFragmentation.class, new InsourceFragmentation(false));
+    }
+
+    /**
+     * writes a tree where each fragment (or loss) carries only the given annotation and compares every written field
+     * with the fields the registered default descriptor adds to an element
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void assertSameFields(Class<?> elementType, Class<T> annotationType, T annotation) {
+        final Descriptor<Object> descriptor = (Descriptor<Object>) DescriptorRegistry.getInstance().get(elementType, annotationType);
+        assertTrue(annotationType.getSimpleName(), DescriptorRegistry.isDefaultDescriptor(descriptor));
+        final FTree tree = new FTree(MolecularFormula.parse("C4H7N3O"));
+        final Fragment child = tree.addFragment(tree.getRoot(), MolecularFormula.parse("C3H5N2O"));
+        tree.addFragment(child, MolecularFormula.parse("C2H4NO"));
+        final List<JsonObject> expected = new ArrayList<>();
+        final JSONDocumentType JSON = new JSONDocumentType();
+        if (elementType == Fragment.class) {
+            final FragmentAnnotation<T> ano = tree.getOrCreateFragmentAnnotation(annotationType);
+            for (Fragment f : tree.getFragments()) {
+                ano.set(f, annotation);
+                final JsonObject element = new JsonObject();
+                element.addProperty("id", f.getVertexId());
+                element.addProperty("molecularFormula", f.getFormula().toString());
+                descriptor.write(JSON, element, annotation);
+                expected.add(element);
+            }
+        } else {
+            final LossAnnotation<T> ano = tree.getOrCreateLossAnnotation(annotationType);
+            for (Loss l : tree.losses()) {
+                ano.set(l, annotation);
+                final JsonObject element = new JsonObject();
+                element.addProperty("source", l.getSource().getFormula().toString());
+                element.addProperty("target", l.getTarget().getFormula().toString());
+                element.addProperty("molecularFormula", l.getFormula().toString());
+                descriptor.write(JSON, element, annotation);
+                expected.add(element);
+            }
+        }
+        final JsonParser parser = new JsonParser();
+        final JsonArray written = parser.parse(new FTJsonWriter().treeToJsonString(tree)).getAsJsonObject()
+                .getAsJsonArray(elementType == Fragment.class ? "fragments" : "losses");
+        assertEquals(expected.size(), written.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            // both are parsed from their text, such that NaN and infinity are read the same way
+            final JsonObject element = parser.parse(GSON.toJson(expected.get(i))).getAsJsonObject();
+            final JsonObject streamed = written.get(i).getAsJsonObject();
+            final List<String> expectedKeys = new ArrayList<>(), keys = new ArrayList<>();
+            for (Map.Entry<String, JsonElement> field : element.entrySet()) expectedKeys.add(field.getKey());
+            for (Map.Entry<String, JsonElement> field : streamed.entrySet()) keys.add(field.getKey());
+            assertEquals(annotationType.getSimpleName(), expectedKeys, keys);
+            for (Map.Entry<String, JsonElement> field : element.entrySet()) {
+                assertEquals(annotationType.getSimpleName() + "." + field.getKey(), GSON.toJson(field.getValue()), GSON.toJson(streamed.get(field.getKey())));
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyDocument() throws IOException {
+        assertNull(new FTJsonReader().parse(new BufferedReader(new StringReader("")), null));
+    }
+
+}
@@ -0,0 +1,125 @@
+package de.unijena.bioinf.babelms.mgf;
+
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
+import de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index;
+import de.unijena.bioinf.babelms.CloseableIterator;
+import de.unijena.bioinf.babelms.GenericParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MappedMgfParserTest {
+
+    private static final String MGF = "COM=test\r\n" +
+            "BEGIN IONS\r\nFEATURE_ID=1\r\nPEPMASS=195.0877\r\nCHARGE=1+\r\nMSLEVEL=1\r\n195.0877 1000\r\n196.0911\t110.5\r\nEND IONS\r\n\r\n" +
+            "BEGIN IONS\r\nFEATURE_ID=1\r\nPEPMASS=195.0877\r\nCHARGE=1+\r\nMSLEVEL=2\r\n42.0338 1.2e3\r\n69.0447 523\r\n138.0662 00012.50\r\nEND IONS\r\n" +
+            "BEGIN IONS\r\nFEATURE_ID=2\r\nPEPMASS=180.0655\r\nMSLEVEL=2\r\n60.0211 1,5\r\nEND IONS\r\n" +
+            "BEGIN IONS\r\nFEATURE_ID=3\r\nPEPMASS=151.0611\r\nMSLEVEL=2\r\n65.0386 12\r\n110.0600 123.45678901234567890\r\nEND IONS\r\n" +
+            "BEGIN IONS\r\nPEPMASS=300.0\r\n100.0 1\r\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSameExperimentsAsMgfParser() throws IOException {
+        final File file = folder.newFile("test.mgf");
+        Files.write(file.toPath(), MGF.getBytes(StandardCharsets.US_ASCII));
+
+        final List<Ms2Experiment> experiments = new MappedMgfParser(2).parseFromFile(file);
+        assertEquals(2, experiments.size());
+        assertSameExperiments(new GenericParser<Ms2Experiment>(new MgfParser()).parseFromFile(file), experiments);
+        // the compound with the invalid peak still gets an index
+        assertEquals(3, experiments.get(1).getAnnotation(Index.class).index);
+    }
+
+    @Test
+    public void testParallelParsingWithSmallRegions() throws IOException {
+        final File file = folder.newFile("large.mgf");
+        Files.write(file.toPath(), generateMgf(new Random(42), 400).getBytes(StandardCharsets.US_ASCII));
+        final List<Ms2Experiment> expected = new GenericParser<Ms2Experiment>(new MgfParser()).parseFromFile(file);
+        assertTrue(expected.size() > 100);
+        // regions of a few entries, such that most regions end within a spectrum. One spectrum is larger than the
+        // smallest region, which then has to be enlarged.
+        for (int regionSize : new int[]{4096, 1021, 512}) {
+            for (int batchSize : new int[]{1, 2000}) {
+                final MappedMgfParser parser = new MappedMgfParser(4, 0, regionSize, batchSize);
+                assertSameExperiments(expected, parser.<Ms2Experiment>parseFromFile(file));
+            }
+        }
+        // iterating stops the worker threads when the iterator is closed early
+        try (final CloseableIterator<Ms2Experiment> iterator = new MappedMgfParser(4, 0, 1021, 100).parseFromFileIterator(file)) {
+            for (int i = 0; i < 10; ++i) assertEquals(expected.get(i).getName(), iterator.next().getName());
+        }
+    }
+
+    /**
+     * entries with varying numbers of peaks, line endings and number formats. Some entries have invalid peaks and
+     * some keywords are given outside of entries.
+     */
+    private static String generateMgf(Random random, int numberOfEntries) {
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < numberOfEntries; ++i) {
+            final String nl = random.nextBoolean() ? "\n" : "\r\n";
+            if (i % 50 == 7) buf.append("COM=block ").append(i).append(nl);
+            final double pepmass = 100d + 900d * random.nextDouble();
+            buf.append("BEGIN IONS").append(nl);
+            buf.append("FEATURE_ID=").append(i / 2).append(nl);
+            buf.append("PEPMASS=").append(String.format(Locale.US, "%.4f", pepmass)).append(nl);
+            buf.append("CHARGE=1+").append(nl);
+            buf.append("MSLEVEL=").append(i % 2 == 0 ? 1 : 2).append(nl);
+            final int numberOfPeaks = i == 123 ? 300 : 1 + random.nextInt(20);
+            for (int k = 0; k < numberOfPeaks; ++k) {
+                final double mz = 20d + (pepmass - 20d) * random.nextDouble();
+                final double intensity = 1000d * random.nextDouble();
+                switch (random.nextInt(4)) {
+                    case 0: buf.append(String.format(Locale.US, "%.5f %.2f", mz, intensity)); break;
+                    case 1: buf.append(String.format(Locale.US, "%.4f\t%.3e", mz, intensity)); break;
+                    case 2: buf.append(mz).append(' ').append(intensity); break;
+                    default: buf.append(String.format(Locale.US, "%.3f %d", mz, (int) intensity));
+                }
+                buf.append(nl);
+            }
+            if (i % 37 == 11) buf.append("60.0211 1,5").append(nl);
+            buf.append("END IONS").append(nl);
+            if (random.nextBoolean()) buf.append(nl);
+        }
+        return buf.toString();
+    }
+
+    private static void assertSameExperiments(List<Ms2Experiment> expected, List<Ms2Experiment> experiments) {
+        assertEquals(expected.size(), experiments.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            final Ms2Experiment a = expected.get(i), b = experiments.get(i);
+            assertEquals(a.getName(), b.getName());
+            assertEquals(a.getIonMass(), b.getIonMass(), 0d);
+            assertEquals(a.getAnnotation(Index.class).index, b.getAnnotation(Index.class).index);
+            assertEquals(a.getMs1Spectra().size(), b.getMs1Spectra().size());
+            for (int k = 0; k < a.getMs1Spectra().size(); ++k)
+                assertSameSpectrum(a.getMs1Spectra().get(k), b.getMs1Spectra().get(k));
+            assertEquals(a.getMs2Spectra().size(), b.getMs2Spectra().size());
+            for (int k = 0; k < a.getMs2Spectra().size(); ++k)
+                assertSameSpectrum(a.getMs2Spectra().get(k), b.getMs2Spectra().get(k));
+        }
+    }
+
+    private static void assertSameSpectrum(Spectrum<?> s, Spectrum<?> t) {
+        assertEquals(s.size(), t.size());
+        for (int j = 0; j < s.size(); ++j) {
+            assertEquals(s.getMzAt(j), t.getMzAt(j), 0d);
+            assertEquals(s.getIntensityAt(j), t.getIntensityAt(j), 0d);
+        }
+    }
+
+}
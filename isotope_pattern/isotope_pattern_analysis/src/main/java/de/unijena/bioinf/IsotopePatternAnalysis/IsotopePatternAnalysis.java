@@ -24,18 +24,25 @@ import de.unijena.bioinf.ChemistryBase.algorithm.Scored;
 import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
 import de.unijena.bioinf.ChemistryBase.data.DataDocument;
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
 import de.unijena.bioinf.ChemistryBase.ms.*;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
 import de.unijena.bioinf.IsotopePatternAnalysis.generation.IsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.BatchIsotopePatternScorer;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.IsotopePatternBlock;
 import de.unijena.bioinf.IsotopePatternAnalysis.scoring.IsotopePatternScorer;
 import de.unijena.bioinf.IsotopePatternAnalysis.scoring.MassDifferenceDeviationScorer;
 import de.unijena.bioinf.IsotopePatternAnalysis.scoring.NormalDistributedIntensityScorer;
 import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import de.unijena.bioinf.jjobs.JJob;
+import de.unijena.bioinf.jjobs.JobManager;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.addOffset;
 import static de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums.normalize;
@@ -44,6 +51,16 @@ public class IsotopePatternAnalysis implements Parameterized {
 
     public static final String ANALYZER_NAME = "IsotopePatternAnalysis";
 
+    /**
+     * number of formulas which are simulated and scored together
+     */
+    public static final int CHUNK_SIZE = 1024;
+
+    /**
+     * minimal number of formulas to score them in parallel
+     */
+    public static final int PARALLEL_THRESHOLD = 4 * CHUNK_SIZE;
+
     private List<IsotopePatternScorer> isotopePatternScorers;
     private double cutoff;
     private double intensityOffset;
@@ -268,7 +285,13 @@ public class IsotopePatternAnalysis implements Parameterized {
         return scoreFormulas(extractedSpectrum, formulas, experiment, profile, experiment.getPrecursorIonType());
     }
 
-    public List<IsotopePattern> scoreFormulas(SimpleSpectrum extractedSpectrum, List<MolecularFormula> formulas, Ms2Experiment experiment, MeasurementProfile profile, PrecursorIonType ion) {
+    /**
+     * Scores the isotope patterns of all formulas against the extracted spectrum. The patterns are simulated and
+     * scored in blocks of {@link #CHUNK_SIZE} formulas. If there are more than {@link #PARALLEL_THRESHOLD} formulas,
+     * the blocks are processed in parallel by the global job manager. In this case pattern generator and scorers
+     * have to be thread-safe.
+     */
+    public List<IsotopePattern> scoreFormulas(SimpleSpectrum extractedSpectrum, final List<MolecularFormula> formulas, final Ms2Experiment experiment, final MeasurementProfile profile, final PrecursorIonType ion) {
         final SimpleMutableSpectrum spec = new SimpleMutableSpectrum(extractedSpectrum);
         normalize(spec, Normalization.Sum(1d));
         if (intensityOffset != 0d) {
@@ -282,7 +305,7 @@ public class IsotopePatternAnalysis implements Parameterized {
         }
         while (spec.getIntensityAt(spec.size() - 1) < cutoff) spec.removePeakAt(spec.size() - 1);
         normalize(spec, Normalization.Max(1));
-        final Spectrum<Peak> measuredSpectrum = new SimpleSpectrum(spec);
+        final SimpleSpectrum measuredSpectrum = new SimpleSpectrum(spec);
         final ArrayList<IsotopePattern> patterns = new ArrayList<>(formulas.size());
         final SimpleSpectrum[] allPatternVariants = new SimpleSpectrum[measuredSpectrum.size()];
         {
@@ -292,31 +315,115 @@ public class IsotopePatternAnalysis implements Parameterized {
                 allPatternVariants[k] = new SimpleSpectrum(mut);
             }
         }
-        int k = 0;
-        final double[] scoreBuffer = new double[allPatternVariants.length];
-        for (MolecularFormula formula : formulas) {
-            Arrays.fill(scoreBuffer, 0d);
-            final MolecularFormula f = ion.neutralMoleculeToMeasuredNeutralMolecule(formula);
-            Spectrum<Peak> measuredOne = measuredSpectrum;
-            Spectrum<Peak> theoreticalSpectrum = patternGenerator.simulatePattern(f, ion.getIonization());
-            if (theoreticalSpectrum.size() == 0) continue;
-            if (theoreticalSpectrum.size() > 10)
-                theoreticalSpectrum = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(theoreticalSpectrum, 0, 10), Normalization.Max(1d));
-            if (measuredSpectrum.size() > theoreticalSpectrum.size())
-                measuredOne = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(measuredSpectrum, 0, theoreticalSpectrum.size()), Normalization.Max(1d));
-            for (IsotopePatternScorer scorer : isotopePatternScorers) {
-                scorer.score(scoreBuffer, measuredOne, theoreticalSpectrum, Normalization.Max(1), experiment, profile);
+        final IsotopePatternBlock block = new IsotopePatternBlock(measuredSpectrum, formulas.size());
+        final double[] scores = new double[formulas.size() * measuredSpectrum.size()];
+        final Ionization ionization = ion.getIonization();
+        scoreInChunks(formulas.size(), new ScoringChunk() {
+            @Override
+            public void score(int from, int to) {
+                final List<MolecularFormula> measuredFormulas = new ArrayList<>(to - from);
+                for (MolecularFormula formula : formulas.subList(from, to))
+                    measuredFormulas.add(ion.neutralMoleculeToMeasuredNeutralMolecule(formula));
+                final List<SimpleSpectrum> theoreticalSpectra = patternGenerator.simulatePatterns(measuredFormulas, ionization);
+                for (int k = from; k < to; ++k) block.setPattern(k, theoreticalSpectra.get(k - from));
+                for (IsotopePatternScorer scorer : isotopePatternScorers) {
+                    if (scorer instanceof BatchIsotopePatternScorer)
+                        ((BatchIsotopePatternScorer) scorer).score(scores, block, from, to, Normalization.Max(1), experiment, profile);
+                    else block.scoreEach(scorer, scores, from, to, Normalization.Max(1), experiment, profile);
+                }
             }
+        });
+        final int rowLength = block.getNumberOfMeasuredPeaks();
+        for (int k = 0; k < formulas.size(); ++k) {
+            if (block.getPatternSize(k) == 0) continue;
+            final int row = k * rowLength;
             int optScoreIndex = 0;
-            for (int j = 0; j < scoreBuffer.length; ++j) {
-                if (scoreBuffer[j] > scoreBuffer[optScoreIndex]) optScoreIndex = j;
+            for (int j = 0; j < rowLength; ++j) {
+                if (scores[row + j] > scores[row + optScoreIndex]) optScoreIndex = j;
             }
-            patterns.add(new IsotopePattern(formula, scoreBuffer[optScoreIndex], allPatternVariants[optScoreIndex]));
+            patterns.add(new IsotopePattern(formulas.get(k), scores[row + optScoreIndex], allPatternVariants[optScoreIndex]));
         }
         Collections.sort(patterns, Scored.<MolecularFormula>desc());
         return patterns;
     }
 
+    private static void scoreInChunks(int size, ScoringChunk chunk) {
+        final int numberOfChunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (size < PARALLEL_THRESHOLD || numberOfChunks <= 1) {
+            if (size > 0) chunk.score(0, size);
+            return;
+        }
+        final ChunkQueue queue = new ChunkQueue(chunk, size, numberOfChunks);
+        final JobManager manager = SiriusJobs.getGlobalJobManager();
+        final int numberOfJobs = Math.min(numberOfChunks, manager.getCPUThreads()) - 1;
+        for (int i = 0; i < numberOfJobs; ++i) {
+            manager.submitJob(new BasicJJob<Object>(JJob.JobType.CPU) {
+                @Override
+                protected Object compute() {
+                    queue.run();
+                    return null;
+                }
+            });
+        }
+        // the calling thread takes chunks, too. So it never waits for jobs which are not started yet.
+        queue.run();
+        queue.await();
+    }
+
+    private interface ScoringChunk {
+        void score(int from, int to);
+    }
+
+    /**
+     * Hands out the chunks to all threads and waits until all of them are scored
+     */
+    private static final class ChunkQueue {
+        private final ScoringChunk chunk;
+        private final int size, numberOfChunks;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private int finishedChunks = 0;
+        private Throwable error;
+
+        private ChunkQueue(ScoringChunk chunk, int size, int numberOfChunks) {
+            this.chunk = chunk;
+            this.size = size;
+            this.numberOfChunks = numberOfChunks;
+        }
+
+        private void run() {
+            int c;
+            while ((c = nextChunk.getAndIncrement()) < numberOfChunks) {
+                Throwable e = null;
+                try {
+                    chunk.score(c * CHUNK_SIZE, Math.min(size, (c + 1) * CHUNK_SIZE));
+                } catch (Throwable ex) {
+                    // errors are rethrown in the waiting thread, such that it does not wait forever
+                    e = ex;
+                } finally {
+                    synchronized (this) {
+                        if (e != null && error == null) error = e;
+                        ++finishedChunks;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        private synchronized void await() {
+            while (finishedChunks < numberOfChunks) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while scoring isotope patterns", e);
+                }
+            }
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            if (error instanceof Error) throw (Error) error;
+            if (error != null) throw new RuntimeException(error);
+        }
+    }
+
     public MutableMeasurementProfile getDefaultProfile() {
         return defaultProfile;
     }
@@ -17,33 +17,110 @@
  */
 package de.unijena.bioinf.IsotopePatternAnalysis.generation;
 
+import com.google.common.cache.*;
 import de.unijena.bioinf.ChemistryBase.chem.Element;
 import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
 
-import java.util.Arrays;
-import java.util.HashMap;
+/**
+ * Thread-safe cache of the isotopologue tables of single elements. The cache is bounded by the total number of
+ * isotopologues of all cached tables; least recently used tables are removed first.
+ * <p>
+ * Use {@link #forDistribution(IsotopicDistribution)} to share one cache between all generators using the same
+ * isotopic distribution.
+ */
+public class CachedIsoTable {
+
+    /**
+     * default maximal number of isotopologues in a cache. An isotopologue takes roughly 80 bytes of memory.
+     */
+    public static final long DEFAULT_MAXIMAL_SIZE = 1 << 20;
+
+    private static final LoadingCache<IsotopicDistribution, CachedIsoTable> SHARED = CacheBuilder.newBuilder().weakKeys().weakValues().build(new CacheLoader<IsotopicDistribution, CachedIsoTable>() {
+        @Override
+        public CachedIsoTable load(IsotopicDistribution distribution) {
+            return new CachedIsoTable(distribution);
+        }
+    });
 
-class CachedIsoTable {
+    /**
+     * @return the cache shared by all generators using the given distribution. It is removed as soon as no generator
+     * uses it anymore.
+     */
+    public static CachedIsoTable forDistribution(IsotopicDistribution distribution) {
+        return SHARED.getUnchecked(distribution);
+    }
 
-    private final HashMap<Element, IsotopologueTable[]> cache;
+    private final LoadingCache<Key, IsotopologueTable> cache;
     private final IsotopicDistribution distribution;
 
-    CachedIsoTable(IsotopicDistribution distribution) {
-        this.cache = new HashMap<Element, IsotopologueTable[]>();
+    public CachedIsoTable(IsotopicDistribution distribution) {
+        this(distribution, DEFAULT_MAXIMAL_SIZE);
+    }
+
+    /**
+     * @param maximalSize maximal number of isotopologues of all cached tables
+     */
+    public CachedIsoTable(final IsotopicDistribution distribution, long maximalSize) {
         this.distribution = distribution;
+        this.cache = CacheBuilder.newBuilder().maximumWeight(maximalSize).weigher(new Weigher<Key, IsotopologueTable>() {
+            @Override
+            public int weigh(Key key, IsotopologueTable table) {
+                return table.size();
+            }
+        }).recordStats().build(new CacheLoader<Key, IsotopologueTable>() {
+            @Override
+            public IsotopologueTable load(Key key) {
+                return new IsotopologueTable(key.element, key.numberOfAtoms, distribution);
+            }
+        });
+    }
+
+    Isotopologues getIsotopologuesFor(Element element, int numberOfAtoms) {
+        return cache.getUnchecked(new Key(element, numberOfAtoms));
+    }
+
+    public IsotopicDistribution getDistribution() {
+        return distribution;
     }
 
-    public Isotopologues getIsotopologuesFor(Element element, int numberOfAtoms) {
-        IsotopologueTable[] tables = cache.get(element);
-        if (tables == null) {
-            tables = new IsotopologueTable[numberOfAtoms * 2];
-            cache.put(element, tables);
-        } else if (tables.length <= numberOfAtoms) {
-            tables = Arrays.copyOf(tables, numberOfAtoms * 2);
+    /**
+     * @return number of hits, misses and evictions of this cache
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return number of cached tables
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    private static final class Key {
+        private final Element element;
+        private final int numberOfAtoms;
+
+        private Key(Element element, int numberOfAtoms) {
+            this.element = element;
+            this.numberOfAtoms = numberOfAtoms;
         }
-        if (tables[numberOfAtoms] == null) {
-            tables[numberOfAtoms] = new IsotopologueTable(element, numberOfAtoms, distribution);
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return numberOfAtoms == key.numberOfAtoms && element.equals(key.element);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * element.hashCode() + numberOfAtoms;
         }
-        return tables[numberOfAtoms];
     }
 }
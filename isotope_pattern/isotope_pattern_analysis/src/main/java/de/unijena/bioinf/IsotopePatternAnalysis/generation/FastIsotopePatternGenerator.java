@@ -28,8 +28,21 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Simulates isotope patterns by folding the isotope distributions of the elements. The distribution of each element
+ * is raised to the power of its amount by binary exponentiation. These powers depend only on the element, its amount
+ * and the maximal number of peaks, so they are cached per element and shared by all formulas simulated with this
+ * generator. The cache is thread-safe.
+ */
 public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
 
+    private final ConcurrentHashMap<Element, ElementPowers> cache = new ConcurrentHashMap<>();
+
     public FastIsotopePatternGenerator(IsotopicDistribution distribution, Normalization mode) {
         super(distribution, mode);
     }
@@ -57,6 +70,58 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
             diff = ion.getMass() - adduct.getMass();
         } else diff = ion.getMass();
         final SimpleMutableSpectrum spec = foldFormula(formula, this.maximalNumberOfPeaks, this.minimalProbabilityThreshold);
+        return finishPattern(spec, formula, diff);
+    }
+
+    /**
+     * Simulates the patterns of all given formulas. Consecutive formulas often share the amounts of their first
+     * elements (e.g. candidates enumerated by a decomposer differ mostly in their last elements). The folded
+     * distribution of such a common prefix is reused from the previous formula instead of being folded again.
+     * The patterns are identical to the ones of {@link #simulatePattern(MolecularFormula, Ionization)}.
+     */
+    @Override
+    public List<SimpleSpectrum> simulatePatterns(List<MolecularFormula> formulas, Ionization ion) {
+        final MolecularFormula adduct = ion.getAtoms();
+        final boolean addAdduct = adduct != null && adduct.getIntMass() > 0;
+        final double diff = addAdduct ? ion.getMass() - adduct.getMass() : ion.getMass();
+        final int maxNumberOfPeaks = this.maximalNumberOfPeaks;
+        final double minimalIntensity = this.minimalProbabilityThreshold;
+
+        final ArrayList<SimpleSpectrum> patterns = new ArrayList<>(formulas.size());
+        // elements, amounts and folded prefix distributions of the previous formula:
+        // prefixes[k] is the folded distribution of its first k elements
+        Element[] elements = new Element[8];
+        int[] amounts = new int[8];
+        ArrayWrapperSpectrum[] prefixes = new ArrayWrapperSpectrum[9];
+        int length = 0;
+        for (MolecularFormula formula : formulas) {
+            final MolecularFormula f = addAdduct ? formula.add(adduct) : formula;
+            int k = 0;
+            boolean common = true;
+            for (Element e : f) {
+                final int amount = f.numberOf(e);
+                if (common && k < length && elements[k] == e && amounts[k] == amount) {
+                    ++k;
+                    continue;
+                }
+                common = false;
+                if (k + 1 >= prefixes.length) {
+                    elements = Arrays.copyOf(elements, 2 * prefixes.length);
+                    amounts = Arrays.copyOf(amounts, 2 * prefixes.length);
+                    prefixes = Arrays.copyOf(prefixes, 2 * prefixes.length + 1);
+                }
+                elements[k] = e;
+                amounts[k] = amount;
+                prefixes[k + 1] = fold(prefixes[k], getElementPower(e, amount, maxNumberOfPeaks), maxNumberOfPeaks);
+                ++k;
+            }
+            length = k;
+            patterns.add(finishPattern(removeLowIntensityPeaks(prefixes[length], minimalIntensity), f, diff));
+        }
+        return patterns;
+    }
+
+    private SimpleSpectrum finishPattern(SimpleMutableSpectrum spec, MolecularFormula formula, double diff) {
         Spectrums.normalize(spec, mode);
         final double mono = formula.getIntMass();
         for (int k = 0; k < spec.size(); ++k) {
@@ -68,58 +133,101 @@ public class FastIsotopePatternGenerator extends IsotopePatternGenerator {
     protected SimpleMutableSpectrum foldFormula(MolecularFormula formula, int maxNumberOfPeaks, double minimalIntensity) {
         ArrayWrapperSpectrum candidateDistribution = null;
         for (Element e : formula) {
-            final Isotopes iso = distribution.getIsotopesFor(e);
-            final int monoIsotopicMass = iso.getIntegerMass(0);
-            int maxMass = iso.getIntegerMass(iso.getNumberOfIsotopes() - 1) - monoIsotopicMass;
-            final int n = Math.max(iso.getNumberOfIsotopes() - 1, maxMass);
-            final double[] modIsoMz = new double[n + 1];
-            final double[] modIsoInt = new double[n + 1];
-            ArrayWrapperSpectrum modIsoDist = new ArrayWrapperSpectrum(modIsoMz, modIsoInt);
-            int k = 0;
-            for (int i = 0; i <= n; i++) {
-                int diff = iso.getIntegerMass(k) - monoIsotopicMass;
-                while (diff > i) {
-                    modIsoMz[i] = 0;
-                    modIsoInt[i] = 0;
-                    ++i;
-                }
-                // Florian says: minus i is because the i-th isotope nominal mass is elemental nominal mass plus i!
-                modIsoMz[i] = iso.getMass(k) - e.getIntegerMass() - i;
-                modIsoInt[i] = iso.getAbundance(k);
-                ++k;
-            }
+            // folding all elements to the candidate peaks
+            // fold returns only list if candidatePeaks is still null
+            candidateDistribution = fold(candidateDistribution, getElementPower(e, formula.numberOf(e), maxNumberOfPeaks), maxNumberOfPeaks);
+        }
+        return removeLowIntensityPeaks(candidateDistribution, minimalIntensity);
+    }
 
-            //get the reverse binary string of the quantity of an element
-            int exp = formula.numberOf(e),
-                    expLength = Integer.SIZE - Integer.numberOfLeadingZeros(exp);
+    private static SimpleMutableSpectrum removeLowIntensityPeaks(ArrayWrapperSpectrum distribution, double minimalIntensity) {
+        final SimpleMutableSpectrum finalSpectrum = new SimpleMutableSpectrum(distribution);
+        for (int k = finalSpectrum.size() - 1; k >= 0; --k) {
+            if (finalSpectrum.getIntensityAt(k) < minimalIntensity)
+                finalSpectrum.removePeakAt(k);
+        }
+        return finalSpectrum;
+    }
 
-            //folding of one element
-            ArrayWrapperSpectrum helper = modIsoDist;
-            ArrayWrapperSpectrum list = null;
+    /**
+     * @return the isotope distribution of the given element raised to the power of amount, truncated to maxNumberOfPeaks.
+     * The returned spectrum is shared and must not be modified.
+     */
+    protected ArrayWrapperSpectrum getElementPower(Element e, int amount, int maxNumberOfPeaks) {
+        final Isotopes iso = distribution.getIsotopesFor(e);
+        ElementPowers powers = cache.get(e);
+        if (powers == null || powers.isotopes != iso || powers.maxNumberOfPeaks != maxNumberOfPeaks) {
+            // the distribution or the number of peaks changed, so all cached powers of this element are outdated
+            powers = new ElementPowers(e, iso, maxNumberOfPeaks);
+            cache.put(e, powers);
+        }
+        return powers.get(amount);
+    }
 
-            //if the first number of the binary exponent is 1,
-            if (isBitSet(exp, 0)) {
-                list = helper;
+    private ArrayWrapperSpectrum elementDistribution(Element e, Isotopes iso) {
+        final int monoIsotopicMass = iso.getIntegerMass(0);
+        int maxMass = iso.getIntegerMass(iso.getNumberOfIsotopes() - 1) - monoIsotopicMass;
+        final int n = Math.max(iso.getNumberOfIsotopes() - 1, maxMass);
+        final double[] modIsoMz = new double[n + 1];
+        final double[] modIsoInt = new double[n + 1];
+        int k = 0;
+        for (int i = 0; i <= n; i++) {
+            int diff = iso.getIntegerMass(k) - monoIsotopicMass;
+            while (diff > i) {
+                modIsoMz[i] = 0;
+                modIsoInt[i] = 0;
+                ++i;
             }
+            // Florian says: minus i is because the i-th isotope nominal mass is elemental nominal mass plus i!
+            modIsoMz[i] = iso.getMass(k) - e.getIntegerMass() - i;
+            modIsoInt[i] = iso.getAbundance(k);
+            ++k;
+        }
+        return new ArrayWrapperSpectrum(modIsoMz, modIsoInt);
+    }
+
+    /**
+     * Powers of the isotope distribution of a single element. The powers of two are the intermediates of the binary
+     * exponentiation and are reused for all amounts of this element.
+     */
+    private final class ElementPowers {
+        private final Isotopes isotopes;
+        private final int maxNumberOfPeaks;
+        // powersOfTwo.get(i) is the distribution raised to the power of 2^i
+        private final ArrayList<ArrayWrapperSpectrum> powersOfTwo;
+        private final ConcurrentHashMap<Integer, ArrayWrapperSpectrum> powers;
 
-            //helper list is always folded twice
+        private ElementPowers(Element element, Isotopes isotopes, int maxNumberOfPeaks) {
+            this.isotopes = isotopes;
+            this.maxNumberOfPeaks = maxNumberOfPeaks;
+            this.powersOfTwo = new ArrayList<>();
+            powersOfTwo.add(elementDistribution(element, isotopes));
+            this.powers = new ConcurrentHashMap<>();
+        }
+
+        private ArrayWrapperSpectrum get(int exp) {
+            ArrayWrapperSpectrum list = powers.get(exp);
+            if (list != null) return list;
+            //get the reverse binary string of the quantity of an element
+            final int expLength = Integer.SIZE - Integer.numberOfLeadingZeros(exp);
+            final ArrayWrapperSpectrum[] helpers = new ArrayWrapperSpectrum[expLength];
+            synchronized (this) {
+                //helper list is always folded twice
+                while (powersOfTwo.size() < expLength) {
+                    final ArrayWrapperSpectrum helper = powersOfTwo.get(powersOfTwo.size() - 1);
+                    powersOfTwo.add(fold(helper, helper, maxNumberOfPeaks));
+                }
+                for (int i = 0; i < expLength; ++i) helpers[i] = powersOfTwo.get(i);
+            }
             //list is just folded if binary exponent is 1 at the current position
-            for (int i = 1; i < expLength; i++) {
-                helper = fold(helper, helper, maxNumberOfPeaks);
+            for (int i = 0; i < expLength; i++) {
                 if (isBitSet(exp, i)) {
-                    list = fold(list, helper, maxNumberOfPeaks);
+                    list = fold(list, helpers[i], maxNumberOfPeaks);
                 }
             }
-            // folding all elements to the candidate peaks
-            // fold returns only list if candidatePeaks is still null
-            candidateDistribution = fold(candidateDistribution, list, maxNumberOfPeaks);
-        }
-        final SimpleMutableSpectrum finalSpectrum = new SimpleMutableSpectrum(candidateDistribution);
-        for (int k = finalSpectrum.size() - 1; k >= 0; --k) {
-            if (finalSpectrum.getIntensityAt(k) < minimalIntensity)
-                finalSpectrum.removePeakAt(k);
+            final ArrayWrapperSpectrum known = powers.putIfAbsent(exp, list);
+            return known != null ? known : list;
         }
-        return finalSpectrum;
     }
 
     protected ArrayWrapperSpectrum fold(ArrayWrapperSpectrum left, ArrayWrapperSpectrum right, int maxNumberOfPeaks) {
@@ -39,10 +39,10 @@ public class FinestructureGenerator {
     private final Normalization mode;
 
     public FinestructureGenerator(IsotopicDistribution dist, Normalization mode) {
-        this(dist, mode, new CachedIsoTable(dist));
+        this(dist, mode, CachedIsoTable.forDistribution(dist));
     }
 
-    FinestructureGenerator(IsotopicDistribution dist, Normalization mode, CachedIsoTable cache) {
+    public FinestructureGenerator(IsotopicDistribution dist, Normalization mode, CachedIsoTable cache) {
         this.distribution = dist;
         this.mode = mode;
         this.cache = cache;
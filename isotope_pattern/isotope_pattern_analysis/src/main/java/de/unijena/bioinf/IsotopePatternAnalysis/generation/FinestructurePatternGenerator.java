@@ -36,17 +36,17 @@ public class FinestructurePatternGenerator extends IsotopePatternGenerator {
 
     public FinestructurePatternGenerator(IsotopicDistribution distribution, Normalization mode) {
         super(distribution, mode);
-        this.cache = new CachedIsoTable(distribution);
+        this.cache = CachedIsoTable.forDistribution(distribution);
     }
 
     public FinestructurePatternGenerator() {
         super();
-        this.cache = new CachedIsoTable(distribution);
+        this.cache = CachedIsoTable.forDistribution(distribution);
     }
 
     public FinestructurePatternGenerator(Normalization mode) {
         super(mode);
-        this.cache = new CachedIsoTable(distribution);
+        this.cache = CachedIsoTable.forDistribution(distribution);
     }
 
     @Override
@@ -65,6 +65,13 @@ public class FinestructurePatternGenerator extends IsotopePatternGenerator {
         return new SimpleSpectrum(spec);
     }
 
+    /**
+     * @return the isotopologue cache, which is shared with all generators using the same distribution
+     */
+    public CachedIsoTable getIsotopologueCache() {
+        return cache;
+    }
+
     public double getResolution() {
         return resolution;
     }
@@ -24,6 +24,9 @@ import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistribution;
 import de.unijena.bioinf.ChemistryBase.ms.Normalization;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /*
     Simulates isotopic patterns for a given molecular formula with one peak per nominal mass.
 
@@ -78,6 +81,17 @@ public abstract class IsotopePatternGenerator {
 
     public abstract SimpleSpectrum simulatePattern(MolecularFormula formula, Ionization ionization);
 
+    /**
+     * Simulates the isotope patterns of many formulas with the same ionization. Implementations might share
+     * intermediate results between the formulas.
+     * @return list of patterns in the same order as the given formulas
+     */
+    public List<SimpleSpectrum> simulatePatterns(List<MolecularFormula> formulas, Ionization ionization) {
+        final ArrayList<SimpleSpectrum> patterns = new ArrayList<>(formulas.size());
+        for (MolecularFormula formula : formulas) patterns.add(simulatePattern(formula, ionization));
+        return patterns;
+    }
+
     public int getMaximalNumberOfPeaks() {
         return maximalNumberOfPeaks;
     }
@@ -0,0 +1,20 @@
+package de.unijena.bioinf.IsotopePatternAnalysis.scoring;
+
+import de.unijena.bioinf.ChemistryBase.ms.MeasurementProfile;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+
+/**
+ * An {@link IsotopePatternScorer} which scores many simulated patterns at once, without creating spectra for each of them.
+ */
+public interface BatchIsotopePatternScorer extends IsotopePatternScorer {
+
+    /**
+     * Adds the scores of all patterns in [from, to) of the block to their score rows. The scores have to be the same
+     * as computed by {@link #score(double[], de.unijena.bioinf.ChemistryBase.ms.Spectrum, de.unijena.bioinf.ChemistryBase.ms.Spectrum, Normalization, Ms2Experiment, MeasurementProfile)}.
+     * Patterns without peaks are skipped. The method is called concurrently for disjoint ranges.
+     * @param scores score rows of all patterns, see {@link IsotopePatternBlock}
+     */
+    void score(double[] scores, IsotopePatternBlock block, int from, int to, Normalization usedNormalization, Ms2Experiment experiment, MeasurementProfile profile);
+
+}
@@ -0,0 +1,152 @@
+package de.unijena.bioinf.IsotopePatternAnalysis.scoring;
+
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+
+/**
+ * The simulated isotope patterns of many candidate formulas together with the measured pattern they are scored
+ * against. The patterns are stored as structure of arrays: the masses and intensities of the k-th peak of the i-th
+ * pattern are at position i * {@link #getMaximalNumberOfPeaks()} + k of {@link #getMzs()} and {@link #getIntensities()}.
+ * <p>
+ * Each pattern is scored against the first n measured peaks, where n is the minimum of the number of measured and
+ * simulated peaks. If n is smaller than the number of measured peaks, these n peaks are normalized to maximum 1
+ * again. Scores are stored in a single array with one row of {@link #getNumberOfMeasuredPeaks()} values per pattern.
+ */
+public class IsotopePatternBlock {
+
+    /**
+     * patterns with more peaks are cut and normalized to maximum 1 again
+     */
+    public static final int MAXIMAL_NUMBER_OF_PEAKS = 10;
+
+    private final int numberOfPatterns;
+    private final int numberOfMeasuredPeaks;
+    // measuredSpectra[n-1] are the first n measured peaks
+    private final SimpleSpectrum[] measuredSpectra;
+    private final double[][] measuredMzs, measuredIntensities;
+    private final double[] mzs, intensities;
+    private final int[] sizes;
+
+    /**
+     * @param measuredSpectrum measured pattern, normalized to maximum 1
+     * @param numberOfPatterns number of simulated patterns
+     */
+    public IsotopePatternBlock(SimpleSpectrum measuredSpectrum, int numberOfPatterns) {
+        this.numberOfPatterns = numberOfPatterns;
+        this.numberOfMeasuredPeaks = measuredSpectrum.size();
+        this.measuredSpectra = new SimpleSpectrum[numberOfMeasuredPeaks];
+        this.measuredMzs = new double[numberOfMeasuredPeaks][];
+        this.measuredIntensities = new double[numberOfMeasuredPeaks][];
+        for (int n = 1; n <= numberOfMeasuredPeaks; ++n) {
+            final SimpleSpectrum spec = n == numberOfMeasuredPeaks ? measuredSpectrum : Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(measuredSpectrum, 0, n), Normalization.Max(1d));
+            measuredSpectra[n - 1] = spec;
+            measuredMzs[n - 1] = new double[n];
+            measuredIntensities[n - 1] = new double[n];
+            for (int k = 0; k < n; ++k) {
+                measuredMzs[n - 1][k] = spec.getMzAt(k);
+                measuredIntensities[n - 1][k] = spec.getIntensityAt(k);
+            }
+        }
+        this.mzs = new double[numberOfPatterns * MAXIMAL_NUMBER_OF_PEAKS];
+        this.intensities = new double[numberOfPatterns * MAXIMAL_NUMBER_OF_PEAKS];
+        this.sizes = new int[numberOfPatterns];
+    }
+
+    /**
+     * Stores the simulated pattern at the given position. Different positions can be set concurrently.
+     */
+    public void setPattern(int index, Spectrum<Peak> pattern) {
+        if (pattern.size() > MAXIMAL_NUMBER_OF_PEAKS)
+            pattern = Spectrums.getNormalizedSpectrum(Spectrums.subspectrum(pattern, 0, MAXIMAL_NUMBER_OF_PEAKS), Normalization.Max(1d));
+        final int offset = index * MAXIMAL_NUMBER_OF_PEAKS;
+        for (int k = 0; k < pattern.size(); ++k) {
+            mzs[offset + k] = pattern.getMzAt(k);
+            intensities[offset + k] = pattern.getIntensityAt(k);
+        }
+        sizes[index] = pattern.size();
+    }
+
+    /**
+     * Scores the patterns in [from, to) with a scorer without batch support. The scorer gets the score row of each
+     * pattern, so the scores are the same as for single spectra.
+     */
+    public void scoreEach(IsotopePatternScorer scorer, double[] scores, int from, int to, Normalization usedNormalization, Ms2Experiment experiment, MeasurementProfile profile) {
+        final double[] row = new double[numberOfMeasuredPeaks];
+        for (int i = from; i < to; ++i) {
+            if (sizes[i] == 0) continue;
+            final int offset = i * numberOfMeasuredPeaks;
+            System.arraycopy(scores, offset, row, 0, numberOfMeasuredPeaks);
+            scorer.score(row, getMeasuredSpectrum(i), getPattern(i), usedNormalization, experiment, profile);
+            System.arraycopy(row, 0, scores, offset, numberOfMeasuredPeaks);
+        }
+    }
+
+    public int size() {
+        return numberOfPatterns;
+    }
+
+    public int getNumberOfMeasuredPeaks() {
+        return numberOfMeasuredPeaks;
+    }
+
+    public int getMaximalNumberOfPeaks() {
+        return MAXIMAL_NUMBER_OF_PEAKS;
+    }
+
+    /**
+     * @return number of peaks of the simulated pattern. Patterns without peaks are not scored.
+     */
+    public int getPatternSize(int index) {
+        return sizes[index];
+    }
+
+    /**
+     * @return number of measured peaks the pattern is scored against
+     */
+    public int getMeasuredSize(int index) {
+        return Math.min(numberOfMeasuredPeaks, sizes[index]);
+    }
+
+    public double[] getMzs() {
+        return mzs;
+    }
+
+    public double[] getIntensities() {
+        return intensities;
+    }
+
+    /**
+     * @return masses of the measured peaks the pattern is scored against
+     */
+    public double[] getMeasuredMzs(int index) {
+        return measuredMzs[getMeasuredSize(index) - 1];
+    }
+
+    /**
+     * @return intensities of the measured peaks the pattern is scored against
+     */
+    public double[] getMeasuredIntensities(int index) {
+        return measuredIntensities[getMeasuredSize(index) - 1];
+    }
+
+    public SimpleSpectrum getMeasuredSpectrum(int index) {
+        return measuredSpectra[getMeasuredSize(index) - 1];
+    }
+
+    public SimpleSpectrum getPattern(int index) {
+        final int offset = index * MAXIMAL_NUMBER_OF_PEAKS;
+        final double[] m = new double[sizes[index]], in = new double[sizes[index]];
+        System.arraycopy(mzs, offset, m, 0, m.length);
+        System.arraycopy(intensities, offset, in, 0, in.length);
+        return new SimpleSpectrum(m, in);
+    }
+
+    /**
+     * @return true, if the batch scorers can use the intensities as given. Otherwise, they fall back to
+     * {@link #scoreEach(IsotopePatternScorer, double[], int, int, Normalization, Ms2Experiment, MeasurementProfile)}.
+     */
+    static boolean isMaxNormalized(Normalization usedNormalization) {
+        return usedNormalization.getBase() == 1 && usedNormalization.getMode() == NormalizationMode.MAX;
+    }
+}
@@ -30,7 +30,7 @@ import org.apache.commons.math3.special.Erf;
  *
  *
  */
-public class MassDeviationScorer implements IsotopePatternScorer {
+public class MassDeviationScorer implements BatchIsotopePatternScorer {
 
     private final static double root2 = Math.sqrt(2d);
     protected IntensityDependency dependency;
@@ -60,6 +60,33 @@ public class MassDeviationScorer implements IsotopePatternScorer {
         }
     }
 
+    @Override
+    public void score(double[] scores, IsotopePatternBlock block, int from, int to, Normalization norm, Ms2Experiment experiment, MeasurementProfile profile) {
+        final int width = block.getMaximalNumberOfPeaks(), rowLength = block.getNumberOfMeasuredPeaks();
+        final double[] thMzs = block.getMzs();
+        // the standard deviations only depend on the measured peaks, which are the same for all patterns of the same size
+        final double[][] deviations = new double[rowLength][];
+        for (int p = from; p < to; ++p) {
+            final int n = block.getMeasuredSize(p);
+            if (n == 0) continue;
+            final double[] mzs = block.getMeasuredMzs(p);
+            if (deviations[n - 1] == null) {
+                final double[] intensities = block.getMeasuredIntensities(p);
+                final double[] sds = new double[n];
+                for (int i = 0; i < n; ++i)
+                    sds[i] = root2 * (profile.getStandardMs1MassDeviation().absoluteFor(mzs[i]) * dependency.getValueAt(intensities[i]));
+                deviations[n - 1] = sds;
+            }
+            final double[] sds = deviations[n - 1];
+            final int offset = p * width, row = p * rowLength;
+            double score = 0d;
+            for (int i = 0; i < n; ++i) {
+                score += Math.log(Erf.erfc(Math.abs(thMzs[offset + i] - mzs[i]) / sds[i]));
+                scores[row + i] += score;
+            }
+        }
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         this.dependency = (IntensityDependency)helper.unwrap(document, document.getFromDictionary(dictionary, "intensityDependency"));
@@ -5,7 +5,7 @@ import de.unijena.bioinf.ChemistryBase.data.DataDocument;
 import de.unijena.bioinf.ChemistryBase.ms.*;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
 
-public class MissingPeakScorer implements IsotopePatternScorer {
+public class MissingPeakScorer implements BatchIsotopePatternScorer {
 
     protected double lambda = 50;
     protected double threshold = 0.05;
@@ -30,6 +30,27 @@ public class MissingPeakScorer implements IsotopePatternScorer {
 
     }
 
+    @Override
+    public void score(double[] scores, IsotopePatternBlock block, int from, int to, Normalization usedNormalization, Ms2Experiment experiment, MeasurementProfile profile) {
+        if (!IsotopePatternBlock.isMaxNormalized(usedNormalization)) {
+            block.scoreEach(this, scores, from, to, usedNormalization, experiment, profile);
+            return;
+        }
+        final int width = block.getMaximalNumberOfPeaks(), rowLength = block.getNumberOfMeasuredPeaks();
+        final double[] intensities = block.getIntensities();
+        for (int p = from; p < to; ++p) {
+            final int offset = p * width, row = p * rowLength;
+            double score = 0d;
+            for (int k = block.getPatternSize(p) - 1; k >= 0; --k) {
+                final double intensity = intensities[offset + k];
+                if (intensity >= threshold) {
+                    if (k < rowLength) scores[row + k] += score;
+                    score -= intensity * lambda;
+                }
+            }
+        }
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         if (document.hasKeyInDictionary(dictionary,"lambda"))
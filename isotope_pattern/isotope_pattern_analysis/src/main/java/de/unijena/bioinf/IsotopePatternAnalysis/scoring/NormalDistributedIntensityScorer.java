@@ -27,7 +27,7 @@ import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
  * Models isotope intensity deviations as normal distributions of absolute and relative errors
  * Takes two parameters: sigmaA for absolute deviations and sigmaR for relative deviations
  */
-public class NormalDistributedIntensityScorer implements IsotopePatternScorer{
+public class NormalDistributedIntensityScorer implements BatchIsotopePatternScorer {
 
     private static final double SQRT2PI = Math.sqrt(2 * Math.PI);
 
@@ -96,6 +96,41 @@ public class NormalDistributedIntensityScorer implements IsotopePatternScorer{
         }
     }
 
+    @Override
+    public void score(double[] scores, IsotopePatternBlock block, int from, int to, Normalization usedNormalization, Ms2Experiment experiment, MeasurementProfile profile) {
+        if (!IsotopePatternBlock.isMaxNormalized(usedNormalization)) {
+            block.scoreEach(this, scores, from, to, usedNormalization, experiment, profile);
+            return;
+        }
+        final int width = block.getMaximalNumberOfPeaks(), rowLength = block.getNumberOfMeasuredPeaks();
+        final double[] thIntensities = block.getIntensities();
+        // variances and normalization constants only depend on the measured intensities
+        final double[][] variances = new double[rowLength][], normalizations = new double[rowLength][];
+        for (int p = from; p < to; ++p) {
+            final int n = block.getMeasuredSize(p);
+            if (n == 0) continue;
+            final double[] intensities = block.getMeasuredIntensities(p);
+            if (variances[n - 1] == null) {
+                final double[] var = new double[n], norm = new double[n];
+                for (int i = 1; i < n; ++i) {
+                    final double measuredIntensity = intensities[i];
+                    var[i] = 2 * (sigmaA * sigmaA + measuredIntensity * measuredIntensity * sigmaR * sigmaR);
+                    norm[i] = 2 * Math.PI * measuredIntensity * sigmaR * sigmaA;
+                }
+                variances[n - 1] = var;
+                normalizations[n - 1] = norm;
+            }
+            final double[] var = variances[n - 1], norm = normalizations[n - 1];
+            final int offset = p * width, row = p * rowLength;
+            double score = 0d;
+            for (int i = 1; i < n; ++i) {
+                final double delta = intensities[i] - thIntensities[offset + i];
+                score += Math.log(Math.exp(-(delta * delta) / var[i]) / norm[i]);
+                scores[row + i] += score;
+            }
+        }
+    }
+
     @Override
     public <G, D, L> void importParameters(ParameterHelper helper, DataDocument<G, D, L> document, D dictionary) {
         sigmaR = document.getDoubleFromDictionary(dictionary, "relative_error");
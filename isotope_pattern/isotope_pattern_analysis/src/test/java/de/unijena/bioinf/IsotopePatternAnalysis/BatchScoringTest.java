@@ -0,0 +1,96 @@
+package de.unijena.bioinf.IsotopePatternAnalysis;
+
+import de.unijena.bioinf.ChemistryBase.chem.FormulaConstraints;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMeasurementProfile;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.Normalization;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.scoring.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BatchScoringTest {
+
+    @Test
+    public void testBatchScoresEqualSingleScores() {
+        final Ionization ion = PrecursorIonType.getPrecursorIonType("[M+H]+").getIonization();
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        final SimpleSpectrum pattern = generator.simulatePattern(MolecularFormula.parse("C20H30ClNO2S"), ion);
+        final SimpleMutableSpectrum measured = new SimpleMutableSpectrum();
+        for (int k = 0; k < 4; ++k)
+            measured.addPeak(pattern.getMzAt(k) + 0.0005 * (k - 1), pattern.getIntensityAt(k) * (1 + 0.05 * (k - 2)));
+        Spectrums.normalize(measured, Normalization.Max(1d));
+        final SimpleSpectrum measuredSpectrum = new SimpleSpectrum(measured);
+        final MutableMeasurementProfile profile = new MutableMeasurementProfile(new Deviation(10), new Deviation(5), new Deviation(5), new Deviation(2.5), new FormulaConstraints(), 0.008d, 0.02d);
+
+        final String[] formulas = {"C20H30ClNO2S", "C21H34NO3S", "C6H12O6", "H2", "C15H20Cl2N3", "C19H26ClN3S"};
+        final IsotopePatternBlock block = new IsotopePatternBlock(measuredSpectrum, formulas.length);
+        for (int i = 0; i < formulas.length; ++i) {
+            final SimpleSpectrum simulated = generator.simulatePattern(MolecularFormula.parse(formulas[i]), ion);
+            block.setPattern(i, simulated);
+        }
+        final BatchIsotopePatternScorer[] scorers = {new MassDeviationScorer(), new MassDifferenceDeviationScorer(), new NormalDistributedIntensityScorer(), new MissingPeakScorer()};
+        final int rowLength = block.getNumberOfMeasuredPeaks();
+        for (BatchIsotopePatternScorer scorer : scorers) {
+            final double[] scores = new double[formulas.length * rowLength];
+            scorer.score(scores, block, 0, formulas.length, Normalization.Max(1d), null, profile);
+            for (int i = 0; i < formulas.length; ++i) {
+                final double[] expected = new double[rowLength];
+                scorer.score(expected, block.getMeasuredSpectrum(i), block.getPattern(i), Normalization.Max(1d), null, profile);
+                assertArrayEquals(scorer.getClass().getSimpleName() + " " + formulas[i], expected, Arrays.copyOfRange(scores, i * rowLength, (i + 1) * rowLength), 0d);
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedScoringEqualsSequentialScoring() {
+        final IsotopePatternAnalysis analyzer = IsotopePatternAnalysis.defaultAnalyzer();
+        final PrecursorIonType ionType = PrecursorIonType.getPrecursorIonType("[M+H]+");
+        final SimpleSpectrum measured = analyzer.getPatternGenerator().simulatePattern(MolecularFormula.parse("C20H30N2O3S"), ionType.getIonization());
+        final MutableMs2Experiment experiment = new MutableMs2Experiment();
+        experiment.setPrecursorIonType(ionType);
+        final MutableMeasurementProfile profile = analyzer.getDefaultProfile();
+
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (int c = 15; c < 25; ++c)
+            for (int h = 20; h < 45; ++h)
+                for (int n = 0; n < 3; ++n)
+                    for (int o = 1; o < 5; ++o)
+                        for (int s = 0; s < 2; ++s)
+                            formulas.add(MolecularFormula.parse("C" + c + "H" + h + "N" + n + "O" + o + "S" + s));
+        // enough formulas for several chunks which are scored in parallel
+        assertTrue(formulas.size() > IsotopePatternAnalysis.PARALLEL_THRESHOLD + IsotopePatternAnalysis.CHUNK_SIZE);
+
+        final HashMap<MolecularFormula, IsotopePattern> sequential = new HashMap<>();
+        for (int from = 0; from < formulas.size(); from += 500) {
+            for (IsotopePattern p : analyzer.scoreFormulas(measured, formulas.subList(from, Math.min(formulas.size(), from + 500)), experiment, profile))
+                sequential.put(p.getCandidate(), p);
+        }
+        final List<IsotopePattern> chunked = analyzer.scoreFormulas(measured, formulas, experiment, profile);
+        assertEquals(sequential.size(), chunked.size());
+        for (int k = 0; k < chunked.size(); ++k) {
+            final IsotopePattern p = chunked.get(k), expected = sequential.get(p.getCandidate());
+            assertNotNull(p.getCandidate().toString(), expected);
+            assertEquals(p.getCandidate().toString(), expected.getScore(), p.getScore(), 0d);
+            assertEquals(p.getCandidate().toString(), expected.getPattern().size(), p.getPattern().size());
+            if (k > 0) assertTrue(chunked.get(k - 1).getScore() >= p.getScore());
+        }
+    }
+
+}
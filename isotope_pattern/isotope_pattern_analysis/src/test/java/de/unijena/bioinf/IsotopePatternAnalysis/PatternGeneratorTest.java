@@ -18,6 +18,7 @@
 package de.unijena.bioinf.IsotopePatternAnalysis;
 
 import de.unijena.bioinf.ChemistryBase.chem.Charge;
+import de.unijena.bioinf.ChemistryBase.chem.Ionization;
 import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
 import de.unijena.bioinf.ChemistryBase.chem.PeriodicTable;
 import de.unijena.bioinf.ChemistryBase.chem.utils.IsotopicDistributionJSONFile;
@@ -26,12 +27,21 @@ import de.unijena.bioinf.ChemistryBase.ms.Normalization;
 import de.unijena.bioinf.ChemistryBase.ms.Peak;
 import de.unijena.bioinf.ChemistryBase.ms.Spectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleMutableSpectrum;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
 import de.unijena.bioinf.ChemistryBase.ms.utils.Spectrums;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.CachedIsoTable;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FastIsotopePatternGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FinestructureGenerator;
+import de.unijena.bioinf.IsotopePatternAnalysis.generation.FinestructurePatternGenerator;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class PatternGeneratorTest {
@@ -107,6 +117,67 @@ public class PatternGeneratorTest {
 		assertTrue(Spectrums.haveEqualPeaks(spectrum, spectrum2));
 	}
 	
+    @Test
+    public void testCachedAndBatchPatternGeneration() {
+        final Ionization ion = PeriodicTable.getInstance().ionByName("[M+Na]+").getIonization();
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (String f : new String[]{"C6H12O6", "C6H12O5", "C6H12N2O4", "C27H42FeN9O12", "C6H12O6", "C20H30ClNO2S", "C6H13O6"})
+            formulas.add(MolecularFormula.parse(f));
+        final FastIsotopePatternGenerator generator = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        final List<SimpleSpectrum> patterns = generator.simulatePatterns(formulas, ion);
+        assertEquals(formulas.size(), patterns.size());
+        for (int i = 0; i < formulas.size(); ++i) {
+            // a new generator has no cached element distributions
+            final SimpleSpectrum expected = new FastIsotopePatternGenerator(Normalization.Max(1d)).simulatePattern(formulas.get(i), ion);
+            assertEquals(expected, patterns.get(i));
+            assertEquals(expected, generator.simulatePattern(formulas.get(i), ion));
+        }
+        // changing the number of peaks invalidates the cache
+        generator.setMaximalNumberOfPeaks(3);
+        final FastIsotopePatternGenerator three = new FastIsotopePatternGenerator(Normalization.Max(1d));
+        three.setMaximalNumberOfPeaks(3);
+        assertEquals(three.simulatePattern(formulas.get(3), ion), generator.simulatePattern(formulas.get(3), ion));
+        assertTrue(generator.simulatePattern(formulas.get(3), ion).size() <= 3);
+    }
+
+    @Test
+    public void testSharedIsotopologueCache() throws Exception {
+        final Ionization ion = PeriodicTable.getInstance().ionByName("[M+H]+").getIonization();
+        final MolecularFormula formula = MolecularFormula.parse("C20H30ClNO2S");
+        final FinestructurePatternGenerator generator = new FinestructurePatternGenerator();
+        final FinestructurePatternGenerator generator2 = new FinestructurePatternGenerator();
+        assertSame(generator.getIsotopologueCache(), generator2.getIsotopologueCache());
+        final SimpleSpectrum expected = generator.simulatePattern(formula, ion);
+        final long misses = generator.getIsotopologueCache().getStats().missCount();
+        assertEquals(expected, generator2.simulatePattern(formula, ion));
+        assertEquals(misses, generator.getIsotopologueCache().getStats().missCount());
+        assertTrue(generator.getIsotopologueCache().getStats().hitCount() > 0);
+
+        // concurrent simulation gives the same patterns
+        final ExecutorService service = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<SimpleSpectrum>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; ++i) {
+                futures.add(service.submit(new Callable<SimpleSpectrum>() {
+                    @Override
+                    public SimpleSpectrum call() {
+                        return generator2.simulatePattern(formula, ion);
+                    }
+                }));
+            }
+            for (Future<SimpleSpectrum> f : futures) assertEquals(expected, f.get());
+        } finally {
+            service.shutdown();
+        }
+
+        // a bounded cache evicts tables
+        final CachedIsoTable small = new CachedIsoTable(generator.getDistribution(), 100);
+        final FinestructureGenerator bounded = new FinestructureGenerator(generator.getDistribution(), Normalization.Max(1d), small);
+        final FinestructureGenerator.Iterator iterator = bounded.iterator(MolecularFormula.parse("C60H90S4"), ion);
+        assertTrue(iterator.hasNext());
+        assertTrue(small.getStats().evictionCount() > 0);
+    }
+
 	@Test
 	public void testMultipleChargedPatternGeneration() {
         /*
@@ -18,90 +18,326 @@
 package de.unijena.bioinf.MassDecomposer.Chemistry;
 
 import de.unijena.bioinf.ChemistryBase.chem.ChemicalAlphabet;
+import de.unijena.bioinf.ChemistryBase.chem.Element;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * caches decomposer and corresponding alphabet. If a dataset contains a small number of different alphabets,
  * the cache creates for each such alphabet an own decomposer instead of creating a new one each time the alphabet changes.
+ * <p>
+ * Decomposers are looked up by a bitmask over the element ids of the alphabet, so lookups are lock free hash
+ * lookups. A decomposer is built at most once, even if several threads request the same alphabet concurrently.
+ * If the cache exceeds its maximal number of decomposers or its memory limit (estimated by the size of the ERTs),
+ * the least recently used decomposers are evicted.
  */
 public class DecomposerCache {
 
-    private ChemicalAlphabet[] alphabets;
-    private MassToFormulaDecomposer[] decomposers;
-    private AtomicInteger[] useCounter;
-    private int dirtyState;
-    private int size;
+    /**
+     * a cached superset decomposer is only reused for a subset alphabet if it contains at most this number of
+     * additional elements. Otherwise, the additional elements would slow down the decomposition more than building
+     * a new decomposer.
+     */
+    public static final int MAX_ADDITIONAL_ELEMENTS = 2;
 
-    private ReentrantLock lock = new ReentrantLock();
+    private final ConcurrentHashMap<AlphabetKey, Entry> decomposers;
+    private final int size;
+    private final long maxMemory;
+    private final AtomicLong clock;
+
+    private final AtomicLong hits, misses, supersetHits, evictions, buildTime;
 
     public DecomposerCache(int size) {
-        this.alphabets = new ChemicalAlphabet[size];
-        this.decomposers = new MassToFormulaDecomposer[size];
-        this.useCounter = new AtomicInteger[size];
-        this.dirtyState = 0;
-        for (int k=0; k < size; ++k) useCounter[k] = new AtomicInteger(0);
-        this.size = 0;
+        this(size, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param size      maximal number of decomposers in the cache
+     * @param maxMemory maximal number of bytes all ERTs of the cached decomposers might use. This limit is checked
+     *                  whenever a new decomposer is added. Note that the ERTs of a decomposer grow with the
+     *                  mass deviations it is used for.
+     */
+    public DecomposerCache(int size, long maxMemory) {
+        if (size <= 0) throw new IllegalArgumentException("Cache size has to be positive but " + size + " is given.");
+        this.decomposers = new ConcurrentHashMap<>(size * 2);
+        this.size = size;
+        this.maxMemory = maxMemory;
+        this.clock = new AtomicLong(0);
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.supersetHits = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+        this.buildTime = new AtomicLong(0);
     }
 
+    public DecomposerCache() {
+        this(10);
+    }
+
+    /**
+     * @return a decomposer for exactly the given alphabet
+     */
     public MassToFormulaDecomposer getDecomposer(ChemicalAlphabet alphabet) {
-        while (true) {
-            int state = dirtyState;
-            MassToFormulaDecomposer d = findDecomposer(alphabet,state);
-            if (d == null) {
-                lock.lock();
-                try {
-                    if (state == dirtyState) {
-                        //System.err.println(this.toString() + " will decompose " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        d = addNewDecomposer(alphabet);
-                    } else {
-                        //System.err.println(this.toString() + " STATE CHANGED " + alphabet + " from " + Thread.currentThread().getName() + " with state " + state);
-                        continue;
-                    }
-                } finally {
-                    lock.unlock();
+        final AlphabetKey key = new AlphabetKey(alphabet);
+        Entry entry = decomposers.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            final Entry newEntry = new Entry(alphabet);
+            entry = decomposers.putIfAbsent(key, newEntry);
+            if (entry == null) {
+                misses.incrementAndGet();
+                entry = newEntry;
+                final MassToFormulaDecomposer decomposer = entry.getDecomposer(clock.incrementAndGet());
+                evict(entry);
+                return decomposer;
+            } else hits.incrementAndGet();
+        }
+        entry.hits.incrementAndGet();
+        return entry.getDecomposer(clock.incrementAndGet());
+    }
+
+    /**
+     * Returns a decomposer for the given alphabet or for a cached superset of it with at most
+     * {@link #MAX_ADDITIONAL_ELEMENTS} additional elements. The returned decomposer might yield formulas with elements
+     * which are not contained in the given alphabet. So always decompose with formula constraints over the given
+     * alphabet, which set the upper bound of all other elements to zero.
+     */
+    public MassToFormulaDecomposer getDecomposerForSubset(ChemicalAlphabet alphabet) {
+        final AlphabetKey key = new AlphabetKey(alphabet);
+        final Entry exact = decomposers.get(key);
+        if (exact == null) {
+            Entry best = null;
+            int bestSize = Integer.MAX_VALUE;
+            for (Map.Entry<AlphabetKey, Entry> e : decomposers.entrySet()) {
+                final int additional = e.getKey().numberOfAdditionalElements(key);
+                if (additional >= 0 && additional <= MAX_ADDITIONAL_ELEMENTS && additional < bestSize && e.getValue().isBuilt()) {
+                    best = e.getValue();
+                    bestSize = additional;
                 }
-                return d;
-            } else if (state == dirtyState) return d;
+            }
+            if (best != null) {
+                supersetHits.incrementAndGet();
+                best.hits.incrementAndGet();
+                return best.getDecomposer(clock.incrementAndGet());
+            }
         }
+        return getDecomposer(alphabet);
     }
 
-    private MassToFormulaDecomposer findDecomposer(ChemicalAlphabet alphabet, int state) {
-        for (int i=0; i < size; ++i) {
-            if (alphabets[i].equals(alphabet)) {
-                useCounter[i].incrementAndGet();
-                return decomposers[i];
+    /**
+     * @return number of decomposers in the cache
+     */
+    public int size() {
+        return decomposers.size();
+    }
+
+    /**
+     * @return estimated number of bytes used by the ERTs of all cached decomposers
+     */
+    public long getMemoryUsage() {
+        long memory = 0L;
+        for (Entry e : decomposers.values()) memory += e.getMemoryUsage();
+        return memory;
+    }
+
+    /**
+     * @return number of requests which were answered by a cached decomposer for exactly the requested alphabet
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests which were answered by a cached decomposer for a superset of the requested alphabet
+     */
+    public long getSupersetHits() {
+        return supersetHits.get();
+    }
+
+    /**
+     * @return number of requests which required to build a new decomposer
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return total time in nanoseconds spent on building decomposers
+     */
+    public long getBuildTime() {
+        return buildTime.get();
+    }
+
+    /**
+     * @return statistics for each alphabet which is currently cached
+     */
+    public List<AlphabetStatistics> getAlphabetStatistics() {
+        final List<AlphabetStatistics> stats = new ArrayList<>(decomposers.size());
+        for (Entry e : decomposers.values()) {
+            stats.add(new AlphabetStatistics(e.alphabet, e.hits.get(), e.buildTime, e.getMemoryUsage()));
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "DecomposerCache(" + decomposers.size() + " decomposers, " + hits.get() + " hits, " + supersetHits.get()
+                + " superset hits, " + misses.get() + " misses, " + evictions.get() + " evictions, "
+                + (buildTime.get() / 1000000L) + " ms build time)";
+    }
+
+    private void evict(Entry newEntry) {
+        while (decomposers.size() > size || (maxMemory < Long.MAX_VALUE && decomposers.size() > 1 && getMemoryUsage() > maxMemory)) {
+            AlphabetKey lruKey = null;
+            Entry lru = null;
+            for (Map.Entry<AlphabetKey, Entry> e : decomposers.entrySet()) {
+                final Entry value = e.getValue();
+                if (value == newEntry || !value.isBuilt()) continue;
+                if (lru == null || value.lastAccess < lru.lastAccess) {
+                    lru = value;
+                    lruKey = e.getKey();
+                }
             }
+            if (lru == null) return;
+            if (decomposers.remove(lruKey, lru)) evictions.incrementAndGet();
         }
-        //System.err.println("Search " + alphabet + " in " + Arrays.toString(alphabets) + " without success at state " + state + " in thread " + Thread.currentThread().getName() );
-        return null;
     }
 
-    private MassToFormulaDecomposer addNewDecomposer(ChemicalAlphabet alphabet) {
-        ++dirtyState;
-        try {
-        if (size < alphabets.length) {
-            decomposers[size] = new MassToFormulaDecomposer(alphabet);
-            decomposers[size].init();
-            alphabets[size] = alphabet;
-            return decomposers[size++];
-        } else {
-            int mindex = 0;
-            for (int i=1; i < useCounter.length; ++i)
-                if (useCounter[i].get() < useCounter[mindex].get()) mindex = i;
-            decomposers[mindex] =  new MassToFormulaDecomposer(alphabet);
-            decomposers[mindex].init();
-            alphabets[mindex] = alphabet;
-            return decomposers[mindex];
-        } } finally {
-            ++dirtyState;
-            //System.err.println(alphabet.toString() + " IS ADDED BY " + Thread.currentThread().getName() + " with state " + dirtyState);
+    /**
+     * statistics of a single cached alphabet
+     */
+    public static class AlphabetStatistics {
+        private final ChemicalAlphabet alphabet;
+        private final long hits, buildTime, memoryUsage;
+
+        private AlphabetStatistics(ChemicalAlphabet alphabet, long hits, long buildTime, long memoryUsage) {
+            this.alphabet = alphabet;
+            this.hits = hits;
+            this.buildTime = buildTime;
+            this.memoryUsage = memoryUsage;
+        }
+
+        public ChemicalAlphabet getAlphabet() {
+            return alphabet;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return time in nanoseconds which was spent to build the decomposer
+         */
+        public long getBuildTime() {
+            return buildTime;
+        }
+
+        /**
+         * @return estimated number of bytes used by the ERTs of the decomposer
+         */
+        public long getMemoryUsage() {
+            return memoryUsage;
+        }
+
+        @Override
+        public String toString() {
+            return alphabet + ": " + hits + " hits, " + (buildTime / 1000000L) + " ms build time, " + (memoryUsage / 1024) + " kb";
         }
     }
 
-    public DecomposerCache() {
-        this(10);
+    private final class Entry {
+        private final ChemicalAlphabet alphabet;
+        private volatile MassToFormulaDecomposer decomposer;
+        private volatile long lastAccess;
+        private long buildTime;
+        private final AtomicLong hits;
+
+        private Entry(ChemicalAlphabet alphabet) {
+            this.alphabet = alphabet;
+            this.hits = new AtomicLong(0);
+        }
+
+        private boolean isBuilt() {
+            return decomposer != null;
+        }
+
+        private long getMemoryUsage() {
+            final MassToFormulaDecomposer d = decomposer;
+            return d == null ? 0L : d.getERTMemoryUsage();
+        }
+
+        private MassToFormulaDecomposer getDecomposer(long time) {
+            lastAccess = time;
+            MassToFormulaDecomposer d = decomposer;
+            if (d != null) return d;
+            synchronized (this) {
+                if (decomposer == null) {
+                    final long start = System.nanoTime();
+                    final MassToFormulaDecomposer newDecomposer = new MassToFormulaDecomposer(alphabet);
+                    newDecomposer.init();
+                    buildTime = System.nanoTime() - start;
+                    DecomposerCache.this.buildTime.addAndGet(buildTime);
+                    decomposer = newDecomposer;
+                }
+                return decomposer;
+            }
+        }
+    }
+
+    /**
+     * canonical representation of an alphabet as bitmask over the element ids
+     */
+    private static final class AlphabetKey {
+        private final long[] bits;
+        private final int hash;
+
+        private AlphabetKey(ChemicalAlphabet alphabet) {
+            int maxId = 0;
+            for (Element e : alphabet) maxId = Math.max(maxId, e.getId());
+            this.bits = new long[(maxId >> 6) + 1];
+            for (Element e : alphabet) bits[e.getId() >> 6] |= 1L << (e.getId() & 63);
+            this.hash = Arrays.hashCode(bits);
+        }
+
+        /**
+         * @return number of elements this alphabet contains in addition to the given one, or -1 if this alphabet is
+         * not a superset of the given one
+         */
+        private int numberOfAdditionalElements(AlphabetKey subset) {
+            if (subset.bits.length > bits.length) {
+                for (int i = bits.length; i < subset.bits.length; ++i)
+                    if (subset.bits[i] != 0) return -1;
+            }
+            int additional = 0;
+            for (int i = 0; i < bits.length; ++i) {
+                final long sub = i < subset.bits.length ? subset.bits[i] : 0L;
+                if ((sub & ~bits[i]) != 0) return -1;
+                additional += Long.bitCount(bits[i] & ~sub);
+            }
+            return additional;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof AlphabetKey)) return false;
+            return hash == ((AlphabetKey) o).hash && Arrays.equals(bits, ((AlphabetKey) o).bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
     }
 
 }
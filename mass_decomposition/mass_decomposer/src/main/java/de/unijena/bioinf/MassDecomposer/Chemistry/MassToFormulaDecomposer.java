@@ -20,6 +20,7 @@ package de.unijena.bioinf.MassDecomposer.Chemistry;
 import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.chem.utils.FormulaFilterList;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
+import de.unijena.bioinf.MassDecomposer.CompomerBuffer;
 import de.unijena.bioinf.MassDecomposer.DecompIterator;
 import de.unijena.bioinf.MassDecomposer.Interval;
 import de.unijena.bioinf.MassDecomposer.RangeMassDecomposer;
@@ -148,6 +149,31 @@ public class MassToFormulaDecomposer extends RangeMassDecomposer<Element> {
         return formulas;
     }
 
+    /**
+     * Decomposes all intervals [mass-tolerance, mass+tolerance] at once into the given buffer. Only the element
+     * boundaries of the constraints are applied, the filters of the constraints have to be checked on the resulting
+     * formulas (see {@link #getFormula(CompomerBuffer, int)}).
+     *
+     * @see RangeMassDecomposer#decompose(double[], double[], Map, CompomerBuffer)
+     */
+    public CompomerBuffer decomposeToCompomers(double[] masses, double[] massTolerances, FormulaConstraints constraints, CompomerBuffer buffer) {
+        if (masses.length != massTolerances.length)
+            throw new IllegalArgumentException("Number of masses (" + masses.length + ") and tolerances (" + massTolerances.length + ") differ");
+        final double[] from = new double[masses.length], to = new double[masses.length];
+        for (int i = 0; i < masses.length; ++i) {
+            from[i] = Math.max(0, masses[i] - massTolerances[i]);
+            to[i] = Math.max(0, masses[i] + massTolerances[i]);
+        }
+        return decompose(from, to, constraints == null ? null : getBoundaries(constraints), buffer);
+    }
+
+    /**
+     * @return molecular formula of the compomer at the given index of a buffer filled by this decomposer
+     */
+    public MolecularFormula getFormula(CompomerBuffer buffer, int index) {
+        return alphabet.decompositionToFormula(buffer.get(index));
+    }
+
     public ChemicalAlphabet getChemicalAlphabet() {
         return alphabet;
     }
@@ -0,0 +1,161 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.MassDecomposer;
+
+import java.util.Arrays;
+
+/**
+ * Reusable sink for the compomers of a batch decomposition (see
+ * {@link RangeMassDecomposer#decompose(double[], double[], java.util.Map, CompomerBuffer)}).
+ * All compomers are stored consecutively in a single int array, each of them using
+ * {@link #getAlphabetSize()} entries in the same order as the arrays returned by
+ * {@link MassDecomposer#decompose(double, double, java.util.Map)}. The compomers of the i-th queried interval are
+ * stored at the positions {@link #start(int)} (inclusive) to {@link #end(int)} (exclusive).
+ * <p>
+ * The buffer never shrinks. Reuse it for several batches to avoid allocating new arrays for each decomposition.
+ * A buffer is not thread safe, so use one buffer per thread.
+ */
+public class CompomerBuffer {
+
+    protected int[] compomers;
+    protected int[] offsets;
+    protected int alphabetSize;
+    protected int size;
+    protected int numberOfQueries;
+
+    public CompomerBuffer() {
+        this(0, 64);
+    }
+
+    public CompomerBuffer(int alphabetSize, int expectedNumberOfCompomers) {
+        this.alphabetSize = alphabetSize;
+        this.compomers = new int[Math.max(1, alphabetSize) * Math.max(16, expectedNumberOfCompomers)];
+        this.offsets = new int[17];
+        this.size = 0;
+        this.numberOfQueries = 0;
+    }
+
+    /**
+     * removes all compomers from the buffer without releasing its memory
+     */
+    public void clear() {
+        this.size = 0;
+        this.numberOfQueries = 0;
+        this.offsets[0] = 0;
+    }
+
+    /**
+     * @return number of compomers of all queries
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return number of intervals which were decomposed into this buffer
+     */
+    public int numberOfQueries() {
+        return numberOfQueries;
+    }
+
+    /**
+     * @return number of characters of the alphabet, and therefore the length of each compomer
+     */
+    public int getAlphabetSize() {
+        return alphabetSize;
+    }
+
+    /**
+     * @return index of the first compomer of the given query
+     */
+    public int start(int query) {
+        if (query < 0 || query >= numberOfQueries)
+            throw new IndexOutOfBoundsException("Query " + query + " is not in buffer with " + numberOfQueries + " queries");
+        return offsets[query];
+    }
+
+    /**
+     * @return index after the last compomer of the given query
+     */
+    public int end(int query) {
+        if (query < 0 || query >= numberOfQueries)
+            throw new IndexOutOfBoundsException("Query " + query + " is not in buffer with " + numberOfQueries + " queries");
+        return offsets[query + 1];
+    }
+
+    /**
+     * @return amount of the given character in the compomer at the given index
+     */
+    public int get(int index, int character) {
+        return compomers[index * alphabetSize + character];
+    }
+
+    /**
+     * copies the compomer at the given index into the given array
+     *
+     * @return the given array, or a new array if the given one is null
+     */
+    public int[] get(int index, int[] compomer) {
+        if (compomer == null) compomer = new int[alphabetSize];
+        System.arraycopy(compomers, index * alphabetSize, compomer, 0, alphabetSize);
+        return compomer;
+    }
+
+    /**
+     * @return a copy of the compomer at the given index
+     */
+    public int[] get(int index) {
+        return get(index, null);
+    }
+
+    /**
+     * Gives direct access to the backing array. The compomer at index i starts at position i*getAlphabetSize().
+     * The array is replaced when the buffer grows, so do not keep a reference to it while adding compomers.
+     */
+    public int[] getBackingArray() {
+        return compomers;
+    }
+
+    protected void reset(int alphabetSize) {
+        this.alphabetSize = alphabetSize;
+        clear();
+    }
+
+    protected void add(int[] compomer, int[] minValues) {
+        final int offset = size * alphabetSize;
+        if (offset + alphabetSize > compomers.length)
+            compomers = Arrays.copyOf(compomers, Math.max(offset + alphabetSize, compomers.length * 2));
+        if (minValues == null) {
+            System.arraycopy(compomer, 0, compomers, offset, alphabetSize);
+        } else {
+            for (int i = 0; i < alphabetSize; ++i) compomers[offset + i] = compomer[i] + minValues[i];
+        }
+        ++size;
+    }
+
+    protected void finishQuery() {
+        if (numberOfQueries + 2 > offsets.length)
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[++numberOfQueries] = size;
+    }
+
+}
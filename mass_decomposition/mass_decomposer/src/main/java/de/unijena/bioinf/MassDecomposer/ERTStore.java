@@ -0,0 +1,173 @@
+/*
+ *  This file is part of the SIRIUS library for analyzing MS and MS/MS data
+ *
+ *  Copyright (C) 2013-2015 Kai Dührkop
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License along with SIRIUS.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.unijena.bioinf.MassDecomposer;
+
+import de.unijena.bioinf.ChemistryBase.properties.PropertyManager;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Stores extended residue tables on disk, such that they have to be computed only once for all processes
+ * which decompose over the same alphabet.
+ * <p>
+ * The ERTs of an alphabet are fully determined by the (gcd reduced) integer masses of its characters, which
+ * themselves depend on the characters and the precision of the decomposer. Therefore, the integer masses are used as
+ * key. A file contains all ERT levels (one for each deviation 2^x) computed so far. Files are written into a temporary
+ * file which is atomically moved to its final location, so several processes can share the same directory. Files are
+ * read and written as streams instead of mapping them, because mapped files cannot be replaced or deleted on Windows
+ * until the mapping is garbage collected.
+ * <p>
+ * The default store is configured via the property {@value #DIRECTORY_PROPERTY}. If this property is not set,
+ * ERTs are not stored on disk.
+ */
+public class ERTStore {
+
+    public static final String DIRECTORY_PROPERTY = "de.unijena.bioinf.sirius.decomposer.ertDirectory";
+
+    private static final long MAGIC = 0x45525453544f5245L; // "ERTSTORE"
+    private static final int VERSION = 1;
+    // MAGIC, VERSION, number of characters, number of rows, number of levels
+    private static final int HEADER_SIZE = 5;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String LOCK_FILE = "ert.lock";
+
+    protected final File directory;
+
+    /**
+     * @return the store in the directory given by {@value #DIRECTORY_PROPERTY} or null, if no directory is set
+     */
+    public static ERTStore getDefault() {
+        final String dir = PropertyManager.PROPERTIES.getProperty(DIRECTORY_PROPERTY);
+        if (dir == null || dir.isEmpty()) return null;
+        return new ERTStore(new File(dir));
+    }
+
+    public ERTStore(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * loads the ERTs for the given integer masses
+     *
+     * @param integerMasses integer masses of the characters, ordered by mass (as used by the decomposer)
+     * @return all ERT levels stored for this alphabet, or null if there is no (valid) table stored
+     */
+    public long[][][] load(long[] integerMasses) {
+        final File file = fileFor(integerMasses);
+        if (!file.exists()) return null;
+        final long size = file.length();
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (size < HEADER_SIZE * 8 || in.readLong() != MAGIC || in.readLong() != VERSION) return null;
+            final int k = (int) in.readLong();
+            final int rows = (int) in.readLong();
+            final int levels = (int) in.readLong();
+            if (k != integerMasses.length || levels <= 0 || rows != integerMasses[0]) return null;
+            if (size != (HEADER_SIZE + k + (long) levels * rows * k) * 8) return null;
+            for (int i = 0; i < k; ++i) {
+                // hash collision or incompatible table
+                if (in.readLong() != integerMasses[i]) return null;
+            }
+            final long[][][] ERTs = new long[levels][rows][k];
+            for (int level = 0; level < levels; ++level) {
+                final long[][] ERT = ERTs[level];
+                for (int row = 0; row < rows; ++row) {
+                    for (int i = 0; i < k; ++i) ERT[row][i] = in.readLong();
+                }
+            }
+            return ERTs;
+        } catch (IOException | RuntimeException e) {
+            LoggerFactory.getLogger(ERTStore.class).warn("Cannot read ERT from " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * stores the ERTs for the given integer masses. A stored table is only replaced if the new table has more levels.
+     * Writers are serialized by a lock file in the directory, such that a table cannot be replaced by a concurrently written smaller
+     * table.
+     *
+     * @param integerMasses integer masses of the characters, ordered by mass (as used by the decomposer)
+     * @param ERTs          all ERT levels computed so far
+     */
+    public void store(long[] integerMasses, long[][][] ERTs) {
+        if (ERTs.length == 0) return;
+        final File file = fileFor(integerMasses);
+        final int k = integerMasses.length;
+        final int rows = ERTs[0].length;
+        final long numberOfLongs = HEADER_SIZE + k + (long) ERTs.length * rows * k;
+        // do not overwrite tables with more levels
+        if (file.exists() && file.length() >= numberOfLongs * 8) return;
+        Path tempFile = null;
+        // file locks are held by the whole process, so threads of the same process have to be synchronized, too
+        synchronized (ERTStore.class) {
+            try {
+                Files.createDirectories(directory.toPath());
+                try (final FileChannel lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                     final FileLock ignored = lockChannel.lock()) {
+                    // another writer might have stored a larger table in the meantime
+                    if (file.exists() && file.length() >= numberOfLongs * 8) return;
+                    tempFile = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+                    try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE))) {
+                        out.writeLong(MAGIC);
+                        out.writeLong(VERSION);
+                        out.writeLong(k);
+                        out.writeLong(rows);
+                        out.writeLong(ERTs.length);
+                        for (long mass : integerMasses) out.writeLong(mass);
+                        for (long[][] ERT : ERTs) {
+                            for (long[] row : ERT) {
+                                for (long value : row) out.writeLong(value);
+                            }
+                        }
+                    }
+                    try {
+                        Files.move(tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LoggerFactory.getLogger(ERTStore.class).warn("Cannot write ERT to " + file + ": " + e.getMessage());
+                if (tempFile != null) {
+                    try {
+                        Files.deleteIfExists(tempFile);
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    protected File fileFor(long[] integerMasses) {
+        final StringBuilder name = new StringBuilder("ert_");
+        name.append(integerMasses.length).append('_').append(integerMasses[0]).append('_');
+        name.append(Integer.toHexString(Arrays.hashCode(integerMasses)));
+        name.append(".bin");
+        return new File(directory, name.toString());
+    }
+
+}
@@ -36,12 +36,45 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
      */
     protected volatile long[][][] ERTs;
 
+    /**
+     * stores ERTs on disk, such that they have not to be recomputed in each process. Might be null.
+     */
+    protected volatile ERTStore ertStore;
+
     /**
      * @param alphabet the alphabet the mass is decomposed over
      */
     public RangeMassDecomposer(Alphabet<T> alphabet) {
         super(alphabet);
         this.ERTs = new long[0][][];
+        this.ertStore = ERTStore.getDefault();
+    }
+
+    public ERTStore getERTStore() {
+        return ertStore;
+    }
+
+    /**
+     * Sets the store which is used to load and persist the ERTs of this decomposer. Has to be set before
+     * the decomposer is initialized to avoid computing the basic ERT.
+     *
+     * @param ertStore store for ERTs or null, if ERTs should not be stored on disk
+     */
+    public void setERTStore(ERTStore ertStore) {
+        this.ertStore = ertStore;
+    }
+
+    /**
+     * @return estimated number of bytes used by all ERTs computed so far
+     */
+    public long getERTMemoryUsage() {
+        final long[][][] ERTs = this.ERTs;
+        long memory = 0L;
+        for (long[][] ERT : ERTs) {
+            // array header + reference per row plus each row with its own header
+            memory += 16 + 8L * ERT.length + ERT.length * (16 + 8L * weights.size());
+        }
+        return memory;
     }
 
     /**
@@ -169,6 +202,111 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         return results;
     }
 
+    /**
+     * decomposes several mass intervals at once and writes all compomers into the given buffer. In contrast to
+     * calling {@link #decompose(double, double, Map)} for each interval, the boundaries are resolved only once,
+     * the ERTs for the largest deviation are computed only once and the work arrays are shared by all intervals.
+     * No list or array is allocated per decomposition, so this method should be preferred when decomposing all peaks
+     * of a spectrum.
+     * <p>
+     * The compomers of the i-th interval [from[i], to[i]] can be accessed via buffer.start(i) and buffer.end(i).
+     * Intervals with a non-positive upper bound have no decompositions. Intervals are decomposed in the given order;
+     * sorting them by mass improves the cache locality of the ERT lookups.
+     * <p>
+     * This function can be called in multiple threads in parallel as long as each thread uses its own buffer.
+     *
+     * @param from       lower bounds of the mass intervals
+     * @param to         upper bounds of the mass intervals
+     * @param boundaries minimal and maximal amount of each character, might be null
+     * @param buffer     buffer the compomers are written into. It is cleared before. If null, a new buffer is created
+     * @return the given buffer
+     */
+    public CompomerBuffer decompose(double[] from, double[] to, Map<T, Interval> boundaries, CompomerBuffer buffer) {
+        init();
+        if (from.length != to.length)
+            throw new IllegalArgumentException("Number of lower bounds (" + from.length + ") and upper bounds (" + to.length + ") differ");
+        final int k = weights.size();
+        if (buffer == null) buffer = new CompomerBuffer(k, from.length * 4);
+        buffer.reset(k);
+        final int[] minValues = new int[k];
+        final int[] boundsarray = new int[k];
+        boolean minAllZero = true;
+        double reduceWeightBy = 0d;
+        Arrays.fill(boundsarray, Integer.MAX_VALUE);
+        if (boundaries != null && !boundaries.isEmpty()) {
+            for (int i = 0; i < boundsarray.length; i++) {
+                T el = weights.get(i).getOwner();
+                Interval range = boundaries.get(el);
+                if (range != null) {
+                    boundsarray[i] = (int) (range.getMax() - range.getMin());
+                    minValues[i] = (int) range.getMin();
+                    if (minValues[i] > 0) {
+                        minAllZero = false;
+                        reduceWeightBy += weights.get(i).getMass() * range.getMin();
+                    }
+                }
+            }
+        }
+        // first pass: compute integer bounds and the largest deviation, such that all ERTs are computed at once
+        final long[] minIntegerMass = new long[from.length], maxIntegerMass = new long[from.length];
+        long maxDeviation = 0;
+        for (int q = 0; q < from.length; ++q) {
+            if (to[q] < from[q])
+                throw new IllegalArgumentException("Negative range given: [" + from[q] + ", " + to[q] + "]");
+            if (from[q] < 0d && to[q] > 0d)
+                throw new IllegalArgumentException("Expect positive mass for decomposition: [" + from[q] + ", " + to[q] + "]");
+            if (to[q] <= 0d) {
+                minIntegerMass[q] = 0;
+                maxIntegerMass[q] = -1;
+                continue;
+            }
+            final Interval interval = integerBound(from[q] - reduceWeightBy, to[q] - reduceWeightBy);
+            minIntegerMass[q] = interval.getMin();
+            maxIntegerMass[q] = interval.getMax();
+            maxDeviation = Math.max(maxDeviation, interval.getMax() - interval.getMin());
+        }
+        if (k > 1 && (1 << (ERTs.length - 1)) <= maxDeviation) {
+            calcERT(maxDeviation);
+        }
+        final long[][][] ERTs = this.ERTs;
+        final int[] zero = new int[k];
+        final BufferReceiver receiver = new BufferReceiver(buffer, minValues, minAllZero ? null : minValues);
+        final WorkArrays work = new WorkArrays(k);
+        for (int q = 0; q < from.length; ++q) {
+            final long maxMass = maxIntegerMass[q];
+            if (maxMass >= minIntegerMass[q]) {
+                if (!minAllZero && maxMass == 0) buffer.add(zero, minValues);
+                receiver.from = from[q];
+                receiver.to = to[q];
+                integerDecompose(ERTs, maxMass, maxMass - minIntegerMass[q], boundsarray, work, receiver);
+            }
+            buffer.finishQuery();
+        }
+        return buffer;
+    }
+
+    /**
+     * adds all compomers within the current real mass interval to the buffer
+     */
+    private final class BufferReceiver implements CompomerReceiver {
+        private final CompomerBuffer buffer;
+        private final int[] minValues, offset;
+        private double from, to;
+
+        private BufferReceiver(CompomerBuffer buffer, int[] minValues, int[] offset) {
+            this.buffer = buffer;
+            this.minValues = minValues;
+            this.offset = offset;
+        }
+
+        @Override
+        public void add(int[] compomer) {
+            double realMass = 0d;
+            for (int x = 0; x < compomer.length; ++x) realMass += (compomer[x] + minValues[x]) * weights.get(x).getMass();
+            if (realMass >= from && realMass <= to) buffer.add(compomer, offset);
+        }
+    }
+
     /**
      * Iterator implementation of the loop
      * We do not use static classes. This gives us the possibility to make some of the variables behave thread safe
@@ -362,26 +500,67 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
      */
     protected ArrayList<int[]> integerDecompose(long mass, long deviation, int[] bounds) {
         assert (deviation < weights.get(0).getIntegerMass()); //todo throw Exception or not that problematic?
-        if (weights.size() == 1) return integerDecomposeSingleElement(mass, deviation, bounds[0]);
-
-        final long[][][] _ERTs_ = this.ERTs;
         //calculate the required ERTs
-        if ((1 << (ERTs.length - 1)) <= deviation) {
+        if (weights.size() > 1 && (1 << (ERTs.length - 1)) <= deviation) {
             calcERT(deviation);
         }
-        final long[][][] ERTs = this.ERTs;
+        final ArrayList<int[]> result = new ArrayList<int[]>();
+        integerDecompose(this.ERTs, mass, deviation, bounds, new WorkArrays(weights.size()), new CompomerReceiver() {
+            @Override
+            public void add(int[] compomer) {
+                result.add(compomer.clone());
+            }
+        });
+        return result;
+    } // end function
 
-        {
-            long largest = 0;
-            for (long[][] t : ERTs) {
-                for (long[] r : t) {
-                    for (long v : r) {
-                        if (v < Long.MAX_VALUE) {
-                            largest = Math.max(largest, v);
-                        }
-                    }
-                }
+    /**
+     * receives the compomers found by {@link #integerDecompose(long[][][], long, long, int[], WorkArrays, CompomerReceiver)}
+     */
+    protected interface CompomerReceiver {
+        /**
+         * @param compomer amount of each character in the order of the weights. The array is reused for the next
+         *                 compomer, so it has to be copied if it is kept.
+         */
+        void add(int[] compomer);
+    }
+
+    /**
+     * work arrays of {@link #integerDecompose(long[][][], long, long, int[], WorkArrays, CompomerReceiver)}, which can
+     * be reused for all walks of the same decomposer
+     */
+    protected static final class WorkArrays {
+        private final int[] c, j, r;
+        private final long[] m, lbound;
+
+        protected WorkArrays(int k) {
+            this.c = new int[k];
+            this.j = new int[k];
+            this.r = new int[k];
+            this.m = new long[k];
+            this.lbound = new long[k];
+        }
+    }
+
+    /**
+     * walks through the ERT and passes each decomposition of the interval [mass-deviation, mass] to the receiver.
+     * The ERTs have to contain the table for the given deviation.
+     */
+    protected void integerDecompose(long[][][] ERTs, long mass, long deviation, int[] bounds, WorkArrays work, CompomerReceiver receiver) {
+        final int k = weights.size();
+        final int[] c = work.c;
+        Arrays.fill(c, 0);
+        final long a = weights.get(0).getIntegerMass();
+        if (k == 1) {
+            final long minMass = mass - deviation;
+            final int lb = (int) (minMass / a);
+            //set lowest possible frequency
+            int count = (minMass - lb * a == 0) ? lb : lb + 1;
+            while (count * a <= mass && count <= bounds[0]) {
+                c[0] = count++;
+                receiver.add(c);
             }
+            return;
         }
 
         //take ERT with required deviation
@@ -389,14 +568,11 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         if (deviation == 0) currentERT = ERTs[0];
         else currentERT = ERTs[64 - Long.numberOfLeadingZeros(deviation)];
         long ERTdev = Long.highestOneBit(deviation);
-        ArrayList<int[]> result = new ArrayList<int[]>();
 
-        int k = weights.size();
-        int[] c = new int[k], deepCopy;
-        long[] m = new long[k], lbound = new long[k];
-        int[] j = new int[k], r = new int[k];
+        final long[] m = work.m, lbound = work.lbound;
+        final int[] j = work.j, r = work.r;
+        Arrays.fill(j, 0);
         boolean flagWhile = false; // flag wether we are in the while-loop or not
-        final long a = weights.get(0).getIntegerMass();
         // Init
         for (int i = 1; i < k; ++i) {
             lbound[i] = Long.MAX_VALUE; // this is just to ensure, that lbound < m in the first iteration
@@ -406,9 +582,8 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         m[i] = mass; // m[i] corresponds to M, m[i-1] ^= m
         while (i != k) {
             if (i == 0) {
-                deepCopy = c.clone();
-                deepCopy[0] = (int) (m[i] / a);
-                if (deepCopy[0] <= bounds[0]) result.add(deepCopy);
+                c[0] = (int) (m[i] / a);
+                if (c[0] <= bounds[0]) receiver.add(c);
                 ++i; // "return" from recursion
                 flagWhile = true; // in this recursion-depth we are in the while-loop, cause the next recursion (the one we just exited) was called
                 m[i - 1] -= weights.get(i).getLcm(); // execute the rest of the while
@@ -446,30 +621,6 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
                 }
             } // end if i == 0
         } // end while
-
-        return result;
-    } // end function
-
-    private ArrayList<int[]> integerDecomposeSingleElement(long mass, long deviation, int bound) {
-        ArrayList<int[]> result = new ArrayList<>();
-
-        final long a = weights.get(0).getIntegerMass();
-        final long minMass = mass - deviation;
-
-        final int lb = (int) (minMass / a);
-        final long rest = minMass - lb * a;
-
-        int count;
-        //set lowest possible frequency
-        if (rest == 0) count = lb;
-        else count = lb + 1;
-
-        while (count * a <= mass && count <= bound) {
-            final int[] c = new int[]{count};
-            result.add(c);
-            count++;
-        }
-        return result;
     }
 
     /**
@@ -528,10 +679,36 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
         // recursively calculate ERTs for higher deviations
         // current ERT is already sufficient
         if ((1 << (currentLength - 1)) <= deviation) calcERT(deviation);
+        // the call which added the last table persists all tables
+        if (this.ERTs.length == currentLength + 1) storeERTs();
+    }
+
+    private long[] integerMasses() {
+        final long[] masses = new long[weights.size()];
+        for (int i = 0; i < masses.length; ++i) masses[i] = weights.get(i).getIntegerMass();
+        return masses;
+    }
+
+    private void storeERTs() {
+        final ERTStore store = this.ertStore;
+        if (store != null) store.store(integerMasses(), this.ERTs);
     }
 
     @Override
     protected void calcERT() {
+        final ERTStore store = this.ertStore;
+        if (store != null) {
+            final long[][][] stored = store.load(integerMasses());
+            if (stored != null) {
+                synchronized (this) {
+                    if (this.ERTs.length == 0) {
+                        this.ERT = stored[0];
+                        this.ERTs = stored;
+                    }
+                }
+                return;
+            }
+        }
         long firstLongVal = weights.get(0).getIntegerMass();
         long[][] ERT = new long[(int) firstLongVal][weights.size()];
         int r, argmin;
@@ -584,5 +761,6 @@ public class RangeMassDecomposer<T> extends MassDecomposer<T> {
                 this.ERTs = new long[][][]{ERT};
             }
         }
+        storeERTs();
     }
 }
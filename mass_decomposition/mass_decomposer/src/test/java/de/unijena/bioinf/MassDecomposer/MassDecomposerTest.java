@@ -3,9 +3,14 @@ package de.unijena.bioinf.MassDecomposer;
 import de.unijena.bioinf.ChemistryBase.chem.*;
 import de.unijena.bioinf.ChemistryBase.ms.Deviation;
 import de.unijena.bioinf.MassDecomposer.Chemistry.ChemicalAlphabetWrapper;
+import de.unijena.bioinf.MassDecomposer.Chemistry.DecomposerCache;
 import de.unijena.bioinf.MassDecomposer.Chemistry.MassToFormulaDecomposer;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 
 import static junit.framework.Assert.*;
@@ -509,6 +514,194 @@ public class MassDecomposerTest {
     }
 
 
+    @Test
+    public void testBatchDecomposition() {
+        final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer();
+        final FormulaConstraints constraints = new FormulaConstraints("CHNO[1-3]PS");
+        final double[] masses = new double[]{18.01, 212.11, 279.43, 120.05, 330.2};
+        final double[] tolerances = new double[masses.length];
+        final Deviation dev = new Deviation(20, 1e-3);
+        for (int i=0; i < masses.length; ++i) tolerances[i] = dev.absoluteFor(masses[i]);
+        CompomerBuffer buffer = decomposer.decomposeToCompomers(masses, tolerances, constraints, null);
+        // reuse buffer for a second batch
+        buffer = decomposer.decomposeToCompomers(masses, tolerances, constraints, buffer);
+        assertEquals(masses.length, buffer.numberOfQueries());
+        final Map<Element, Interval> boundaries = new HashMap<Element, Interval>();
+        for (Element e : constraints.getChemicalAlphabet()) {
+            boundaries.put(e, new Interval(constraints.getLowerbound(e), constraints.getUpperbound(e)));
+        }
+        for (int i=0; i < masses.length; ++i) {
+            final Set<MolecularFormula> expected = new HashSet<MolecularFormula>();
+            expected.addAll(decomposer.decomposeToFormulas(masses[i], tolerances[i], boundaries, null));
+            final Set<MolecularFormula> batch = new HashSet<MolecularFormula>();
+            for (int c = buffer.start(i); c < buffer.end(i); ++c) {
+                final MolecularFormula f = decomposer.getFormula(buffer, c);
+                batch.add(f);
+            }
+            assertEquals(buffer.end(i) - buffer.start(i), batch.size());
+            assertEquals("decompositions of " + masses[i] + " differ", expected, batch);
+        }
+        // single element alphabets are decomposed without ERT
+        final PeriodicTable T = PeriodicTable.getInstance();
+        final MassToFormulaDecomposer carbon = new MassToFormulaDecomposer(new ChemicalAlphabet(T.getByName("C")));
+        buffer = carbon.decomposeToCompomers(new double[]{36d, 36.5, 120.0001}, new double[]{0.01, 0.01, 0.01}, null, buffer);
+        assertEquals(1, buffer.end(0) - buffer.start(0));
+        assertEquals(MolecularFormula.parse("C3"), carbon.getFormula(buffer, buffer.start(0)));
+        assertEquals(0, buffer.end(1) - buffer.start(1));
+        assertEquals(1, buffer.end(2) - buffer.start(2));
+        assertEquals(MolecularFormula.parse("C10"), carbon.getFormula(buffer, buffer.start(2)));
+    }
+
+    @Test
+    public void testERTStore() throws IOException {
+        final File directory = Files.createTempDirectory("ert").toFile();
+        try {
+            final ERTStore store = new ERTStore(directory);
+            final ChemicalAlphabet alphabet = ChemicalAlphabet.getExtendedAlphabet();
+            final MassToFormulaDecomposer computed = new MassToFormulaDecomposer(alphabet);
+            computed.setERTStore(store);
+            final List<MolecularFormula> expected = computed.decomposeToFormulas(301.2, new Deviation(20, 1e-3));
+            assertEquals(1, storedTables(directory).length);
+
+            final MassToFormulaDecomposer loaded = new MassToFormulaDecomposer(alphabet);
+            loaded.setERTStore(store);
+            loaded.init();
+            assertTrue(loaded.ERTs.length >= computed.ERTs.length);
+            for (int i=0; i < computed.ERTs.length; ++i)
+                assertTrue(Arrays.deepEquals(computed.ERTs[i], loaded.ERTs[i]));
+            assertEquals(new HashSet<MolecularFormula>(expected), new HashSet<MolecularFormula>(loaded.decomposeToFormulas(301.2, new Deviation(20, 1e-3))));
+        } finally {
+            for (File f : directory.listFiles()) f.delete();
+            directory.delete();
+        }
+    }
+
+    private static File[] storedTables(File directory) {
+        return directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".bin");
+            }
+        });
+    }
+
+    @Test
+    public void testERTStoreKeepsLargerTables() throws IOException, InterruptedException {
+        final File directory = Files.createTempDirectory("ert").toFile();
+        try {
+            final ERTStore store = new ERTStore(directory);
+            final MassToFormulaDecomposer decomposer = new MassToFormulaDecomposer(new ChemicalAlphabet());
+            decomposer.setERTStore(null);
+            decomposer.decomposeToFormulas(500d, new Deviation(20, 0.05));
+            final long[][][] ERTs = decomposer.ERTs;
+            assertTrue(ERTs.length > 2);
+            final long[] integerMasses = new long[decomposer.weights.size()];
+            for (int i = 0; i < integerMasses.length; ++i) integerMasses[i] = decomposer.weights.get(i).getIntegerMass();
+            // writers with fewer levels never replace a larger table, regardless of the order
+            final Thread[] writers = new Thread[8];
+            for (int t = 0; t < writers.length; ++t) {
+                final long[][][] levels = Arrays.copyOf(ERTs, 1 + t % ERTs.length);
+                writers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 5; ++i) store.store(integerMasses, levels);
+                    }
+                });
+            }
+            for (Thread t : writers) t.start();
+            for (Thread t : writers) t.join();
+            final int largest = Math.min(writers.length, ERTs.length);
+            assertEquals(largest, store.load(integerMasses).length);
+            store.store(integerMasses, Arrays.copyOf(ERTs, 1));
+            final long[][][] loaded = store.load(integerMasses);
+            assertEquals(largest, loaded.length);
+            for (int i = 0; i < largest; ++i) assertTrue(Arrays.deepEquals(ERTs[i], loaded[i]));
+            // temporary files are removed
+            for (File f : directory.listFiles()) assertFalse(f.getName(), f.getName().endsWith(".tmp"));
+        } finally {
+            for (File f : directory.listFiles()) f.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testDecomposerCache() {
+        final PeriodicTable table = PeriodicTable.getInstance();
+        final DecomposerCache cache = new DecomposerCache(2);
+        final ChemicalAlphabet chnops = new ChemicalAlphabet();
+        final ChemicalAlphabet chno = new ChemicalAlphabet(table.getAllByName("C", "H", "N", "O"));
+        final ChemicalAlphabet chnocl = new ChemicalAlphabet(table.getAllByName("C", "H", "N", "O", "Cl"));
+        final MassToFormulaDecomposer d = cache.getDecomposer(chnops);
+        assertSame(d, cache.getDecomposer(new ChemicalAlphabet()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // CHNOPS has two additional elements, so it is reused for CHNO
+        final MassToFormulaDecomposer superset = cache.getDecomposerForSubset(chno);
+        assertSame(d, superset);
+        assertEquals(1, cache.getSupersetHits());
+        final FormulaConstraints constraints = new FormulaConstraints(chno);
+        final List<MolecularFormula> expected = new MassToFormulaDecomposer(chno).decomposeToFormulas(212.11, new Deviation(10), constraints);
+        assertEquals(new HashSet<MolecularFormula>(expected), new HashSet<MolecularFormula>(superset.decomposeToFormulas(212.11, new Deviation(10), constraints)));
+        // least recently used decomposer is evicted
+        cache.getDecomposer(chno);
+        cache.getDecomposer(chnocl);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getMisses());
+        cache.getDecomposer(chnocl);
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testCachedDecompositionsEqualUncached() throws IOException {
+        final PeriodicTable table = PeriodicTable.getInstance();
+        final ChemicalAlphabet[] alphabets = new ChemicalAlphabet[]{
+                new ChemicalAlphabet(),
+                new ChemicalAlphabet(table.getAllByName("C", "H", "N", "O")),
+                new ChemicalAlphabet(table.getAllByName("C", "H", "N", "O", "P", "S", "Cl")),
+                new ChemicalAlphabet(table.getAllByName("C", "H", "N", "O", "S", "Br", "I", "F"))
+        };
+        final double[] masses = new double[]{18.01, 74.3, 149.05, 212.11, 301.2, 455.29, 611.7, 802.4};
+        final Deviation dev = new Deviation(10, 1e-3);
+        final File directory = Files.createTempDirectory("ert").toFile();
+        try {
+            final ERTStore store = new ERTStore(directory);
+            final DecomposerCache cache = new DecomposerCache(alphabets.length);
+            for (ChemicalAlphabet alphabet : alphabets) {
+                final MassToFormulaDecomposer uncached = new MassToFormulaDecomposer(alphabet);
+                uncached.setERTStore(null);
+                final MassToFormulaDecomposer cached = cache.getDecomposer(alphabet);
+                final MassToFormulaDecomposer stored = new MassToFormulaDecomposer(alphabet);
+                stored.setERTStore(store);
+                stored.init();
+                final MassToFormulaDecomposer loaded = new MassToFormulaDecomposer(alphabet);
+                loaded.setERTStore(store);
+                final FormulaConstraints constraints = new FormulaConstraints(alphabet);
+                for (double mass : masses) {
+                    final Set<MolecularFormula> expected = new HashSet<MolecularFormula>(uncached.decomposeToFormulas(mass, dev, constraints));
+                    assertEquals(expected, new HashSet<MolecularFormula>(cached.decomposeToFormulas(mass, dev, constraints)));
+                    assertEquals(expected, new HashSet<MolecularFormula>(cache.getDecomposer(alphabet).decomposeToFormulas(mass, dev, constraints)));
+                    assertEquals(expected, new HashSet<MolecularFormula>(loaded.decomposeToFormulas(mass, dev, constraints)));
+                }
+            }
+            assertEquals(alphabets.length, storedTables(directory).length);
+            // decomposers of supersets yield the same formulas if constraints over the subset are used
+            final ChemicalAlphabet chnop = new ChemicalAlphabet(table.getAllByName("C", "H", "N", "O", "P"));
+            final MassToFormulaDecomposer uncached = new MassToFormulaDecomposer(chnop);
+            uncached.setERTStore(null);
+            final MassToFormulaDecomposer superset = cache.getDecomposerForSubset(chnop);
+            assertEquals(1, cache.getSupersetHits());
+            final FormulaConstraints constraints = new FormulaConstraints(chnop);
+            for (double mass : masses) {
+                assertEquals(new HashSet<MolecularFormula>(uncached.decomposeToFormulas(mass, dev, constraints)),
+                        new HashSet<MolecularFormula>(superset.decomposeToFormulas(mass, dev, constraints)));
+            }
+        } finally {
+            for (File f : directory.listFiles()) f.delete();
+            directory.delete();
+        }
+    }
+
     @Test
     public void singleElementTest(){
         final PeriodicTable table = PeriodicTable.getInstance();
@@ -0,0 +1,386 @@
+package de.unijena.bioinf.sirius.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
+import de.unijena.bioinf.ChemistryBase.chem.Smiles;
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index;
+import de.unijena.bioinf.babelms.json.FTJsonReader;
+import de.unijena.bioinf.sirius.IdentificationResult;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.InflaterInputStream;
+
+import static de.unijena.bioinf.sirius.projectspace.BinaryProjectWriter.*;
+
+/**
+ * Reads a container written by {@link BinaryProjectWriter}. Only the offset index is read on opening, each experiment
+ * is decoded when it is requested, either by iterating or by random access via {@link #get(int)},
+ * {@link #getByIndex(int)} and {@link #getByName(String)}.
+ * <p>
+ * The trees of an experiment are decoded lazily: the result list of a returned {@link ExperimentResult} is a
+ * {@link LazyResults}, which knows rank, formula and score of all results but parses a tree only when its
+ * {@link IdentificationResult} is requested for the first time.
+ */
+public class BinaryProjectReader implements ProjectReader {
+
+    protected static final Logger logger = LoggerFactory.getLogger(BinaryProjectReader.class);
+
+    protected final RandomAccessFile file;
+    protected final List<IndexEntry> entries;
+    protected final TIntIntHashMap byIndex;
+    protected final TObjectIntHashMap<String> byName;
+    protected int currentIndex = 0;
+
+    public BinaryProjectReader(File source) throws IOException {
+        this.file = new RandomAccessFile(source, "r");
+        this.entries = new ArrayList<>();
+        try {
+            readIndex(file, entries);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        this.byIndex = new TIntIntHashMap(entries.size(), 0.75f, -1, -1);
+        this.byName = new TObjectIntHashMap<>(entries.size(), 0.75f, -1);
+        for (int i = 0; i < entries.size(); ++i) {
+            final IndexEntry e = entries.get(i);
+            if (e.index >= 0) byIndex.putIfAbsent(e.index, i);
+            if (e.name != null) byName.putIfAbsent(e.name, i);
+        }
+    }
+
+    /**
+     * @return number of experiments in the container
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param i position of the experiment in the container
+     */
+    public ExperimentResult get(int i) {
+        try {
+            return readRecord(entries.get(i).offset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the experiment with the given {@link Index} annotation or null if there is no such experiment
+     */
+    public ExperimentResult getByIndex(int index) {
+        final int i = byIndex.get(index);
+        return i < 0 ? null : get(i);
+    }
+
+    /**
+     * @return the first experiment with the given name or null if there is no such experiment
+     */
+    public ExperimentResult getByName(String experimentName) {
+        final int i = byName.get(experimentName);
+        return i < 0 ? null : get(i);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return currentIndex < entries.size();
+    }
+
+    @Override
+    public ExperimentResult next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return get(currentIndex++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    protected ExperimentResult readRecord(long offset) throws IOException {
+        final byte[] record;
+        synchronized (file) {
+            file.seek(offset);
+            record = new byte[file.readInt()];
+            file.readFully(record);
+        }
+        return readRecord(new DataInputStream(new ByteArrayInputStream(record)));
+    }
+
+    protected ExperimentResult readRecord(DataInputStream in) throws IOException {
+        final String name = readString(in);
+        final String experimentSource = readString(in);
+        final ExperimentResult.ErrorCause error = ExperimentResult.ErrorCause.values()[in.readByte()];
+        final String errorMessage = readString(in);
+        final Ms2Experiment experiment = readExperiment(in);
+        final ExperimentResult result = new ExperimentResult(experiment, readResults(in, experiment.getSource()), experimentSource, name);
+        result.error = error;
+        result.errorMessage = errorMessage;
+        return result;
+    }
+
+    protected Ms2Experiment readExperiment(DataInputStream in) throws IOException {
+        final MutableMs2Experiment exp = new MutableMs2Experiment();
+        exp.setName(readString(in));
+        final String formula = readString(in);
+        if (formula != null) exp.setMolecularFormula(MolecularFormula.parse(formula));
+        exp.setIonMass(in.readDouble());
+        switch (in.readByte()) {
+            case 1:
+                exp.setPrecursorIonType(PrecursorIonType.unknown(in.readInt()));
+                break;
+            case 2:
+                exp.setPrecursorIonType(PrecursorIonType.getPrecursorIonType(readString(in)));
+                break;
+        }
+        final String url = readString(in);
+        if (url != null) exp.setSource(new URL(url));
+        final int index = in.readInt();
+        if (index >= 0) exp.setAnnotation(Index.class, new Index(index));
+        final String inchikey = readString(in), inchi = readString(in);
+        if (inchi != null) exp.setAnnotation(InChI.class, new InChI(inchikey, inchi));
+        final String smiles = readString(in);
+        if (smiles != null) exp.setAnnotation(Smiles.class, new Smiles(smiles));
+        final String splash = readString(in);
+        if (splash != null) exp.setAnnotation(Splash.class, new Splash(splash));
+        final String instrumentation = readString(in);
+        if (instrumentation != null) exp.setAnnotation(MsInstrumentation.class, getInstrumentation(instrumentation));
+        final String quality = readString(in);
+        if (quality != null) exp.setAnnotation(CompoundQuality.class, CompoundQuality.fromString(quality));
+        final double retentionTime = in.readDouble();
+        if (!Double.isNaN(retentionTime)) exp.setAnnotation(RetentionTime.class, new RetentionTime(retentionTime));
+        final int numberOfFields = in.readInt();
+        if (numberOfFields >= 0) {
+            final Map<String, String> fields = new HashMap<>(numberOfFields * 2);
+            for (int i = 0; i < numberOfFields; ++i) fields.put(readString(in), readString(in));
+            exp.setAnnotation(Map.class, fields);
+        }
+        // spectra
+        final int numberOfMs1 = in.readInt();
+        final List<SimpleSpectrum> ms1 = new ArrayList<>(numberOfMs1);
+        for (int i = 0; i < numberOfMs1; ++i) ms1.add(readSpectrum(in));
+        exp.setMs1Spectra(ms1);
+        if (in.readBoolean()) exp.setMergedMs1Spectrum(readSpectrum(in));
+        final int numberOfMs2 = in.readInt();
+        final List<MutableMs2Spectrum> ms2 = new ArrayList<>(numberOfMs2);
+        for (int i = 0; i < numberOfMs2; ++i) {
+            final double precursorMz = in.readDouble();
+            final int msLevel = in.readInt();
+            final CollisionEnergy energy = in.readBoolean() ? new CollisionEnergy(in.readDouble(), in.readDouble()) : null;
+            ms2.add(new MutableMs2Spectrum(readSpectrum(in), precursorMz, energy, msLevel));
+        }
+        exp.setMs2Spectra(ms2);
+        return exp;
+    }
+
+    protected LazyResults readResults(DataInputStream in, URL source) throws IOException {
+        final MolecularFormula[] dictionary = new MolecularFormula[in.readInt()];
+        for (int i = 0; i < dictionary.length; ++i) dictionary[i] = MolecularFormula.parse(readString(in));
+        final int n = in.readInt();
+        final int[] ranks = new int[n];
+        final MolecularFormula[] formulas = new MolecularFormula[n];
+        final double[] scores = new double[n];
+        for (int i = 0; i < n; ++i) {
+            ranks[i] = in.readInt();
+            formulas[i] = dictionary[in.readInt()];
+            scores[i] = in.readDouble();
+        }
+        final byte[][] trees = new byte[n][];
+        for (int i = 0; i < n; ++i) {
+            trees[i] = new byte[in.readInt()];
+            in.readFully(trees[i]);
+        }
+        return new LazyResults(ranks, formulas, scores, trees, source);
+    }
+
+    private static MsInstrumentation getInstrumentation(String description) {
+        for (MsInstrumentation.Instrument i : MsInstrumentation.Instrument.values()) {
+            if (i.isInstrument(description)) return i;
+        }
+        return MsInstrumentation.Unknown;
+    }
+
+    protected static SimpleSpectrum readSpectrum(DataInputStream in) throws IOException {
+        final int n = in.readInt();
+        final double[] mz = new double[n], intensities = new double[n];
+        for (int i = 0; i < n; ++i) mz[i] = in.readDouble();
+        for (int i = 0; i < n; ++i) intensities[i] = in.readDouble();
+        return new SimpleSpectrum(mz, intensities);
+    }
+
+    protected static String readString(DataInput in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) return null;
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * reads the offset index of the given container into the given list. If the container has no index, because its
+     * writer was not closed, the index is rebuilt by scanning all complete records.
+     *
+     * @return offset behind the last complete record
+     */
+    static long readIndex(RandomAccessFile file, List<IndexEntry> entries) throws IOException {
+        final long length = file.length();
+        if (length < HEADER_SIZE) throw new IOException("Not a binary project space: file is too short");
+        file.seek(0);
+        if (file.readInt() != MAGIC) throw new IOException("Not a binary project space: unknown file header");
+        final int version = file.readInt();
+        if (version != VERSION) throw new IOException("Unsupported binary project space version " + version);
+        if (length >= HEADER_SIZE + TRAILER_SIZE) {
+            file.seek(length - TRAILER_SIZE);
+            final long indexOffset = file.readLong();
+            if (file.readInt() == INDEX_MAGIC && indexOffset >= HEADER_SIZE && indexOffset < length - TRAILER_SIZE) {
+                file.seek(indexOffset);
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(new RandomAccessFileInputStream(file)));
+                final int n = in.readInt();
+                for (int i = 0; i < n; ++i) {
+                    entries.add(new IndexEntry(readString(in), in.readInt(), in.readLong()));
+                }
+                return indexOffset;
+            }
+        }
+        logger.warn("Binary project space has no index. Rebuild index from records.");
+        long offset = HEADER_SIZE;
+        while (offset + 4 <= length) {
+            file.seek(offset);
+            final int size = file.readInt();
+            if (size < 0 || offset + 4 + size > length) break;
+            final byte[] record = new byte[size];
+            file.readFully(record);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            final String name = readString(in);
+            readString(in); // source
+            in.readByte(); // error
+            readString(in); // error message
+            readString(in); // experiment name
+            readString(in); // formula
+            in.readDouble(); // ion mass
+            switch (in.readByte()) {
+                case 1:
+                    in.readInt();
+                    break;
+                case 2:
+                    readString(in);
+                    break;
+            }
+            readString(in); // source url
+            entries.add(new IndexEntry(name, in.readInt(), offset));
+            offset += 4 + size;
+        }
+        return offset;
+    }
+
+    static final class IndexEntry {
+        final String name;
+        final int index;
+        final long offset;
+
+        IndexEntry(String name, int index, long offset) {
+            this.name = name;
+            this.index = index;
+            this.offset = offset;
+        }
+    }
+
+    private static final class RandomAccessFileInputStream extends InputStream {
+        private final RandomAccessFile file;
+
+        private RandomAccessFileInputStream(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return file.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return file.read(b, off, len);
+        }
+    }
+
+    /**
+     * Result list of an experiment read from a binary project space. Rank, formula and score of each result are
+     * available immediately, the tree of a result is parsed on first access of the result.
+     */
+    public static class LazyResults extends AbstractList<IdentificationResult> {
+
+        private final int[] ranks;
+        private final MolecularFormula[] formulas;
+        private final double[] scores;
+        private final byte[][] trees;
+        private final URL source;
+        private final IdentificationResult[] results;
+
+        protected LazyResults(int[] ranks, MolecularFormula[] formulas, double[] scores, byte[][] trees, URL source) {
+            this.ranks = ranks;
+            this.formulas = formulas;
+            this.scores = scores;
+            this.trees = trees;
+            this.source = source;
+            this.results = new IdentificationResult[ranks.length];
+        }
+
+        public int getRank(int i) {
+            return ranks[i];
+        }
+
+        public MolecularFormula getMolecularFormula(int i) {
+            return formulas[i];
+        }
+
+        public double getScore(int i) {
+            return scores[i];
+        }
+
+        public synchronized boolean isDecoded(int i) {
+            return results[i] != null;
+        }
+
+        @Override
+        public synchronized IdentificationResult get(int i) {
+            if (results[i] == null) {
+                final StringBuilder json = new StringBuilder(trees[i].length * 4);
+                try (final Reader r = new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(trees[i])), StandardCharsets.UTF_8)) {
+                    final char[] buffer = new char[8192];
+                    int read;
+                    while ((read = r.read(buffer)) >= 0) json.append(buffer, 0, read);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                results[i] = new IdentificationResult(new FTJsonReader().treeFromJsonString(json.toString(), source), ranks[i]);
+                // the tree is not needed anymore
+                trees[i] = null;
+            }
+            return results[i];
+        }
+
+        @Override
+        public int size() {
+            return ranks.length;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+package de.unijena.bioinf.sirius.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
+import de.unijena.bioinf.ChemistryBase.chem.Smiles;
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index;
+import de.unijena.bioinf.babelms.json.FTJsonWriter;
+import de.unijena.bioinf.sirius.IdentificationResult;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes all experiments into a single append-only container file instead of a directory per experiment.
+ * <p>
+ * The file starts with a header, followed by one length-prefixed record per {@link ExperimentResult} and ends with an
+ * offset index of all records, such that {@link BinaryProjectReader} can access each experiment in constant time.
+ * Spectra are stored as primitive arrays. The formulas of all results of an experiment are stored in a formula
+ * dictionary in front of the trees, such that rank, formula and score are known without decoding the trees. Trees are
+ * stored as deflated JSON, as this is the only tree encoding keeping all annotations.
+ * <p>
+ * Opening an existing container continues writing behind its last record.
+ */
+public class BinaryProjectWriter implements ProjectWriter {
+
+    static final int MAGIC = 0x53495253; // SIRS
+    static final int INDEX_MAGIC = 0x53494458; // SIDX
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    // index offset and index magic at the end of the file
+    static final int TRAILER_SIZE = 12;
+
+    protected final RandomAccessFile file;
+    protected final DataOutputStream out;
+    protected final List<BinaryProjectReader.IndexEntry> entries;
+    protected long position;
+    private final ByteArrayOutputStream recordBuffer;
+
+    public BinaryProjectWriter(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.entries = new ArrayList<>();
+        if (this.file.length() == 0) {
+            this.file.writeInt(MAGIC);
+            this.file.writeInt(VERSION);
+            this.position = HEADER_SIZE;
+        } else {
+            this.position = BinaryProjectReader.readIndex(this.file, entries);
+            this.file.setLength(position);
+            this.file.seek(position);
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(this.file.getChannel()), 1 << 16));
+        this.recordBuffer = new ByteArrayOutputStream(1 << 16);
+    }
+
+    @Override
+    public void writeExperiment(ExperimentResult result) throws IOException {
+        recordBuffer.reset();
+        final DataOutputStream record = new DataOutputStream(recordBuffer);
+        writeRecord(record, result);
+        record.flush();
+        final Index index = result.getExperiment().getAnnotation(Index.class);
+        entries.add(new BinaryProjectReader.IndexEntry(result.getExperimentName(), index == null ? -1 : index.index, position));
+        out.writeInt(recordBuffer.size());
+        recordBuffer.writeTo(out);
+        position += 4 + recordBuffer.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            final long indexOffset = position;
+            out.writeInt(entries.size());
+            for (BinaryProjectReader.IndexEntry e : entries) {
+                writeString(out, e.name);
+                out.writeInt(e.index);
+                out.writeLong(e.offset);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(INDEX_MAGIC);
+            out.flush();
+        } finally {
+            file.close();
+        }
+    }
+
+    protected void writeRecord(DataOutputStream out, ExperimentResult result) throws IOException {
+        writeString(out, result.getExperimentName());
+        writeString(out, result.getExperimentSource());
+        out.writeByte(result.getError().ordinal());
+        writeString(out, result.getErrorMessage());
+        writeExperiment(out, result.getExperiment());
+        writeResults(out, result.getResults() == null ? new ArrayList<IdentificationResult>() : result.getResults());
+    }
+
+    protected void writeExperiment(DataOutputStream out, Ms2Experiment exp) throws IOException {
+        writeString(out, exp.getName());
+        writeString(out, exp.getMolecularFormula() == null ? null : exp.getMolecularFormula().formatByHill());
+        out.writeDouble(exp.getIonMass());
+        final PrecursorIonType ionType = exp.getPrecursorIonType();
+        if (ionType == null) {
+            out.writeByte(0);
+        } else if (ionType.isIonizationUnknown()) {
+            out.writeByte(1);
+            out.writeInt(ionType.getCharge());
+        } else {
+            out.writeByte(2);
+            writeString(out, ionType.toString());
+        }
+        writeString(out, exp.getSource() == null ? null : exp.getSource().toString());
+        final Index index = exp.getAnnotation(Index.class);
+        out.writeInt(index == null ? -1 : index.index);
+        final InChI inchi = exp.getAnnotation(InChI.class);
+        writeString(out, inchi == null ? null : inchi.key);
+        writeString(out, inchi == null ? null : inchi.in3D);
+        final Smiles smiles = exp.getAnnotation(Smiles.class);
+        writeString(out, smiles == null ? null : smiles.smiles);
+        final Splash splash = exp.getAnnotation(Splash.class);
+        writeString(out, splash == null ? null : splash.getSplash());
+        final MsInstrumentation instrumentation = exp.getAnnotation(MsInstrumentation.class);
+        writeString(out, instrumentation == null ? null : instrumentation.description());
+        final CompoundQuality quality = exp.getAnnotation(CompoundQuality.class);
+        writeString(out, quality == null ? null : quality.toString());
+        final RetentionTime retentionTime = exp.getAnnotation(RetentionTime.class);
+        out.writeDouble(retentionTime == null ? Double.NaN : retentionTime.getRetentionTimeInSeconds());
+        // arbitrary fields of the input file, stored by the parsers as map of strings
+        final Map<?, ?> fields = exp.getAnnotation(Map.class);
+        if (fields == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(fields.size());
+            for (Map.Entry<?, ?> e : fields.entrySet()) {
+                writeString(out, (String) e.getKey());
+                writeString(out, (String) e.getValue());
+            }
+        }
+        // spectra
+        final List<Spectrum<Peak>> ms1 = exp.getMs1Spectra();
+        out.writeInt(ms1.size());
+        for (Spectrum<Peak> spec : ms1) writeSpectrum(out, spec);
+        final Spectrum<Peak> merged = exp.getMergedMs1Spectrum();
+        out.writeBoolean(merged != null);
+        if (merged != null) writeSpectrum(out, merged);
+        final List<Ms2Spectrum<Peak>> ms2 = exp.getMs2Spectra();
+        out.writeInt(ms2.size());
+        for (Ms2Spectrum<Peak> spec : ms2) {
+            out.writeDouble(spec.getPrecursorMz());
+            out.writeInt(spec.getMsLevel());
+            final CollisionEnergy energy = spec.getCollisionEnergy();
+            out.writeBoolean(energy != null);
+            if (energy != null) {
+                out.writeDouble(energy.getMinEnergy());
+                out.writeDouble(energy.getMaxEnergy());
+            }
+            writeSpectrum(out, spec);
+        }
+    }
+
+    protected void writeResults(DataOutputStream out, List<IdentificationResult> results) throws IOException {
+        // formula dictionary
+        final TObjectIntHashMap<MolecularFormula> formulaIds = new TObjectIntHashMap<>(results.size(), 0.75f, -1);
+        final List<MolecularFormula> formulas = new ArrayList<>();
+        for (IdentificationResult r : results) {
+            if (formulaIds.putIfAbsent(r.getMolecularFormula(), formulas.size()) < 0) formulas.add(r.getMolecularFormula());
+        }
+        out.writeInt(formulas.size());
+        for (MolecularFormula f : formulas) writeString(out, f.formatByHill());
+        out.writeInt(results.size());
+        for (IdentificationResult r : results) {
+            out.writeInt(r.getRank());
+            out.writeInt(formulaIds.get(r.getMolecularFormula()));
+            out.writeDouble(r.getScore());
+        }
+        // trees
+        final FTJsonWriter jsonWriter = new FTJsonWriter();
+        final ByteArrayOutputStream treeBuffer = new ByteArrayOutputStream(4096);
+        for (IdentificationResult r : results) {
+            treeBuffer.reset();
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (final Writer w = new OutputStreamWriter(new DeflaterOutputStream(treeBuffer, deflater), StandardCharsets.UTF_8)) {
+                jsonWriter.writeTree(w, r.getResolvedTree());
+            } finally {
+                deflater.end();
+            }
+            out.writeInt(treeBuffer.size());
+            treeBuffer.writeTo(out);
+        }
+    }
+
+    protected static void writeSpectrum(DataOutputStream out, Spectrum<? extends Peak> spec) throws IOException {
+        final int n = spec.size();
+        out.writeInt(n);
+        for (int i = 0; i < n; ++i) out.writeDouble(spec.getMzAt(i));
+        for (int i = 0; i < n; ++i) out.writeDouble(spec.getIntensityAt(i));
+    }
+
+    protected static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package de.unijena.bioinf.sirius.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.jobs.SiriusJobs;
+import de.unijena.bioinf.jjobs.BasicJJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the same output as a sequential {@link DirectoryWriter}, but renders the files (JSON and DOT trees, spectra, CSV) of
+ * many experiments in parallel. Each experiment is rendered into memory by a CPU job, a single IO thread appends the
+ * rendered files to the {@link DirectoryWriter.WritingEnvironment} in the order the experiments were given.
+ * The {@link DirectoryWriter}s rendering the experiments are created by a {@link DelegateFactory}, such that subclasses
+ * of {@link DirectoryWriter} with additional outputs can be parallelized, too.
+ * <p>
+ * At most maxPending experiments are rendered or wait for being written at the same time. If this number is reached,
+ * {@link #writeExperiment(ExperimentResult)} blocks until the IO thread has written the oldest experiment.
+ * If rendering or writing an experiment fails, no further experiments are written and the error is thrown by the next
+ * call of {@link #writeExperiment(ExperimentResult)} or {@link #close()}.
+ * <p>
+ * If the environment is a {@link SiriusWorkspaceWriter}, the checksums of all files are already computed by the
+ * rendering jobs, such that the workspace can store its entries without compressing them in the IO thread.
+ */
+public class ParallelProjectWriter implements ProjectWriter {
+
+    protected static final Logger logger = LoggerFactory.getLogger(ParallelProjectWriter.class);
+
+    private static final RenderJob END_OF_QUEUE = new RenderJob(null, null, 0);
+
+    protected final DirectoryWriter.WritingEnvironment W;
+    protected final DelegateFactory delegates;
+    protected final HashSet<String> surpressedOutputs = new HashSet<>();
+
+    private final Semaphore pending;
+    private final LinkedBlockingQueue<RenderJob> queue;
+    private final Thread ioThread;
+    private volatile IOException ioError;
+    private int counter = 0;
+    private boolean closed = false;
+
+    public ParallelProjectWriter(DirectoryWriter.WritingEnvironment w, final String versionString, final FilenameFormatter filenameFormatter) {
+        this(w, new DelegateFactory() {
+            @Override
+            public DirectoryWriter create(DirectoryWriter.WritingEnvironment env) {
+                return new DirectoryWriter(env, versionString, filenameFormatter);
+            }
+        });
+    }
+
+    public ParallelProjectWriter(DirectoryWriter.WritingEnvironment w, DelegateFactory delegates) {
+        this(w, delegates, 4 * SiriusJobs.getGlobalJobManager().getCPUThreads());
+    }
+
+    /**
+     * @param delegates  creates the writers which render single experiments and write the version file on closing
+     * @param maxPending maximal number of experiments which are rendered or wait for being written at the same time
+     */
+    public ParallelProjectWriter(DirectoryWriter.WritingEnvironment w, DelegateFactory delegates, int maxPending) {
+        this.W = w;
+        this.delegates = delegates;
+        this.pending = new Semaphore(Math.max(1, maxPending));
+        this.queue = new LinkedBlockingQueue<>();
+        this.ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRenderedExperiments();
+            }
+        }, "project-space-writer");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public synchronized void surpress(String output) {
+        surpressedOutputs.add(output);
+    }
+
+    @Override
+    public void writeExperiment(ExperimentResult result) throws IOException {
+        checkError();
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the project space writer");
+        }
+        synchronized (this) {
+            if (closed) {
+                pending.release();
+                throw new IOException("Project space writer is already closed");
+            }
+            final RenderJob job = new RenderJob(this, result, ++counter);
+            SiriusJobs.getGlobalJobManager().submitJob(job);
+            queue.add(job);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            queue.add(END_OF_QUEUE);
+        }
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the project space writer");
+        }
+        try {
+            checkError();
+        } catch (IOException e) {
+            W.close();
+            throw e;
+        }
+        // the delegate writes the version file and closes the environment, as at the end of a sequential run
+        delegates.create(W).close();
+    }
+
+    private void checkError() throws IOException {
+        final IOException e = ioError;
+        if (e != null) throw new IOException("Writing project space failed: " + e.getMessage(), e);
+    }
+
+    private void writeRenderedExperiments() {
+        while (true) {
+            final RenderJob job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                ioError = new InterruptedIOException("Project space writer was interrupted");
+                return;
+            }
+            if (job == END_OF_QUEUE) return;
+            try {
+                final RenderedExperiment rendered = job.awaitResult();
+                if (ioError == null) rendered.writeTo(W);
+            } catch (ExecutionException e) {
+                // a DirectoryWriter would throw this error from writeExperiment, so it fails the next writeExperiment or close
+                final Throwable cause = e.getCause() != null ? e.getCause() : e;
+                logger.error("Cannot write experiment " + job.result.getExperimentName() + ": " + cause.getMessage(), cause);
+                if (ioError == null)
+                    ioError = cause instanceof IOException ? (IOException) cause : new IOException("Cannot write experiment " + job.result.getExperimentName(), cause);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+                if (ioError == null) ioError = e;
+            } catch (RuntimeException e) {
+                logger.error(e.getMessage(), e);
+                if (ioError == null) ioError = new IOException(e);
+            } finally {
+                pending.release();
+            }
+        }
+    }
+
+    /**
+     * Creates a {@link DirectoryWriter} writing into the given environment
+     */
+    public interface DelegateFactory {
+        DirectoryWriter create(DirectoryWriter.WritingEnvironment env);
+    }
+
+    protected static class RenderJob extends BasicJJob<RenderedExperiment> {
+        private final ParallelProjectWriter parent;
+        private final ExperimentResult result;
+        private final int number;
+
+        protected RenderJob(ParallelProjectWriter parent, ExperimentResult result, int number) {
+            super(JobType.CPU);
+            this.parent = parent;
+            this.result = result;
+            this.number = number;
+        }
+
+        @Override
+        protected RenderedExperiment compute() throws Exception {
+            final RenderedExperiment rendered = new RenderedExperiment();
+            final DirectoryWriter writer = parent.delegates.create(rendered);
+            synchronized (parent) {
+                for (String output : parent.surpressedOutputs) writer.surpress(output);
+            }
+            // the experiment number is used for naming experiments without index
+            writer.counter = number - 1;
+            writer.writeExperiment(result);
+            return rendered;
+        }
+    }
+
+    /**
+     * Records all directories, files and progress messages written for a single experiment, such that they can be
+     * replayed on another {@link DirectoryWriter.WritingEnvironment}
+     */
+    protected static class RenderedExperiment implements DirectoryWriter.WritingEnvironment {
+        private static final byte ENTER = 0, FILE = 1, LEAVE = 2, PROGRESS = 3;
+
+        private final List<Operation> operations = new ArrayList<>();
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        private String currentFile;
+
+        @Override
+        public void enterDirectory(String name) {
+            operations.add(new Operation(ENTER, name, null, 0));
+        }
+
+        @Override
+        public OutputStream openFile(String name) {
+            currentFile = name;
+            buffer.reset();
+            return buffer;
+        }
+
+        @Override
+        public void closeFile() {
+            final byte[] content = buffer.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+            operations.add(new Operation(FILE, currentFile, content, crc.getValue()));
+            currentFile = null;
+        }
+
+        @Override
+        public void leaveDirectory() {
+            operations.add(new Operation(LEAVE, null, null, 0));
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void updateProgress(String s) {
+            operations.add(new Operation(PROGRESS, s, null, 0));
+        }
+
+        protected void writeTo(DirectoryWriter.WritingEnvironment env) throws IOException {
+            for (Operation op : operations) {
+                switch (op.type) {
+                    case ENTER:
+                        env.enterDirectory(op.name);
+                        break;
+                    case FILE:
+                        if (env instanceof SiriusWorkspaceWriter) {
+                            ((SiriusWorkspaceWriter) env).writeFile(op.name, op.content, op.crc);
+                        } else {
+                            env.openFile(op.name).write(op.content);
+                            env.closeFile();
+                        }
+                        break;
+                    case LEAVE:
+                        env.leaveDirectory();
+                        break;
+                    case PROGRESS:
+                        env.updateProgress(op.name);
+                        break;
+                }
+            }
+        }
+    }
+
+    private static final class Operation {
+        private final byte type;
+        private final String name;
+        private final byte[] content;
+        private final long crc;
+
+        private Operation(byte type, String name, byte[] content, long crc) {
+            this.type = type;
+            this.name = name;
+            this.content = content;
+            this.crc = crc;
+        }
+    }
+
+}
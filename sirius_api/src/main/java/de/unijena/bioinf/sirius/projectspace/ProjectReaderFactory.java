@@ -1,8 +1,18 @@
 package de.unijena.bioinf.sirius.projectspace;
 
+import java.io.File;
+import java.io.IOException;
+
 public interface ProjectReaderFactory {
 
     public ProjectReader getSiriusOutputReader(String sirius, DirectoryReader.ReadingEnvironment env);
 
     public ProjectReader getDirectoryOutputReader(String sirius, DirectoryReader.ReadingEnvironment env);
+
+    /**
+     * @return a reader for a {@link BinaryProjectWriter} container file
+     */
+    public default ProjectReader getBinaryOutputReader(String sirius, File file) throws IOException {
+        return new BinaryProjectReader(file);
+    }
 }
@@ -1,9 +1,35 @@
 package de.unijena.bioinf.sirius.projectspace;
 
+import java.io.File;
+import java.io.IOException;
+
 public interface ProjectWriterFactory {
 
     public ProjectWriter getSiriusOutputWriter(String sirius, DirectoryWriter.WritingEnvironment env);
 
     public ProjectWriter getDirectoryOutputWriter(String sirius, DirectoryWriter.WritingEnvironment env);
 
+    /**
+     * @return a writer producing the same output as {@link #getDirectoryOutputWriter(String, DirectoryWriter.WritingEnvironment)},
+     * but rendering the experiments in parallel. The directory output writer has to be a {@link DirectoryWriter}.
+     */
+    public default ProjectWriter getParallelDirectoryOutputWriter(final String sirius, DirectoryWriter.WritingEnvironment env) {
+        return new ParallelProjectWriter(env, new ParallelProjectWriter.DelegateFactory() {
+            @Override
+            public DirectoryWriter create(DirectoryWriter.WritingEnvironment env) {
+                final ProjectWriter writer = getDirectoryOutputWriter(sirius, env);
+                if (!(writer instanceof DirectoryWriter))
+                    throw new UnsupportedOperationException("Cannot render " + writer.getClass().getSimpleName() + " in parallel");
+                return (DirectoryWriter) writer;
+            }
+        });
+    }
+
+    /**
+     * @return a writer storing all experiments in a single {@link BinaryProjectWriter} container file
+     */
+    public default ProjectWriter getBinaryOutputWriter(String sirius, File file) throws IOException {
+        return new BinaryProjectWriter(file);
+    }
+
 }
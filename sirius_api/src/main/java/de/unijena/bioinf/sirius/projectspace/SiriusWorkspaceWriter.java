@@ -11,14 +11,23 @@ public class SiriusWorkspaceWriter implements DirectoryWriter.WritingEnvironment
 
     protected ZipOutputStream zip;
     protected List<String> pathElements;
+    protected final boolean storeEntries;
 
     public SiriusWorkspaceWriter(File file) throws FileNotFoundException {
         this(new FileOutputStream(file));
     }
 
     public SiriusWorkspaceWriter(OutputStream stream) {
+        this(stream, false);
+    }
+
+    /**
+     * @param storeEntries if true, files given via {@link #writeFile(String, byte[], long)} are stored without compression
+     */
+    public SiriusWorkspaceWriter(OutputStream stream, boolean storeEntries) {
         this.zip = new ZipOutputStream(stream, Charset.forName("UTF-8"));
         this.pathElements = new ArrayList<>();
+        this.storeEntries = storeEntries;
     }
 
     @Override
@@ -48,6 +57,23 @@ public class SiriusWorkspaceWriter implements DirectoryWriter.WritingEnvironment
         return zip;
     }
 
+    /**
+     * writes a complete file at once.
+     * @param crc CRC-32 checksum of the content, necessary for storing the file without compression
+     */
+    public void writeFile(String name, byte[] content, long crc) throws IOException {
+        final ZipEntry entry = new ZipEntry(join(pathElements) + name);
+        if (storeEntries) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc);
+        }
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+    }
+
     @Override
     public void closeFile() {
         try {
@@ -0,0 +1,157 @@
+package de.unijena.bioinf.sirius.projectspace;
+
+import com.google.gson.JsonParser;
+import de.unijena.bioinf.ChemistryBase.chem.InChI;
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.chem.RetentionTime;
+import de.unijena.bioinf.ChemistryBase.chem.Smiles;
+import de.unijena.bioinf.ChemistryBase.ms.*;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.ft.TreeScoring;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index;
+import de.unijena.bioinf.babelms.json.FTJsonReader;
+import de.unijena.bioinf.babelms.json.FTJsonWriter;
+import de.unijena.bioinf.sirius.IdentificationResult;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class BinaryProjectSpaceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        final FTree tree = readTree();
+        final List<IdentificationResult> results = Arrays.asList(new IdentificationResult(tree, 1), new IdentificationResult(new FTree(tree), 2));
+        final ExperimentResult solved = new ExperimentResult(experiment("compound1", 3), results, "source1", "1_compound1");
+        final ExperimentResult failed = new ExperimentResult(experiment("compound2", 7), Collections.<IdentificationResult>emptyList(), ExperimentResult.ErrorCause.TIMEOUT, "timeout");
+
+        final File file = folder.newFile("project.sirius");
+        try (final BinaryProjectWriter writer = new BinaryProjectWriter(file)) {
+            writer.writeExperiment(solved);
+            writer.writeExperiment(failed);
+        }
+
+        try (final BinaryProjectReader reader = new BinaryProjectReader(file)) {
+            assertEquals(2, reader.size());
+            assertSameExperimentResult(solved, reader.getByName("1_compound1"));
+            assertSameExperimentResult(failed, reader.getByIndex(7));
+            assertTrue(reader.hasNext());
+            assertSameExperimentResult(solved, reader.next());
+            assertSameExperimentResult(failed, reader.next());
+            assertFalse(reader.hasNext());
+        }
+    }
+
+    @Test
+    public void testAppend() throws IOException {
+        final File file = folder.newFile("project.sirius");
+        final ExperimentResult first = new ExperimentResult(experiment("compound1", 1), Collections.<IdentificationResult>emptyList(), "source1", "1_compound1");
+        final ExperimentResult second = new ExperimentResult(experiment("compound2", 2), Collections.<IdentificationResult>emptyList(), "source2", "2_compound2");
+        try (final BinaryProjectWriter writer = new BinaryProjectWriter(file)) {
+            writer.writeExperiment(first);
+        }
+        try (final BinaryProjectWriter writer = new BinaryProjectWriter(file)) {
+            writer.writeExperiment(second);
+        }
+        try (final BinaryProjectReader reader = new BinaryProjectReader(file)) {
+            assertEquals(2, reader.size());
+            assertSameExperimentResult(first, reader.get(0));
+            assertSameExperimentResult(second, reader.get(1));
+        }
+    }
+
+    private FTree readTree() throws IOException {
+        try (final BufferedReader r = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/de/unijena/bioinf/babelms/ms/casmi2016_084.json"), StandardCharsets.UTF_8))) {
+            return new FTJsonReader().parse(r, null);
+        }
+    }
+
+    private static MutableMs2Experiment experiment(String name, int index) throws IOException {
+        final MutableMs2Experiment exp = new MutableMs2Experiment();
+        exp.setName(name);
+        exp.setMolecularFormula(MolecularFormula.parse("C4H7N3O"));
+        exp.setIonMass(114.0662);
+        exp.setPrecursorIonType(PrecursorIonType.getPrecursorIonType("[M+H]+"));
+        exp.setSource(new File(name + ".ms").toURI().toURL());
+        exp.setAnnotation(Index.class, new Index(index));
+        exp.setAnnotation(InChI.class, new InChI("ODKSFYDXXFIFQN-UHFFFAOYSA-N", "InChI=1S/C4H7N3O/c1-7-2-3(8)6-4(7)5/h2H2,1H3,(H2,5,6,8)"));
+        exp.setAnnotation(Smiles.class, new Smiles("CN1CC(=O)N=C1N"));
+        exp.setAnnotation(RetentionTime.class, new RetentionTime(61.5));
+        exp.setAnnotation(MsInstrumentation.class, MsInstrumentation.Instrument.QTOF);
+        final Map<String, String> fields = new HashMap<>();
+        fields.put("FEATURE_ID", String.valueOf(index));
+        exp.setAnnotation(Map.class, fields);
+        exp.setMs1Spectra(Collections.singletonList(new SimpleSpectrum(new double[]{114.0662, 115.0695}, new double[]{100d, 5d})));
+        exp.setMergedMs1Spectrum(new SimpleSpectrum(new double[]{114.0662, 115.0695}, new double[]{100d, 5d}));
+        exp.setMs2Spectra(Collections.singletonList(new MutableMs2Spectrum(new SimpleSpectrum(new double[]{44.0131, 72.0444, 114.0662}, new double[]{10d, 40d, 100d}), 114.0662, new CollisionEnergy(10, 20), 2)));
+        return exp;
+    }
+
+    private static void assertSameExperimentResult(ExperimentResult expected, ExperimentResult actual) {
+        assertEquals(expected.getExperimentName(), actual.getExperimentName());
+        assertEquals(expected.getExperimentSource(), actual.getExperimentSource());
+        assertEquals(expected.getError(), actual.getError());
+        assertEquals(expected.getErrorMessage(), actual.getErrorMessage());
+
+        final Ms2Experiment e = expected.getExperiment(), a = actual.getExperiment();
+        assertEquals(e.getName(), a.getName());
+        assertEquals(e.getMolecularFormula(), a.getMolecularFormula());
+        assertEquals(e.getIonMass(), a.getIonMass(), 0d);
+        assertEquals(e.getPrecursorIonType(), a.getPrecursorIonType());
+        assertEquals(e.getSource(), a.getSource());
+        assertEquals(e.getAnnotation(Index.class).index, a.getAnnotation(Index.class).index);
+        assertEquals(e.getAnnotation(InChI.class).in3D, a.getAnnotation(InChI.class).in3D);
+        assertEquals(e.getAnnotation(InChI.class).key, a.getAnnotation(InChI.class).key);
+        assertEquals(e.getAnnotation(Smiles.class).smiles, a.getAnnotation(Smiles.class).smiles);
+        assertEquals(e.getAnnotation(RetentionTime.class).getRetentionTimeInSeconds(), a.getAnnotation(RetentionTime.class).getRetentionTimeInSeconds(), 0d);
+        assertEquals(e.getAnnotation(MsInstrumentation.class), a.getAnnotation(MsInstrumentation.class));
+        assertEquals(e.getAnnotation(Map.class), a.getAnnotation(Map.class));
+        assertEquals(e.getMs1Spectra().size(), a.getMs1Spectra().size());
+        for (int i = 0; i < e.getMs1Spectra().size(); ++i)
+            assertSameSpectrum(e.getMs1Spectra().get(i), a.getMs1Spectra().get(i));
+        assertSameSpectrum(e.getMergedMs1Spectrum(), a.getMergedMs1Spectrum());
+        assertEquals(e.getMs2Spectra().size(), a.getMs2Spectra().size());
+        for (int i = 0; i < e.getMs2Spectra().size(); ++i) {
+            final Ms2Spectrum<Peak> s = e.getMs2Spectra().get(i), t = a.getMs2Spectra().get(i);
+            assertEquals(s.getPrecursorMz(), t.getPrecursorMz(), 0d);
+            assertEquals(s.getMsLevel(), t.getMsLevel());
+            assertEquals(s.getCollisionEnergy(), t.getCollisionEnergy());
+            assertSameSpectrum(s, t);
+        }
+
+        assertEquals(expected.getResults().size(), actual.getResults().size());
+        final FTJsonWriter writer = new FTJsonWriter();
+        final JsonParser json = new JsonParser();
+        for (int i = 0; i < expected.getResults().size(); ++i) {
+            final IdentificationResult r = expected.getResults().get(i), s = actual.getResults().get(i);
+            assertEquals(r.getRank(), s.getRank());
+            assertEquals(r.getMolecularFormula(), s.getMolecularFormula());
+            assertEquals(r.getScore(), s.getScore(), 0d);
+            assertEquals(r.getPrecursorIonType(), s.getPrecursorIonType());
+            final FTree t = r.getResolvedTree(), u = s.getResolvedTree();
+            assertEquals(t.getAnnotationOrThrow(TreeScoring.class).getOverallScore(), u.getAnnotationOrThrow(TreeScoring.class).getOverallScore(), 0d);
+            // order of additional scores in the json document might differ
+            assertEquals(json.parse(writer.treeToJsonString(t)), json.parse(writer.treeToJsonString(u)));
+        }
+    }
+
+    private static void assertSameSpectrum(Spectrum<? extends Peak> expected, Spectrum<? extends Peak> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.getMzAt(i), actual.getMzAt(i), 0d);
+            assertEquals(expected.getIntensityAt(i), actual.getIntensityAt(i), 0d);
+        }
+    }
+
+}
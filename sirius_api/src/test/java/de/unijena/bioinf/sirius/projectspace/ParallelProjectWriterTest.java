@@ -0,0 +1,203 @@
+package de.unijena.bioinf.sirius.projectspace;
+
+import de.unijena.bioinf.ChemistryBase.chem.MolecularFormula;
+import de.unijena.bioinf.ChemistryBase.chem.PrecursorIonType;
+import de.unijena.bioinf.ChemistryBase.ms.CollisionEnergy;
+import de.unijena.bioinf.ChemistryBase.ms.Ms2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Experiment;
+import de.unijena.bioinf.ChemistryBase.ms.MutableMs2Spectrum;
+import de.unijena.bioinf.ChemistryBase.ms.ft.FTree;
+import de.unijena.bioinf.ChemistryBase.ms.utils.SimpleSpectrum;
+import de.unijena.bioinf.ChemistryBase.sirius.projectspace.Index;
+import de.unijena.bioinf.babelms.json.FTJsonReader;
+import de.unijena.bioinf.sirius.IdentificationResult;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ParallelProjectWriterTest {
+
+    @Test
+    public void testSameOutputAsDirectoryWriter() throws IOException {
+        final List<ExperimentResult> experiments = experiments();
+        final ParallelProjectWriter.DelegateFactory delegates = new ParallelProjectWriter.DelegateFactory() {
+            @Override
+            public DirectoryWriter create(DirectoryWriter.WritingEnvironment env) {
+                // subclasses of the directory writer are used for rendering and for the version file
+                return new DirectoryWriter(env, "sirius test", new StandardMSFilenameFormatter()) {
+                    @Override
+                    protected void addVersionStrings(Writer w) {
+                        super.addVersionStrings(w);
+                        try {
+                            w.write("additional version\n");
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                };
+            }
+        };
+
+        final RecordingEnvironment sequential = new RecordingEnvironment();
+        final DirectoryWriter writer = delegates.create(sequential);
+        writer.surpress(OutputOptions.TREES_DOT);
+        for (ExperimentResult r : experiments) writer.writeExperiment(r);
+        writer.close();
+
+        final RecordingEnvironment parallel = new RecordingEnvironment();
+        // few pending experiments, such that writeExperiment has to wait for the IO thread
+        final ParallelProjectWriter parallelWriter = new ParallelProjectWriter(parallel, delegates, 2);
+        parallelWriter.surpress(OutputOptions.TREES_DOT);
+        for (ExperimentResult r : experiments) parallelWriter.writeExperiment(r);
+        parallelWriter.close();
+
+        assertTrue(sequential.closed);
+        assertTrue(parallel.closed);
+        assertTrue(sequential.operations.contains("file version.txt\nsirius test\nadditional version\n"));
+        assertEquals(sequential.operations, parallel.operations);
+    }
+
+    @Test
+    public void testSameWorkspaceAsDirectoryWriter() throws IOException {
+        final List<ExperimentResult> experiments = experiments();
+        final ByteArrayOutputStream sequential = new ByteArrayOutputStream();
+        final DirectoryWriter writer = new DirectoryWriter(new SiriusWorkspaceWriter(sequential), "sirius test", new StandardMSFilenameFormatter());
+        for (ExperimentResult r : experiments) writer.writeExperiment(r);
+        writer.close();
+
+        for (boolean storeEntries : new boolean[]{false, true}) {
+            final ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            final ParallelProjectWriter parallelWriter = new ParallelProjectWriter(new SiriusWorkspaceWriter(parallel, storeEntries), "sirius test", new StandardMSFilenameFormatter());
+            for (ExperimentResult r : experiments) parallelWriter.writeExperiment(r);
+            parallelWriter.close();
+            assertEquals(readZip(sequential.toByteArray()), readZip(parallel.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testFailingRenderJobFailsWriter() throws IOException {
+        final ParallelProjectWriter.DelegateFactory delegates = new ParallelProjectWriter.DelegateFactory() {
+            @Override
+            public DirectoryWriter create(DirectoryWriter.WritingEnvironment env) {
+                return new DirectoryWriter(env, "sirius test", new StandardMSFilenameFormatter()) {
+                    @Override
+                    protected void writeInput(ExperimentResult result, Ms2Experiment experiment) throws IOException {
+                        if (experiment.getName().equals("compound5")) throw new IOException("cannot render compound5");
+                        super.writeInput(result, experiment);
+                    }
+                };
+            }
+        };
+        final RecordingEnvironment parallel = new RecordingEnvironment();
+        final ParallelProjectWriter parallelWriter = new ParallelProjectWriter(parallel, delegates, 2);
+        IOException error = null;
+        try {
+            for (ExperimentResult r : experiments()) parallelWriter.writeExperiment(r);
+        } catch (IOException e) {
+            error = e;
+        }
+        // the error is either thrown by one of the following writeExperiment calls or on closing
+        try {
+            parallelWriter.close();
+        } catch (IOException e) {
+            if (error == null) error = e;
+        }
+        assertNotNull(error);
+        assertEquals("cannot render compound5", error.getCause().getMessage());
+        assertTrue(parallel.closed);
+        // neither the failed experiment nor the version file are written
+        for (String operation : parallel.operations) {
+            assertFalse(operation, operation.contains("compound5") || operation.startsWith("file version.txt"));
+        }
+    }
+
+    private List<ExperimentResult> experiments() throws IOException {
+        final FTree tree;
+        try (final BufferedReader r = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream("/de/unijena/bioinf/babelms/ms/casmi2016_084.json"), StandardCharsets.UTF_8))) {
+            tree = new FTJsonReader().parse(r, null);
+        }
+        final List<ExperimentResult> experiments = new ArrayList<>();
+        for (int i = 1; i <= 20; ++i) {
+            final MutableMs2Experiment exp = new MutableMs2Experiment();
+            exp.setName("compound" + i);
+            exp.setMolecularFormula(MolecularFormula.parse("C4H7N3O"));
+            exp.setIonMass(114.0662);
+            exp.setPrecursorIonType(PrecursorIonType.getPrecursorIonType("[M+H]+"));
+            exp.setSource(new File("compound" + i + ".ms").toURI().toURL());
+            // experiments without index are named by their position
+            if (i % 3 != 0) exp.setAnnotation(Index.class, new Index(100 + i));
+            exp.setMergedMs1Spectrum(new SimpleSpectrum(new double[]{114.0662, 115.0695}, new double[]{100d, 5d}));
+            exp.setMs2Spectra(Collections.singletonList(new MutableMs2Spectrum(new SimpleSpectrum(new double[]{44.0131, 72.0444, 114.0662}, new double[]{10d, i, 100d}), 114.0662, new CollisionEnergy(10, 20), 2)));
+            if (i % 7 == 0) {
+                experiments.add(new ExperimentResult(exp, Collections.<IdentificationResult>emptyList(), ExperimentResult.ErrorCause.TIMEOUT, "timeout"));
+            } else {
+                experiments.add(new ExperimentResult(exp, Arrays.asList(new IdentificationResult(new FTree(tree), 1), new IdentificationResult(new FTree(tree), 2))));
+            }
+        }
+        return experiments;
+    }
+
+    private static Map<String, String> readZip(byte[] zip) throws IOException {
+        final Map<String, String> entries = new LinkedHashMap<>();
+        try (final ZipInputStream stream = new ZipInputStream(new ByteArrayInputStream(zip), StandardCharsets.UTF_8)) {
+            ZipEntry entry;
+            final byte[] buffer = new byte[8192];
+            while ((entry = stream.getNextEntry()) != null) {
+                final ByteArrayOutputStream content = new ByteArrayOutputStream();
+                int n;
+                while ((n = stream.read(buffer)) > 0) content.write(buffer, 0, n);
+                entries.put(entry.getName(), new String(content.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * records all operations on the environment together with the content of the written files
+     */
+    private static class RecordingEnvironment implements DirectoryWriter.WritingEnvironment {
+        private final List<String> operations = new ArrayList<>();
+        private String currentFile;
+        private ByteArrayOutputStream buffer;
+        private boolean closed = false;
+
+        @Override
+        public void enterDirectory(String name) {
+            operations.add("enter " + name);
+        }
+
+        @Override
+        public OutputStream openFile(String name) {
+            currentFile = name;
+            buffer = new ByteArrayOutputStream();
+            return buffer;
+        }
+
+        @Override
+        public void closeFile() {
+            operations.add("file " + currentFile + "\n" + new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void leaveDirectory() {
+            operations.add("leave");
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void updateProgress(String s) {
+            operations.add("progress " + s);
+        }
+    }
+
+}